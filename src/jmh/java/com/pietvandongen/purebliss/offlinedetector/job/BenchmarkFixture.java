@@ -0,0 +1,86 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates the offline devices, thresholds and service stubs the job benchmarks run against. All devices have passed
+ * the last threshold; a configurable fraction of them hasn't been notified for it yet, so that fraction needs a
+ * notification on every run.
+ */
+public class BenchmarkFixture {
+
+    private final Map<Device, Instant> offlineDevices = new HashMap<>();
+    private final Map<Device, Instant> lastNotifications = new HashMap<>();
+    private final List<Duration> thresholds = new ArrayList<>();
+    private final LongAdder sentNotifications = new LongAdder();
+
+    /**
+     * Creates a fixture.
+     *
+     * @param deviceCount       The number of offline devices.
+     * @param thresholdCount    The number of thresholds, which are one hour apart.
+     * @param notificationRatio The fraction of offline devices that needs a notification on every run.
+     */
+    public BenchmarkFixture(int deviceCount, int thresholdCount, double notificationRatio) {
+        Random random = new Random(deviceCount);
+        Instant now = Instant.now();
+
+        for (int i = 1; i <= thresholdCount; i++) {
+            thresholds.add(Duration.ofHours(i));
+        }
+
+        for (int i = 0; i < deviceCount; i++) {
+            Device device = new Device(new UUID(random.nextLong(), random.nextLong()));
+            Instant deviceOffline = now.minus(Duration.ofHours(thresholdCount + 1));
+
+            offlineDevices.put(device, deviceOffline);
+
+            if (random.nextDouble() >= notificationRatio) {
+                lastNotifications.put(device, deviceOffline.plus(Duration.ofHours(thresholdCount)).plusSeconds(1));
+            }
+        }
+    }
+
+    public List<Duration> getThresholds() {
+        return thresholds;
+    }
+
+    public long getSentNotifications() {
+        return sentNotifications.sum();
+    }
+
+    public DeviceService getDeviceService() {
+        return () -> offlineDevices;
+    }
+
+    /**
+     * @return A push notification service that only counts the sent notifications and never records them, so every
+     * run sends the same amount of notifications.
+     */
+    public PushNotificationService getPushNotificationService() {
+        return new PushNotificationService() {
+            @Override
+            public void sendOfflineNotification(Device device) {
+                sentNotifications.increment();
+            }
+
+            @Override
+            public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+                return Optional.ofNullable(lastNotifications.get(device));
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import com.pietvandongen.purebliss.offlinedetector.job.brokenup.BrokenUpJobFactory;
+import com.pietvandongen.purebliss.offlinedetector.job.documented.DocumentedJobFactory;
+import com.pietvandongen.purebliss.offlinedetector.job.naive.NaiveJobFactory;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the runs of the job implementations against the same fixture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OfflineDevicesJobBenchmark {
+
+    @Param({"naive", "brokenup", "documented"})
+    public String implementation;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int deviceCount;
+
+    @Param({"1", "10", "50"})
+    public int thresholdCount;
+
+    @Param({"0.0", "0.01", "1.0"})
+    public double notificationRatio;
+
+    private OfflineDevicesJob offlineDevicesJob;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkFixture fixture = new BenchmarkFixture(deviceCount, thresholdCount, notificationRatio);
+
+        offlineDevicesJob = createJob(implementation, fixture.getDeviceService(), fixture.getPushNotificationService());
+        offlineDevicesJob.onConfigurationUpdate(fixture.getThresholds());
+    }
+
+    @Benchmark
+    public void run() {
+        offlineDevicesJob.run();
+    }
+
+    private static OfflineDevicesJob createJob(String implementation, DeviceService deviceService, PushNotificationService pushNotificationService) {
+        switch (implementation) {
+            case "naive":
+                return NaiveJobFactory.create(deviceService, pushNotificationService);
+            case "brokenup":
+                return BrokenUpJobFactory.create(deviceService, pushNotificationService);
+            case "documented":
+                return DocumentedJobFactory.create(deviceService, pushNotificationService);
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+/**
+ * Creates the documented job for the benchmarks, as its constructors are package-private.
+ */
+public final class DocumentedJobFactory {
+
+    private DocumentedJobFactory() {
+    }
+
+    public static OfflineDevicesJob create(DeviceService deviceService, PushNotificationService pushNotificationService) {
+        return new OfflineDevicesJobImpl(deviceService, pushNotificationService);
+    }
+}
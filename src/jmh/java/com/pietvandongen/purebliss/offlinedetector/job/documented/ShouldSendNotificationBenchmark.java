@@ -0,0 +1,76 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the pure decision functions on their own, with the list based and the compiled thresholds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShouldSendNotificationBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int thresholdCount;
+
+    private List<Duration> thresholds;
+    private ThresholdSchedule thresholdSchedule;
+    private Instant jobStart;
+    private Instant deviceOffline;
+    private Instant lastNotification;
+
+    @Setup
+    public void setUp() {
+        thresholds = new ArrayList<>();
+
+        for (int i = 1; i <= thresholdCount; i++) {
+            thresholds.add(Duration.ofHours(i));
+        }
+
+        thresholdSchedule = ThresholdSchedule.compile(thresholds);
+        deviceOffline = Instant.parse("2010-10-10T10:10:00.000Z");
+        jobStart = deviceOffline.plus(Duration.ofHours(thresholdCount / 2)).plusSeconds(1);
+        lastNotification = deviceOffline.plus(Duration.ofHours(thresholdCount / 2)).minusSeconds(1);
+    }
+
+    @Benchmark
+    public Optional<Duration> calculateLastPassedThreshold() {
+        return OfflineDevicesJobImpl.calculateLastPassedThreshold(deviceOffline, jobStart, thresholds);
+    }
+
+    @Benchmark
+    public int calculateLastPassedThresholdIndexWithThresholdSchedule() {
+        return thresholdSchedule.lastPassedIndex(deviceOffline, jobStart);
+    }
+
+    @Benchmark
+    public boolean shouldSendNotification() {
+        return OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholds);
+    }
+
+    @Benchmark
+    public boolean shouldSendNotificationWithThresholdSchedule() {
+        return OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholdSchedule);
+    }
+}
@@ -0,0 +1,20 @@
+package com.pietvandongen.purebliss.offlinedetector.job.naive;
+
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+
+/**
+ * Creates the naive job for the benchmarks, as its constructors are package-private.
+ */
+public final class NaiveJobFactory {
+
+    private NaiveJobFactory() {
+    }
+
+    public static OfflineDevicesJob create(DeviceService deviceService, PushNotificationService pushNotificationService) {
+        return new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService);
+    }
+}
@@ -1,16 +1,39 @@
 package com.pietvandongen.purebliss.offlinedetector.domain;
 
+import java.util.Optional;
 import java.util.UUID;
 
 /**
- * Represents an (Internet of Things) Device
+ * Represents an (Internet of Things) Device, which may be connected through a parent device such as a gateway. Devices
+ * are equal if their UUIDs are, regardless of their parents.
  */
 public class Device {
 
     private final UUID uuid;
+    private final Device parent;
 
     public Device(UUID uuid) {
+        this(uuid, null);
+    }
+
+    /**
+     * @param uuid   The UUID of the device.
+     * @param parent The device this device is connected through, or null if it's connected directly.
+     */
+    public Device(UUID uuid, Device parent) {
         this.uuid = uuid;
+        this.parent = parent;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return The device this device is connected through, or empty if it's connected directly.
+     */
+    public Optional<Device> getParent() {
+        return Optional.ofNullable(parent);
     }
 
     @Override
@@ -0,0 +1,196 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the measurements of a job in memory: counters, latency histograms for runs and their phases, and the latest
+ * value of every gauge. Meant to be read by tests and exporters that poll.
+ */
+public class InMemoryJobMetrics implements JobMetrics {
+
+    private final LatencyHistogram runDurations = new LatencyHistogram();
+    private final LatencyHistogram notificationWaits = new LatencyHistogram();
+    private final Map<Phase, LatencyHistogram> phaseDurations = new EnumMap<>(Phase.class);
+    private final LongAdder devicesScanned = new LongAdder();
+    private final LongAdder notificationsSent = new LongAdder();
+    private final LongAdder deviceConnects = new LongAdder();
+    private final LongAdder deviceDisconnects = new LongAdder();
+    private final LongAdder eventsCoalesced = new LongAdder();
+    private final AtomicInteger maxEventQueueDepth = new AtomicInteger();
+
+    private volatile int offlineDevices;
+    private volatile long[] thresholdPopulations = new long[0];
+    private volatile int eventQueueDepth;
+    private volatile int notificationQueueDepth;
+
+    /**
+     * Creates metrics without any measurements.
+     */
+    public InMemoryJobMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseDurations.put(phase, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void recordRun(long durationNanos) {
+        runDurations.record(durationNanos);
+    }
+
+    @Override
+    public void recordPhase(Phase phase, long durationNanos) {
+        phaseDurations.get(phase).record(durationNanos);
+    }
+
+    @Override
+    public void recordDevicesScanned(int count) {
+        devicesScanned.add(count);
+    }
+
+    @Override
+    public void recordNotificationsSent(int count) {
+        notificationsSent.add(count);
+    }
+
+    @Override
+    public void recordOfflineDevices(int count) {
+        offlineDevices = count;
+    }
+
+    @Override
+    public void recordThresholdPopulations(long[] populations) {
+        thresholdPopulations = populations.clone();
+    }
+
+    @Override
+    public void recordDeviceConnect() {
+        deviceConnects.increment();
+    }
+
+    @Override
+    public void recordDeviceDisconnect() {
+        deviceDisconnects.increment();
+    }
+
+    @Override
+    public void recordEventQueueDepth(int depth) {
+        eventQueueDepth = depth;
+        maxEventQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    @Override
+    public void recordEventsCoalesced(int count) {
+        eventsCoalesced.add(count);
+    }
+
+    @Override
+    public void recordNotificationQueueDepth(int depth) {
+        notificationQueueDepth = depth;
+    }
+
+    @Override
+    public void recordNotificationWait(long waitNanos) {
+        notificationWaits.record(waitNanos);
+    }
+
+    /**
+     * @return The durations of the completed runs in nanoseconds.
+     */
+    public LatencyHistogram getRunDurations() {
+        return runDurations;
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The durations of the given phase in nanoseconds.
+     */
+    public LatencyHistogram getPhaseDurations(Phase phase) {
+        return phaseDurations.get(phase);
+    }
+
+    /**
+     * @return The total number of offline devices evaluated by all runs.
+     */
+    public long getDevicesScanned() {
+        return devicesScanned.sum();
+    }
+
+    /**
+     * @return The total number of notifications sent.
+     */
+    public long getNotificationsSent() {
+        return notificationsSent.sum();
+    }
+
+    /**
+     * @return The total number of devices that connected.
+     */
+    public long getDeviceConnects() {
+        return deviceConnects.sum();
+    }
+
+    /**
+     * @return The total number of devices that disconnected.
+     */
+    public long getDeviceDisconnects() {
+        return deviceDisconnects.sum();
+    }
+
+    /**
+     * @return The number of offline devices at the start of the last run.
+     */
+    public int getOfflineDevices() {
+        return offlineDevices;
+    }
+
+    /**
+     * @return The threshold populations at the start of the last run.
+     * @see JobMetrics#recordThresholdPopulations(long[])
+     */
+    public long[] getThresholdPopulations() {
+        return thresholdPopulations.clone();
+    }
+
+    /**
+     * @return The number of events waiting in the ingestion queue before it was last drained.
+     */
+    public int getEventQueueDepth() {
+        return eventQueueDepth;
+    }
+
+    /**
+     * @return The highest number of events ever seen waiting in the ingestion queue.
+     */
+    public int getMaxEventQueueDepth() {
+        return maxEventQueueDepth.get();
+    }
+
+    /**
+     * @return The total number of events that were coalesced away.
+     */
+    public long getEventsCoalesced() {
+        return eventsCoalesced.sum();
+    }
+
+    /**
+     * @return The number of notifications waiting in the outbound queue after it was last dispatched.
+     */
+    public int getNotificationQueueDepth() {
+        return notificationQueueDepth;
+    }
+
+    /**
+     * @return The times the sent notifications waited in the outbound queue in nanoseconds.
+     */
+    public LatencyHistogram getNotificationWaits() {
+        return notificationWaits;
+    }
+}
@@ -0,0 +1,128 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+/**
+ * Receives the measurements of a job, so they can be exported to a monitoring system. Implementations should be
+ * thread-safe, as jobs report from their run and event threads at the same time.
+ * <p>
+ * Jobs only take timings and count threshold populations if {@link JobMetrics#isEnabled()} returns true, so the no-op
+ * implementation costs no more than a few calls to empty methods.
+ */
+public interface JobMetrics {
+
+    /**
+     * The phases of a run that are timed separately.
+     */
+    enum Phase {
+
+        /**
+         * Looking up the last sent notifications.
+         */
+        LOOKUP,
+
+        /**
+         * Deciding which devices should be notified.
+         */
+        DECIDE,
+
+        /**
+         * Sending the notifications.
+         */
+        SEND
+    }
+
+    /**
+     * @return Metrics that ignore all measurements.
+     */
+    static JobMetrics noOp() {
+        return NoOpJobMetrics.INSTANCE;
+    }
+
+    /**
+     * @return True if the job should take timings and count populations, false if not.
+     */
+    boolean isEnabled();
+
+    /**
+     * Records a completed run.
+     *
+     * @param durationNanos The duration of the run in nanoseconds.
+     */
+    void recordRun(long durationNanos);
+
+    /**
+     * Records the time spent in a phase of a run. A phase can be recorded several times per run, for example once per
+     * batch.
+     *
+     * @param phase         The phase.
+     * @param durationNanos The duration of the phase in nanoseconds.
+     */
+    void recordPhase(Phase phase, long durationNanos);
+
+    /**
+     * Records the number of offline devices that were evaluated by a run.
+     *
+     * @param count The number of devices.
+     */
+    void recordDevicesScanned(int count);
+
+    /**
+     * Records the number of notifications that were sent.
+     *
+     * @param count The number of notifications.
+     */
+    void recordNotificationsSent(int count);
+
+    /**
+     * Records the number of offline devices at the start of a run.
+     *
+     * @param count The number of offline devices.
+     */
+    void recordOfflineDevices(int count);
+
+    /**
+     * Records how many offline devices have passed each threshold at the start of a run. As counting them can take
+     * visiting every offline device, jobs that otherwise wouldn't may only do so for some runs.
+     *
+     * @param populations The number of devices that haven't passed the first threshold at index 0, followed by the
+     *                    number of devices for which each threshold is the last one passed.
+     */
+    void recordThresholdPopulations(long[] populations);
+
+    /**
+     * Records that a device connected.
+     */
+    void recordDeviceConnect();
+
+    /**
+     * Records that a device disconnected.
+     */
+    void recordDeviceDisconnect();
+
+    /**
+     * Records the number of events waiting in an ingestion queue before it's drained.
+     *
+     * @param depth The number of waiting events.
+     */
+    void recordEventQueueDepth(int depth);
+
+    /**
+     * Records the number of events that were coalesced away instead of being passed to the job.
+     *
+     * @param count The number of events.
+     */
+    void recordEventsCoalesced(int count);
+
+    /**
+     * Records the number of notifications waiting in an outbound queue after it was dispatched.
+     *
+     * @param depth The number of waiting notifications.
+     */
+    void recordNotificationQueueDepth(int depth);
+
+    /**
+     * Records how long a notification waited in an outbound queue before it was sent.
+     *
+     * @param waitNanos The time the notification waited in nanoseconds.
+     */
+    void recordNotificationWait(long waitNanos);
+}
@@ -0,0 +1,116 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of non-negative values, such as latencies in nanoseconds, with a fixed memory footprint.
+ * Like HdrHistogram, every power of two is split into {@value LatencyHistogram#SUB_BUCKET_COUNT} linear sub-buckets,
+ * so every recorded value is kept with a relative error of at most 1 in {@value LatencyHistogram#SUB_BUCKET_COUNT}.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKET_COUNT = 16;
+
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKET_COUNT);
+    private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Finds the bucket of a value. Values below the number of sub-buckets have a bucket of their own, larger values
+     * share a bucket with the values that have the same highest {@value LatencyHistogram#SUB_BUCKET_BITS} bits after
+     * their leading one.
+     *
+     * @param value The non-negative value.
+     * @return The index of the bucket.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Calculates the highest value that ends up in a bucket.
+     *
+     * @param bucketIndex The index of the bucket.
+     * @return The highest value of the bucket.
+     */
+    static long highestValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+
+        int exponent = bucketIndex / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        long lowestValue = (long) (bucketIndex % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << (exponent - SUB_BUCKET_BITS);
+
+        return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        long nonNegativeValue = Math.max(0, value);
+
+        counts.incrementAndGet(bucketIndex(nonNegativeValue));
+        totalCount.incrementAndGet();
+        max.accumulateAndGet(nonNegativeValue, Math::max);
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return The highest recorded value, or 0 if no values were recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Finds the value below or at which the given percentage of the recorded values lie, rounded up to the highest
+     * value of its bucket, but never above the highest recorded value.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at the percentile, or 0 if no values were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile should be from 0 to 100.");
+        }
+
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+}
@@ -0,0 +1,65 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+/**
+ * Metrics that ignore all measurements, used when a job isn't monitored.
+ */
+final class NoOpJobMetrics implements JobMetrics {
+
+    static final NoOpJobMetrics INSTANCE = new NoOpJobMetrics();
+
+    private NoOpJobMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void recordRun(long durationNanos) {
+    }
+
+    @Override
+    public void recordPhase(Phase phase, long durationNanos) {
+    }
+
+    @Override
+    public void recordDevicesScanned(int count) {
+    }
+
+    @Override
+    public void recordNotificationsSent(int count) {
+    }
+
+    @Override
+    public void recordOfflineDevices(int count) {
+    }
+
+    @Override
+    public void recordThresholdPopulations(long[] populations) {
+    }
+
+    @Override
+    public void recordDeviceConnect() {
+    }
+
+    @Override
+    public void recordDeviceDisconnect() {
+    }
+
+    @Override
+    public void recordEventQueueDepth(int depth) {
+    }
+
+    @Override
+    public void recordEventsCoalesced(int count) {
+    }
+
+    @Override
+    public void recordNotificationQueueDepth(int depth) {
+    }
+
+    @Override
+    public void recordNotificationWait(long waitNanos) {
+    }
+}
@@ -4,6 +4,8 @@ import com.pietvandongen.purebliss.offlinedetector.domain.Device;
 
 import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface OfflineDevicesJob {
 
@@ -12,6 +14,17 @@ public interface OfflineDevicesJob {
      */
     void run();
 
+    /**
+     * Does the same as {@link OfflineDevicesJob#run()}, but on the given executor. Implementations that can split their
+     * work override this method to spread it over the executor's threads.
+     *
+     * @param executor The executor to run the job on.
+     * @return A future that completes when the run has completed.
+     */
+    default CompletableFuture<Void> runAsync(Executor executor) {
+        return CompletableFuture.runAsync(this::run, executor);
+    }
+
     /**
      * Is called when a device connects.
      *
@@ -0,0 +1,189 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable, compiled version of a list of notification thresholds. The thresholds are validated once and stored as
+ * a sorted array of nanoseconds, so finding the last passed threshold is a binary search that doesn't allocate.
+ */
+public final class ThresholdSchedule {
+
+    /**
+     * The index returned when no threshold has been passed.
+     */
+    public static final int NO_THRESHOLD = -1;
+
+    private final long[] thresholdNanos;
+
+    private ThresholdSchedule(long[] thresholdNanos) {
+        this.thresholdNanos = thresholdNanos;
+    }
+
+    /**
+     * Compiles a list of thresholds into a schedule.
+     *
+     * @param thresholds The thresholds, which should be non-negative and sorted in ascending order without duplicates.
+     * @return The compiled schedule.
+     */
+    public static ThresholdSchedule compile(List<Duration> thresholds) {
+        if (thresholds == null || thresholds.isEmpty()) {
+            throw new IllegalArgumentException("There should be at least 1 threshold.");
+        }
+
+        long[] thresholdNanos = new long[thresholds.size()];
+
+        for (int i = 0; i < thresholdNanos.length; i++) {
+            Duration threshold = thresholds.get(i);
+
+            if (threshold == null || threshold.isNegative()) {
+                throw new IllegalArgumentException("Thresholds cannot be null or negative.");
+            }
+
+            try {
+                thresholdNanos[i] = threshold.toNanos();
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Thresholds cannot exceed " + Duration.ofNanos(Long.MAX_VALUE) + ".", e);
+            }
+
+            if (i > 0 && thresholdNanos[i] <= thresholdNanos[i - 1]) {
+                throw new IllegalArgumentException("Thresholds should be sorted in ascending order without duplicates.");
+            }
+        }
+
+        return new ThresholdSchedule(thresholdNanos);
+    }
+
+    /**
+     * Calculates the amount of nanoseconds between two instants without allocating a {@link Duration}. Amounts that
+     * don't fit in a long are capped at {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}.
+     *
+     * @param start   The start instant.
+     * @param current The current instant.
+     * @return The amount of nanoseconds passed between the start and current instant, negative if current is before
+     * start.
+     */
+    public static long nanosBetween(Instant start, Instant current) {
+        long seconds = current.getEpochSecond() - start.getEpochSecond();
+        long nanos = current.getNano() - start.getNano();
+
+        if (seconds > Long.MAX_VALUE / 1_000_000_000L - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        if (seconds < Long.MIN_VALUE / 1_000_000_000L + 1) {
+            return Long.MIN_VALUE;
+        }
+
+        return seconds * 1_000_000_000L + nanos;
+    }
+
+    /**
+     * Finds the last threshold that has been passed after the given amount of time. A threshold counts as passed as
+     * soon as more time than the threshold itself has passed.
+     *
+     * @param elapsedNanos The amount of nanoseconds passed.
+     * @return The index of the last passed threshold, or {@link ThresholdSchedule#NO_THRESHOLD} if no threshold has been
+     * passed yet.
+     */
+    public int lastPassedIndex(long elapsedNanos) {
+        int low = 0;
+        int high = thresholdNanos.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (thresholdNanos[middle] < elapsedNanos) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low - 1;
+    }
+
+    /**
+     * Counts how many of the given start instants have passed each threshold at the current instant.
+     *
+     * @param starts  The start instants, such as the instants devices went offline.
+     * @param current The current instant to compare with the start instants.
+     * @return The number of start instants that haven't passed the first threshold at index 0, followed by the number
+     * of start instants for which each threshold is the last one passed.
+     */
+    public long[] countPopulations(Collection<Instant> starts, Instant current) {
+        long[] populations = new long[thresholdNanos.length + 1];
+
+        for (Instant start : starts) {
+            populations[lastPassedIndex(start, current) + 1]++;
+        }
+
+        return populations;
+    }
+
+    /**
+     * Same as {@link ThresholdSchedule#lastPassedIndex(long)}, for the time passed between two instants.
+     *
+     * @param start   The start instant to compare the current instant with.
+     * @param current The current instant to compare with the starting point.
+     * @return The index of the last passed threshold, or {@link ThresholdSchedule#NO_THRESHOLD} if no threshold has been
+     * passed yet.
+     */
+    public int lastPassedIndex(Instant start, Instant current) {
+        return lastPassedIndex(nanosBetween(start, current));
+    }
+
+    /**
+     * @return The number of thresholds.
+     */
+    public int size() {
+        return thresholdNanos.length;
+    }
+
+    /**
+     * @param index The index of the threshold.
+     * @return The threshold in nanoseconds.
+     */
+    public long getThresholdNanos(int index) {
+        return thresholdNanos[index];
+    }
+
+    /**
+     * @return The thresholds this schedule was compiled from.
+     */
+    public List<Duration> getThresholds() {
+        return Collections.unmodifiableList(Arrays.stream(thresholdNanos)
+                .mapToObj(Duration::ofNanos)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+
+        ThresholdSchedule that = (ThresholdSchedule) other;
+
+        return Arrays.equals(thresholdNanos, that.thresholdNanos);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(thresholdNanos);
+    }
+
+    @Override
+    public String toString() {
+        return getThresholds().toString();
+    }
+}
@@ -2,34 +2,83 @@ package com.pietvandongen.purebliss.offlinedetector.job.brokenup;
 
 import com.pietvandongen.purebliss.offlinedetector.domain.Device;
 import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
 import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
 import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class OfflineDevicesJobImpl implements OfflineDevicesJob {
 
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Clock clock;
     private final DeviceService deviceService;
     private final PushNotificationService pushNotificationService;
     private final Map<Device, Instant> offlineDevices;
+    private final Set<Device> devicesChangedWhileLoading;
+    private final int batchSize;
+    private final CompletableFuture<Void> loading;
 
-    private List<Duration> thresholds = new ArrayList<>();
+    private volatile ThresholdSchedule thresholdSchedule;
 
     OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService) {
-        if (deviceService == null || pushNotificationService == null) {
-            throw new IllegalArgumentException("Device service nor push notification service can be null.");
+        this(deviceService, pushNotificationService, DEFAULT_BATCH_SIZE);
+    }
+
+    OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService, int batchSize) {
+        this(Clock.systemUTC(), deviceService, pushNotificationService, batchSize);
+    }
+
+    OfflineDevicesJobImpl(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService, int batchSize) {
+        this(clock, deviceService, pushNotificationService, batchSize, Runnable::run);
+    }
+
+    /**
+     * Injects the job's dependencies and loads the offline devices with the given executor. If the executor loads them
+     * in the background, the job can run before the last page has been read, so runs evaluate the devices that have
+     * been loaded so far. Devices that connect or disconnect while the pages are being read keep the state of that
+     * event, as it's newer than the state in the pages.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param batchSize               The maximum number of devices to look up and notify per push notification service
+     *                                call.
+     * @param loadExecutor            The executor to load the offline devices with.
+     */
+    OfflineDevicesJobImpl(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService, int batchSize, Executor loadExecutor) {
+        if (clock == null || deviceService == null || pushNotificationService == null || loadExecutor == null) {
+            throw new IllegalArgumentException("Clock, device service, push notification service nor load executor can be null.");
         }
 
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size should be at least 1.");
+        }
+
+        this.clock = clock;
         this.deviceService = deviceService;
         this.pushNotificationService = pushNotificationService;
-        this.offlineDevices = new ConcurrentHashMap<>(deviceService.getOfflineDevices());
+        this.offlineDevices = new ConcurrentHashMap<>();
+        this.devicesChangedWhileLoading = ConcurrentHashMap.newKeySet();
+        this.batchSize = batchSize;
+        this.loading = CompletableFuture.runAsync(this::loadOfflineDevices, loadExecutor);
     }
 
     static Optional<Duration> calculateLastPassedThreshold(Instant start, Instant current, List<Duration> thresholds) {
@@ -62,33 +111,114 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
         return lastPassedThreshold.isPresent() && (lastNotification.isBefore(deviceOffline) || !lastPassedThreshold.equals(calculateLastPassedThreshold(deviceOffline, lastNotification, thresholds)));
     }
 
-    private Predicate<Map.Entry<Device, Instant>> shouldSendNotificationAfter(Instant jobStart) {
-        return offlineDevice -> pushNotificationService.getLastOfflineNotificationInstant(offlineDevice.getKey())
-                .map(notification -> shouldSendNotification(jobStart, offlineDevice.getValue(), notification, thresholds))
-                .orElseGet(() -> shouldSendNotification(jobStart, offlineDevice.getValue(), thresholds));
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, ThresholdSchedule thresholdSchedule) {
+        return thresholdSchedule.lastPassedIndex(deviceOffline, jobStart) != ThresholdSchedule.NO_THRESHOLD;
+    }
+
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, jobStart);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD && (lastNotification.isBefore(deviceOffline) || lastPassedThresholdIndex != thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification));
+    }
+
+    static <T> Stream<List<T>> partition(List<T> items, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size should be at least 1.");
+        }
+
+        return IntStream.range(0, (items.size() + batchSize - 1) / batchSize)
+                .mapToObj(batch -> items.subList(batch * batchSize, Math.min(items.size(), (batch + 1) * batchSize)));
+    }
+
+    private static Predicate<Map.Entry<Device, Instant>> shouldSendNotificationAfter(Instant jobStart, Map<Device, Instant> lastNotifications, ThresholdSchedule thresholdSchedule) {
+        return offlineDevice -> Optional.ofNullable(lastNotifications.get(offlineDevice.getKey()))
+                .map(notification -> shouldSendNotification(jobStart, offlineDevice.getValue(), notification, thresholdSchedule))
+                .orElseGet(() -> shouldSendNotification(jobStart, offlineDevice.getValue(), thresholdSchedule));
+    }
+
+    private void sendNotifications(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        List<Device> devices = batch.stream()
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        Map<Device, Instant> lastNotifications = pushNotificationService.getLastOfflineNotificationInstants(devices);
+        List<Device> devicesToNotify = batch.stream()
+                .filter(shouldSendNotificationAfter(jobStart, lastNotifications, thresholdSchedule))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        if (!devicesToNotify.isEmpty()) {
+            pushNotificationService.sendOfflineNotifications(devicesToNotify);
+        }
+    }
+
+    /**
+     * Reads the pages of offline devices into the job's state, skipping the devices that connected or disconnected
+     * since the loading started.
+     */
+    private void loadOfflineDevices() {
+        deviceService.loadOfflineDevices(
+                clock,
+                OfflineDevicePage.DEFAULT_PAGE_SIZE,
+                page -> page.getDevices().forEach(this::loadOfflineDevice),
+                (device, offline) -> loadOfflineDevice(device, offline.orElse(null))
+        );
+        devicesChangedWhileLoading.clear();
+    }
+
+    /**
+     * @param device  The device.
+     * @param offline The instant the device went offline, or null if it's online.
+     */
+    private void loadOfflineDevice(Device device, Instant offline) {
+        offlineDevices.compute(device, (ignored, current) -> devicesChangedWhileLoading.contains(device) ? current : offline);
+    }
+
+    /**
+     * @return The loading of the offline devices, which completes once the last page and the changes since the first
+     * page have been read.
+     */
+    CompletableFuture<Void> getLoading() {
+        return loading;
     }
 
+    /**
+     * Evaluates the offline devices that have been loaded so far, together with the devices that disconnected since.
+     *
+     * @throws CompletionException If loading the offline devices failed.
+     */
     public void run() {
-        if (thresholds == null || thresholds.isEmpty()) {
+        if (loading.isCompletedExceptionally()) {
+            loading.join();
+        }
+
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
             throw new IllegalStateException("Thresholds cannot be null or empty.");
         }
 
-        Instant jobStart = Instant.now();
+        Instant jobStart = Instant.now(clock);
 
-        offlineDevices.entrySet().stream()
-                .filter(shouldSendNotificationAfter(jobStart))
-                .map(Map.Entry::getKey)
-                .forEach(pushNotificationService::sendOfflineNotification);
+        partition(new ArrayList<>(offlineDevices.entrySet()), batchSize)
+                .forEach(batch -> sendNotifications(batch, jobStart, thresholdSchedule));
     }
 
     @Override
     public void onDeviceConnect(Device device) {
+        if (!loading.isDone()) {
+            devicesChangedWhileLoading.add(device);
+        }
+
         this.offlineDevices.remove(device);
     }
 
     @Override
     public void onDeviceDisconnect(Device device) {
-        this.offlineDevices.put(device, Instant.now());
+        if (!loading.isDone()) {
+            devicesChangedWhileLoading.add(device);
+        }
+
+        this.offlineDevices.put(device, Instant.now(clock));
     }
 
     @Override
@@ -97,10 +227,6 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
     }
 
     private void setThresholds(List<Duration> thresholds) {
-        if (thresholds == null || thresholds.isEmpty()) {
-            throw new IllegalArgumentException("There should be at least 1 threshold.");
-        }
-
-        this.thresholds = thresholds;
+        this.thresholdSchedule = ThresholdSchedule.compile(thresholds);
     }
 }
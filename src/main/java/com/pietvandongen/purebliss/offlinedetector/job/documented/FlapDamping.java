@@ -0,0 +1,233 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the flap damping state of devices. A device that simply went offline has no state: its penalty is the 1 its
+ * disconnect added, decayed since the instant it went offline. State is only kept for:
+ * <ul>
+ * <li>devices that are recovering, ordered by the instant they will have been online long enough, so finding the
+ * devices that recovered only visits those;</li>
+ * <li>devices that flapped while recovering, which keep the penalty of their earlier disconnects until they connect
+ * again;</li>
+ * <li>devices that recovered, which are remembered until their penalty has decayed, so a device that flaps again soon
+ * after recovering still has to stay online longer.</li>
+ * </ul>
+ * The required online duration of a recovering device is decided by its penalty when it connects.
+ * <p>
+ * Checking whether a device is recovering doesn't lock; the other functions do.
+ *
+ * @see FlapDampingPolicy
+ */
+class FlapDamping {
+
+    /**
+     * The penalty below which a recovered device is forgotten.
+     */
+    static final double FORGET_PENALTY = 0.1;
+
+    private static final Comparator<Map.Entry<Device, Instant>> ORDER = Comparator
+            .comparing((Map.Entry<Device, Instant> deadline) -> deadline.getValue())
+            .thenComparing(Map.Entry::getKey, Comparator.comparing(Device::getUuid));
+
+    private final FlapDampingPolicy policy;
+    private final Map<Device, RecoveringDevice> recoveringDevices = new ConcurrentHashMap<>();
+    private final NavigableSet<Map.Entry<Device, Instant>> recoveryDeadlines = new TreeSet<>(ORDER);
+    private final Map<Device, Penalty> penalties = new HashMap<>();
+    private final NavigableSet<Map.Entry<Device, Instant>> forgetDeadlines = new TreeSet<>(ORDER);
+
+    /**
+     * @param policy The policy to damp with.
+     */
+    FlapDamping(FlapDampingPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Registers a disconnect and adds to the device's penalty. If the device was recovering, it keeps the instant it
+     * originally went offline. If it already was offline, nothing changes.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the job considers the device offline since, or null if it isn't offline.
+     * @param now           The current instant.
+     * @return The instant the device should be considered offline since.
+     */
+    synchronized Instant disconnect(Device device, Instant deviceOffline, Instant now) {
+        RecoveringDevice recoveringDevice = recoveringDevices.remove(device);
+
+        if (recoveringDevice != null) {
+            recoveryDeadlines.remove(entry(device, recoveringDevice.recovery));
+            penalties.put(device, new Penalty(decayPenalty(recoveringDevice.penalty, recoveringDevice.connected, now) + 1, now, null));
+
+            return recoveringDevice.offline;
+        }
+
+        if (deviceOffline != null) {
+            return deviceOffline;
+        }
+
+        Penalty penalty = penalties.get(device);
+
+        if (penalty != null) {
+            if (penalty.forget != null) {
+                forgetDeadlines.remove(entry(device, penalty.forget));
+            }
+
+            penalties.put(device, new Penalty(decayPenalty(penalty.penalty, penalty.updated, now) + 1, now, null));
+        }
+
+        return now;
+    }
+
+    /**
+     * Registers a connect, after which the device is recovering until it has been online long enough.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the job considers the device offline since, or null if it isn't offline.
+     * @param now           The current instant.
+     */
+    synchronized void connect(Device device, Instant deviceOffline, Instant now) {
+        if (deviceOffline == null || recoveringDevices.containsKey(device)) {
+            return;
+        }
+
+        double penalty = calculatePenalty(penalties.remove(device), device, deviceOffline, now);
+        Instant recovery = now.plusNanos(policy.calculateRequiredOnlineNanos(penalty));
+
+        recoveringDevices.put(device, new RecoveringDevice(deviceOffline, now, penalty, recovery));
+        recoveryDeadlines.add(entry(device, recovery));
+    }
+
+    /**
+     * @param device The device.
+     * @return True if the device has reconnected, but hasn't been online long enough to recover.
+     */
+    boolean isRecovering(Device device) {
+        return recoveringDevices.containsKey(device);
+    }
+
+    /**
+     * Finds the devices that have been online long enough to recover and forgets the recovered devices whose penalty
+     * has decayed. Only those devices are visited.
+     *
+     * @param now The current instant.
+     * @return The devices that recovered, with the instant they originally went offline.
+     */
+    synchronized Map<Device, Instant> recover(Instant now) {
+        Map<Device, Instant> recovered = new HashMap<>();
+
+        while (!recoveryDeadlines.isEmpty() && !recoveryDeadlines.first().getValue().isAfter(now)) {
+            Device device = recoveryDeadlines.pollFirst().getKey();
+            RecoveringDevice recoveringDevice = recoveringDevices.remove(device);
+            double penalty = decayPenalty(recoveringDevice.penalty, recoveringDevice.connected, now);
+
+            recovered.put(device, recoveringDevice.offline);
+
+            if (penalty >= FORGET_PENALTY) {
+                Instant forget = now.plusNanos(calculateForgetNanos(penalty));
+
+                penalties.put(device, new Penalty(penalty, now, forget));
+                forgetDeadlines.add(entry(device, forget));
+            }
+        }
+
+        while (!forgetDeadlines.isEmpty() && !forgetDeadlines.first().getValue().isAfter(now)) {
+            penalties.remove(forgetDeadlines.pollFirst().getKey());
+        }
+
+        return recovered;
+    }
+
+    /**
+     * @return The number of devices with flap damping state.
+     */
+    synchronized int size() {
+        return recoveringDevices.size() + penalties.size();
+    }
+
+    /**
+     * Calculates the penalty of a device that connects. If it has no penalty, or only the penalty of an earlier
+     * recovery, its disconnect adds 1 from the instant it went offline.
+     *
+     * @param penalty       The penalty that was kept for the device, or null if none was.
+     * @param device        The device.
+     * @param deviceOffline The instant the job considers the device offline since.
+     * @param now           The current instant.
+     * @return The device's penalty.
+     */
+    private double calculatePenalty(Penalty penalty, Device device, Instant deviceOffline, Instant now) {
+        double disconnectPenalty = decayPenalty(1, deviceOffline, now);
+
+        if (penalty == null) {
+            return disconnectPenalty;
+        }
+
+        if (penalty.forget == null) {
+            return decayPenalty(penalty.penalty, penalty.updated, now);
+        }
+
+        forgetDeadlines.remove(entry(device, penalty.forget));
+
+        return decayPenalty(penalty.penalty, penalty.updated, now) + disconnectPenalty;
+    }
+
+    private double decayPenalty(double penalty, Instant updated, Instant now) {
+        return FlapDampingPolicy.decayPenalty(penalty, Duration.between(updated, now).toNanos(), policy.getPenaltyHalfLifeNanos());
+    }
+
+    /**
+     * @return The time in which a penalty decays below the penalty at which it's forgotten, in nanoseconds.
+     */
+    private long calculateForgetNanos(double penalty) {
+        return (long) Math.ceil(policy.getPenaltyHalfLifeNanos() * Math.log(penalty / FORGET_PENALTY) / Math.log(2));
+    }
+
+    private static Map.Entry<Device, Instant> entry(Device device, Instant deadline) {
+        return new AbstractMap.SimpleImmutableEntry<>(device, deadline);
+    }
+
+    /**
+     * A device that has reconnected, but hasn't been online long enough to recover.
+     */
+    private static class RecoveringDevice {
+
+        private final Instant offline;
+        private final Instant connected;
+        private final double penalty;
+        private final Instant recovery;
+
+        private RecoveringDevice(Instant offline, Instant connected, double penalty, Instant recovery) {
+            this.offline = offline;
+            this.connected = connected;
+            this.penalty = penalty;
+            this.recovery = recovery;
+        }
+    }
+
+    /**
+     * The penalty of a device that flapped or recovered. A device that flapped has no forget instant, as its penalty
+     * is kept until it connects again.
+     */
+    private static class Penalty {
+
+        private final double penalty;
+        private final Instant updated;
+        private final Instant forget;
+
+        private Penalty(double penalty, Instant updated, Instant forget) {
+            this.penalty = penalty;
+            this.updated = updated;
+            this.forget = forget;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import java.time.Duration;
+
+/**
+ * Determines how long a device that reconnects should stay online before it's considered recovered. Until then, a
+ * disconnect is treated as a flap: the device keeps the instant it originally went offline, so its thresholds don't
+ * restart.
+ * <p>
+ * Every disconnect adds 1 to the device's penalty, which halves every half-life. The required online duration starts at
+ * the minimum and doubles with every point of penalty above 1, up to the maximum, so devices that flap often have to
+ * stay online longer before they recover.
+ */
+final class FlapDampingPolicy {
+
+    private static final FlapDampingPolicy DISABLED = new FlapDampingPolicy(Duration.ZERO, Duration.ZERO, Duration.ofNanos(1));
+
+    private final Duration minimumOnlineDuration;
+    private final Duration maximumOnlineDuration;
+    private final Duration penaltyHalfLife;
+
+    /**
+     * @param minimumOnlineDuration The time a device that rarely flaps should stay online to recover. Can only be zero
+     *                              if the maximum is zero too, which disables flap damping.
+     * @param maximumOnlineDuration The longest time a device should stay online to recover, however often it flaps.
+     * @param penaltyHalfLife       The time in which a device's penalty halves.
+     */
+    FlapDampingPolicy(Duration minimumOnlineDuration, Duration maximumOnlineDuration, Duration penaltyHalfLife) {
+        if (minimumOnlineDuration == null || maximumOnlineDuration == null || penaltyHalfLife == null) {
+            throw new IllegalArgumentException("Minimum online duration, maximum online duration nor penalty half-life can be null.");
+        }
+
+        if (minimumOnlineDuration.isNegative() || maximumOnlineDuration.compareTo(minimumOnlineDuration) < 0 || penaltyHalfLife.isNegative() || penaltyHalfLife.isZero()) {
+            throw new IllegalArgumentException("The online durations cannot be negative, the maximum cannot be below the minimum and the half-life should be positive.");
+        }
+
+        if (minimumOnlineDuration.isZero() && !maximumOnlineDuration.isZero()) {
+            throw new IllegalArgumentException("The minimum online duration cannot be zero if the maximum isn't, as the required online duration would never grow above it.");
+        }
+
+        this.minimumOnlineDuration = minimumOnlineDuration;
+        this.maximumOnlineDuration = maximumOnlineDuration;
+        this.penaltyHalfLife = penaltyHalfLife;
+    }
+
+    /**
+     * @return A policy under which devices recover as soon as they connect.
+     */
+    static FlapDampingPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Decays a penalty exponentially.
+     *
+     * @param penalty       The penalty.
+     * @param elapsedNanos  The time passed since the penalty was last updated.
+     * @param halfLifeNanos The time in which the penalty halves.
+     * @return The decayed penalty.
+     */
+    static double decayPenalty(double penalty, long elapsedNanos, long halfLifeNanos) {
+        if (elapsedNanos <= 0) {
+            return penalty;
+        }
+
+        return penalty * Math.pow(0.5, (double) elapsedNanos / halfLifeNanos);
+    }
+
+    /**
+     * @return True if devices should stay online for some time to recover, false if they recover when they connect.
+     */
+    boolean isEnabled() {
+        return !minimumOnlineDuration.isZero();
+    }
+
+    /**
+     * Calculates how long a device should stay online to recover.
+     *
+     * @param penalty The device's current penalty.
+     * @return The required online duration in nanoseconds.
+     */
+    long calculateRequiredOnlineNanos(double penalty) {
+        double factor = Math.pow(2, Math.max(0, penalty - 1));
+        double requiredNanos = minimumOnlineDuration.toNanos() * factor;
+
+        return (long) Math.min(requiredNanos, maximumOnlineDuration.toNanos());
+    }
+
+    /**
+     * @return The time in which a device's penalty halves, in nanoseconds.
+     */
+    long getPenaltyHalfLifeNanos() {
+        return penaltyHalfLife.toNanos();
+    }
+}
@@ -0,0 +1,108 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded, in-process store of the last offline notification per device. It remembers devices for which no
+ * notification was ever sent as well, so those don't have to be looked up again. When the cache is full, the least
+ * recently used device is evicted.
+ */
+class LastOfflineNotificationCache {
+
+    private static final Instant NO_NOTIFICATION = Instant.MIN;
+
+    private final Map<Device, Instant> lastOfflineNotificationInstants;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maximumSize The maximum number of devices to keep in the cache.
+     */
+    LastOfflineNotificationCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size should be at least 1.");
+        }
+
+        this.lastOfflineNotificationInstants = new LinkedHashMap<Device, Instant>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Device, Instant> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the last offline notifications for the given devices. Devices that are not in the cache are loaded in a
+     * single call and cached afterwards. The cache isn't locked while loading, so notifications recorded in the
+     * meantime take precedence over the loaded ones.
+     *
+     * @param devices The devices to get the last offline notifications for.
+     * @param loader  The function to load the devices that are not cached with.
+     * @return A map with the devices as keys and their last offline notification as values. Devices for which no
+     * notification was ever sent are left out.
+     */
+    Map<Device, Instant> getAll(Collection<Device> devices, Function<List<Device>, Map<Device, Instant>> loader) {
+        Map<Device, Instant> lastNotifications = new HashMap<>();
+        List<Device> uncachedDevices = new ArrayList<>();
+
+        synchronized (this) {
+            for (Device device : devices) {
+                Instant lastNotification = lastOfflineNotificationInstants.get(device);
+
+                if (lastNotification == null) {
+                    uncachedDevices.add(device);
+                } else if (lastNotification != NO_NOTIFICATION) {
+                    lastNotifications.put(device, lastNotification);
+                }
+            }
+        }
+
+        if (!uncachedDevices.isEmpty()) {
+            Map<Device, Instant> loadedNotifications = loader.apply(uncachedDevices);
+
+            lastNotifications.putAll(loadedNotifications);
+
+            synchronized (this) {
+                uncachedDevices.forEach(device -> lastOfflineNotificationInstants
+                        .putIfAbsent(device, loadedNotifications.getOrDefault(device, NO_NOTIFICATION)));
+            }
+        }
+
+        return lastNotifications;
+    }
+
+    /**
+     * Records that notifications were sent for the given devices.
+     *
+     * @param devices      The notified devices.
+     * @param notification The instant the notifications were sent.
+     */
+    synchronized void put(Collection<Device> devices, Instant notification) {
+        devices.forEach(device -> lastOfflineNotificationInstants.put(device, notification));
+    }
+
+    /**
+     * Removes a device from the cache, so its last notification will be loaded again when needed.
+     *
+     * @param device The device to remove.
+     */
+    synchronized void invalidate(Device device) {
+        lastOfflineNotificationInstants.remove(device);
+    }
+
+    /**
+     * @return The number of cached devices.
+     */
+    synchronized int size() {
+        return lastOfflineNotificationInstants.size();
+    }
+}
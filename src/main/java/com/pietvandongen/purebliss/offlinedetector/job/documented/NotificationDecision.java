@@ -0,0 +1,19 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+/**
+ * Determines how the job decides whether an offline device should be notified.
+ */
+enum NotificationDecision {
+
+    /**
+     * Compares the threshold passed now with the threshold that was passed at the instant of the last notification,
+     * which is looked up on every run.
+     */
+    LAST_NOTIFICATION,
+
+    /**
+     * Compares the threshold passed now with the index of the last notified threshold, which the job remembers per
+     * offline device. The last notification is only looked up for devices the job doesn't know yet.
+     */
+    NOTIFIED_THRESHOLD_INDEX
+}
@@ -0,0 +1,21 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+/**
+ * Determines how the job looks up and sends the notifications of the offline devices. Only this job offers a choice;
+ * the other jobs always notify their devices in batches.
+ */
+enum NotificationExecution {
+
+    /**
+     * Looks up and notifies the devices in batches, one batch after the other, using the bulk calls of the push
+     * notification service.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Looks up and notifies every device on its own virtual thread, using the single device calls of the push
+     * notification service. Meant for push gateways that only handle one device per call, so thousands of calls can
+     * be outstanding without as many platform threads.
+     */
+    VIRTUAL_THREAD_PER_DEVICE
+}
@@ -0,0 +1,24 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+/**
+ * Determines where the job gets the last sent offline notification of a device from.
+ */
+enum NotificationLookup {
+
+    /**
+     * Always asks the push notification service.
+     */
+    REMOTE,
+
+    /**
+     * Trusts the notifications the job recorded itself and only asks the push notification service for devices that
+     * are not cached.
+     */
+    CACHE,
+
+    /**
+     * Same as {@link NotificationLookup#CACHE}, but loads the last notifications of all initially offline devices when
+     * the job is created.
+     */
+    WARMED_CACHE
+}
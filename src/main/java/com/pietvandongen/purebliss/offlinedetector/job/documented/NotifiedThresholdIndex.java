@@ -0,0 +1,124 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, per offline device, the index of the last threshold a notification was sent for. Deciding whether to
+ * send a notification then only takes comparing that index with the index of the threshold passed now.
+ * <p>
+ * Indices are migrated from the instant of the last notification, which is remembered as well: once when a device is
+ * first seen, and again when the thresholds have been reconfigured, so no index is compared with another schedule's.
+ */
+class NotifiedThresholdIndex {
+
+    /**
+     * The index returned for devices that aren't known, which is higher than any threshold index so no notification
+     * is sent based on it.
+     */
+    static final int UNKNOWN = Integer.MAX_VALUE;
+
+    private final Map<Device, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Calculates the index of the last threshold that was notified, based on the instant of the last notification.
+     * A notification sent before the device went offline belongs to an earlier offline period, so it doesn't count.
+     *
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent, or null if none was sent.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return The index of the last notified threshold, or {@link ThresholdSchedule#NO_THRESHOLD} if no threshold was
+     * notified since the device went offline.
+     */
+    static int calculateNotifiedIndex(Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        if (lastNotification == null || lastNotification.isBefore(deviceOffline)) {
+            return ThresholdSchedule.NO_THRESHOLD;
+        }
+
+        return thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification);
+    }
+
+    /**
+     * Checks whether a notification should be sent, which is the case if a threshold has been passed that wasn't
+     * notified yet. Unlike comparing instants, a last notification that lies after the job start because of clock skew
+     * can't cause the same threshold to be notified twice.
+     *
+     * @param passedIndex   The index of the last passed threshold.
+     * @param notifiedIndex The index of the last notified threshold.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(int passedIndex, int notifiedIndex) {
+        return passedIndex > notifiedIndex;
+    }
+
+    /**
+     * Gets the index of the last notified threshold of a device, migrating it first if it was calculated for another
+     * schedule.
+     *
+     * @param device            The device.
+     * @param deviceOffline     The instant the device went offline.
+     * @param thresholdSchedule The compiled notification thresholds the index should be calculated for.
+     * @return The index of the last notified threshold, or {@link NotifiedThresholdIndex#UNKNOWN} if the device isn't
+     * known or went offline at another instant.
+     */
+    int get(Device device, Instant deviceOffline, ThresholdSchedule thresholdSchedule) {
+        Entry entry = entries.get(device);
+
+        if (entry == null || !entry.deviceOffline.equals(deviceOffline)) {
+            return UNKNOWN;
+        }
+
+        if (entry.thresholdSchedule != thresholdSchedule) {
+            Entry migratedEntry = new Entry(deviceOffline, entry.lastNotification, thresholdSchedule);
+
+            entries.replace(device, entry, migratedEntry);
+
+            return migratedEntry.notifiedIndex;
+        }
+
+        return entry.notifiedIndex;
+    }
+
+    /**
+     * Stores the last notification of a device and the index of the threshold it was sent for.
+     *
+     * @param device            The device.
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent, or null if none was sent.
+     * @param thresholdSchedule The compiled notification thresholds to calculate the index with.
+     */
+    void put(Device device, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        entries.put(device, new Entry(deviceOffline, lastNotification, thresholdSchedule));
+    }
+
+    /**
+     * Forgets a device, for example because it connected.
+     *
+     * @param device The device.
+     */
+    void remove(Device device) {
+        entries.remove(device);
+    }
+
+    /**
+     * The last notification of a device and the index of its threshold in a schedule.
+     */
+    private static class Entry {
+
+        private final Instant deviceOffline;
+        private final Instant lastNotification;
+        private final ThresholdSchedule thresholdSchedule;
+        private final int notifiedIndex;
+
+        private Entry(Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+            this.deviceOffline = deviceOffline;
+            this.lastNotification = lastNotification;
+            this.thresholdSchedule = thresholdSchedule;
+            this.notifiedIndex = calculateNotifiedIndex(deviceOffline, lastNotification, thresholdSchedule);
+        }
+    }
+}
@@ -1,18 +1,34 @@
 package com.pietvandongen.purebliss.offlinedetector.job.documented;
 
 import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
 import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
 import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
 import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Runs a job periodically that sends out device offline push notifications if a device is offline for a certain
@@ -21,26 +37,86 @@ import java.util.function.Predicate;
  */
 public class OfflineDevicesJobImpl implements OfflineDevicesJob {
 
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final int DEFAULT_CACHE_SIZE = 1_000_000;
+    static final int DEFAULT_MAX_CONCURRENT_CALLS = 1000;
+
+    private final Clock clock;
     private final DeviceService deviceService;
     private final PushNotificationService pushNotificationService;
     private final Map<Device, Instant> offlineDevices;
+    private final int batchSize;
+    private final NotificationLookup notificationLookup;
+    private final LastOfflineNotificationCache lastOfflineNotificationCache;
+    private final NotificationExecution notificationExecution;
+    private final Semaphore concurrentCalls;
+    private final NotificationDecision notificationDecision;
+    private final NotifiedThresholdIndex notifiedThresholdIndex;
+    private final FlapDamping flapDamping;
+    private final boolean flapDampingEnabled;
+    private final JobMetrics metrics;
 
-    private List<Duration> thresholds = new ArrayList<>();
+    private volatile ThresholdSchedule thresholdSchedule;
 
     /**
-     * Injects the job's dependencies and uses them to configure its initial state.
+     * Injects the job's dependencies and uses them to configure its initial state, using the default batch size.
      *
      * @param deviceService           The device service.
      * @param pushNotificationService The push notification service.
      */
     OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService) {
-        if (deviceService == null || pushNotificationService == null) {
-            throw new IllegalArgumentException("Device service nor push notification service can be null.");
+        this(deviceService, pushNotificationService, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state.
+     *
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param batchSize               The maximum number of devices to look up and notify per push notification service
+     *                                call.
+     */
+    OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService, int batchSize) {
+        this(deviceService, pushNotificationService, new OfflineDevicesJobOptions().withBatchSize(batchSize));
+    }
+
+    /**
+     * Injects the job's dependencies and uses them and the options to configure its initial state, including the clock
+     * to determine the current instant with, where to get the last sent notifications from, how to look up and notify
+     * the devices, how to decide whether a device should be notified, how to damp flapping devices and the metrics to
+     * report the job's runs and events to.
+     *
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param options                 The options, see {@link OfflineDevicesJobOptions}.
+     */
+    OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService, OfflineDevicesJobOptions options) {
+        if (deviceService == null || pushNotificationService == null || options == null) {
+            throw new IllegalArgumentException("Device service, push notification service nor options can be null.");
         }
 
+        this.clock = options.getClock();
         this.deviceService = deviceService;
         this.pushNotificationService = pushNotificationService;
-        this.offlineDevices = new ConcurrentHashMap<>(deviceService.getOfflineDevices());
+        this.offlineDevices = new ConcurrentHashMap<>();
+        this.batchSize = options.getBatchSize();
+        this.notificationLookup = options.getNotificationLookup();
+        this.lastOfflineNotificationCache = new LastOfflineNotificationCache(options.getCacheSize());
+        this.notificationExecution = options.getNotificationExecution();
+        this.concurrentCalls = new Semaphore(options.getMaxConcurrentCalls());
+        this.notificationDecision = options.getNotificationDecision();
+        this.notifiedThresholdIndex = new NotifiedThresholdIndex();
+        this.flapDamping = new FlapDamping(options.getFlapDampingPolicy());
+        this.flapDampingEnabled = options.getFlapDampingPolicy().isEnabled();
+        this.metrics = options.getMetrics();
+
+        deviceService.loadOfflineDevices(clock, OfflineDevicePage.DEFAULT_PAGE_SIZE, this::loadOfflineDevices, (device, offline) -> {
+            if (offline.isPresent()) {
+                offlineDevices.put(device, offline.get());
+            } else {
+                offlineDevices.remove(device);
+            }
+        });
     }
 
     /**
@@ -102,42 +178,473 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
         return calculateLastPassedThreshold(deviceOffline, jobStart, thresholds).isPresent();
     }
 
+    /**
+     * Same as {@link OfflineDevicesJobImpl#shouldSendNotification(Instant, Instant, Instant, List)}, but uses a
+     * compiled threshold schedule, so it doesn't allocate any durations or optionals.
+     *
+     * @param jobStart          The instant the job calling this function was started.
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, jobStart);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD && (lastNotification.isBefore(deviceOffline) || lastPassedThresholdIndex != thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification));
+    }
+
+    /**
+     * Same as {@link OfflineDevicesJobImpl#shouldSendNotification(Instant, Instant, Instant, ThresholdSchedule)}, but
+     * doesn't take any previously sent push notification into account.
+     *
+     * @see OfflineDevicesJobImpl#shouldSendNotification(Instant, Instant, Instant, ThresholdSchedule)
+     */
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, ThresholdSchedule thresholdSchedule) {
+        return thresholdSchedule.lastPassedIndex(deviceOffline, jobStart) != ThresholdSchedule.NO_THRESHOLD;
+    }
+
+    /**
+     * Partitions a list into consecutive batches of the given size. Only the last batch can be smaller.
+     *
+     * @param items     The items to partition.
+     * @param batchSize The maximum size of a batch.
+     * @param <T>       The type of the items.
+     * @return A stream of batches, which are views of the given list.
+     */
+    static <T> Stream<List<T>> partition(List<T> items, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size should be at least 1.");
+        }
+
+        return IntStream.range(0, (items.size() + batchSize - 1) / batchSize)
+                .mapToObj(batch -> items.subList(batch * batchSize, Math.min(items.size(), (batch + 1) * batchSize)));
+    }
+
     /**
      * A predicate to determine if a notification should be sent at the given instant.
      *
-     * @param jobStart The instant the job calling this function was started.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param lastNotifications The last sent notifications of the devices that will be tested.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
      * @return The predicate, which returns true if a notification should be sent, false if not.
      */
-    private Predicate<Map.Entry<Device, Instant>> shouldSendNotificationAfter(Instant jobStart) {
-        return offlineDevice -> pushNotificationService.getLastOfflineNotificationInstant(offlineDevice.getKey())
-                .map(notification -> shouldSendNotification(jobStart, offlineDevice.getValue(), notification, thresholds))
-                .orElseGet(() -> shouldSendNotification(jobStart, offlineDevice.getValue(), thresholds));
+    private static Predicate<Map.Entry<Device, Instant>> shouldSendNotificationAfter(Instant jobStart, Map<Device, Instant> lastNotifications, ThresholdSchedule thresholdSchedule) {
+        return offlineDevice -> Optional.ofNullable(lastNotifications.get(offlineDevice.getKey()))
+                .map(notification -> shouldSendNotification(jobStart, offlineDevice.getValue(), notification, thresholdSchedule))
+                .orElseGet(() -> shouldSendNotification(jobStart, offlineDevice.getValue(), thresholdSchedule));
+    }
+
+    /**
+     * Selects the offline devices that passed a threshold since their last notification, looking up the last
+     * notifications of the whole batch at once.
+     *
+     * @param batch             The batch of offline devices.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     * @return The devices that should be notified.
+     */
+    private List<Device> selectDevicesToNotify(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        return notificationDecision == NotificationDecision.NOTIFIED_THRESHOLD_INDEX
+                ? selectDevicesToNotifyByNotifiedThresholdIndex(batch, jobStart, thresholdSchedule)
+                : selectDevicesToNotifyByLastNotification(batch, jobStart, thresholdSchedule);
     }
 
     /**
-     * Sends push notifications for offline devices, once per passed threshold.
+     * Same as {@link OfflineDevicesJobImpl#selectDevicesToNotify(List, Instant, ThresholdSchedule)}, but compares the
+     * thresholds passed at the instants of the last notifications, which are looked up for the whole batch.
+     *
+     * @see OfflineDevicesJobImpl#selectDevicesToNotify(List, Instant, ThresholdSchedule)
+     */
+    private List<Device> selectDevicesToNotifyByLastNotification(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        List<Device> devices = batch.stream()
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        long lookupStart = startTiming();
+        Map<Device, Instant> lastNotifications = getLastOfflineNotificationInstants(devices);
+
+        recordPhase(JobMetrics.Phase.LOOKUP, lookupStart);
+
+        long decideStart = startTiming();
+        List<Device> devicesToNotify = batch.stream()
+                .filter(shouldSendNotificationAfter(jobStart, lastNotifications, thresholdSchedule))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        recordPhase(JobMetrics.Phase.DECIDE, decideStart);
+
+        return devicesToNotify;
+    }
+
+    /**
+     * Same as {@link OfflineDevicesJobImpl#selectDevicesToNotify(List, Instant, ThresholdSchedule)}, but compares
+     * threshold indices. Only the last notifications of the devices without a notified threshold index are looked up,
+     * to migrate them.
+     *
+     * @see OfflineDevicesJobImpl#selectDevicesToNotify(List, Instant, ThresholdSchedule)
+     */
+    private List<Device> selectDevicesToNotifyByNotifiedThresholdIndex(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        long lookupStart = startTiming();
+        List<Map.Entry<Device, Instant>> unknownDevices = batch.stream()
+                .filter(offlineDevice -> notifiedThresholdIndex.get(offlineDevice.getKey(), offlineDevice.getValue(), thresholdSchedule) == NotifiedThresholdIndex.UNKNOWN)
+                .collect(Collectors.toList());
+
+        if (!unknownDevices.isEmpty()) {
+            Map<Device, Instant> lastNotifications = getLastOfflineNotificationInstants(unknownDevices.stream()
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList()));
+
+            unknownDevices.forEach(offlineDevice -> notifiedThresholdIndex.put(offlineDevice.getKey(), offlineDevice.getValue(), lastNotifications.get(offlineDevice.getKey()), thresholdSchedule));
+        }
+
+        recordPhase(JobMetrics.Phase.LOOKUP, lookupStart);
+
+        long decideStart = startTiming();
+        List<Device> devicesToNotify = batch.stream()
+                .filter(offlineDevice -> NotifiedThresholdIndex.shouldSendNotification(
+                        thresholdSchedule.lastPassedIndex(offlineDevice.getValue(), jobStart),
+                        notifiedThresholdIndex.get(offlineDevice.getKey(), offlineDevice.getValue(), thresholdSchedule)
+                ))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        recordPhase(JobMetrics.Phase.DECIDE, decideStart);
+
+        return devicesToNotify;
+    }
+
+    /**
+     * Looks up the last sent notifications for a batch of offline devices and sends notifications for those that passed
+     * a threshold since, using a single push notification service call for each.
+     *
+     * @param batch             The batch of offline devices.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     */
+    private void sendNotifications(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        List<Device> devicesToNotify = selectDevicesToNotify(batch, jobStart, thresholdSchedule);
+
+        if (!devicesToNotify.isEmpty()) {
+            long sendStart = startTiming();
+
+            pushNotificationService.sendOfflineNotifications(devicesToNotify);
+            recordPhase(JobMetrics.Phase.SEND, sendStart);
+            recordNotifications(devicesToNotify, jobStart, thresholdSchedule);
+        }
+    }
+
+    /**
+     * Looks up the last sent notification of a single offline device and sends a notification if it passed a threshold
+     * since. The notification is sent with the single device call of the push notification service.
+     *
+     * @param offlineDevice     The offline device with the instant it went offline.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     */
+    private void sendNotification(Map.Entry<Device, Instant> offlineDevice, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        List<Device> device = selectDevicesToNotify(Collections.singletonList(offlineDevice), jobStart, thresholdSchedule);
+
+        if (!device.isEmpty()) {
+            long sendStart = startTiming();
+
+            pushNotificationService.sendOfflineNotification(offlineDevice.getKey());
+            recordPhase(JobMetrics.Phase.SEND, sendStart);
+            recordNotifications(device, jobStart, thresholdSchedule);
+        }
+    }
+
+    /**
+     * Looks up and notifies every offline device on its own virtual thread. A new thread is only started once fewer
+     * than the maximum number of devices are being handled, so the push notification service isn't flooded and
+     * waiting devices don't take up threads. Closing the executor waits for every thread, so the failures are collected
+     * in one place instead of in a future per device.
+     *
+     * @param offlineDevices    The offline devices with the instant they went offline.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     * @return A future that is completed when all devices have been handled, which is completed exceptionally with the
+     * first failure if any of them failed, with the other failures added as suppressed exceptions.
+     */
+    private CompletableFuture<Void> sendNotificationsPerDevice(List<Map.Entry<Device, Instant>> offlineDevices, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<Device, Instant> offlineDevice : offlineDevices) {
+                concurrentCalls.acquireUninterruptibly();
+
+                try {
+                    executor.execute(() -> {
+                        try {
+                            sendNotification(offlineDevice, jobStart, thresholdSchedule);
+                        } catch (RuntimeException | Error e) {
+                            if (!failure.compareAndSet(null, e)) {
+                                failure.get().addSuppressed(e);
+                            }
+                        } finally {
+                            concurrentCalls.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    concurrentCalls.release();
+
+                    throw e;
+                }
+            }
+        }
+
+        return failure.get() == null ? CompletableFuture.completedFuture(null) : CompletableFuture.failedFuture(failure.get());
+    }
+
+    /**
+     * Counts the notifications that have been sent and caches them, unless the last notifications are always looked up
+     * remotely. If the job decides by notified threshold index, the indices of the devices that are still offline are
+     * updated as well.
+     *
+     * @param devices           The devices that have been notified.
+     * @param notification      The instant the notifications were sent.
+     * @param thresholdSchedule The compiled notification thresholds the notifications were sent for.
+     */
+    private void recordNotifications(List<Device> devices, Instant notification, ThresholdSchedule thresholdSchedule) {
+        metrics.recordNotificationsSent(devices.size());
+
+        if (notificationDecision == NotificationDecision.NOTIFIED_THRESHOLD_INDEX) {
+            devices.forEach(device -> Optional.ofNullable(offlineDevices.get(device))
+                    .ifPresent(deviceOffline -> notifiedThresholdIndex.put(device, deviceOffline, notification, thresholdSchedule)));
+        }
+
+        if (notificationLookup != NotificationLookup.REMOTE) {
+            lastOfflineNotificationCache.put(devices, notification);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the offline devices to evaluate in a run and reports the number of offline devices and, if
+     * the metrics are enabled, how many of them have passed each threshold. If flapping devices are damped, the devices
+     * that have been online long enough are removed first and the devices that are still recovering are left out.
+     *
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     * @return The offline devices with the instant they went offline.
+     */
+    private List<Map.Entry<Device, Instant>> takeSnapshot(Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        if (flapDampingEnabled) {
+            flapDamping.recover(jobStart).forEach(this::recover);
+        }
+
+        List<Map.Entry<Device, Instant>> snapshot = new ArrayList<>(offlineDevices.entrySet());
+
+        if (flapDampingEnabled) {
+            snapshot.removeIf(offlineDevice -> flapDamping.isRecovering(offlineDevice.getKey()));
+        }
+
+        metrics.recordOfflineDevices(snapshot.size());
+        metrics.recordDevicesScanned(snapshot.size());
+
+        if (metrics.isEnabled()) {
+            metrics.recordThresholdPopulations(thresholdSchedule.countPopulations(snapshot.stream()
+                    .map(Map.Entry::getValue)
+                    .collect(Collectors.toList()), jobStart));
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return The current value of the high-resolution time source if the metrics are enabled, 0 if not.
+     */
+    private long startTiming() {
+        return metrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reports the time spent in a phase, if the metrics are enabled.
+     *
+     * @param phase The phase.
+     * @param start The value of {@link OfflineDevicesJobImpl#startTiming()} when the phase started.
+     */
+    private void recordPhase(JobMetrics.Phase phase, long start) {
+        if (metrics.isEnabled()) {
+            metrics.recordPhase(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reports the duration of a run, if the metrics are enabled.
+     *
+     * @param start The value of {@link OfflineDevicesJobImpl#startTiming()} when the run started.
+     */
+    private void recordRun(long start) {
+        if (metrics.isEnabled()) {
+            metrics.recordRun(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds a page of offline devices to the job's state and, if the cache should be warmed, caches their last sent
+     * notifications before the next page is requested.
+     *
+     * @param page The page of offline devices.
+     */
+    private void loadOfflineDevices(OfflineDevicePage page) {
+        offlineDevices.putAll(page.getDevices());
+
+        if (notificationLookup == NotificationLookup.WARMED_CACHE) {
+            partition(new ArrayList<>(page.getDevices().keySet()), batchSize)
+                    .forEach(this::getLastOfflineNotificationInstants);
+        }
+    }
+
+    /**
+     * Gets the last sent notifications for a batch of devices, either from the push notification service or from the
+     * local cache, depending on the configured notification lookup.
+     *
+     * @param devices The devices to get the last sent notifications for.
+     * @return A map of the devices for which a notification was sent with the instant of their last notification.
+     */
+    private Map<Device, Instant> getLastOfflineNotificationInstants(List<Device> devices) {
+        if (notificationLookup == NotificationLookup.REMOTE) {
+            return pushNotificationService.getLastOfflineNotificationInstants(devices);
+        }
+
+        return lastOfflineNotificationCache.getAll(devices, pushNotificationService::getLastOfflineNotificationInstants);
+    }
+
+    /**
+     * Sends push notifications for offline devices, once per passed threshold, in batches. When the notifications are
+     * sent per device, waits for all of them to be sent before returning.
+     * <p>
+     * A failure to send notifications is thrown as it was thrown by the push notification service, also when the
+     * notifications were sent per device.
      */
     public void run() {
-        if (thresholds == null || thresholds.isEmpty()) {
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
             throw new IllegalStateException("Thresholds cannot be null or empty.");
         }
 
-        Instant jobStart = Instant.now();
+        long runStart = startTiming();
+        Instant jobStart = Instant.now(clock);
+        List<Map.Entry<Device, Instant>> snapshot = takeSnapshot(jobStart, thresholdSchedule);
 
-        offlineDevices.entrySet().stream()
-                .filter(shouldSendNotificationAfter(jobStart))
-                .map(Map.Entry::getKey)
-                .forEach(pushNotificationService::sendOfflineNotification);
+        try {
+            if (notificationExecution == NotificationExecution.VIRTUAL_THREAD_PER_DEVICE) {
+                join(sendNotificationsPerDevice(snapshot, jobStart, thresholdSchedule));
+            } else {
+                partition(snapshot, batchSize).forEach(batch -> sendNotifications(batch, jobStart, thresholdSchedule));
+            }
+        } finally {
+            recordRun(runStart);
+        }
+    }
+
+    /**
+     * Waits for a future to complete, throwing the failure it completed with as is instead of wrapped in a
+     * {@link CompletionException}.
+     *
+     * @param future The future.
+     */
+    private static void join(CompletableFuture<?> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Sends push notifications for offline devices, once per passed threshold. Every batch is evaluated and notified
+     * as a separate task on the given executor, so the batches are processed concurrently. If every device is notified
+     * on its own virtual thread, the threads are started from a single task on the given executor instead.
+     *
+     * @param executor The executor to evaluate the batches on.
+     * @return A future that completes when all batches have been processed, which completes exceptionally if any of
+     * them failed.
+     */
+    @Override
+    public CompletableFuture<Void> runAsync(Executor executor) {
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
+            throw new IllegalStateException("Thresholds cannot be null or empty.");
+        }
+
+        long runStart = startTiming();
+        Instant jobStart = Instant.now(clock);
+        List<Map.Entry<Device, Instant>> snapshot = takeSnapshot(jobStart, thresholdSchedule);
+        CompletableFuture<Void> run;
+
+        if (notificationExecution == NotificationExecution.VIRTUAL_THREAD_PER_DEVICE) {
+            run = CompletableFuture.supplyAsync(() -> sendNotificationsPerDevice(snapshot, jobStart, thresholdSchedule), executor)
+                    .thenCompose(Function.identity());
+        } else {
+            run = CompletableFuture.allOf(partition(snapshot, batchSize)
+                    .map(batch -> CompletableFuture.runAsync(() -> sendNotifications(batch, jobStart, thresholdSchedule), executor))
+                    .toArray(CompletableFuture[]::new));
+        }
+
+        return run.whenComplete((ignored, failure) -> recordRun(runStart));
     }
 
+    /**
+     * Forgets a device that went online. If flapping devices are damped, the device is only forgotten once it has been
+     * online long enough to recover; until then, it's left out of the runs.
+     *
+     * @param device The connecting device.
+     */
     @Override
     public void onDeviceConnect(Device device) {
-        this.offlineDevices.remove(device);
+        this.metrics.recordDeviceConnect();
+
+        if (flapDampingEnabled) {
+            this.flapDamping.connect(device, offlineDevices.get(device), Instant.now(clock));
+        } else {
+            recover(device, null);
+        }
     }
 
+    /**
+     * Remembers the instant a device went offline. If flapping devices are damped and the device was still
+     * recovering, it keeps the instant it originally went offline, so its thresholds don't restart.
+     *
+     * @param device The disconnecting device.
+     */
     @Override
     public void onDeviceDisconnect(Device device) {
-        this.offlineDevices.put(device, Instant.now());
+        Instant now = Instant.now(clock);
+        Instant deviceOffline = flapDampingEnabled ? this.flapDamping.disconnect(device, offlineDevices.get(device), now) : now;
+        Instant previousDeviceOffline = this.offlineDevices.put(device, deviceOffline);
+
+        this.metrics.recordDeviceDisconnect();
+
+        if (notificationDecision == NotificationDecision.NOTIFIED_THRESHOLD_INDEX && !deviceOffline.equals(previousDeviceOffline)) {
+            this.notifiedThresholdIndex.put(device, deviceOffline, null, thresholdSchedule);
+        }
+    }
+
+    /**
+     * Forgets an offline device and its last notification, unless it went offline again in the meantime.
+     *
+     * @param device        The device that recovered.
+     * @param deviceOffline The instant the device went offline, or null to forget it regardless.
+     */
+    private void recover(Device device, Instant deviceOffline) {
+        if (deviceOffline == null) {
+            this.offlineDevices.remove(device);
+        } else if (!this.offlineDevices.remove(device, deviceOffline)) {
+            return;
+        }
+
+        this.lastOfflineNotificationCache.invalidate(device);
+        this.notifiedThresholdIndex.remove(device);
     }
 
     @Override
@@ -146,15 +653,12 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
     }
 
     /**
-     * Configures the thresholds for the job. There should be at least one threshold.
+     * Configures the thresholds for the job by compiling them into a schedule. There should be at least one threshold
+     * and the thresholds should be sorted in ascending order.
      *
      * @param thresholds The threshold to be used by the job.
      */
     private void setThresholds(List<Duration> thresholds) {
-        if (thresholds == null || thresholds.isEmpty()) {
-            throw new IllegalArgumentException("There should be at least 1 threshold.");
-        }
-
-        this.thresholds = thresholds;
+        this.thresholdSchedule = ThresholdSchedule.compile(thresholds);
     }
 }
@@ -0,0 +1,190 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+
+import java.time.Clock;
+
+/**
+ * Configures how the job works, apart from the services it works with. Every option has a default, so only the options
+ * that differ from it have to be set. The options are immutable: every {@code with} function returns a copy with that
+ * option changed.
+ * <p>
+ * By default, the job uses the system clock, looks up the last sent notifications remotely in batches of
+ * {@link OfflineDevicesJobImpl#DEFAULT_BATCH_SIZE} devices, notifies them in the same batches, decides by the last sent
+ * notification, doesn't damp flapping devices and reports no metrics.
+ */
+final class OfflineDevicesJobOptions {
+
+    private Clock clock = Clock.systemUTC();
+    private int batchSize = OfflineDevicesJobImpl.DEFAULT_BATCH_SIZE;
+    private NotificationLookup notificationLookup = NotificationLookup.REMOTE;
+    private int cacheSize = OfflineDevicesJobImpl.DEFAULT_CACHE_SIZE;
+    private NotificationExecution notificationExecution = NotificationExecution.SEQUENTIAL;
+    private int maxConcurrentCalls = OfflineDevicesJobImpl.DEFAULT_MAX_CONCURRENT_CALLS;
+    private NotificationDecision notificationDecision = NotificationDecision.LAST_NOTIFICATION;
+    private FlapDampingPolicy flapDampingPolicy = FlapDampingPolicy.disabled();
+    private JobMetrics metrics = JobMetrics.noOp();
+
+    /**
+     * Creates the default options.
+     */
+    OfflineDevicesJobOptions() {
+    }
+
+    private OfflineDevicesJobOptions(OfflineDevicesJobOptions options) {
+        this.clock = options.clock;
+        this.batchSize = options.batchSize;
+        this.notificationLookup = options.notificationLookup;
+        this.cacheSize = options.cacheSize;
+        this.notificationExecution = options.notificationExecution;
+        this.maxConcurrentCalls = options.maxConcurrentCalls;
+        this.notificationDecision = options.notificationDecision;
+        this.flapDampingPolicy = options.flapDampingPolicy;
+        this.metrics = options.metrics;
+    }
+
+    /**
+     * @param clock The clock to determine the current instant with.
+     * @return A copy of these options with the clock.
+     */
+    OfflineDevicesJobOptions withClock(Clock clock) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.clock = requireNonNull(clock, "Clock");
+
+        return options;
+    }
+
+    /**
+     * @param batchSize The maximum number of devices to look up and notify per push notification service call, if the
+     *                  devices are notified in batches.
+     * @return A copy of these options with the batch size.
+     */
+    OfflineDevicesJobOptions withBatchSize(int batchSize) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.batchSize = requireAtLeastOne(batchSize, "The batch size");
+
+        return options;
+    }
+
+    /**
+     * @param notificationLookup Where to get the last sent notifications from.
+     * @param cacheSize          The maximum number of devices to cache the last sent notification for.
+     * @return A copy of these options with the notification lookup.
+     */
+    OfflineDevicesJobOptions withNotificationLookup(NotificationLookup notificationLookup, int cacheSize) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.notificationLookup = requireNonNull(notificationLookup, "Notification lookup");
+        options.cacheSize = cacheSize;
+
+        return options;
+    }
+
+    /**
+     * Notifying every device on its own virtual thread looks up and notifies the devices one by one, so the batch size
+     * doesn't apply to it.
+     *
+     * @param notificationExecution How to look up and notify the devices.
+     * @param maxConcurrentCalls    The maximum number of devices that are looked up and notified at the same time, if
+     *                              every device is notified on its own virtual thread.
+     * @return A copy of these options with the notification execution.
+     */
+    OfflineDevicesJobOptions withNotificationExecution(NotificationExecution notificationExecution, int maxConcurrentCalls) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.notificationExecution = requireNonNull(notificationExecution, "Notification execution");
+        options.maxConcurrentCalls = requireAtLeastOne(maxConcurrentCalls, "The maximum number of concurrent calls");
+
+        return options;
+    }
+
+    /**
+     * @param notificationDecision How to decide whether a device should be notified.
+     * @return A copy of these options with the notification decision.
+     */
+    OfflineDevicesJobOptions withNotificationDecision(NotificationDecision notificationDecision) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.notificationDecision = requireNonNull(notificationDecision, "Notification decision");
+
+        return options;
+    }
+
+    /**
+     * @param flapDampingPolicy How long reconnecting devices should stay online before they're considered recovered.
+     * @return A copy of these options with the flap damping policy.
+     */
+    OfflineDevicesJobOptions withFlapDampingPolicy(FlapDampingPolicy flapDampingPolicy) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.flapDampingPolicy = requireNonNull(flapDampingPolicy, "Flap damping policy");
+
+        return options;
+    }
+
+    /**
+     * @param metrics The metrics to report the job's runs and events to.
+     * @return A copy of these options with the metrics.
+     */
+    OfflineDevicesJobOptions withMetrics(JobMetrics metrics) {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions(this);
+
+        options.metrics = requireNonNull(metrics, "Metrics");
+
+        return options;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    NotificationLookup getNotificationLookup() {
+        return notificationLookup;
+    }
+
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    NotificationExecution getNotificationExecution() {
+        return notificationExecution;
+    }
+
+    int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    NotificationDecision getNotificationDecision() {
+        return notificationDecision;
+    }
+
+    FlapDampingPolicy getFlapDampingPolicy() {
+        return flapDampingPolicy;
+    }
+
+    JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static <T> T requireNonNull(T option, String name) {
+        if (option == null) {
+            throw new IllegalArgumentException(name + " cannot be null.");
+        }
+
+        return option;
+    }
+
+    private static int requireAtLeastOne(int option, String name) {
+        if (option < 1) {
+            throw new IllegalArgumentException(name + " should be at least 1.");
+        }
+
+        return option;
+    }
+}
@@ -0,0 +1,277 @@
+package com.pietvandongen.purebliss.offlinedetector.job.hierarchy;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts hierarchy suppression in front of a job. A device that disconnects while one of its ancestors, such as the
+ * gateway it's connected through, is offline isn't passed on to the job, so the job only evaluates and notifies the
+ * ancestor. When a device disconnects, its offline descendants that disconnected at most the grace period before it are
+ * taken out of the job as well, as they most likely went offline because of it. Descendants that were offline longer,
+ * or that are only connected to it through devices that are online, are left to the job.
+ * <p>
+ * Once the ancestor reconnects, its children that are still offline are passed on to the job as if they disconnected
+ * at that instant, so their thresholds start when their own outage became visible. Children of a child that is still
+ * offline stay suppressed by that child.
+ * <p>
+ * The hierarchy is taken from the parents of the devices given to the events, so a connect event doesn't need to carry
+ * the parent of the device once its disconnect event did. Only offline devices that have a parent, or that are known
+ * to be the top of a hierarchy, are tracked; other devices are passed straight on to the job. A device without a parent
+ * becomes known as the top of a hierarchy once an event of one of its descendants has been received, so its
+ * descendants are only suppressed if that happened before it disconnected.
+ * <p>
+ * The events of different devices are handled concurrently. The events of a device, and the events the job receives
+ * for it, are handled one at a time and passed on to the job in order.
+ */
+public class HierarchicalOfflineDevicesJob implements OfflineDevicesJob {
+
+    public static final Duration DEFAULT_GRACE_PERIOD = Duration.ofSeconds(30);
+
+    private final OfflineDevicesJob job;
+    private final Clock clock;
+    private final Duration gracePeriod;
+    private final Map<Device, OfflineDevice> offlineDevices = new ConcurrentHashMap<>();
+    private final Map<Device, Set<Device>> offlineChildren = new ConcurrentHashMap<>();
+    private final Set<Device> suppressedDevices = ConcurrentHashMap.newKeySet();
+    private final Set<Device> topDevices = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Puts hierarchy suppression with the default grace period in front of a job.
+     *
+     * @param job The job to pass the events on to.
+     */
+    public HierarchicalOfflineDevicesJob(OfflineDevicesJob job) {
+        this(job, Clock.systemUTC(), DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * Puts hierarchy suppression in front of a job.
+     *
+     * @param job         The job to pass the events on to.
+     * @param clock       The clock to time the disconnects with.
+     * @param gracePeriod The time before a device disconnected within which its descendants are considered to have
+     *                    disconnected because of it.
+     */
+    public HierarchicalOfflineDevicesJob(OfflineDevicesJob job, Clock clock, Duration gracePeriod) {
+        if (job == null || clock == null || gracePeriod == null) {
+            throw new IllegalArgumentException("Job, clock nor grace period can be null.");
+        }
+
+        if (gracePeriod.isNegative()) {
+            throw new IllegalArgumentException("The grace period cannot be negative.");
+        }
+
+        this.job = job;
+        this.clock = clock;
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    public void run() {
+        job.run();
+    }
+
+    @Override
+    public CompletableFuture<Void> runAsync(Executor executor) {
+        return job.runAsync(executor);
+    }
+
+    /**
+     * Passes the event on to the job, unless the device was suppressed, and passes the children that were suppressed
+     * by the device and have no other offline ancestor on to the job as disconnected.
+     *
+     * @param device The connecting device.
+     */
+    @Override
+    public void onDeviceConnect(Device device) {
+        registerTopDevice(device);
+
+        offlineDevices.compute(device, (ignored, offlineDevice) -> {
+            if (offlineDevice == null) {
+                job.onDeviceConnect(device);
+
+                return null;
+            }
+
+            offlineDevice.device.getParent().ifPresent(parent -> removeOfflineChild(parent, device));
+
+            if (!suppressedDevices.remove(device)) {
+                job.onDeviceConnect(device);
+            }
+
+            return null;
+        });
+
+        for (Device child : offlineChildren.getOrDefault(device, Collections.emptySet())) {
+            offlineDevices.computeIfPresent(child, (ignored, offlineChild) -> {
+                if (suppressedDevices.contains(child) && !findOfflineAncestor(offlineChild.device).isPresent()) {
+                    suppressedDevices.remove(child);
+                    job.onDeviceDisconnect(child);
+                }
+
+                return offlineChild;
+            });
+        }
+    }
+
+    /**
+     * Suppresses the device if one of its ancestors is offline. If not, passes the event on to the job and takes the
+     * descendants that disconnected within the grace period before it out of the job.
+     *
+     * @param device The disconnecting device.
+     */
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        Instant now = clock.instant();
+
+        registerTopDevice(device);
+
+        if (!device.getParent().isPresent() && !topDevices.contains(device)) {
+            job.onDeviceDisconnect(device);
+
+            return;
+        }
+
+        AtomicBoolean passedOn = new AtomicBoolean();
+
+        offlineDevices.compute(device, (ignored, offlineDevice) -> {
+            if (offlineDevice != null) {
+                if (!suppressedDevices.contains(device)) {
+                    job.onDeviceDisconnect(offlineDevice.device);
+                }
+
+                return offlineDevice;
+            }
+
+            device.getParent().ifPresent(parent -> addOfflineChild(parent, device));
+
+            if (findOfflineAncestor(device).isPresent()) {
+                suppressedDevices.add(device);
+            } else {
+                job.onDeviceDisconnect(device);
+                passedOn.set(true);
+            }
+
+            return new OfflineDevice(device, now);
+        });
+
+        if (passedOn.get()) {
+            suppressDescendants(device, now.minus(gracePeriod));
+        }
+    }
+
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        job.onConfigurationUpdate(thresholds);
+    }
+
+    /**
+     * @return The number of offline devices that are suppressed by an offline ancestor.
+     */
+    public int getSuppressedCount() {
+        return suppressedDevices.size();
+    }
+
+    /**
+     * Takes the offline descendants of a device that disconnected at or after the given instant out of the job.
+     *
+     * @param device The device.
+     * @param since  The first instant a descendant should have disconnected at to be suppressed.
+     */
+    private void suppressDescendants(Device device, Instant since) {
+        Deque<Device> devices = new ArrayDeque<>(Collections.singletonList(device));
+
+        while (!devices.isEmpty()) {
+            for (Device child : offlineChildren.getOrDefault(devices.pop(), Collections.emptySet())) {
+                OfflineDevice offlineChild = offlineDevices.computeIfPresent(child, (ignored, offlineDevice) -> {
+                    if (!suppressedDevices.contains(child) && !offlineDevice.since.isBefore(since)) {
+                        suppressedDevices.add(child);
+                        job.onDeviceConnect(child);
+                    }
+
+                    return offlineDevice;
+                });
+
+                if (offlineChild != null) {
+                    devices.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param device The device.
+     * @return The nearest ancestor of the device that is offline, or empty if none is.
+     */
+    private Optional<Device> findOfflineAncestor(Device device) {
+        Optional<Device> ancestor = device.getParent();
+
+        while (ancestor.isPresent() && !offlineDevices.containsKey(ancestor.get())) {
+            ancestor = ancestor.get().getParent();
+        }
+
+        return ancestor;
+    }
+
+    /**
+     * Remembers the ancestor of the device that has no parent itself, so it's tracked once it disconnects.
+     *
+     * @param device The device.
+     */
+    private void registerTopDevice(Device device) {
+        Optional<Device> ancestor = device.getParent();
+        Device topDevice = null;
+
+        while (ancestor.isPresent()) {
+            topDevice = ancestor.get();
+            ancestor = topDevice.getParent();
+        }
+
+        if (topDevice != null) {
+            topDevices.add(topDevice);
+        }
+    }
+
+    private void addOfflineChild(Device parent, Device child) {
+        offlineChildren.compute(parent, (ignored, children) -> {
+            Set<Device> offlineChildren = children == null ? ConcurrentHashMap.newKeySet() : children;
+
+            offlineChildren.add(child);
+
+            return offlineChildren;
+        });
+    }
+
+    private void removeOfflineChild(Device parent, Device child) {
+        offlineChildren.computeIfPresent(parent, (ignored, children) -> children.remove(child) && children.isEmpty() ? null : children);
+    }
+
+    /**
+     * An offline device as it was given to its disconnect event, so with its parent, and the instant it disconnected.
+     */
+    private static class OfflineDevice {
+
+        private final Device device;
+        private final Instant since;
+
+        private OfflineDevice(Device device, Instant since) {
+            this.device = device;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Holds the offline devices that have been notified for the last threshold, so runs don't have to visit them anymore.
+ * Only the UUID of a device and the instant it went offline are kept, in compact open-addressing hash tables of fixed
+ * size slots. The tables live in byte buffers on the heap or, to spill them to disk, in memory-mapped temporary files
+ * that the operating system pages in and out as needed.
+ * <p>
+ * The set is split into segments that each have their own table, so no single buffer has to hold all devices and a
+ * growing segment only keeps its own old and new table alive at the same time. Segments grow once they're three
+ * quarters full. A segment that has reached its maximum capacity doesn't accept new devices, so the set can be full;
+ * the job then keeps the devices it can't retire with its other offline devices.
+ * <p>
+ * The set is thread-safe, but doesn't make a device's move between the job's offline devices and the set atomic; the
+ * job does that by only touching the set while it holds the device's entry in its offline devices.
+ */
+class ColdDeviceSet implements Closeable {
+
+    static final int SEGMENT_COUNT = 64;
+    static final int MAXIMUM_SEGMENT_CAPACITY = 1 << 25;
+
+    private static final int SEGMENT_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+    private static final int SLOT_BYTES = 4 * Long.BYTES;
+    private static final int MOST_SIGNIFICANT_BITS = 0;
+    private static final int LEAST_SIGNIFICANT_BITS = Long.BYTES;
+    private static final int EPOCH_SECOND = 2 * Long.BYTES;
+    private static final int NANO = 3 * Long.BYTES;
+    private static final int OCCUPIED = NANO + Integer.BYTES;
+    private static final int MINIMUM_SEGMENT_CAPACITY = 256;
+
+    private final Path directory;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private ColdDeviceSet(Path directory, int maximumSegmentCapacity) {
+        this.directory = directory;
+
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maximumSegmentCapacity);
+        }
+    }
+
+    /**
+     * @return A cold set that keeps its tables on the heap.
+     */
+    static ColdDeviceSet onHeap() {
+        return onHeap(MAXIMUM_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * @param maximumSegmentCapacity The maximum number of slots per segment, which should be a power of two.
+     * @return A cold set that keeps its tables on the heap and holds at most three quarters of the given number of
+     * slots per segment.
+     */
+    static ColdDeviceSet onHeap(int maximumSegmentCapacity) {
+        return new ColdDeviceSet(null, checkMaximumSegmentCapacity(maximumSegmentCapacity));
+    }
+
+    /**
+     * @param directory The directory to create the temporary files in, which are deleted when the set is closed.
+     * @return A cold set that keeps its tables in memory-mapped files.
+     */
+    static ColdDeviceSet spilledTo(Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null.");
+        }
+
+        return new ColdDeviceSet(directory, MAXIMUM_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * Spreads the bits of a device UUID, so both the segment and the slot can be taken from the hash.
+     *
+     * @param mostSignificantBits  The most significant bits of the UUID.
+     * @param leastSignificantBits The least significant bits of the UUID.
+     * @return The hash.
+     */
+    static long hash(long mostSignificantBits, long leastSignificantBits) {
+        long hash = mostSignificantBits * 0x9E3779B97F4A7C15L ^ leastSignificantBits;
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Adds a device to the set or replaces the instant it went offline, unless its segment is full.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the device went offline.
+     * @return True if the device is in the set, false if its segment was full.
+     */
+    boolean put(Device device, Instant deviceOffline) {
+        UUID uuid = device.getUuid();
+        long hash = hash(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+
+        return segmentOf(hash).put(hash, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), deviceOffline.getEpochSecond(), deviceOffline.getNano());
+    }
+
+    /**
+     * Removes a device from the set.
+     *
+     * @param device The device.
+     * @return The instant the device went offline, or null if it wasn't in the set.
+     */
+    Instant remove(Device device) {
+        UUID uuid = device.getUuid();
+        long hash = hash(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+
+        return segmentOf(hash).remove(hash, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return A copy of the devices in the set, with the instant they went offline.
+     */
+    Map<Device, Instant> getAll() {
+        Map<Device, Instant> devices = new HashMap<>();
+
+        for (Segment segment : segments) {
+            segment.addTo(devices);
+        }
+
+        return devices;
+    }
+
+    /**
+     * @return The number of devices in the set.
+     */
+    long size() {
+        long size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Releases the tables and deletes their files, if they were spilled to disk.
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private static int checkMaximumSegmentCapacity(int maximumSegmentCapacity) {
+        if (maximumSegmentCapacity < MINIMUM_SEGMENT_CAPACITY || maximumSegmentCapacity > MAXIMUM_SEGMENT_CAPACITY || Integer.bitCount(maximumSegmentCapacity) != 1) {
+            throw new IllegalArgumentException("The maximum segment capacity should be a power of two from " + MINIMUM_SEGMENT_CAPACITY + " to " + MAXIMUM_SEGMENT_CAPACITY + ".");
+        }
+
+        return maximumSegmentCapacity;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> SEGMENT_SHIFT)];
+    }
+
+    private static void close(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A part of the set with its own table, which is locked independently of the other segments.
+     */
+    private class Segment {
+
+        private final int maximumCapacity;
+
+        private ByteBuffer slots;
+        private FileChannel file;
+        private int capacity;
+        private int size;
+
+        private Segment(int maximumCapacity) {
+            this.maximumCapacity = maximumCapacity;
+            allocate(MINIMUM_SEGMENT_CAPACITY);
+        }
+
+        private synchronized boolean put(long hash, long mostSignificantBits, long leastSignificantBits, long epochSecond, int nano) {
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            if (!isOccupied(slot)) {
+                if ((size + 1) * 4L > capacity * 3L) {
+                    if (capacity >= maximumCapacity) {
+                        return false;
+                    }
+
+                    grow();
+                    slot = find(hash, mostSignificantBits, leastSignificantBits);
+                }
+
+                size++;
+            }
+
+            write(slot, mostSignificantBits, leastSignificantBits, epochSecond, nano);
+
+            return true;
+        }
+
+        private synchronized Instant remove(long hash, long mostSignificantBits, long leastSignificantBits) {
+            if (size == 0) {
+                return null;
+            }
+
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            if (!isOccupied(slot)) {
+                return null;
+            }
+
+            Instant deviceOffline = readOffline(slot);
+
+            delete(slot);
+            size--;
+
+            return deviceOffline;
+        }
+
+        private synchronized void addTo(Map<Device, Instant> devices) {
+            for (int slot = 0; slot < capacity; slot++) {
+                if (isOccupied(slot)) {
+                    devices.put(readDevice(slot), readOffline(slot));
+                }
+            }
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private synchronized void close() {
+            closeFile();
+        }
+
+        /**
+         * Finds the slot of a device, or the empty slot where it should go, by probing linearly from its hash.
+         */
+        private int find(long hash, long mostSignificantBits, long leastSignificantBits) {
+            int mask = capacity - 1;
+            int slot = (int) hash & mask;
+
+            while (isOccupied(slot)) {
+                int offset = slot * SLOT_BYTES;
+
+                if (slots.getLong(offset + MOST_SIGNIFICANT_BITS) == mostSignificantBits && slots.getLong(offset + LEAST_SIGNIFICANT_BITS) == leastSignificantBits) {
+                    return slot;
+                }
+
+                slot = slot + 1 & mask;
+            }
+
+            return slot;
+        }
+
+        /**
+         * Empties a slot and shifts the entries after it back, so no probe sequence is broken and no tombstones are
+         * needed.
+         */
+        private void delete(int slot) {
+            int mask = capacity - 1;
+            int empty = slot;
+            int next = slot;
+
+            while (true) {
+                next = next + 1 & mask;
+
+                if (!isOccupied(next)) {
+                    break;
+                }
+
+                int offset = next * SLOT_BYTES;
+                int home = (int) hash(slots.getLong(offset + MOST_SIGNIFICANT_BITS), slots.getLong(offset + LEAST_SIGNIFICANT_BITS)) & mask;
+
+                if ((next - home & mask) >= (next - empty & mask)) {
+                    copy(next, empty);
+                    empty = next;
+                }
+            }
+
+            slots.putInt(empty * SLOT_BYTES + OCCUPIED, 0);
+        }
+
+        private void grow() {
+            ByteBuffer oldSlots = slots;
+            FileChannel oldFile = file;
+            int oldCapacity = capacity;
+
+            file = null;
+            allocate(capacity << 1);
+
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                int offset = slot * SLOT_BYTES;
+
+                if (oldSlots.getInt(offset + OCCUPIED) != 0) {
+                    long mostSignificantBits = oldSlots.getLong(offset + MOST_SIGNIFICANT_BITS);
+                    long leastSignificantBits = oldSlots.getLong(offset + LEAST_SIGNIFICANT_BITS);
+
+                    write(find(hash(mostSignificantBits, leastSignificantBits), mostSignificantBits, leastSignificantBits),
+                            mostSignificantBits, leastSignificantBits, oldSlots.getLong(offset + EPOCH_SECOND), oldSlots.getInt(offset + NANO));
+                }
+            }
+
+            ColdDeviceSet.close(oldFile);
+        }
+
+        /**
+         * Replaces the table by an empty one with the given capacity.
+         */
+        private void allocate(int capacity) {
+            closeFile();
+
+            if (directory == null) {
+                slots = ByteBuffer.allocate(capacity * SLOT_BYTES);
+            } else {
+                try {
+                    file = FileChannel.open(Files.createTempFile(directory, "cold-devices", ".bin"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                    slots = file.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_BYTES);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            this.capacity = capacity;
+        }
+
+        private void closeFile() {
+            ColdDeviceSet.close(file);
+            file = null;
+        }
+
+        private boolean isOccupied(int slot) {
+            return slots.getInt(slot * SLOT_BYTES + OCCUPIED) != 0;
+        }
+
+        private void write(int slot, long mostSignificantBits, long leastSignificantBits, long epochSecond, int nano) {
+            int offset = slot * SLOT_BYTES;
+
+            slots.putLong(offset + MOST_SIGNIFICANT_BITS, mostSignificantBits);
+            slots.putLong(offset + LEAST_SIGNIFICANT_BITS, leastSignificantBits);
+            slots.putLong(offset + EPOCH_SECOND, epochSecond);
+            slots.putInt(offset + NANO, nano);
+            slots.putInt(offset + OCCUPIED, 1);
+        }
+
+        private void copy(int from, int to) {
+            int offset = from * SLOT_BYTES;
+
+            write(to, slots.getLong(offset + MOST_SIGNIFICANT_BITS), slots.getLong(offset + LEAST_SIGNIFICANT_BITS), slots.getLong(offset + EPOCH_SECOND), slots.getInt(offset + NANO));
+        }
+
+        private Device readDevice(int slot) {
+            int offset = slot * SLOT_BYTES;
+
+            return new Device(new UUID(slots.getLong(offset + MOST_SIGNIFICANT_BITS), slots.getLong(offset + LEAST_SIGNIFICANT_BITS)));
+        }
+
+        private Instant readOffline(int slot) {
+            int offset = slot * SLOT_BYTES;
+
+            return Instant.ofEpochSecond(slots.getLong(offset + EPOCH_SECOND), slots.getInt(offset + NANO));
+        }
+    }
+}
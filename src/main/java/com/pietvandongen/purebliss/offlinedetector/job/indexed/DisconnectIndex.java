@@ -0,0 +1,79 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps offline devices ordered by the instant they went offline, so the devices that went offline in a range of
+ * instants can be found without visiting the others. Devices that went offline at the same instant are ordered by
+ * their UUID.
+ * <p>
+ * The index is thread-safe, but doesn't check that a device is only in it once; the job does that by only updating
+ * the index while it holds the device's entry in its offline devices.
+ */
+class DisconnectIndex {
+
+    private static final Comparator<Map.Entry<Device, Instant>> ORDER = Comparator
+            .comparing((Map.Entry<Device, Instant> offlineDevice) -> offlineDevice.getValue())
+            .thenComparing(Map.Entry::getKey, Comparator.nullsFirst(Comparator.comparing(Device::getUuid)));
+
+    private final NavigableSet<Map.Entry<Device, Instant>> offlineDevices = new ConcurrentSkipListSet<>(ORDER);
+
+    /**
+     * Adds an offline device to the index.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the device went offline.
+     */
+    void add(Device device, Instant deviceOffline) {
+        offlineDevices.add(new AbstractMap.SimpleImmutableEntry<>(device, deviceOffline));
+    }
+
+    /**
+     * Removes an offline device from the index.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the device went offline, as it was added.
+     */
+    void remove(Device device, Instant deviceOffline) {
+        offlineDevices.remove(new AbstractMap.SimpleImmutableEntry<>(device, deviceOffline));
+    }
+
+    /**
+     * Finds the devices that went offline in a range of instants. The returned view reflects later changes to the
+     * index, but is safe to iterate while the index is being changed.
+     *
+     * @param from The first instant of the range.
+     * @param to   The instant after the range.
+     * @return The devices that went offline at or after the first instant and before the instant after the range, with
+     * the instant they went offline, ordered by that instant.
+     */
+    NavigableSet<Map.Entry<Device, Instant>> range(Instant from, Instant to) {
+        if (!from.isBefore(to)) {
+            return Collections.emptyNavigableSet();
+        }
+
+        return offlineDevices.subSet(bound(from), true, bound(to), false);
+    }
+
+    /**
+     * @return The number of devices in the index, which takes time proportional to that number.
+     */
+    int size() {
+        return offlineDevices.size();
+    }
+
+    /**
+     * @return An entry that is ordered before every device that went offline at the given instant.
+     */
+    private static Map.Entry<Device, Instant> bound(Instant instant) {
+        return new AbstractMap.SimpleImmutableEntry<>(null, instant);
+    }
+}
@@ -0,0 +1,499 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Sends out device offline push notifications like the documented job does, but only evaluates the offline devices that
+ * passed a threshold since the previous run. The offline devices are kept in an index ordered by the instant they went
+ * offline, which a run queries once per threshold. The first run after the job was created or reconfigured evaluates
+ * every offline device, as no crossings have been scanned yet.
+ * <p>
+ * Devices that have been notified for the last threshold can't be notified again, so they're retired to a cold set,
+ * which keeps them more compactly and can spill them to disk. They're moved back when they connect or disconnect, or
+ * when a later threshold is configured.
+ */
+public class OfflineDevicesJobImpl implements OfflineDevicesJob {
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * How often a run counts how many offline devices have passed each threshold, as that has to visit every offline
+     * device.
+     */
+    static final Duration THRESHOLD_POPULATIONS_INTERVAL = Duration.ofMinutes(1);
+
+    private final Clock clock;
+    private final DeviceService deviceService;
+    private final PushNotificationService pushNotificationService;
+    private final Map<Device, Instant> offlineDevices;
+    private final ColdDeviceSet coldDeviceSet;
+    private final DisconnectIndex disconnectIndex;
+    private final int batchSize;
+    private final Set<Device> devicesToRescan;
+    private final AtomicReference<Instant> scannedUntil;
+    private final AtomicReference<Instant> populationsCounted;
+    private final JobMetrics metrics;
+
+    private volatile ThresholdSchedule thresholdSchedule;
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state, using the system clock, a cold set on
+     * the heap and the default batch size, without reporting any metrics.
+     *
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     */
+    OfflineDevicesJobImpl(DeviceService deviceService, PushNotificationService pushNotificationService) {
+        this(Clock.systemUTC(), deviceService, pushNotificationService, ColdDeviceSet.onHeap(), DEFAULT_BATCH_SIZE, JobMetrics.noOp());
+    }
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param coldDeviceSet           The set to retire the devices that have been notified for the last threshold to.
+     * @param batchSize               The maximum number of devices to look up and notify per push notification service
+     *                                call.
+     * @param metrics                 The metrics to report the job's runs and events to.
+     */
+    OfflineDevicesJobImpl(
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService,
+            ColdDeviceSet coldDeviceSet,
+            int batchSize,
+            JobMetrics metrics
+    ) {
+        if (clock == null || deviceService == null || pushNotificationService == null || coldDeviceSet == null || metrics == null) {
+            throw new IllegalArgumentException("Clock, device service, push notification service, cold device set nor metrics can be null.");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size should be at least 1.");
+        }
+
+        this.clock = clock;
+        this.deviceService = deviceService;
+        this.pushNotificationService = pushNotificationService;
+        this.offlineDevices = new ConcurrentHashMap<>();
+        this.coldDeviceSet = coldDeviceSet;
+        this.disconnectIndex = new DisconnectIndex();
+        this.batchSize = batchSize;
+        this.devicesToRescan = ConcurrentHashMap.newKeySet();
+        this.scannedUntil = new AtomicReference<>();
+        this.populationsCounted = new AtomicReference<>();
+        this.metrics = metrics;
+
+        deviceService.loadOfflineDevices(clock, OfflineDevicePage.DEFAULT_PAGE_SIZE, this::loadOfflineDevices, (device, offline) -> {
+            if (offline.isPresent()) {
+                putOfflineDevice(device, offline.get());
+            } else {
+                forget(device);
+            }
+        });
+    }
+
+    /**
+     * Checks whether a notification should be sent by comparing the index of the last threshold passed at the job's
+     * start with the one passed at the last notification.
+     *
+     * @param jobStart          The instant the job calling this function was started.
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent, or null if none was sent.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, jobStart);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD && (lastNotification == null || lastNotification.isBefore(deviceOffline) || lastPassedThresholdIndex != thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification));
+    }
+
+    /**
+     * Partitions a list into consecutive batches of the given size. Only the last batch can be smaller.
+     */
+    private static <T> Stream<List<T>> partition(List<T> items, int batchSize) {
+        return IntStream.range(0, (items.size() + batchSize - 1) / batchSize)
+                .mapToObj(batch -> items.subList(batch * batchSize, Math.min(items.size(), (batch + 1) * batchSize)));
+    }
+
+    /**
+     * Sends push notifications for the offline devices that passed a threshold since the previous run, once per passed
+     * threshold, in batches. If the run fails, the next run evaluates its devices again.
+     */
+    @Override
+    public void run() {
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
+            throw new IllegalStateException("Thresholds cannot be null or empty.");
+        }
+
+        long runStart = startTiming();
+        Instant jobStart = Instant.now(clock);
+        List<Map.Entry<Device, Instant>> snapshot = takeSnapshot(jobStart, thresholdSchedule);
+        Throwable failure = null;
+
+        try {
+            partition(snapshot, batchSize).forEach(batch -> sendNotifications(batch, jobStart, thresholdSchedule));
+        } catch (RuntimeException | Error e) {
+            failure = e;
+
+            throw e;
+        } finally {
+            finishScan(snapshot, jobStart, thresholdSchedule, failure);
+            recordRun(runStart);
+        }
+    }
+
+    @Override
+    public void onDeviceConnect(Device device) {
+        metrics.recordDeviceConnect();
+        forget(device);
+    }
+
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        putOfflineDevice(device, Instant.now(clock));
+        metrics.recordDeviceDisconnect();
+    }
+
+    /**
+     * Configures the thresholds, after which the next run evaluates every offline device, as the crossings of the new
+     * thresholds haven't been scanned. If thresholds have been added after the last one, the devices in the cold set
+     * could pass them, so they're moved back to the offline devices that are evaluated by the runs.
+     *
+     * @param thresholds A list of thresholds that determine when to send notifications.
+     */
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        ThresholdSchedule previousThresholdSchedule = this.thresholdSchedule;
+
+        this.thresholdSchedule = ThresholdSchedule.compile(thresholds);
+        scannedUntil.set(null);
+
+        if (previousThresholdSchedule != null && lastThresholdNanos(thresholdSchedule) > lastThresholdNanos(previousThresholdSchedule)) {
+            coldDeviceSet.getAll().keySet().forEach(this::promote);
+        }
+    }
+
+    private static long lastThresholdNanos(ThresholdSchedule thresholdSchedule) {
+        return thresholdSchedule.getThresholdNanos(thresholdSchedule.size() - 1);
+    }
+
+    /**
+     * Takes a snapshot of the offline devices to evaluate in a run and reports the number of offline devices and, if
+     * the metrics are enabled, how many of them have passed each threshold. Runs that only evaluate threshold crossings
+     * report the latter less often, see {@link OfflineDevicesJobImpl#shouldCountPopulations(Instant)}.
+     *
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     * @return The offline devices with the instant they went offline.
+     */
+    private List<Map.Entry<Device, Instant>> takeSnapshot(Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        Instant scannedUntil = this.scannedUntil.get();
+        boolean scanAll = scannedUntil == null;
+        List<Map.Entry<Device, Instant>> snapshot = scanAll
+                ? new ArrayList<>(offlineDevices.entrySet())
+                : scanThresholdCrossings(scannedUntil, jobStart, thresholdSchedule);
+
+        metrics.recordOfflineDevices(scanAll ? snapshot.size() : offlineDevices.size());
+        metrics.recordDevicesScanned(snapshot.size());
+
+        if (metrics.isEnabled()) {
+            if (scanAll) {
+                populationsCounted.set(jobStart);
+                metrics.recordThresholdPopulations(thresholdSchedule.countPopulations(snapshot.stream()
+                        .map(Map.Entry::getValue)
+                        .collect(Collectors.toList()), jobStart));
+            } else if (shouldCountPopulations(jobStart)) {
+                metrics.recordThresholdPopulations(thresholdSchedule.countPopulations(offlineDevices.values(), jobStart));
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Decides whether a run that only evaluates threshold crossings counts the threshold populations. Counting them
+     * visits every offline device, which would make these runs as expensive as evaluating every offline device, so it's
+     * only done once per {@link OfflineDevicesJobImpl#THRESHOLD_POPULATIONS_INTERVAL}.
+     *
+     * @param jobStart The instant the job calling this function was started.
+     * @return True if the run should count the threshold populations, false if not.
+     */
+    private boolean shouldCountPopulations(Instant jobStart) {
+        Instant previousPopulationsCounted = populationsCounted.get();
+
+        if (previousPopulationsCounted != null && jobStart.isBefore(previousPopulationsCounted.plus(THRESHOLD_POPULATIONS_INTERVAL))) {
+            return false;
+        }
+
+        return populationsCounted.compareAndSet(previousPopulationsCounted, jobStart);
+    }
+
+    /**
+     * Finds the offline devices that passed a threshold since the previous run started, with one disconnect index query
+     * per threshold. A device passes threshold t between the previous run and this one if it went offline at or after
+     * the previous run's start minus t and before this run's start minus t. The devices of a failed run are added as
+     * well.
+     *
+     * @param scannedUntil      The instant the previous completed run was started.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     * @return The offline devices with the instant they went offline.
+     */
+    private List<Map.Entry<Device, Instant>> scanThresholdCrossings(Instant scannedUntil, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        Map<Device, Instant> crossings = new LinkedHashMap<>();
+
+        for (int i = 0; i < thresholdSchedule.size(); i++) {
+            long thresholdNanos = thresholdSchedule.getThresholdNanos(i);
+
+            disconnectIndex.range(scannedUntil.minusNanos(thresholdNanos), jobStart.minusNanos(thresholdNanos))
+                    .forEach(offlineDevice -> crossings.putIfAbsent(offlineDevice.getKey(), offlineDevice.getValue()));
+        }
+
+        for (Iterator<Device> devices = devicesToRescan.iterator(); devices.hasNext(); ) {
+            Device device = devices.next();
+
+            devices.remove();
+            Optional.ofNullable(offlineDevices.get(device))
+                    .ifPresent(deviceOffline -> crossings.putIfAbsent(device, deviceOffline));
+        }
+
+        return new ArrayList<>(crossings.entrySet());
+    }
+
+    /**
+     * Remembers up to which instant the threshold crossings have been scanned once a run has completed. If the run
+     * failed, its devices are scanned again by the next run instead. If the job was reconfigured during the run, the
+     * next run scans every offline device anyway.
+     *
+     * @param snapshot          The offline devices the run evaluated.
+     * @param jobStart          The instant the run was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the run.
+     * @param failure           The failure of the run, or null if it completed normally.
+     */
+    private void finishScan(List<Map.Entry<Device, Instant>> snapshot, Instant jobStart, ThresholdSchedule thresholdSchedule, Throwable failure) {
+        if (failure != null) {
+            snapshot.forEach(offlineDevice -> devicesToRescan.add(offlineDevice.getKey()));
+
+            return;
+        }
+
+        scannedUntil.updateAndGet(previousScannedUntil -> this.thresholdSchedule != thresholdSchedule || previousScannedUntil != null && previousScannedUntil.isAfter(jobStart)
+                ? previousScannedUntil
+                : jobStart);
+    }
+
+    /**
+     * Looks up the last sent notifications for a batch of offline devices, sends notifications for those that passed a
+     * threshold since and retires the ones that were notified for the last threshold already.
+     *
+     * @param batch             The batch of offline devices.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     */
+    private void sendNotifications(List<Map.Entry<Device, Instant>> batch, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        long lookupStart = startTiming();
+        Map<Device, Instant> lastNotifications = pushNotificationService.getLastOfflineNotificationInstants(batch.stream()
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList()));
+
+        recordPhase(JobMetrics.Phase.LOOKUP, lookupStart);
+
+        long decideStart = startTiming();
+        List<Device> devicesToNotify = batch.stream()
+                .filter(offlineDevice -> shouldSendNotification(jobStart, offlineDevice.getValue(), lastNotifications.get(offlineDevice.getKey()), thresholdSchedule))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        recordPhase(JobMetrics.Phase.DECIDE, decideStart);
+        retireNotifiedDevices(batch, devicesToNotify, jobStart, thresholdSchedule);
+
+        if (!devicesToNotify.isEmpty()) {
+            long sendStart = startTiming();
+
+            pushNotificationService.sendOfflineNotifications(devicesToNotify);
+            recordPhase(JobMetrics.Phase.SEND, sendStart);
+            metrics.recordNotificationsSent(devicesToNotify.size());
+        }
+    }
+
+    /**
+     * Moves the devices of a batch that have passed the last threshold and don't need a notification to the cold set,
+     * as they were notified for the last threshold already and no run can notify them again.
+     *
+     * @param batch             The batch of offline devices.
+     * @param devicesToNotify   The devices of the batch that should be notified.
+     * @param jobStart          The instant the job calling this function was started.
+     * @param thresholdSchedule The compiled notification thresholds, as read once by the job calling this function.
+     */
+    private void retireNotifiedDevices(List<Map.Entry<Device, Instant>> batch, List<Device> devicesToNotify, Instant jobStart, ThresholdSchedule thresholdSchedule) {
+        int lastThresholdIndex = thresholdSchedule.size() - 1;
+        Set<Device> notifiedDevices = new HashSet<>(devicesToNotify);
+
+        batch.stream()
+                .filter(offlineDevice -> !notifiedDevices.contains(offlineDevice.getKey()))
+                .filter(offlineDevice -> thresholdSchedule.lastPassedIndex(offlineDevice.getValue(), jobStart) == lastThresholdIndex)
+                .forEach(offlineDevice -> retire(offlineDevice.getKey(), offlineDevice.getValue()));
+    }
+
+    /**
+     * Moves an offline device to the cold set, unless it went offline again in the meantime or the cold set is full. The
+     * move happens while the device's entry is locked, so it can't interleave with a connect or disconnect of the same
+     * device. A device that doesn't fit in the cold set stays with the offline devices, where the runs keep visiting
+     * it without notifying it again.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the device went offline, according to the run.
+     */
+    private void retire(Device device, Instant deviceOffline) {
+        offlineDevices.computeIfPresent(device, (ignored, currentDeviceOffline) -> {
+            if (!currentDeviceOffline.equals(deviceOffline) || !coldDeviceSet.put(device, currentDeviceOffline)) {
+                return currentDeviceOffline;
+            }
+
+            index(device, currentDeviceOffline, null);
+
+            return null;
+        });
+    }
+
+    /**
+     * Moves a device from the cold set back to the offline devices that are evaluated by the runs, if it's in the cold
+     * set.
+     *
+     * @param device The device.
+     */
+    private void promote(Device device) {
+        offlineDevices.compute(device, (ignored, deviceOffline) -> {
+            Instant coldDeviceOffline = coldDeviceSet.remove(device);
+
+            if (deviceOffline != null) {
+                return deviceOffline;
+            }
+
+            index(device, null, coldDeviceOffline);
+
+            return coldDeviceOffline;
+        });
+    }
+
+    /**
+     * Adds or replaces an offline device, removing it from the cold set and updating the disconnect index while its
+     * entry is locked.
+     *
+     * @param device        The device.
+     * @param deviceOffline The instant the device went offline.
+     */
+    private void putOfflineDevice(Device device, Instant deviceOffline) {
+        offlineDevices.compute(device, (ignored, currentDeviceOffline) -> {
+            coldDeviceSet.remove(device);
+            index(device, currentDeviceOffline, deviceOffline);
+
+            return deviceOffline;
+        });
+    }
+
+    /**
+     * Removes a device from the offline devices, the cold set and the disconnect index, while its entry is locked.
+     *
+     * @param device The device.
+     */
+    private void forget(Device device) {
+        offlineDevices.compute(device, (ignored, deviceOffline) -> {
+            coldDeviceSet.remove(device);
+            index(device, deviceOffline, null);
+
+            return null;
+        });
+    }
+
+    /**
+     * Moves a device in the disconnect index from the instant it went offline before to the instant it went offline
+     * now. Should only be called while the device's entry is locked.
+     *
+     * @param device                The device.
+     * @param previousDeviceOffline The instant the device went offline before, or null if it wasn't indexed.
+     * @param deviceOffline         The instant the device went offline now, or null to remove it from the index.
+     */
+    private void index(Device device, Instant previousDeviceOffline, Instant deviceOffline) {
+        if (Objects.equals(previousDeviceOffline, deviceOffline)) {
+            return;
+        }
+
+        if (previousDeviceOffline != null) {
+            disconnectIndex.remove(device, previousDeviceOffline);
+        }
+
+        if (deviceOffline != null) {
+            disconnectIndex.add(device, deviceOffline);
+        }
+    }
+
+    /**
+     * Adds a page of offline devices to the job's state and its disconnect index.
+     *
+     * @param page The page of offline devices.
+     */
+    private void loadOfflineDevices(OfflineDevicePage page) {
+        page.getDevices().forEach(this::putOfflineDevice);
+    }
+
+    /**
+     * @return The current value of the high-resolution time source if the metrics are enabled, 0 if not.
+     */
+    private long startTiming() {
+        return metrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reports the time spent in a phase, if the metrics are enabled.
+     *
+     * @param phase The phase.
+     * @param start The value of {@link OfflineDevicesJobImpl#startTiming()} when the phase started.
+     */
+    private void recordPhase(JobMetrics.Phase phase, long start) {
+        if (metrics.isEnabled()) {
+            metrics.recordPhase(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reports the duration of a run, if the metrics are enabled.
+     *
+     * @param start The value of {@link OfflineDevicesJobImpl#startTiming()} when the run started.
+     */
+    private void recordRun(long start) {
+        if (metrics.isEnabled()) {
+            metrics.recordRun(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ingestion;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+
+/**
+ * A device connecting or disconnecting, as received by the ingestion stage.
+ */
+final class DeviceEvent {
+
+    /**
+     * The kinds of events.
+     */
+    enum Type {
+        CONNECT,
+        DISCONNECT
+    }
+
+    private final Device device;
+    private final Type type;
+    private final Instant instant;
+
+    /**
+     * @param device  The device.
+     * @param type    Whether the device connected or disconnected.
+     * @param instant The instant the event was received.
+     */
+    DeviceEvent(Device device, Type type, Instant instant) {
+        this.device = device;
+        this.type = type;
+        this.instant = instant;
+    }
+
+    Device getDevice() {
+        return device;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    Instant getInstant() {
+        return instant;
+    }
+}
@@ -0,0 +1,150 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ingestion;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Holds back the events of a device until no new events for it have been received during the debounce window, then
+ * releases their net effect. The state that was last released is remembered per device. A device that ends the window
+ * in that state, such as one that disconnected and reconnected, releases nothing, so connect and disconnect pairs of
+ * flapping devices cancel each other out. A device that ends the window in another state releases only its last event,
+ * even if its events didn't strictly alternate. A device that never released an event before releases its last event,
+ * as the state the job has for it is unknown.
+ * <p>
+ * A device that keeps flapping faster than the debounce window would never be quiet long enough, so its events are
+ * held for at most the maximum hold after the first of them. Its net effect is released then, and its next events
+ * start a new hold.
+ * <p>
+ * Devices are kept in the order of their last event and in the order of their first event, so releasing only visits
+ * the devices whose window or hold has ended. The last released state is kept for every device that ever released an
+ * event, so it takes memory in proportion to the devices that connected or disconnected. Not thread-safe: meant to be
+ * used by the single thread draining the ring buffer.
+ */
+final class EventCoalescer {
+
+    private final Duration debounceWindow;
+    private final Duration maxHold;
+    private final Map<Device, PendingEvents> pendingEvents = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Device, PendingEvents> pendingEventsByFirstEvent = new LinkedHashMap<>();
+    private final Map<Device, DeviceEvent.Type> releasedTypes = new HashMap<>();
+
+    /**
+     * @param debounceWindow The time without new events after which the events of a device are released.
+     * @param maxHold        The time after the first event of a device after which its events are released, even if
+     *                       new events keep coming in. Cannot be shorter than the debounce window.
+     */
+    EventCoalescer(Duration debounceWindow, Duration maxHold) {
+        if (debounceWindow == null || debounceWindow.isNegative()) {
+            throw new IllegalArgumentException("Debounce window cannot be null or negative.");
+        }
+
+        if (maxHold == null || maxHold.compareTo(debounceWindow) < 0) {
+            throw new IllegalArgumentException("Maximum hold cannot be null or shorter than the debounce window.");
+        }
+
+        this.debounceWindow = debounceWindow;
+        this.maxHold = maxHold;
+    }
+
+    /**
+     * Holds back an event, restarting the debounce window of its device.
+     *
+     * @param event The event.
+     */
+    void add(DeviceEvent event) {
+        PendingEvents pending = pendingEvents.get(event.getDevice());
+
+        if (pending == null) {
+            pending = new PendingEvents(event);
+            pendingEvents.put(event.getDevice(), pending);
+            pendingEventsByFirstEvent.put(event.getDevice(), pending);
+        } else {
+            pending.add(event);
+        }
+    }
+
+    /**
+     * Releases the net effect of the devices whose debounce window or maximum hold has ended.
+     *
+     * @param now      The current instant.
+     * @param released The consumer of the released events.
+     * @return The number of events that were coalesced away.
+     */
+    int release(Instant now, Consumer<DeviceEvent> released) {
+        int coalesced = 0;
+
+        for (Iterator<PendingEvents> iterator = pendingEvents.values().iterator(); iterator.hasNext(); ) {
+            PendingEvents pending = iterator.next();
+
+            if (pending.last.getInstant().plus(debounceWindow).isAfter(now)) {
+                break;
+            }
+
+            iterator.remove();
+            pendingEventsByFirstEvent.remove(pending.first.getDevice());
+            coalesced += release(pending, released);
+        }
+
+        for (Iterator<PendingEvents> iterator = pendingEventsByFirstEvent.values().iterator(); iterator.hasNext(); ) {
+            PendingEvents pending = iterator.next();
+
+            if (pending.first.getInstant().plus(maxHold).isAfter(now)) {
+                break;
+            }
+
+            iterator.remove();
+            pendingEvents.remove(pending.first.getDevice());
+            coalesced += release(pending, released);
+        }
+
+        return coalesced;
+    }
+
+    private int release(PendingEvents pending, Consumer<DeviceEvent> released) {
+        DeviceEvent last = pending.last;
+
+        if (releasedTypes.get(last.getDevice()) == last.getType()) {
+            return pending.count;
+        }
+
+        releasedTypes.put(last.getDevice(), last.getType());
+        released.accept(last);
+
+        return pending.count - 1;
+    }
+
+    /**
+     * @return The number of devices with events that are being held back.
+     */
+    int size() {
+        return pendingEvents.size();
+    }
+
+    /**
+     * The first and last of the events a device has received within its debounce window.
+     */
+    private static class PendingEvents {
+
+        private final DeviceEvent first;
+        private DeviceEvent last;
+        private int count;
+
+        private PendingEvents(DeviceEvent first) {
+            this.first = first;
+            this.last = first;
+            this.count = 1;
+        }
+
+        private void add(DeviceEvent event) {
+            last = event;
+            count++;
+        }
+    }
+}
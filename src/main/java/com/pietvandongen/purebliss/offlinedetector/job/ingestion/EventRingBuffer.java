@@ -0,0 +1,105 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ingestion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer. Producers claim a slot by moving the tail with a
+ * compare-and-set and then publish their element into it; the consumer takes elements in order, clears their slots and
+ * only then moves the head, which frees the slots for the producers.
+ * <p>
+ * The consumer stops at a claimed slot that hasn't been published yet, so elements are always consumed in the order
+ * their slots were claimed.
+ *
+ * @param <E> The type of the elements.
+ */
+final class EventRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of elements in the buffer, which should be a positive power of two.
+     */
+    EventRingBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity should be a positive power of two.");
+        }
+
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds an element to the buffer, unless it's full. Can be called by any thread.
+     *
+     * @param element The element, which cannot be null.
+     * @return True if the element was added, false if the buffer was full.
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new IllegalArgumentException("Element cannot be null.");
+        }
+
+        long claimedTail;
+
+        do {
+            claimedTail = tail.get();
+
+            if (claimedTail - head.get() >= slots.length()) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimedTail, claimedTail + 1));
+
+        slots.set((int) claimedTail & mask, element);
+
+        return true;
+    }
+
+    /**
+     * Passes the published elements to a consumer, oldest first. Should only be called by one thread at a time.
+     *
+     * @param consumer The consumer of the elements.
+     * @param limit    The maximum number of elements to take.
+     * @return The number of elements taken.
+     */
+    int drainTo(Consumer<? super E> consumer, int limit) {
+        long currentHead = head.get();
+        int drained = 0;
+
+        while (drained < limit) {
+            int index = (int) currentHead & mask;
+            E element = slots.get(index);
+
+            if (element == null) {
+                break;
+            }
+
+            slots.lazySet(index, null);
+            head.lazySet(++currentHead);
+            drained++;
+            consumer.accept(element);
+        }
+
+        return drained;
+    }
+
+    /**
+     * @return The number of elements that have been claimed but not taken yet.
+     */
+    int size() {
+        long currentHead = head.get();
+
+        return (int) Math.max(0, Math.min(slots.length(), tail.get() - currentHead));
+    }
+
+    /**
+     * @return The maximum number of elements in the buffer.
+     */
+    int capacity() {
+        return slots.length();
+    }
+}
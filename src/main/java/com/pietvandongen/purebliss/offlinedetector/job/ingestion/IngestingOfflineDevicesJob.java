@@ -0,0 +1,200 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ingestion;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts an ingestion stage in front of a job. Connect and disconnect events are only added to a lock-free ring buffer
+ * by the threads that deliver them; a single thread at a time drains the buffer in batches, coalesces the events of
+ * flapping devices and passes the remaining events on to the job. This keeps the job's own state free of contention
+ * from event threads and spares it the churn of devices that reconnect within the debounce window.
+ * <p>
+ * Events reach the job once their device has been quiet for the debounce window, so jobs that note the instant of a
+ * disconnect themselves see it up to the debounce window plus the drain interval late. The buffer is drained by
+ * {@link IngestingOfflineDevicesJob#drain()}, which is called before every run and can be scheduled with
+ * {@link IngestingOfflineDevicesJob#scheduleDrain(ScheduledExecutorService, Duration)}. A device that keeps flapping
+ * faster than the debounce window has its net state passed on once its events have been held for the maximum hold. A
+ * producer that finds the buffer full drains it itself, or waits for the thread that is draining it.
+ */
+public class IngestingOfflineDevicesJob implements OfflineDevicesJob {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final Duration DEFAULT_DEBOUNCE_WINDOW = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_MAX_HOLD = Duration.ofMinutes(1);
+
+    private final OfflineDevicesJob job;
+    private final Clock clock;
+    private final EventRingBuffer<DeviceEvent> events;
+    private final EventCoalescer coalescer;
+    private final JobMetrics metrics;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Puts an ingestion stage with the default capacity, debounce window and maximum hold in front of a job.
+     *
+     * @param job The job to pass the events on to.
+     */
+    public IngestingOfflineDevicesJob(OfflineDevicesJob job) {
+        this(job, Clock.systemUTC(), DEFAULT_CAPACITY, DEFAULT_DEBOUNCE_WINDOW, JobMetrics.noOp());
+    }
+
+    /**
+     * Puts an ingestion stage with the default maximum hold in front of a job.
+     *
+     * @param job            The job to pass the events on to.
+     * @param clock          The clock to time the events with.
+     * @param capacity       The maximum number of events waiting to be drained, which should be a power of two.
+     * @param debounceWindow The time a device should be quiet before its events are passed on.
+     * @param metrics        The metrics to report the queue depth and coalesced events to.
+     */
+    public IngestingOfflineDevicesJob(OfflineDevicesJob job, Clock clock, int capacity, Duration debounceWindow, JobMetrics metrics) {
+        this(job, clock, capacity, debounceWindow, DEFAULT_MAX_HOLD, metrics);
+    }
+
+    /**
+     * Puts an ingestion stage in front of a job.
+     *
+     * @param job            The job to pass the events on to.
+     * @param clock          The clock to time the events with.
+     * @param capacity       The maximum number of events waiting to be drained, which should be a power of two.
+     * @param debounceWindow The time a device should be quiet before its events are passed on.
+     * @param maxHold        The maximum time the events of a device are held back, which cannot be shorter than the
+     *                       debounce window.
+     * @param metrics        The metrics to report the queue depth and coalesced events to.
+     */
+    public IngestingOfflineDevicesJob(OfflineDevicesJob job, Clock clock, int capacity, Duration debounceWindow, Duration maxHold, JobMetrics metrics) {
+        if (job == null || clock == null || metrics == null) {
+            throw new IllegalArgumentException("Job, clock nor metrics can be null.");
+        }
+
+        this.job = job;
+        this.clock = clock;
+        this.events = new EventRingBuffer<>(capacity);
+        this.coalescer = new EventCoalescer(debounceWindow, maxHold);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Moves the waiting events into the coalescer and passes on the events of the devices that have been quiet for the
+     * debounce window. Returns right away if another thread is already draining.
+     *
+     * @return True if this thread drained the buffer, false if another thread was draining it.
+     */
+    public boolean drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            metrics.recordEventQueueDepth(events.size());
+            events.drainTo(coalescer::add, events.capacity());
+
+            int coalesced = coalescer.release(clock.instant(), this::passOn);
+
+            if (coalesced > 0) {
+                metrics.recordEventsCoalesced(coalesced);
+            }
+
+            return true;
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Drains the buffer at a fixed rate on the given scheduler.
+     *
+     * @param scheduler The scheduler.
+     * @param interval  The time between drains.
+     * @return The scheduled drain, which can be cancelled.
+     */
+    public ScheduledFuture<?> scheduleDrain(ScheduledExecutorService scheduler, Duration interval) {
+        return scheduler.scheduleAtFixedRate(this::drain, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The number of events waiting to be drained.
+     */
+    public int getQueueDepth() {
+        return events.size();
+    }
+
+    /**
+     * @return The number of devices with events that are held back until their debounce window ends. Only accurate
+     * when read by the thread that drains.
+     */
+    int getPendingDeviceCount() {
+        return coalescer.size();
+    }
+
+    /**
+     * Drains the waiting events and runs the job.
+     */
+    @Override
+    public void run() {
+        drain();
+        job.run();
+    }
+
+    /**
+     * Drains the waiting events and runs the job on the given executor.
+     */
+    @Override
+    public CompletableFuture<Void> runAsync(Executor executor) {
+        drain();
+
+        return job.runAsync(executor);
+    }
+
+    @Override
+    public void onDeviceConnect(Device device) {
+        ingest(new DeviceEvent(device, DeviceEvent.Type.CONNECT, clock.instant()));
+    }
+
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        ingest(new DeviceEvent(device, DeviceEvent.Type.DISCONNECT, clock.instant()));
+    }
+
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        job.onConfigurationUpdate(thresholds);
+    }
+
+    /**
+     * Adds an event to the buffer, draining it first if it's full.
+     *
+     * @param event The event.
+     */
+    private void ingest(DeviceEvent event) {
+        while (!events.offer(event)) {
+            if (!drain()) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Passes an event on to the job.
+     *
+     * @param event The event.
+     */
+    private void passOn(DeviceEvent event) {
+        if (event.getType() == DeviceEvent.Type.CONNECT) {
+            job.onDeviceConnect(event.getDevice());
+        } else {
+            job.onDeviceDisconnect(event.getDevice());
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -21,7 +22,7 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
     private final PushNotificationService pushNotificationService;
     private final Map<Device, Instant> offlineDevices;
 
-    private List<Duration> thresholds = new ArrayList<>();
+    private volatile List<Duration> thresholds = Collections.emptyList();
 
     OfflineDevicesJobImpl(
             Clock clock,
@@ -40,6 +41,8 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
 
     @Override
     public void run() {
+        List<Duration> thresholds = this.thresholds;
+
         if (thresholds == null || thresholds.isEmpty()) {
             throw new IllegalStateException("Thresholds cannot be null or empty.");
         }
@@ -132,6 +135,6 @@ public class OfflineDevicesJobImpl implements OfflineDevicesJob {
             throw new IllegalArgumentException("There should be at least 1 threshold.");
         }
 
-        this.thresholds = thresholds;
+        this.thresholds = Collections.unmodifiableList(new ArrayList<>(thresholds));
     }
 }
@@ -0,0 +1,166 @@
+package com.pietvandongen.purebliss.offlinedetector.job.outage;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stands between a job and the push notification service and holds back the notifications of devices that are a
+ * member of an outage. The held back notifications are sent by {@link AggregatingPushNotificationService#flush()} as a
+ * single outage notification per outage, and count as the devices' last notifications in the meantime, so the job
+ * doesn't send them twice. The notifications of other devices are passed on right away.
+ */
+class AggregatingPushNotificationService implements PushNotificationService {
+
+    private final PushNotificationService pushNotificationService;
+    private final OutageDetector outageDetector;
+    private final Clock clock;
+    private final Map<Device, HeldNotification> heldNotifications = new ConcurrentHashMap<>();
+
+    /**
+     * @param pushNotificationService The push notification service to pass the notifications on to.
+     * @param outageDetector          The detector that knows which devices are a member of an outage.
+     * @param clock                   The clock to timestamp the held back notifications with.
+     */
+    AggregatingPushNotificationService(PushNotificationService pushNotificationService, OutageDetector outageDetector, Clock clock) {
+        this.pushNotificationService = pushNotificationService;
+        this.outageDetector = outageDetector;
+        this.clock = clock;
+    }
+
+    @Override
+    public void sendOfflineNotification(Device device) {
+        if (!hold(device)) {
+            pushNotificationService.sendOfflineNotification(device);
+        }
+    }
+
+    @Override
+    public void sendOfflineNotifications(Collection<Device> devices) {
+        List<Device> notHeld = holdAll(devices);
+
+        if (!notHeld.isEmpty()) {
+            pushNotificationService.sendOfflineNotifications(notHeld);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendOfflineNotificationsAsync(Collection<Device> devices) {
+        List<Device> notHeld = holdAll(devices);
+
+        return notHeld.isEmpty() ? CompletableFuture.completedFuture(null) : pushNotificationService.sendOfflineNotificationsAsync(notHeld);
+    }
+
+    @Override
+    public void sendOutageNotification(String group, Instant outageStart, Collection<Device> devices) {
+        pushNotificationService.sendOutageNotification(group, outageStart, devices);
+    }
+
+    @Override
+    public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+        HeldNotification heldNotification = heldNotifications.get(device);
+
+        return heldNotification != null ? Optional.of(heldNotification.instant) : pushNotificationService.getLastOfflineNotificationInstant(device);
+    }
+
+    @Override
+    public Map<Device, Instant> getLastOfflineNotificationInstants(Collection<Device> devices) {
+        Map<Device, Instant> lastOfflineNotificationInstants = new HashMap<>(pushNotificationService.getLastOfflineNotificationInstants(devices));
+
+        devices.forEach(device -> Optional.ofNullable(heldNotifications.get(device))
+                .ifPresent(heldNotification -> lastOfflineNotificationInstants.put(device, heldNotification.instant)));
+
+        return lastOfflineNotificationInstants;
+    }
+
+    /**
+     * Sends the held back notifications, with a single outage notification per outage. If sending one fails, the
+     * notifications of the outages that haven't been sent yet are held back again until the next flush and the failure
+     * is thrown.
+     *
+     * @return The number of outage notifications sent.
+     */
+    int flush() {
+        Map<Outage, List<Device>> devicesPerOutage = new LinkedHashMap<>();
+        List<Map.Entry<Device, HeldNotification>> flushed = new ArrayList<>(heldNotifications.entrySet());
+
+        flushed.forEach(entry -> {
+            if (heldNotifications.remove(entry.getKey(), entry.getValue())) {
+                devicesPerOutage.computeIfAbsent(entry.getValue().outage, ignored -> new ArrayList<>()).add(entry.getKey());
+            }
+        });
+
+        Set<Outage> sentOutages = new HashSet<>();
+
+        try {
+            devicesPerOutage.forEach((outage, devices) -> {
+                pushNotificationService.sendOutageNotification(outage.getGroup(), outage.getStart(), devices);
+                sentOutages.add(outage);
+            });
+        } catch (RuntimeException e) {
+            flushed.stream()
+                    .filter(entry -> devicesPerOutage.containsKey(entry.getValue().outage) && !sentOutages.contains(entry.getValue().outage))
+                    .forEach(entry -> heldNotifications.putIfAbsent(entry.getKey(), entry.getValue()));
+
+            throw e;
+        }
+
+        return sentOutages.size();
+    }
+
+    private List<Device> holdAll(Collection<Device> devices) {
+        List<Device> notHeld = new ArrayList<>(devices.size());
+
+        devices.forEach(device -> {
+            if (!hold(device)) {
+                notHeld.add(device);
+            }
+        });
+
+        return notHeld;
+    }
+
+    /**
+     * Holds back the notification of a device if it's a member of an outage.
+     *
+     * @return True if the notification was held back, false if it should be passed on.
+     */
+    private boolean hold(Device device) {
+        Outage outage = outageDetector.getOutage(device);
+
+        if (outage == null) {
+            return false;
+        }
+
+        heldNotifications.put(device, new HeldNotification(outage, clock.instant()));
+
+        return true;
+    }
+
+    /**
+     * A notification held back for an outage, with the instant the job sent it.
+     */
+    private static class HeldNotification {
+
+        private final Outage outage;
+        private final Instant instant;
+
+        private HeldNotification(Outage outage, Instant instant) {
+            this.outage = outage;
+            this.instant = instant;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.pietvandongen.purebliss.offlinedetector.job.outage;
+
+import java.time.Instant;
+
+/**
+ * An outage of a group of devices, which lasts from the instant it was detected until the disconnect rate of the group
+ * drops below the threshold again.
+ */
+final class Outage {
+
+    private final String group;
+    private final Instant start;
+
+    Outage(String group, Instant start) {
+        this.group = group;
+        this.start = start;
+    }
+
+    String getGroup() {
+        return group;
+    }
+
+    /**
+     * @return The instant the outage was detected.
+     */
+    Instant getStart() {
+        return start;
+    }
+}
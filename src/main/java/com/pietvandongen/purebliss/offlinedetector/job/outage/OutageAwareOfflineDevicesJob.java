@@ -0,0 +1,137 @@
+package com.pietvandongen.purebliss.offlinedetector.job.outage;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Puts outage detection around a job. The disconnects of every group of devices are counted in a sliding window and
+ * once a group's count reaches the threshold, its disconnected devices are considered part of an outage. The job keeps
+ * deciding per device when a notification should be sent, but the notifications of outage members are held back and
+ * sent as a single outage notification per outage at the end of every run, so a mass outage costs the push
+ * notification service one call per run instead of one per device. Devices that disconnect after the outage cleared
+ * are notified on their own again.
+ *
+ * @see PushNotificationService#sendOutageNotification(String, java.time.Instant, java.util.Collection)
+ */
+public class OutageAwareOfflineDevicesJob implements OfflineDevicesJob {
+
+    public static final String ALL_DEVICES = "all";
+
+    private final OfflineDevicesJob job;
+    private final Clock clock;
+    private final OutageDetector outageDetector;
+    private final AggregatingPushNotificationService aggregatingPushNotificationService;
+
+    /**
+     * Puts outage detection around a job, counting the disconnects of all devices together.
+     *
+     * @param jobFactory              The factory that creates the job with the push notification service it should
+     *                                send its notifications to.
+     * @param pushNotificationService The push notification service.
+     * @param window                  The time within which disconnects are counted.
+     * @param threshold               The number of devices that should disconnect within the window to start an
+     *                                outage.
+     */
+    public OutageAwareOfflineDevicesJob(Function<PushNotificationService, OfflineDevicesJob> jobFactory, PushNotificationService pushNotificationService, Duration window, int threshold) {
+        this(jobFactory, pushNotificationService, Clock.systemUTC(), window, threshold, device -> ALL_DEVICES);
+    }
+
+    /**
+     * Puts outage detection around a job.
+     *
+     * @param jobFactory              The factory that creates the job with the push notification service it should
+     *                                send its notifications to.
+     * @param pushNotificationService The push notification service.
+     * @param clock                   The clock to time the disconnects with.
+     * @param window                  The time within which disconnects are counted.
+     * @param threshold               The number of devices of a group that should disconnect within the window to
+     *                                start an outage of the group.
+     * @param grouping                The function that determines the group of a device.
+     */
+    public OutageAwareOfflineDevicesJob(
+            Function<PushNotificationService, OfflineDevicesJob> jobFactory,
+            PushNotificationService pushNotificationService,
+            Clock clock,
+            Duration window,
+            int threshold,
+            Function<Device, String> grouping
+    ) {
+        if (jobFactory == null || pushNotificationService == null || clock == null) {
+            throw new IllegalArgumentException("Job factory, push notification service nor clock can be null.");
+        }
+
+        this.clock = clock;
+        this.outageDetector = new OutageDetector(grouping, window, threshold);
+        this.aggregatingPushNotificationService = new AggregatingPushNotificationService(pushNotificationService, outageDetector, clock);
+        this.job = jobFactory.apply(aggregatingPushNotificationService);
+
+        if (this.job == null) {
+            throw new IllegalArgumentException("Job factory cannot create a null job.");
+        }
+    }
+
+    /**
+     * Clears the outages that are over, runs the job and sends an outage notification for every outage the job
+     * notified devices of, even if the run failed.
+     */
+    @Override
+    public void run() {
+        outageDetector.refresh(clock.instant());
+
+        try {
+            job.run();
+        } finally {
+            aggregatingPushNotificationService.flush();
+        }
+    }
+
+    /**
+     * Clears the outages that are over, runs the job on the given executor and sends an outage notification for every
+     * outage the job notified devices of once the run completed, even if it failed.
+     */
+    @Override
+    public CompletableFuture<Void> runAsync(Executor executor) {
+        outageDetector.refresh(clock.instant());
+
+        return job.runAsync(executor).whenComplete((ignored, failure) -> aggregatingPushNotificationService.flush());
+    }
+
+    /**
+     * Stops counting the device as disconnected and passes the event on to the job.
+     */
+    @Override
+    public void onDeviceConnect(Device device) {
+        outageDetector.connect(device);
+        job.onDeviceConnect(device);
+    }
+
+    /**
+     * Counts the disconnect, which may start an outage, and passes the event on to the job.
+     */
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        outageDetector.disconnect(device, clock.instant());
+        job.onDeviceDisconnect(device);
+    }
+
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        job.onConfigurationUpdate(thresholds);
+    }
+
+    /**
+     * @param group The group.
+     * @return True if the group is suffering an outage, false if not.
+     */
+    public boolean isInOutage(String group) {
+        return outageDetector.getActiveOutage(group) != null;
+    }
+}
@@ -0,0 +1,225 @@
+package com.pietvandongen.purebliss.offlinedetector.job.outage;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Detects outages by counting, per group of devices, the devices that disconnected within a sliding window and haven't
+ * reconnected since. The window is split into a fixed number of buckets that are reused as it slides, so counting
+ * takes constant memory per group apart from the devices themselves. As soon as the count of a group reaches the
+ * threshold, an outage starts and the devices in the window become its members, followed by every device of the group
+ * that disconnects while it lasts. The outage clears once the count drops below the threshold again.
+ * <p>
+ * A device stays a member of its outage until it reconnects, also after the outage cleared, so it isn't notified on
+ * its own for the later thresholds it passes. Devices that disconnect after the outage cleared are handled on their
+ * own again.
+ */
+class OutageDetector {
+
+    static final int BUCKET_COUNT = 10;
+
+    private final Function<Device, String> grouping;
+    private final long bucketNanos;
+    private final int threshold;
+    private final Map<String, SlidingWindow> windows = new HashMap<>();
+    private final Map<String, Outage> outages = new HashMap<>();
+    private final Map<Device, Outage> members = new ConcurrentHashMap<>();
+
+    /**
+     * @param grouping  The function that determines the group of a device.
+     * @param window    The time within which the disconnects of a group are counted.
+     * @param threshold The number of devices of a group that should disconnect within the window to start an outage.
+     */
+    OutageDetector(Function<Device, String> grouping, Duration window, int threshold) {
+        if (grouping == null || window == null) {
+            throw new IllegalArgumentException("Grouping nor window can be null.");
+        }
+
+        if (window.toNanos() < BUCKET_COUNT || threshold < 1) {
+            throw new IllegalArgumentException("The window should be at least " + BUCKET_COUNT + " nanoseconds and the threshold at least 1.");
+        }
+
+        this.grouping = grouping;
+        this.bucketNanos = window.toNanos() / BUCKET_COUNT;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Counts the disconnect of a device and starts an outage of its group if the count reaches the threshold.
+     *
+     * @param device The disconnecting device.
+     * @param now    The current instant.
+     * @return The active outage the device became a member of, or null if its group has no active outage.
+     */
+    synchronized Outage disconnect(Device device, Instant now) {
+        String group = grouping.apply(device);
+        long bucket = bucket(now);
+        SlidingWindow window = windows.computeIfAbsent(group, ignored -> new SlidingWindow());
+        Outage outage = outages.get(group);
+
+        window.add(device, bucket);
+
+        if (outage == null && window.count(bucket) >= threshold) {
+            Outage startedOutage = new Outage(group, now);
+
+            outages.put(group, startedOutage);
+            window.devices(bucket).forEach(windowDevice -> members.put(windowDevice, startedOutage));
+
+            return startedOutage;
+        }
+
+        if (outage != null) {
+            members.put(device, outage);
+        }
+
+        return outage;
+    }
+
+    /**
+     * Stops counting a device and removes it from its outage, if it's a member of one.
+     *
+     * @param device The connecting device.
+     */
+    synchronized void connect(Device device) {
+        SlidingWindow window = windows.get(grouping.apply(device));
+
+        if (window != null) {
+            window.remove(device);
+        }
+
+        members.remove(device);
+    }
+
+    /**
+     * Clears the outages of the groups whose count dropped below the threshold, empties the buckets that slid out of
+     * the window and forgets the groups without devices in their window.
+     *
+     * @param now The current instant.
+     */
+    synchronized void refresh(Instant now) {
+        long bucket = bucket(now);
+
+        for (Iterator<Map.Entry<String, SlidingWindow>> entries = windows.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, SlidingWindow> entry = entries.next();
+
+            entry.getValue().expire(bucket);
+
+            int count = entry.getValue().count(bucket);
+
+            if (count < threshold) {
+                outages.remove(entry.getKey());
+            }
+
+            if (count == 0) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * @param device The device.
+     * @return The outage the device is a member of, or null if it isn't.
+     */
+    Outage getOutage(Device device) {
+        return members.get(device);
+    }
+
+    /**
+     * @param group The group.
+     * @return The active outage of the group, or null if it has none.
+     */
+    synchronized Outage getActiveOutage(String group) {
+        return outages.get(group);
+    }
+
+    private long bucket(Instant now) {
+        return Math.floorDiv(ThresholdSchedule.nanosBetween(Instant.EPOCH, now), bucketNanos);
+    }
+
+    /**
+     * The devices of a group that disconnected within the window, in a ring of buckets.
+     */
+    private static class SlidingWindow {
+
+        private final long[] buckets = new long[BUCKET_COUNT];
+        private final List<Set<Device>> devices = new ArrayList<>(BUCKET_COUNT);
+
+        private SlidingWindow() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = Long.MIN_VALUE;
+                devices.add(new LinkedHashSet<>());
+            }
+        }
+
+        private void add(Device device, long bucket) {
+            int slot = (int) Math.floorMod(bucket, (long) BUCKET_COUNT);
+
+            remove(device);
+
+            if (buckets[slot] != bucket) {
+                buckets[slot] = bucket;
+                devices.get(slot).clear();
+            }
+
+            devices.get(slot).add(device);
+        }
+
+        /**
+         * Empties the buckets that slid out of the window, so their devices aren't kept until the slot is reused.
+         */
+        private void expire(long bucket) {
+            for (int slot = 0; slot < BUCKET_COUNT; slot++) {
+                if (buckets[slot] != Long.MIN_VALUE && !isLive(slot, bucket)) {
+                    buckets[slot] = Long.MIN_VALUE;
+                    devices.get(slot).clear();
+                }
+            }
+        }
+
+        private void remove(Device device) {
+            for (Set<Device> bucketDevices : devices) {
+                bucketDevices.remove(device);
+            }
+        }
+
+        private int count(long bucket) {
+            int count = 0;
+
+            for (int slot = 0; slot < BUCKET_COUNT; slot++) {
+                if (isLive(slot, bucket)) {
+                    count += devices.get(slot).size();
+                }
+            }
+
+            return count;
+        }
+
+        private Set<Device> devices(long bucket) {
+            Set<Device> windowDevices = new LinkedHashSet<>();
+
+            for (int slot = 0; slot < BUCKET_COUNT; slot++) {
+                if (isLive(slot, bucket)) {
+                    windowDevices.addAll(devices.get(slot));
+                }
+            }
+
+            return windowDevices;
+        }
+
+        private boolean isLive(int slot, long bucket) {
+            return buckets[slot] != Long.MIN_VALUE && buckets[slot] > bucket - BUCKET_COUNT && buckets[slot] <= bucket;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.pietvandongen.purebliss.offlinedetector.job.primitive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * A durable copy of an {@link OfflineDeviceTable} on the local file system, so a restarted job can recover its offline
+ * devices and their last sent notifications without loading them from the device and push notification services.
+ * <p>
+ * The store consists of a compacted snapshot of the table, which is read back through memory-mapped buffers, and
+ * append-only logs of the changes made since. Every snapshot starts a new generation of the log, so changes made while
+ * a snapshot is being written end up in the next generation and recovery replays every generation since the snapshot.
+ * <p>
+ * Changes are applied to the table and appended to the log while the store is locked, so the log is in the same order
+ * as the table. Changes are not forced to the storage device one by one: they survive a crash of the process, but not
+ * necessarily of the machine. Snapshots are forced before they replace the previous one.
+ */
+class OfflineDeviceStore implements Closeable {
+
+    private static final long MAGIC = 0x4F46464C494E4531L;
+    private static final int HEADER_BYTES = 3 * Long.BYTES;
+    private static final int SNAPSHOT_ENTRY_BYTES = 4 * Long.BYTES;
+    private static final int LOG_ENTRY_BYTES = 1 + 4 * Long.BYTES;
+    private static final int MAXIMUM_MAPPED_ENTRIES = Integer.MAX_VALUE / LOG_ENTRY_BYTES;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte NOTIFICATION = 3;
+    private static final String SNAPSHOT_FILE = "offline-devices.snapshot";
+    private static final String TEMPORARY_SNAPSHOT_FILE = "offline-devices.snapshot.tmp";
+
+    private final Path directory;
+    private final long compactionThreshold;
+    private final ByteBuffer logEntry = ByteBuffer.allocate(LOG_ENTRY_BYTES);
+    private final Object snapshotLock = new Object();
+
+    private long generation;
+    private FileChannel log;
+    private long logEntryCount;
+    private long lastEventMillis = Long.MIN_VALUE;
+
+    /**
+     * Creates a store in the given directory, which is created if it doesn't exist yet.
+     *
+     * @param directory           The directory to keep the snapshot and logs in.
+     * @param compactionThreshold The number of changes after which the log should be compacted into a new snapshot.
+     */
+    OfflineDeviceStore(Path directory, long compactionThreshold) {
+        if (directory == null || compactionThreshold < 1) {
+            throw new IllegalArgumentException("Directory cannot be null and compaction threshold should be at least 1.");
+        }
+
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Recovers a table from the latest snapshot and the logs written since. A log entry that was only partially
+     * written is ignored.
+     *
+     * @param storage Where the recovered table should keep its entries.
+     * @return The recovered table, or empty if the store doesn't contain a snapshot.
+     */
+    synchronized Optional<OfflineDeviceTable> recover(OfflineDeviceTable.Storage storage) {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+
+        if (!Files.exists(snapshot)) {
+            return Optional.empty();
+        }
+
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+
+            if (header.getLong() != MAGIC) {
+                throw new IllegalStateException(snapshot + " is not an offline device snapshot.");
+            }
+
+            long snapshotGeneration = header.getLong();
+            long entryCount = (channel.size() - HEADER_BYTES) / SNAPSHOT_ENTRY_BYTES;
+            OfflineDeviceTable table = new OfflineDeviceTable(storage, (int) Math.min(Integer.MAX_VALUE, entryCount));
+
+            lastEventMillis = header.getLong();
+            generation = snapshotGeneration;
+
+            for (long first = 0; first < entryCount; first += MAXIMUM_MAPPED_ENTRIES) {
+                long count = Math.min(MAXIMUM_MAPPED_ENTRIES, entryCount - first);
+                MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * SNAPSHOT_ENTRY_BYTES, count * SNAPSHOT_ENTRY_BYTES);
+
+                for (long i = 0; i < count; i++) {
+                    table.put(entries.getLong(), entries.getLong(), entries.getLong(), entries.getLong());
+                }
+            }
+
+            for (long logGeneration = snapshotGeneration; Files.exists(logOf(logGeneration)); logGeneration++) {
+                replay(logOf(logGeneration), table);
+                generation = Math.max(generation, logGeneration);
+            }
+
+            return Optional.of(table);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the table and starts a new generation of the log. Changes can only be stored after the
+     * first snapshot.
+     *
+     * @param table         The table to take a snapshot of.
+     * @param currentMillis The current epoch millis.
+     */
+    void snapshot(OfflineDeviceTable table, long currentMillis) {
+        synchronized (snapshotLock) {
+            long snapshotGeneration;
+            FileChannel previousLog;
+
+            synchronized (this) {
+                snapshotGeneration = generation + 1;
+                previousLog = log;
+                log = openLog(snapshotGeneration);
+                generation = snapshotGeneration;
+                logEntryCount = 0;
+            }
+
+            try {
+                writeSnapshot(table, snapshotGeneration, currentMillis);
+
+                if (previousLog != null) {
+                    previousLog.close();
+                }
+
+                long compactedGeneration = snapshotGeneration - 1;
+
+                while (Files.deleteIfExists(logOf(compactedGeneration))) {
+                    compactedGeneration--;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Adds a device to the table or replaces it, and stores the change.
+     *
+     * @param table                  The table to change.
+     * @param mostSignificantBits    The most significant bits of the device UUID.
+     * @param leastSignificantBits   The least significant bits of the device UUID.
+     * @param offlineMillis          The epoch millis the device went offline.
+     * @param lastNotificationMillis The epoch millis of the last sent notification.
+     */
+    synchronized void put(OfflineDeviceTable table, long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+        table.put(mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis);
+        append(PUT, mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis, offlineMillis);
+    }
+
+    /**
+     * Removes a device from the table, and stores the change if the device was in the table.
+     *
+     * @param table                The table to change.
+     * @param mostSignificantBits  The most significant bits of the device UUID.
+     * @param leastSignificantBits The least significant bits of the device UUID.
+     * @param currentMillis        The current epoch millis.
+     */
+    synchronized void remove(OfflineDeviceTable table, long mostSignificantBits, long leastSignificantBits, long currentMillis) {
+        if (table.remove(mostSignificantBits, leastSignificantBits)) {
+            append(REMOVE, mostSignificantBits, leastSignificantBits, currentMillis, 0, currentMillis);
+        }
+    }
+
+    /**
+     * Updates the last notification of a device if it is still offline since the given instant, and stores the change
+     * if it was made.
+     *
+     * @param table                  The table to change.
+     * @param mostSignificantBits    The most significant bits of the device UUID.
+     * @param leastSignificantBits   The least significant bits of the device UUID.
+     * @param offlineMillis          The epoch millis the device should have gone offline.
+     * @param lastNotificationMillis The epoch millis of the last sent notification.
+     */
+    synchronized void updateLastNotification(OfflineDeviceTable table, long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+        if (table.updateLastNotification(mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis)) {
+            append(NOTIFICATION, mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis, lastNotificationMillis);
+        }
+    }
+
+    /**
+     * @return True if enough changes were stored since the last snapshot to take a new one, false if not.
+     */
+    synchronized boolean shouldCompact() {
+        return logEntryCount >= compactionThreshold;
+    }
+
+    /**
+     * @return The epoch millis of the latest change in the store, which is the instant from which changes that were
+     * missed should be looked up after recovery.
+     */
+    synchronized long getLastEventMillis() {
+        return lastEventMillis;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void append(byte type, long mostSignificantBits, long leastSignificantBits, long firstMillis, long secondMillis, long eventMillis) {
+        if (log == null) {
+            throw new IllegalStateException("A snapshot should be taken before changes can be stored.");
+        }
+
+        logEntry.clear();
+        logEntry.put(type).putLong(mostSignificantBits).putLong(leastSignificantBits).putLong(firstMillis).putLong(secondMillis);
+        logEntry.flip();
+
+        try {
+            while (logEntry.hasRemaining()) {
+                log.write(logEntry);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        logEntryCount++;
+        lastEventMillis = Math.max(lastEventMillis, eventMillis);
+    }
+
+    private void replay(Path logFile, OfflineDeviceTable table) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long entryCount = channel.size() / LOG_ENTRY_BYTES;
+
+            for (long first = 0; first < entryCount; first += MAXIMUM_MAPPED_ENTRIES) {
+                long count = Math.min(MAXIMUM_MAPPED_ENTRIES, entryCount - first);
+                MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, first * LOG_ENTRY_BYTES, count * LOG_ENTRY_BYTES);
+
+                for (long i = 0; i < count; i++) {
+                    replay(entries.get(), entries.getLong(), entries.getLong(), entries.getLong(), entries.getLong(), table);
+                }
+            }
+
+            channel.truncate(entryCount * LOG_ENTRY_BYTES);
+        }
+    }
+
+    private void replay(byte type, long mostSignificantBits, long leastSignificantBits, long firstMillis, long secondMillis, OfflineDeviceTable table) {
+        switch (type) {
+            case PUT:
+                table.put(mostSignificantBits, leastSignificantBits, firstMillis, secondMillis);
+                lastEventMillis = Math.max(lastEventMillis, firstMillis);
+                break;
+            case REMOVE:
+                table.remove(mostSignificantBits, leastSignificantBits);
+                lastEventMillis = Math.max(lastEventMillis, firstMillis);
+                break;
+            case NOTIFICATION:
+                table.updateLastNotification(mostSignificantBits, leastSignificantBits, firstMillis, secondMillis);
+                lastEventMillis = Math.max(lastEventMillis, secondMillis);
+                break;
+            default:
+                throw new IllegalStateException("Unknown log entry type " + type + ".");
+        }
+    }
+
+    private void writeSnapshot(OfflineDeviceTable table, long snapshotGeneration, long currentMillis) throws IOException {
+        Path temporarySnapshot = directory.resolve(TEMPORARY_SNAPSHOT_FILE);
+
+        try (FileChannel channel = FileChannel.open(temporarySnapshot, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+            buffer.putLong(MAGIC).putLong(snapshotGeneration).putLong(currentMillis);
+
+            table.forEach((mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis) -> {
+                if (buffer.remaining() < SNAPSHOT_ENTRY_BYTES) {
+                    write(channel, buffer);
+                }
+
+                buffer.putLong(mostSignificantBits).putLong(leastSignificantBits).putLong(offlineMillis).putLong(lastNotificationMillis);
+            });
+
+            write(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporarySnapshot, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        buffer.clear();
+    }
+
+    private FileChannel openLog(long logGeneration) {
+        try {
+            FileChannel channel = FileChannel.open(logOf(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            channel.position(channel.size());
+
+            return channel;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path logOf(long logGeneration) {
+        return directory.resolve("offline-devices-" + logGeneration + ".log");
+    }
+}
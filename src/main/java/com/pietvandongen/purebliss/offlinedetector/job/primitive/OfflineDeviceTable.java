@@ -0,0 +1,452 @@
+package com.pietvandongen.purebliss.offlinedetector.job.primitive;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact table of offline devices, keyed by the two longs of the device UUID. Every entry is stored as four longs
+ * (UUID most and least significant bits, offline epoch millis and last notification epoch millis) in an open
+ * addressing table with linear probing, either on the heap or in direct memory outside of it. This takes 32 bytes per
+ * slot, instead of the hundreds of bytes a map of devices to instants takes per entry.
+ * <p>
+ * The table is split into segments that are locked independently, so devices can connect and disconnect concurrently
+ * with each other and with runs.
+ */
+class OfflineDeviceTable {
+
+    /**
+     * Where the table keeps its entries.
+     */
+    enum Storage {
+
+        /**
+         * In long arrays on the heap.
+         */
+        HEAP,
+
+        /**
+         * In direct byte buffers outside of the heap.
+         */
+        DIRECT
+    }
+
+    /**
+     * The value returned for devices that are not in the table.
+     */
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    static final int SEGMENT_COUNT = 64;
+
+    private static final int SEGMENT_BITS = Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+    private static final int LONGS_PER_ENTRY = 4;
+    private static final int MINIMUM_SEGMENT_CAPACITY = 16;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final Storage storage;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    /**
+     * Creates an empty table.
+     *
+     * @param storage      Where to keep the entries.
+     * @param expectedSize The number of devices the table is sized for initially. It grows when needed.
+     */
+    OfflineDeviceTable(Storage storage, int expectedSize) {
+        if (storage == null || expectedSize < 0) {
+            throw new IllegalArgumentException("Storage cannot be null and expected size cannot be negative.");
+        }
+
+        int segmentCapacity = segmentCapacity(expectedSize);
+
+        this.storage = storage;
+
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Calculates the initial capacity of a segment: the smallest power of two that holds its share of the expected
+     * devices without passing the maximum load of 3/4. The load then starts between 3/8 and 3/4, around 0.6 for most
+     * sizes, so the table takes less than twice the space of the entries themselves.
+     *
+     * @param expectedSize The number of devices the table is sized for.
+     * @return The capacity of a segment.
+     */
+    static int segmentCapacity(int expectedSize) {
+        long segmentSize = (expectedSize + SEGMENT_COUNT - 1L) / SEGMENT_COUNT;
+        long minimumCapacity = Math.max(MINIMUM_SEGMENT_CAPACITY, (segmentSize * 4 + 2) / 3);
+
+        return (int) Long.highestOneBit(minimumCapacity * 2 - 1);
+    }
+
+    /**
+     * Spreads the bits of a device UUID, so both the segment and the slot can be taken from the hash.
+     *
+     * @param mostSignificantBits  The most significant bits of the UUID.
+     * @param leastSignificantBits The least significant bits of the UUID.
+     * @return The hash.
+     */
+    static long hash(long mostSignificantBits, long leastSignificantBits) {
+        long hash = mostSignificantBits * 0x9E3779B97F4A7C15L ^ leastSignificantBits;
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Adds a device to the table or replaces it.
+     *
+     * @param mostSignificantBits    The most significant bits of the device UUID.
+     * @param leastSignificantBits   The least significant bits of the device UUID.
+     * @param offlineMillis          The epoch millis the device went offline.
+     * @param lastNotificationMillis The epoch millis of the last sent notification.
+     */
+    void put(long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+        if (offlineMillis == EMPTY) {
+            throw new IllegalArgumentException("The offline epoch millis cannot be " + EMPTY + ".");
+        }
+
+        long hash = hash(mostSignificantBits, leastSignificantBits);
+
+        segmentOf(hash).put(hash, mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis);
+    }
+
+    /**
+     * Removes a device from the table.
+     *
+     * @param mostSignificantBits  The most significant bits of the device UUID.
+     * @param leastSignificantBits The least significant bits of the device UUID.
+     * @return True if the device was in the table, false if not.
+     */
+    boolean remove(long mostSignificantBits, long leastSignificantBits) {
+        long hash = hash(mostSignificantBits, leastSignificantBits);
+
+        return segmentOf(hash).remove(hash, mostSignificantBits, leastSignificantBits);
+    }
+
+    /**
+     * Gets the epoch millis a device went offline.
+     *
+     * @param mostSignificantBits  The most significant bits of the device UUID.
+     * @param leastSignificantBits The least significant bits of the device UUID.
+     * @return The offline epoch millis, or {@link OfflineDeviceTable#NOT_FOUND} if the device is not in the table.
+     */
+    long getOfflineMillis(long mostSignificantBits, long leastSignificantBits) {
+        long hash = hash(mostSignificantBits, leastSignificantBits);
+
+        return segmentOf(hash).get(hash, mostSignificantBits, leastSignificantBits, 2);
+    }
+
+    /**
+     * Gets the epoch millis of the last notification sent for a device.
+     *
+     * @param mostSignificantBits  The most significant bits of the device UUID.
+     * @param leastSignificantBits The least significant bits of the device UUID.
+     * @return The last notification epoch millis, or {@link OfflineDeviceTable#NOT_FOUND} if the device is not in the
+     * table.
+     */
+    long getLastNotificationMillis(long mostSignificantBits, long leastSignificantBits) {
+        long hash = hash(mostSignificantBits, leastSignificantBits);
+
+        return segmentOf(hash).get(hash, mostSignificantBits, leastSignificantBits, 3);
+    }
+
+    /**
+     * Updates the last notification of a device, but only if it is still offline since the given instant.
+     *
+     * @param mostSignificantBits    The most significant bits of the device UUID.
+     * @param leastSignificantBits   The least significant bits of the device UUID.
+     * @param offlineMillis          The epoch millis the device should have gone offline.
+     * @param lastNotificationMillis The epoch millis of the last sent notification.
+     * @return True if the last notification was updated, false if not.
+     */
+    boolean updateLastNotification(long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+        long hash = hash(mostSignificantBits, leastSignificantBits);
+
+        return segmentOf(hash).updateLastNotification(hash, mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis);
+    }
+
+    /**
+     * Adds the entries of a segment that match the predicate to a selection. The predicate is tested while the
+     * segment is locked, so it should be fast and must not call back into the table.
+     *
+     * @param segment   The index of the segment, from 0 up to {@link OfflineDeviceTable#SEGMENT_COUNT}.
+     * @param predicate The predicate to test the entries with.
+     * @param selection The selection to add the matching entries to.
+     */
+    void select(int segment, EntryPredicate predicate, Selection selection) {
+        segments[segment].select(predicate, selection);
+    }
+
+    /**
+     * Passes every entry of the table to a consumer, one segment at a time. Each segment is locked while its entries
+     * are consumed, so the consumer should be fast and must not call back into the table.
+     *
+     * @param consumer The consumer of the entries.
+     */
+    void forEach(EntryConsumer consumer) {
+        for (Segment segment : segments) {
+            segment.forEach(consumer);
+        }
+    }
+
+    /**
+     * @return The number of devices in the table.
+     */
+    int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     * Tests an entry of the table without unpacking it into objects.
+     */
+    @FunctionalInterface
+    interface EntryPredicate {
+
+        boolean test(long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis);
+    }
+
+    /**
+     * Consumes an entry of the table without unpacking it into objects.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+
+        void accept(long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis);
+    }
+
+    /**
+     * A growable list of selected entries, which can be reused across selections.
+     */
+    static class Selection {
+
+        private long[] entries = new long[3 * MINIMUM_SEGMENT_CAPACITY];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long getMostSignificantBits(int index) {
+            return entries[index * 3];
+        }
+
+        long getLeastSignificantBits(int index) {
+            return entries[index * 3 + 1];
+        }
+
+        long getOfflineMillis(int index) {
+            return entries[index * 3 + 2];
+        }
+
+        private void add(long mostSignificantBits, long leastSignificantBits, long offlineMillis) {
+            if ((size + 1) * 3 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+
+            entries[size * 3] = mostSignificantBits;
+            entries[size * 3 + 1] = leastSignificantBits;
+            entries[size * 3 + 2] = offlineMillis;
+            size++;
+        }
+    }
+
+    private class Segment {
+
+        private LongBuffer slots;
+        private int mask;
+        private int size;
+
+        private Segment(int capacity) {
+            this.slots = allocate(capacity);
+            this.mask = capacity - 1;
+        }
+
+        private synchronized void put(long hash, long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            if (isEmpty(slot)) {
+                if ((size + 1) * 4L > (mask + 1) * 3L) {
+                    resize();
+                    slot = find(hash, mostSignificantBits, leastSignificantBits);
+                }
+
+                size++;
+            }
+
+            write(slot, mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis);
+        }
+
+        private synchronized boolean remove(long hash, long mostSignificantBits, long leastSignificantBits) {
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            if (isEmpty(slot)) {
+                return false;
+            }
+
+            int next = slot;
+
+            while (true) {
+                next = (next + 1) & mask;
+
+                if (isEmpty(next)) {
+                    break;
+                }
+
+                int home = homeSlot(next);
+                boolean staysInPlace = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+
+                if (!staysInPlace) {
+                    copy(next, slot);
+                    slot = next;
+                }
+            }
+
+            slots.put(slot * LONGS_PER_ENTRY + 2, EMPTY);
+            size--;
+
+            return true;
+        }
+
+        private synchronized long get(long hash, long mostSignificantBits, long leastSignificantBits, int field) {
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            return isEmpty(slot) ? NOT_FOUND : slots.get(slot * LONGS_PER_ENTRY + field);
+        }
+
+        private synchronized boolean updateLastNotification(long hash, long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+            int slot = find(hash, mostSignificantBits, leastSignificantBits);
+
+            if (isEmpty(slot) || slots.get(slot * LONGS_PER_ENTRY + 2) != offlineMillis) {
+                return false;
+            }
+
+            slots.put(slot * LONGS_PER_ENTRY + 3, lastNotificationMillis);
+
+            return true;
+        }
+
+        private synchronized void select(EntryPredicate predicate, Selection selection) {
+            for (int slot = 0; slot <= mask; slot++) {
+                int offset = slot * LONGS_PER_ENTRY;
+                long offlineMillis = slots.get(offset + 2);
+
+                if (offlineMillis != EMPTY && predicate.test(slots.get(offset), slots.get(offset + 1), offlineMillis, slots.get(offset + 3))) {
+                    selection.add(slots.get(offset), slots.get(offset + 1), offlineMillis);
+                }
+            }
+        }
+
+        private synchronized void forEach(EntryConsumer consumer) {
+            for (int slot = 0; slot <= mask; slot++) {
+                int offset = slot * LONGS_PER_ENTRY;
+                long offlineMillis = slots.get(offset + 2);
+
+                if (offlineMillis != EMPTY) {
+                    consumer.accept(slots.get(offset), slots.get(offset + 1), offlineMillis, slots.get(offset + 3));
+                }
+            }
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private int find(long hash, long mostSignificantBits, long leastSignificantBits) {
+            int slot = (int) hash & mask;
+
+            while (!isEmpty(slot)) {
+                int offset = slot * LONGS_PER_ENTRY;
+
+                if (slots.get(offset) == mostSignificantBits && slots.get(offset + 1) == leastSignificantBits) {
+                    return slot;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        private int homeSlot(int slot) {
+            int offset = slot * LONGS_PER_ENTRY;
+
+            return (int) hash(slots.get(offset), slots.get(offset + 1)) & mask;
+        }
+
+        private boolean isEmpty(int slot) {
+            return slots.get(slot * LONGS_PER_ENTRY + 2) == EMPTY;
+        }
+
+        private void write(int slot, long mostSignificantBits, long leastSignificantBits, long offlineMillis, long lastNotificationMillis) {
+            int offset = slot * LONGS_PER_ENTRY;
+
+            slots.put(offset, mostSignificantBits);
+            slots.put(offset + 1, leastSignificantBits);
+            slots.put(offset + 2, offlineMillis);
+            slots.put(offset + 3, lastNotificationMillis);
+        }
+
+        private void copy(int from, int to) {
+            for (int field = 0; field < LONGS_PER_ENTRY; field++) {
+                slots.put(to * LONGS_PER_ENTRY + field, slots.get(from * LONGS_PER_ENTRY + field));
+            }
+        }
+
+        private void resize() {
+            LongBuffer oldSlots = slots;
+            int oldCapacity = mask + 1;
+
+            slots = allocate(oldCapacity * 2);
+            mask = oldCapacity * 2 - 1;
+
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                int offset = slot * LONGS_PER_ENTRY;
+                long offlineMillis = oldSlots.get(offset + 2);
+
+                if (offlineMillis != EMPTY) {
+                    long mostSignificantBits = oldSlots.get(offset);
+                    long leastSignificantBits = oldSlots.get(offset + 1);
+
+                    write(find(hash(mostSignificantBits, leastSignificantBits), mostSignificantBits, leastSignificantBits),
+                            mostSignificantBits, leastSignificantBits, offlineMillis, oldSlots.get(offset + 3));
+                }
+            }
+        }
+
+        private LongBuffer allocate(int capacity) {
+            int longs = Math.multiplyExact(capacity, LONGS_PER_ENTRY);
+            LongBuffer buffer = storage == Storage.DIRECT
+                    ? ByteBuffer.allocateDirect(Math.multiplyExact(longs, Long.BYTES)).order(ByteOrder.nativeOrder()).asLongBuffer()
+                    : LongBuffer.allocate(longs);
+
+            for (int slot = 0; slot < capacity; slot++) {
+                buffer.put(slot * LONGS_PER_ENTRY + 2, EMPTY);
+            }
+
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.pietvandongen.purebliss.offlinedetector.job.primitive;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Sends out device offline push notifications like the documented job does, but keeps its state in primitive epoch
+ * millis and decides with primitive versions of the pure functions. It trusts the notifications it sent itself, so
+ * after the last notifications of the initially offline devices have been loaded on creation, a run doesn't allocate
+ * any objects per offline device.
+ * <p>
+ * The offline devices are kept in an {@link OfflineDeviceTable}, which can be stored outside of the heap. Optionally,
+ * the table is kept in an {@link OfflineDeviceStore} as well, so a restarted job recovers it from disk and only catches
+ * up with the changes it missed while it wasn't running.
+ */
+public class OfflineDevicesJobImpl implements OfflineDevicesJob {
+
+    /**
+     * The last notification instant of a device for which no notification was ever sent.
+     */
+    static final long NO_NOTIFICATION = Long.MIN_VALUE;
+
+    static final int LOOKUP_BATCH_SIZE = 1000;
+
+    private final Clock clock;
+    private final DeviceService deviceService;
+    private final PushNotificationService pushNotificationService;
+    private final OfflineDeviceTable offlineDevices;
+    private final OfflineDeviceStore offlineDeviceStore;
+
+    private volatile ThresholdSchedule thresholdSchedule;
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state, keeping the offline devices on the
+     * heap.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     */
+    OfflineDevicesJobImpl(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService) {
+        this(clock, deviceService, pushNotificationService, OfflineDeviceTable.Storage.HEAP);
+    }
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state, including the last sent
+     * notifications of the devices that are offline initially.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param storage                 Where to keep the offline devices.
+     */
+    OfflineDevicesJobImpl(
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService,
+            OfflineDeviceTable.Storage storage
+    ) {
+        this(clock, deviceService, pushNotificationService, storage, null);
+    }
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state. If the store contains a snapshot,
+     * the offline devices are recovered from it and only the changes since the last stored change are looked up, using
+     * {@link DeviceService#getOfflineDeviceChangesSince(Instant)}. If the device service doesn't support that, all
+     * offline devices are loaded and compared with the recovered ones, so only the last notifications of devices that
+     * went offline since have to be looked up. Either way, a new snapshot is taken before the job is ready.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param storage                 Where to keep the offline devices.
+     * @param offlineDeviceStore      The store to keep the offline devices in, or null to keep them in memory only.
+     */
+    OfflineDevicesJobImpl(
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService,
+            OfflineDeviceTable.Storage storage,
+            OfflineDeviceStore offlineDeviceStore
+    ) {
+        if (clock == null || deviceService == null || pushNotificationService == null || storage == null) {
+            throw new IllegalArgumentException("Clock, device service, push notification service nor storage can be null.");
+        }
+
+        Optional<OfflineDeviceTable> recoveredDevices = offlineDeviceStore == null ? Optional.empty() : offlineDeviceStore.recover(storage);
+
+        this.clock = clock;
+        this.deviceService = deviceService;
+        this.pushNotificationService = pushNotificationService;
+        this.offlineDeviceStore = offlineDeviceStore;
+
+        if (recoveredDevices.isPresent()) {
+            this.offlineDevices = recoveredDevices.get();
+
+            reconcileOfflineDevices(Instant.ofEpochMilli(offlineDeviceStore.getLastEventMillis()));
+        } else {
+            Map<Device, Instant> changedDevices = new HashMap<>();
+
+            this.offlineDevices = new OfflineDeviceTable(storage, OfflineDevicePage.DEFAULT_PAGE_SIZE);
+
+            deviceService.loadOfflineDevices(clock, OfflineDevicePage.DEFAULT_PAGE_SIZE, page -> loadOfflineDevices(page.getDevices()), (device, offline) -> {
+                if (offline.isPresent()) {
+                    changedDevices.put(device, offline.get());
+                } else {
+                    offlineDevices.remove(device.getUuid().getMostSignificantBits(), device.getUuid().getLeastSignificantBits());
+                }
+            });
+            loadOfflineDevices(changedDevices);
+        }
+
+        if (offlineDeviceStore != null) {
+            offlineDeviceStore.snapshot(offlineDevices, clock.millis());
+        }
+    }
+
+    /**
+     * Calculates the index of the last passed threshold given a start point and a current point in time, both in
+     * epoch millis.
+     *
+     * @param startMillis       The start epoch millis to compare the current epoch millis with.
+     * @param currentMillis     The current epoch millis to compare with the starting point.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return The index of the last passed threshold, or {@link ThresholdSchedule#NO_THRESHOLD} if no threshold has been
+     * passed yet.
+     */
+    static int calculateLastPassedThresholdIndex(long startMillis, long currentMillis, ThresholdSchedule thresholdSchedule) {
+        long elapsedMillis = currentMillis - startMillis;
+
+        if (elapsedMillis <= 0) {
+            return ThresholdSchedule.NO_THRESHOLD;
+        }
+
+        return thresholdSchedule.lastPassedIndex(elapsedMillis > Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE : elapsedMillis * 1_000_000);
+    }
+
+    /**
+     * Checks whether a notification should be sent by determining which threshold has been passed last for the
+     * amount of time passed between the device going offline and the job running, taking the last sent notification
+     * into account.
+     *
+     * @param jobStartMillis         The epoch millis the job calling this function was started.
+     * @param deviceOfflineMillis    The epoch millis the device went offline.
+     * @param lastNotificationMillis The epoch millis the last notification was sent, or
+     *                               {@link OfflineDevicesJobImpl#NO_NOTIFICATION} if none was sent.
+     * @param thresholdSchedule      The compiled notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(long jobStartMillis, long deviceOfflineMillis, long lastNotificationMillis, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = calculateLastPassedThresholdIndex(deviceOfflineMillis, jobStartMillis, thresholdSchedule);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD
+                && (lastNotificationMillis < deviceOfflineMillis || lastPassedThresholdIndex != calculateLastPassedThresholdIndex(deviceOfflineMillis, lastNotificationMillis, thresholdSchedule));
+    }
+
+    /**
+     * Sends push notifications for offline devices, once per passed threshold. If the job keeps its offline devices in
+     * a store and enough changes were stored, a new snapshot is taken afterwards.
+     */
+    @Override
+    public void run() {
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
+            throw new IllegalStateException("Thresholds cannot be null or empty.");
+        }
+
+        long jobStartMillis = clock.millis();
+        OfflineDeviceTable.Selection selection = new OfflineDeviceTable.Selection();
+        OfflineDeviceTable.EntryPredicate shouldSendNotification = (mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis) ->
+                shouldSendNotification(jobStartMillis, offlineMillis, lastNotificationMillis, thresholdSchedule);
+
+        for (int segment = 0; segment < OfflineDeviceTable.SEGMENT_COUNT; segment++) {
+            selection.clear();
+            offlineDevices.select(segment, shouldSendNotification, selection);
+
+            for (int i = 0; i < selection.size(); i++) {
+                long mostSignificantBits = selection.getMostSignificantBits(i);
+                long leastSignificantBits = selection.getLeastSignificantBits(i);
+
+                pushNotificationService.sendOfflineNotification(new Device(new UUID(mostSignificantBits, leastSignificantBits)));
+
+                if (offlineDeviceStore == null) {
+                    offlineDevices.updateLastNotification(mostSignificantBits, leastSignificantBits, selection.getOfflineMillis(i), jobStartMillis);
+                } else {
+                    offlineDeviceStore.updateLastNotification(offlineDevices, mostSignificantBits, leastSignificantBits, selection.getOfflineMillis(i), jobStartMillis);
+                }
+            }
+        }
+
+        if (offlineDeviceStore != null && offlineDeviceStore.shouldCompact()) {
+            offlineDeviceStore.snapshot(offlineDevices, clock.millis());
+        }
+    }
+
+    @Override
+    public void onDeviceConnect(Device device) {
+        long mostSignificantBits = device.getUuid().getMostSignificantBits();
+        long leastSignificantBits = device.getUuid().getLeastSignificantBits();
+
+        if (offlineDeviceStore == null) {
+            this.offlineDevices.remove(mostSignificantBits, leastSignificantBits);
+        } else {
+            this.offlineDeviceStore.remove(offlineDevices, mostSignificantBits, leastSignificantBits, clock.millis());
+        }
+    }
+
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        long mostSignificantBits = device.getUuid().getMostSignificantBits();
+        long leastSignificantBits = device.getUuid().getLeastSignificantBits();
+
+        if (offlineDeviceStore == null) {
+            this.offlineDevices.put(mostSignificantBits, leastSignificantBits, clock.millis(), NO_NOTIFICATION);
+        } else {
+            this.offlineDeviceStore.put(offlineDevices, mostSignificantBits, leastSignificantBits, clock.millis(), NO_NOTIFICATION);
+        }
+    }
+
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        this.thresholdSchedule = ThresholdSchedule.compile(thresholds);
+    }
+
+    /**
+     * Copies the given offline devices into the job's state, together with their last sent notifications, which are
+     * looked up in batches.
+     *
+     * @param devices The offline devices with the instant they went offline.
+     */
+    private void loadOfflineDevices(Map<Device, Instant> devices) {
+        List<Device> batch = new ArrayList<>(LOOKUP_BATCH_SIZE);
+
+        for (Device device : devices.keySet()) {
+            batch.add(device);
+
+            if (batch.size() == LOOKUP_BATCH_SIZE) {
+                loadOfflineDevices(devices, batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            loadOfflineDevices(devices, batch);
+        }
+    }
+
+    /**
+     * Brings the recovered offline devices up to date with the device service. Devices that connected since are
+     * removed and devices that went offline since are loaded, including their last sent notifications.
+     *
+     * @param since The instant of the last change the recovered offline devices include.
+     */
+    private void reconcileOfflineDevices(Instant since) {
+        Map<Device, Instant> changedDevices = new HashMap<>();
+
+        if (deviceService.supportsOfflineDeviceChanges()) {
+            deviceService.getOfflineDeviceChangesSince(since).forEach((device, offline) -> {
+                if (offline.isPresent()) {
+                    changedDevices.put(device, offline.get());
+                } else {
+                    offlineDevices.remove(device.getUuid().getMostSignificantBits(), device.getUuid().getLeastSignificantBits());
+                }
+            });
+        } else {
+            Map<Device, Instant> devices = deviceService.getOfflineDevices();
+            OfflineDeviceTable.Selection onlineDevices = new OfflineDeviceTable.Selection();
+
+            for (int segment = 0; segment < OfflineDeviceTable.SEGMENT_COUNT; segment++) {
+                offlineDevices.select(segment, (mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis) ->
+                        !devices.containsKey(new Device(new UUID(mostSignificantBits, leastSignificantBits))), onlineDevices);
+            }
+
+            for (int i = 0; i < onlineDevices.size(); i++) {
+                offlineDevices.remove(onlineDevices.getMostSignificantBits(i), onlineDevices.getLeastSignificantBits(i));
+            }
+
+            changedDevices.putAll(devices);
+        }
+
+        changedDevices.entrySet().removeIf(changedDevice -> changedDevice.getValue().toEpochMilli() == offlineDevices.getOfflineMillis(
+                changedDevice.getKey().getUuid().getMostSignificantBits(),
+                changedDevice.getKey().getUuid().getLeastSignificantBits()
+        ));
+
+        loadOfflineDevices(changedDevices);
+    }
+
+    private void loadOfflineDevices(Map<Device, Instant> devices, List<Device> batch) {
+        Map<Device, Instant> lastNotifications = pushNotificationService.getLastOfflineNotificationInstants(batch);
+
+        batch.forEach(device -> {
+            Instant lastNotification = lastNotifications.get(device);
+
+            offlineDevices.put(
+                    device.getUuid().getMostSignificantBits(),
+                    device.getUuid().getLeastSignificantBits(),
+                    devices.get(device).toEpochMilli(),
+                    lastNotification == null ? NO_NOTIFICATION : lastNotification.toEpochMilli()
+            );
+        });
+    }
+
+    /**
+     * @return The number of offline devices.
+     */
+    int getOfflineDeviceCount() {
+        return offlineDevices.size();
+    }
+}
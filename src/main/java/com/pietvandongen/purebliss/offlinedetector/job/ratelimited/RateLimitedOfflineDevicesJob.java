@@ -0,0 +1,188 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Puts an outbound rate limit around a job, so a run after a large outage doesn't get throttled by the push
+ * notification service. The job keeps deciding per device when a notification should be sent, but its notifications
+ * are queued and sent at the end of every run, no faster than a token bucket allows. The notifications of devices that
+ * passed a higher threshold are sent first, followed by those of devices that have been offline longest. Notifications
+ * that can't be sent yet are carried over to later runs, unless their device connects or disconnects again in the
+ * meantime, in which case the job decides about it again.
+ * <p>
+ * Every dispatch sends at most the burst, however long ago the previous dispatch was. If the notifications are only
+ * dispatched at the end of a run, they're sent no faster than the burst per run interval, in bursts; they can be
+ * dispatched more often with
+ * {@link RateLimitedOfflineDevicesJob#scheduleDispatch(ScheduledExecutorService, Duration)}.
+ */
+public class RateLimitedOfflineDevicesJob implements OfflineDevicesJob {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final OfflineDevicesJob job;
+    private final Clock clock;
+    private final JobMetrics metrics;
+    private final Map<Device, Instant> offlineDevices = new ConcurrentHashMap<>();
+    private final RateLimitedPushNotificationService rateLimitedPushNotificationService;
+
+    private volatile ThresholdSchedule thresholdSchedule;
+
+    /**
+     * Puts a rate limit around a job, sending the notifications in batches of the default size without reporting any
+     * metrics.
+     *
+     * @param jobFactory              The factory that creates the job with the push notification service it should
+     *                                send its notifications to.
+     * @param pushNotificationService The push notification service.
+     * @param notificationsPerSecond  The maximum number of notifications to send per second.
+     * @param burst                   The maximum number of notifications to send at once after a quiet period.
+     */
+    public RateLimitedOfflineDevicesJob(Function<PushNotificationService, OfflineDevicesJob> jobFactory, PushNotificationService pushNotificationService, double notificationsPerSecond, int burst) {
+        this(jobFactory, pushNotificationService, Clock.systemUTC(), notificationsPerSecond, burst, DEFAULT_BATCH_SIZE, JobMetrics.noOp());
+    }
+
+    /**
+     * Puts a rate limit around a job.
+     *
+     * @param jobFactory              The factory that creates the job with the push notification service it should
+     *                                send its notifications to.
+     * @param pushNotificationService The push notification service.
+     * @param clock                   The clock to time the disconnects and the token bucket with.
+     * @param notificationsPerSecond  The maximum number of notifications to send per second.
+     * @param burst                   The maximum number of notifications to send at once after a quiet period.
+     * @param batchSize               The maximum number of devices to notify per push notification service call.
+     * @param metrics                 The metrics to report the depth of the queue and the wait of the notifications to.
+     */
+    public RateLimitedOfflineDevicesJob(
+            Function<PushNotificationService, OfflineDevicesJob> jobFactory,
+            PushNotificationService pushNotificationService,
+            Clock clock,
+            double notificationsPerSecond,
+            int burst,
+            int batchSize,
+            JobMetrics metrics
+    ) {
+        if (jobFactory == null || pushNotificationService == null || clock == null || metrics == null) {
+            throw new IllegalArgumentException("Job factory, push notification service, clock nor metrics can be null.");
+        }
+
+        this.clock = clock;
+        this.metrics = metrics;
+        this.rateLimitedPushNotificationService = new RateLimitedPushNotificationService(pushNotificationService, clock, notificationsPerSecond, burst, batchSize, offlineDevices::get, () -> thresholdSchedule);
+        this.job = jobFactory.apply(rateLimitedPushNotificationService);
+
+        if (this.job == null) {
+            throw new IllegalArgumentException("Job factory cannot create a null job.");
+        }
+    }
+
+    /**
+     * Runs the job and sends as many of the queued notifications as the rate allows, even if the run failed.
+     */
+    @Override
+    public void run() {
+        try {
+            job.run();
+        } finally {
+            dispatch();
+        }
+    }
+
+    /**
+     * Runs the job on the given executor and sends as many of the queued notifications as the rate allows once the run
+     * completed, even if it failed.
+     */
+    @Override
+    public CompletableFuture<Void> runAsync(Executor executor) {
+        return job.runAsync(executor).whenComplete((ignored, failure) -> dispatch());
+    }
+
+    /**
+     * Dispatches the queued notifications at a fixed rate on the given scheduler, so they're paced by the rate instead
+     * of only being sent when a run completes. The burst should be at least the rate times the dispatch interval, as a
+     * dispatch sends at most the burst.
+     * <p>
+     * A dispatch that fails is reported to the uncaught exception handler of the scheduler's thread, and the
+     * notifications of its batch are dispatched again on the next dispatch.
+     *
+     * @param scheduler The scheduler.
+     * @param interval  The time between dispatches.
+     * @return The scheduled dispatch, which can be cancelled.
+     */
+    public ScheduledFuture<?> scheduleDispatch(ScheduledExecutorService scheduler, Duration interval) {
+        return scheduler.scheduleAtFixedRate(this::dispatchScheduled, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Dispatches the queued notifications on the scheduler.
+     */
+    private void dispatchScheduled() {
+        try {
+            dispatch();
+        } catch (RuntimeException e) {
+            Thread thread = Thread.currentThread();
+
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Sends as many queued notifications as the rate allows and reports how long they waited and how many are left.
+     */
+    private void dispatch() {
+        Instant now = clock.instant();
+
+        try {
+            rateLimitedPushNotificationService.dispatch(now, sent -> sent.forEach(notification -> metrics.recordNotificationWait(ThresholdSchedule.nanosBetween(notification.getEnqueued(), now))));
+        } finally {
+            metrics.recordNotificationQueueDepth(rateLimitedPushNotificationService.size());
+        }
+    }
+
+    /**
+     * Drops the queued notification of the device and passes the event on to the job.
+     */
+    @Override
+    public void onDeviceConnect(Device device) {
+        offlineDevices.remove(device);
+        rateLimitedPushNotificationService.cancel(device);
+        job.onDeviceConnect(device);
+    }
+
+    /**
+     * Remembers when the device went offline to prioritize its notifications, drops its queued notification and
+     * passes the event on to the job.
+     */
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        offlineDevices.put(device, clock.instant());
+        rateLimitedPushNotificationService.cancel(device);
+        job.onDeviceDisconnect(device);
+    }
+
+    /**
+     * Compiles the thresholds to prioritize the notifications with and passes them on to the job.
+     */
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        thresholdSchedule = ThresholdSchedule.compile(thresholds);
+        job.onConfigurationUpdate(thresholds);
+    }
+}
@@ -0,0 +1,264 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Stands between a job and the push notification service and queues the notifications the job sends, so they can be
+ * sent no faster than a token bucket allows by {@link RateLimitedPushNotificationService#dispatch(Instant, Consumer)}.
+ * The notifications of devices that passed a higher threshold are sent first, followed by those of devices that have
+ * been offline longest. Devices of which it's unknown when they went offline, such as the ones that were offline
+ * before the job started, are considered offline longest. Notifications that can't be sent yet stay queued for the
+ * next dispatch, and count as the devices' last notifications in the meantime, so the job doesn't queue them again.
+ * <p>
+ * Every dispatch sends at most the burst, however long ago the previous dispatch was. A device is queued at most once.
+ * The queue is thread-safe, but the notifications are sent without holding its lock, so runs can queue notifications
+ * while others are being sent.
+ */
+class RateLimitedPushNotificationService implements PushNotificationService {
+
+    static final Comparator<PendingNotification> PRIORITY = Comparator
+            .comparingInt((PendingNotification notification) -> notification.thresholdIndex).reversed()
+            .thenComparing(notification -> notification.deviceOffline, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(notification -> notification.device.getUuid());
+
+    private final PushNotificationService pushNotificationService;
+    private final Clock clock;
+    private final TokenBucket tokenBucket;
+    private final int batchSize;
+    private final Function<Device, Instant> offlineInstants;
+    private final Supplier<ThresholdSchedule> thresholdSchedule;
+    private final NavigableSet<PendingNotification> queue = new TreeSet<>(PRIORITY);
+    private final Map<Device, PendingNotification> pendingNotifications = new HashMap<>();
+
+    /**
+     * Creates a service with a full token bucket.
+     *
+     * @param pushNotificationService The push notification service to send the notifications to.
+     * @param clock                   The clock to timestamp the queued notifications with.
+     * @param notificationsPerSecond  The maximum number of notifications to send per second.
+     * @param burst                   The maximum number of notifications to send at once after a quiet period.
+     * @param batchSize               The maximum number of devices to notify per push notification service call.
+     * @param offlineInstants         The instant a device went offline, or null if it's unknown.
+     * @param thresholdSchedule       The compiled notification thresholds, or null if they haven't been configured.
+     */
+    RateLimitedPushNotificationService(
+            PushNotificationService pushNotificationService,
+            Clock clock,
+            double notificationsPerSecond,
+            int burst,
+            int batchSize,
+            Function<Device, Instant> offlineInstants,
+            Supplier<ThresholdSchedule> thresholdSchedule
+    ) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size should be at least 1.");
+        }
+
+        this.pushNotificationService = pushNotificationService;
+        this.clock = clock;
+        this.tokenBucket = new TokenBucket(notificationsPerSecond, burst);
+        this.batchSize = batchSize;
+        this.offlineInstants = offlineInstants;
+        this.thresholdSchedule = thresholdSchedule;
+    }
+
+    @Override
+    public void sendOfflineNotification(Device device) {
+        enqueue(device, clock.instant());
+    }
+
+    @Override
+    public void sendOfflineNotifications(Collection<Device> devices) {
+        Instant now = clock.instant();
+
+        devices.forEach(device -> enqueue(device, now));
+    }
+
+    @Override
+    public CompletableFuture<Void> sendOfflineNotificationsAsync(Collection<Device> devices) {
+        sendOfflineNotifications(devices);
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void sendOutageNotification(String group, Instant outageStart, Collection<Device> devices) {
+        pushNotificationService.sendOutageNotification(group, outageStart, devices);
+    }
+
+    @Override
+    public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+        PendingNotification pendingNotification = getPendingNotification(device);
+
+        return pendingNotification != null ? Optional.of(pendingNotification.queued) : pushNotificationService.getLastOfflineNotificationInstant(device);
+    }
+
+    @Override
+    public Map<Device, Instant> getLastOfflineNotificationInstants(Collection<Device> devices) {
+        Map<Device, Instant> lastOfflineNotificationInstants = new HashMap<>(pushNotificationService.getLastOfflineNotificationInstants(devices));
+
+        devices.forEach(device -> Optional.ofNullable(getPendingNotification(device))
+                .ifPresent(pendingNotification -> lastOfflineNotificationInstants.put(device, pendingNotification.queued)));
+
+        return lastOfflineNotificationInstants;
+    }
+
+    /**
+     * Removes the notification of a device from the queue, if it's queued.
+     *
+     * @param device The device.
+     */
+    synchronized void cancel(Device device) {
+        PendingNotification pendingNotification = pendingNotifications.remove(device);
+
+        if (pendingNotification != null) {
+            queue.remove(pendingNotification);
+        }
+    }
+
+    /**
+     * @return The number of queued notifications.
+     */
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Sends the queued notifications in order of priority, in batches, for as long as the token bucket has tokens. If a
+     * batch can't be sent, it's queued again and the failure is thrown, leaving the rest of the queue for the next
+     * dispatch.
+     *
+     * @param now    The current instant.
+     * @param onSent Receives every batch that has been sent.
+     */
+    void dispatch(Instant now, Consumer<List<PendingNotification>> onSent) {
+        for (List<PendingNotification> batch = poll(now); !batch.isEmpty(); batch = poll(now)) {
+            try {
+                pushNotificationService.sendOfflineNotifications(batch.stream()
+                        .map(PendingNotification::getDevice)
+                        .collect(Collectors.toList()));
+            } catch (RuntimeException e) {
+                requeue(batch);
+
+                throw e;
+            }
+
+            onSent.accept(batch);
+        }
+    }
+
+    /**
+     * Queues the notification of a device. If the device is queued already for the same instant it went offline, it
+     * keeps its place in the queue unless it passed a higher threshold since, in which case it moves up but keeps the
+     * instant it was first queued.
+     */
+    private synchronized void enqueue(Device device, Instant now) {
+        Instant deviceOffline = offlineInstants.apply(device);
+        PendingNotification pendingNotification = pendingNotifications.get(device);
+        int thresholdIndex = Integer.MAX_VALUE;
+        Instant enqueued = now;
+
+        if (deviceOffline != null) {
+            ThresholdSchedule thresholdSchedule = this.thresholdSchedule.get();
+
+            thresholdIndex = thresholdSchedule != null ? thresholdSchedule.lastPassedIndex(deviceOffline, now) : ThresholdSchedule.NO_THRESHOLD;
+        }
+
+        if (pendingNotification != null) {
+            if (Objects.equals(pendingNotification.deviceOffline, deviceOffline)) {
+                thresholdIndex = Math.max(thresholdIndex, pendingNotification.thresholdIndex);
+                enqueued = pendingNotification.enqueued;
+            }
+
+            queue.remove(pendingNotification);
+        }
+
+        add(new PendingNotification(device, deviceOffline, thresholdIndex, enqueued, now));
+    }
+
+    private synchronized PendingNotification getPendingNotification(Device device) {
+        return pendingNotifications.get(device);
+    }
+
+    /**
+     * Takes the next batch of notifications from the queue, limited by the batch size and the available tokens.
+     */
+    private synchronized List<PendingNotification> poll(Instant now) {
+        int acquired = tokenBucket.tryAcquire(Math.min(batchSize, queue.size()), now);
+        List<PendingNotification> batch = new ArrayList<>(acquired);
+
+        while (batch.size() < acquired) {
+            PendingNotification pendingNotification = queue.pollFirst();
+
+            pendingNotifications.remove(pendingNotification.device);
+            batch.add(pendingNotification);
+        }
+
+        return batch;
+    }
+
+    /**
+     * Puts back the notifications of a batch that couldn't be sent, unless their devices have been queued again since.
+     */
+    private synchronized void requeue(List<PendingNotification> batch) {
+        batch.stream()
+                .filter(pendingNotification -> !pendingNotifications.containsKey(pendingNotification.device))
+                .forEach(this::add);
+    }
+
+    private void add(PendingNotification pendingNotification) {
+        pendingNotifications.put(pendingNotification.device, pendingNotification);
+        queue.add(pendingNotification);
+    }
+
+    /**
+     * A notification waiting to be sent.
+     */
+    static final class PendingNotification {
+
+        private final Device device;
+        private final Instant deviceOffline;
+        private final int thresholdIndex;
+        private final Instant enqueued;
+        private final Instant queued;
+
+        private PendingNotification(Device device, Instant deviceOffline, int thresholdIndex, Instant enqueued, Instant queued) {
+            this.device = device;
+            this.deviceOffline = deviceOffline;
+            this.thresholdIndex = thresholdIndex;
+            this.enqueued = enqueued;
+            this.queued = queued;
+        }
+
+        Device getDevice() {
+            return device;
+        }
+
+        /**
+         * @return The instant the notification was first queued.
+         */
+        Instant getEnqueued() {
+            return enqueued;
+        }
+    }
+}
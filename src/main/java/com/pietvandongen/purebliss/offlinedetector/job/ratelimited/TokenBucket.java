@@ -0,0 +1,71 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+
+import java.time.Instant;
+
+/**
+ * Limits the rate of calls with a token bucket: tokens are added at a fixed rate up to a maximum burst, and every call
+ * takes a token. A full bucket allows a burst of calls, after which calls are limited to the rate. The bucket is
+ * refilled by the instants it's given, so it follows the job's clock.
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final int burst;
+
+    private double tokens;
+    private Instant refilled;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param tokensPerSecond The number of tokens added per second.
+     * @param burst           The maximum number of tokens in the bucket.
+     */
+    TokenBucket(double tokensPerSecond, int burst) {
+        if (!(tokensPerSecond > 0) || Double.isInfinite(tokensPerSecond) || burst < 1) {
+            throw new IllegalArgumentException("The rate should be positive and finite and the burst should be at least 1.");
+        }
+
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Calculates the tokens in a bucket after some time has passed. Time that passes backwards adds no tokens.
+     *
+     * @param tokens        The tokens in the bucket before.
+     * @param elapsedNanos  The nanoseconds passed since.
+     * @param tokensPerNano The number of tokens added per nanosecond.
+     * @param burst         The maximum number of tokens in the bucket.
+     * @return The tokens in the bucket after.
+     */
+    static double refill(double tokens, long elapsedNanos, double tokensPerNano, int burst) {
+        return elapsedNanos <= 0 ? tokens : Math.min(burst, tokens + elapsedNanos * tokensPerNano);
+    }
+
+    /**
+     * Takes as many whole tokens as are available, up to a maximum.
+     *
+     * @param max The maximum number of tokens to take.
+     * @param now The current instant.
+     * @return The number of tokens taken.
+     */
+    synchronized int tryAcquire(int max, Instant now) {
+        if (refilled != null) {
+            tokens = refill(tokens, ThresholdSchedule.nanosBetween(refilled, now), tokensPerNano, burst);
+        }
+
+        if (refilled == null || now.isAfter(refilled)) {
+            refilled = now;
+        }
+
+        int acquired = (int) Math.min(max, Math.floor(tokens));
+
+        tokens -= acquired;
+
+        return acquired;
+    }
+}
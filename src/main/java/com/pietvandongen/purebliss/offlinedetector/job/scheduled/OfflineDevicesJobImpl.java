@@ -0,0 +1,388 @@
+package com.pietvandongen.purebliss.offlinedetector.job.scheduled;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends out device offline push notifications without being polled. When a device disconnects, the job calculates the
+ * instant it will pass its next threshold and schedules the notification for exactly that instant on its scheduler.
+ * Deadlines that fall within the same coalescing window share a single scheduled task. Connecting devices are removed
+ * from their deadline, which is cancelled once no devices are left.
+ * <p>
+ * Calling {@link OfflineDevicesJobImpl#run()} is optional: it processes the deadlines that have passed without having
+ * fired yet, for example because the scheduler was busy.
+ * <p>
+ * A device whose notification lookup or notification fails is retried at the end of the next coalescing window, while
+ * the other devices of its deadline are notified and rescheduled as usual. The failure is thrown by
+ * {@link OfflineDevicesJobImpl#run()}, or reported to the uncaught exception handler of the scheduler's thread if the
+ * deadline fired on the scheduler.
+ */
+public class OfflineDevicesJobImpl implements OfflineDevicesJob {
+
+    private final Clock clock;
+    private final PushNotificationService pushNotificationService;
+    private final ScheduledExecutorService scheduler;
+    private final long coalescingWindowMillis;
+    private final Map<Device, OfflineDevice> offlineDevices = new HashMap<>();
+    private final NavigableMap<Long, Deadline> deadlines = new TreeMap<>();
+
+    private ThresholdSchedule thresholdSchedule;
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state. Devices are only scheduled once the
+     * thresholds have been configured.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param scheduler               The scheduler to fire the deadlines on.
+     * @param coalescingWindow        The window within which deadlines are fired together.
+     */
+    OfflineDevicesJobImpl(
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService,
+            ScheduledExecutorService scheduler,
+            Duration coalescingWindow
+    ) {
+        if (clock == null || deviceService == null || pushNotificationService == null || scheduler == null || coalescingWindow == null) {
+            throw new IllegalArgumentException("Clock, device service, push notification service, scheduler nor coalescing window can be null.");
+        }
+
+        if (coalescingWindow.toMillis() < 1) {
+            throw new IllegalArgumentException("The coalescing window should be at least 1 millisecond.");
+        }
+
+        this.clock = clock;
+        this.pushNotificationService = pushNotificationService;
+        this.scheduler = scheduler;
+        this.coalescingWindowMillis = coalescingWindow.toMillis();
+
+        deviceService.loadOfflineDevices(
+                clock,
+                OfflineDevicePage.DEFAULT_PAGE_SIZE,
+                page -> page.getDevices().forEach((device, offline) -> offlineDevices.put(device, new OfflineDevice(offline))),
+                (device, offline) -> {
+                    if (offline.isPresent()) {
+                        offlineDevices.put(device, new OfflineDevice(offline.get()));
+                    } else {
+                        offlineDevices.remove(device);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Calculates the instant at which the next threshold will be passed, given the instant a device went offline and
+     * the current instant.
+     *
+     * @param deviceOffline     The instant the device went offline.
+     * @param current           The instant to look for the next threshold crossing from.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return The instant the next threshold will be passed, or empty if all thresholds have been passed already.
+     */
+    static Optional<Instant> calculateNextThresholdCrossing(Instant deviceOffline, Instant current, ThresholdSchedule thresholdSchedule) {
+        int nextThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, current) + 1;
+
+        if (nextThresholdIndex == thresholdSchedule.size()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(deviceOffline.plusNanos(thresholdSchedule.getThresholdNanos(nextThresholdIndex)).plusNanos(1));
+    }
+
+    /**
+     * Calculates the deadline to fire a threshold crossing at, by rounding it up to the coalescing window.
+     *
+     * @param thresholdCrossing      The instant the threshold is passed.
+     * @param coalescingWindowMillis The coalescing window in milliseconds.
+     * @return The epoch millis of the deadline, which is never before the threshold crossing.
+     */
+    static long calculateDeadline(Instant thresholdCrossing, long coalescingWindowMillis) {
+        long millis = thresholdCrossing.getNano() % 1_000_000 == 0 ? thresholdCrossing.toEpochMilli() : thresholdCrossing.toEpochMilli() + 1;
+
+        return Math.floorDiv(millis + coalescingWindowMillis - 1, coalescingWindowMillis) * coalescingWindowMillis;
+    }
+
+    /**
+     * Checks whether a notification should be sent, like the documented job does.
+     *
+     * @param now               The current instant.
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent, or null if none was sent.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(Instant now, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, now);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD
+                && (lastNotification == null || lastNotification.isBefore(deviceOffline) || lastPassedThresholdIndex != thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification));
+    }
+
+    /**
+     * Fires the deadlines that have passed but didn't fire yet.
+     */
+    @Override
+    public void run() {
+        List<Long> passedDeadlines;
+
+        synchronized (this) {
+            if (thresholdSchedule == null) {
+                throw new IllegalStateException("Thresholds cannot be null or empty.");
+            }
+
+            passedDeadlines = new ArrayList<>(deadlines.headMap(clock.millis(), true).keySet());
+        }
+
+        RuntimeException failure = null;
+
+        for (Long deadlineMillis : passedDeadlines) {
+            try {
+                fire(deadlineMillis);
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public synchronized void onDeviceConnect(Device device) {
+        OfflineDevice offlineDevice = offlineDevices.remove(device);
+
+        if (offlineDevice != null) {
+            unschedule(device, offlineDevice);
+        }
+    }
+
+    @Override
+    public synchronized void onDeviceDisconnect(Device device) {
+        Instant now = Instant.now(clock);
+        OfflineDevice offlineDevice = new OfflineDevice(now);
+        OfflineDevice previousOfflineDevice = offlineDevices.put(device, offlineDevice);
+
+        offlineDevice.lastNotificationLoaded = previousOfflineDevice != null;
+        offlineDevice.lastNotification = previousOfflineDevice == null ? null : previousOfflineDevice.lastNotification;
+
+        if (previousOfflineDevice != null) {
+            unschedule(device, previousOfflineDevice);
+        }
+
+        if (thresholdSchedule != null) {
+            schedule(device, offlineDevice, now);
+        }
+    }
+
+    /**
+     * Configures the thresholds for the job and reschedules every offline device for its first threshold. Devices that
+     * passed one or more thresholds already are due immediately, so they are checked right away.
+     *
+     * @param thresholds The thresholds to be used by the job.
+     */
+    @Override
+    public synchronized void onConfigurationUpdate(List<Duration> thresholds) {
+        thresholdSchedule = ThresholdSchedule.compile(thresholds);
+
+        offlineDevices.forEach((device, offlineDevice) -> {
+            unschedule(device, offlineDevice);
+            schedule(device, offlineDevice, offlineDevice.offline);
+        });
+    }
+
+    /**
+     * @return The number of pending deadlines.
+     */
+    synchronized int getDeadlineCount() {
+        return deadlines.size();
+    }
+
+    /**
+     * Fires a deadline by notifying its devices and scheduling each of them for their next threshold. Devices that
+     * couldn't be notified are scheduled for a retry instead.
+     *
+     * @param deadlineMillis The epoch millis of the deadline.
+     * @throws RuntimeException The first failure to notify a device, with the failures of other devices suppressed.
+     */
+    private void fire(long deadlineMillis) {
+        Set<Device> devices;
+
+        synchronized (this) {
+            Deadline deadline = deadlines.remove(deadlineMillis);
+
+            if (deadline == null) {
+                return;
+            }
+
+            devices = deadline.devices;
+            devices.forEach(device -> offlineDevices.get(device).deadlineMillis = null);
+        }
+
+        Instant now = Instant.now(clock);
+        RuntimeException failure = null;
+
+        for (Device device : devices) {
+            OfflineDevice offlineDevice;
+            ThresholdSchedule thresholdSchedule;
+
+            synchronized (this) {
+                offlineDevice = offlineDevices.get(device);
+                thresholdSchedule = this.thresholdSchedule;
+            }
+
+            if (offlineDevice == null) {
+                continue;
+            }
+
+            boolean notified = false;
+
+            try {
+                notify(device, offlineDevice, now, thresholdSchedule);
+                notified = true;
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, e);
+            } finally {
+                synchronized (this) {
+                    if (offlineDevices.get(device) == offlineDevice && offlineDevice.deadlineMillis == null) {
+                        if (notified) {
+                            schedule(device, offlineDevice, now);
+                        } else {
+                            addToDeadline(device, offlineDevice, Math.floorDiv(clock.millis(), coalescingWindowMillis) * coalescingWindowMillis + coalescingWindowMillis);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Fires a deadline on the scheduler, reporting a failure to the uncaught exception handler of the scheduler's thread
+     * instead of leaving it in the scheduled future, where nobody would look at it.
+     *
+     * @param deadlineMillis The epoch millis of the deadline.
+     */
+    private void fireScheduled(long deadlineMillis) {
+        try {
+            fire(deadlineMillis);
+        } catch (RuntimeException e) {
+            Thread thread = Thread.currentThread();
+
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    private void notify(Device device, OfflineDevice offlineDevice, Instant now, ThresholdSchedule thresholdSchedule) {
+        if (!offlineDevice.lastNotificationLoaded) {
+            offlineDevice.lastNotification = pushNotificationService.getLastOfflineNotificationInstant(device).orElse(null);
+            offlineDevice.lastNotificationLoaded = true;
+        }
+
+        if (shouldSendNotification(now, offlineDevice.offline, offlineDevice.lastNotification, thresholdSchedule)) {
+            pushNotificationService.sendOfflineNotification(device);
+            offlineDevice.lastNotification = now;
+        }
+    }
+
+    private static RuntimeException addFailure(RuntimeException failure, RuntimeException e) {
+        if (failure == null) {
+            return e;
+        }
+
+        failure.addSuppressed(e);
+
+        return failure;
+    }
+
+    private void schedule(Device device, OfflineDevice offlineDevice, Instant current) {
+        Optional<Instant> nextThresholdCrossing = calculateNextThresholdCrossing(offlineDevice.offline, current, thresholdSchedule);
+
+        if (!nextThresholdCrossing.isPresent()) {
+            return;
+        }
+
+        addToDeadline(device, offlineDevice, calculateDeadline(nextThresholdCrossing.get(), coalescingWindowMillis));
+    }
+
+    private void addToDeadline(Device device, OfflineDevice offlineDevice, long deadlineMillis) {
+        Deadline deadline = deadlines.get(deadlineMillis);
+
+        if (deadline == null) {
+            deadline = new Deadline();
+            deadline.future = scheduler.schedule(() -> fireScheduled(deadlineMillis), Math.max(0, deadlineMillis - clock.millis()), TimeUnit.MILLISECONDS);
+            deadlines.put(deadlineMillis, deadline);
+        }
+
+        deadline.devices.add(device);
+        offlineDevice.deadlineMillis = deadlineMillis;
+    }
+
+    private void unschedule(Device device, OfflineDevice offlineDevice) {
+        if (offlineDevice.deadlineMillis == null) {
+            return;
+        }
+
+        Deadline deadline = deadlines.get(offlineDevice.deadlineMillis);
+
+        deadline.devices.remove(device);
+
+        if (deadline.devices.isEmpty()) {
+            deadline.future.cancel(false);
+            deadlines.remove(offlineDevice.deadlineMillis);
+        }
+
+        offlineDevice.deadlineMillis = null;
+    }
+
+    /**
+     * The state of a single offline device.
+     */
+    private static class OfflineDevice {
+
+        private final Instant offline;
+
+        private volatile Instant lastNotification;
+        private volatile boolean lastNotificationLoaded;
+        private Long deadlineMillis;
+
+        private OfflineDevice(Instant offline) {
+            this.offline = offline;
+        }
+    }
+
+    /**
+     * The devices that are due at the same instant and the task that notifies them.
+     */
+    private static class Deadline {
+
+        private final Set<Device> devices = new HashSet<>();
+
+        private ScheduledFuture<?> future;
+    }
+}
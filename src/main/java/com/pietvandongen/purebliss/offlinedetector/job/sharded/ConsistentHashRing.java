@@ -0,0 +1,184 @@
+package com.pietvandongen.purebliss.offlinedetector.job.sharded;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable consistent hash ring that assigns every device to one of a set of nodes, based on the device's UUID.
+ * Every node is placed on the ring a number of times, as virtual nodes, so the devices are spread evenly and adding or
+ * removing a node only moves the devices between that node and the others.
+ */
+public final class ConsistentHashRing {
+
+    /**
+     * The number of times every node is placed on the ring, unless configured otherwise.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final Set<String> nodes;
+    private final long[] positions;
+    private final String[] owners;
+
+    private ConsistentHashRing(Set<String> nodes, long[] positions, String[] owners) {
+        this.nodes = nodes;
+        this.positions = positions;
+        this.owners = owners;
+    }
+
+    /**
+     * Creates a ring with the default number of virtual nodes.
+     *
+     * @param nodes The identifiers of the nodes.
+     * @return The ring.
+     */
+    public static ConsistentHashRing of(Collection<String> nodes) {
+        return of(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a ring. The same nodes and number of virtual nodes always result in the same ring, regardless of their
+     * order, so every job instance that is configured alike agrees on who owns which device.
+     *
+     * @param nodes        The identifiers of the nodes.
+     * @param virtualNodes The number of times every node is placed on the ring.
+     * @return The ring.
+     */
+    public static ConsistentHashRing of(Collection<String> nodes, int virtualNodes) {
+        if (nodes == null || nodes.isEmpty() || nodes.contains(null)) {
+            throw new IllegalArgumentException("There should be at least 1 node and nodes cannot be null.");
+        }
+
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("The number of virtual nodes should be at least 1.");
+        }
+
+        Set<String> sortedNodes = new TreeSet<>(nodes);
+        VirtualNode[] virtualNodeArray = sortedNodes.stream()
+                .flatMap(node -> Arrays.stream(createVirtualNodes(node, virtualNodes)))
+                .sorted(Comparator.comparingLong((VirtualNode virtualNode) -> virtualNode.position).thenComparing(virtualNode -> virtualNode.node))
+                .toArray(VirtualNode[]::new);
+        long[] positions = new long[virtualNodeArray.length];
+        String[] owners = new String[virtualNodeArray.length];
+
+        for (int i = 0; i < virtualNodeArray.length; i++) {
+            positions[i] = virtualNodeArray[i].position;
+            owners[i] = virtualNodeArray[i].node;
+        }
+
+        return new ConsistentHashRing(Collections.unmodifiableSet(sortedNodes), positions, owners);
+    }
+
+    /**
+     * Calculates the position of a device on the ring by mixing the bits of its UUID.
+     *
+     * @param device The device.
+     * @return The position of the device.
+     */
+    static long position(Device device) {
+        return mix(device.getUuid().getMostSignificantBits() ^ mix(device.getUuid().getLeastSignificantBits()));
+    }
+
+    /**
+     * Calculates the position of a virtual node on the ring by hashing its name with 64-bit FNV-1a and mixing the
+     * result.
+     *
+     * @param node  The identifier of the node.
+     * @param index The index of the virtual node.
+     * @return The position of the virtual node.
+     */
+    static long position(String node, int index) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : (node + '#' + index).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of a value, using the finalizer of MurmurHash3.
+     *
+     * @param value The value to mix.
+     * @return The mixed value.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+
+        return value;
+    }
+
+    private static VirtualNode[] createVirtualNodes(String node, int virtualNodes) {
+        VirtualNode[] nodeVirtualNodes = new VirtualNode[virtualNodes];
+
+        for (int i = 0; i < virtualNodes; i++) {
+            nodeVirtualNodes[i] = new VirtualNode(position(node, i), node);
+        }
+
+        return nodeVirtualNodes;
+    }
+
+    /**
+     * Finds the node that owns a device, which is the node of the first virtual node at or after the device's position,
+     * wrapping around at the end of the ring.
+     *
+     * @param device The device.
+     * @return The identifier of the owning node.
+     */
+    public String getOwner(Device device) {
+        long position = position(device);
+        int low = 0;
+        int high = positions.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (positions[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return owners[low == positions.length ? 0 : low];
+    }
+
+    /**
+     * @param node   The identifier of the node.
+     * @param device The device.
+     * @return True if the device is owned by the given node, false if not.
+     */
+    public boolean isOwner(String node, Device device) {
+        return getOwner(device).equals(node);
+    }
+
+    /**
+     * @return The identifiers of the nodes on the ring.
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    private static class VirtualNode {
+
+        private final long position;
+        private final String node;
+
+        private VirtualNode(long position, String node) {
+            this.position = position;
+            this.node = node;
+        }
+    }
+}
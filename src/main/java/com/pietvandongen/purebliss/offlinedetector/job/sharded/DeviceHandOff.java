@@ -0,0 +1,50 @@
+package com.pietvandongen.purebliss.offlinedetector.job.sharded;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The state of the offline devices a job instance no longer owns after a rebalance, to be accepted by their new owners.
+ */
+public final class DeviceHandOff {
+
+    private final Map<Device, Instant> offlineDevices;
+    private final Map<Device, Optional<Instant>> lastNotifications;
+
+    /**
+     * Creates a hand-off.
+     *
+     * @param offlineDevices    The offline devices, with the instant they went offline.
+     * @param lastNotifications The instant of the last notification sent for the offline devices, or empty values for
+     *                          devices that weren't notified, as far as known by the previous owner. Devices that are
+     *                          left out are looked up by their new owner.
+     */
+    public DeviceHandOff(Map<Device, Instant> offlineDevices, Map<Device, Optional<Instant>> lastNotifications) {
+        if (offlineDevices == null || lastNotifications == null) {
+            throw new IllegalArgumentException("Offline devices nor last notifications can be null.");
+        }
+
+        this.offlineDevices = Collections.unmodifiableMap(new HashMap<>(offlineDevices));
+        this.lastNotifications = Collections.unmodifiableMap(new HashMap<>(lastNotifications));
+    }
+
+    /**
+     * @return The offline devices, with the instant they went offline.
+     */
+    public Map<Device, Instant> getOfflineDevices() {
+        return offlineDevices;
+    }
+
+    /**
+     * @return The instant of the last notification sent for the offline devices, or empty values for devices that
+     * weren't notified, as far as known by the previous owner.
+     */
+    public Map<Device, Optional<Instant>> getLastNotifications() {
+        return lastNotifications;
+    }
+}
@@ -0,0 +1,305 @@
+package com.pietvandongen.purebliss.offlinedetector.job.sharded;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * Sends out device offline push notifications for the part of the devices owned by a single job instance, so the work
+ * can be spread over multiple instances. Ownership is determined by a consistent hash ring that is shared by all
+ * instances: every instance receives all device events, but ignores those of the devices it doesn't own.
+ * <p>
+ * When nodes join or leave, every instance is rebalanced onto the new ring and hands off the state of the devices it no
+ * longer owns, including the last notifications it sent, so the new owners neither miss nor repeat a notification.
+ * Events should be held back until all hand-offs have been accepted, so none of them is overwritten by a hand-off.
+ */
+public class OfflineDevicesJobImpl implements OfflineDevicesJob {
+
+    private final String node;
+    private final Clock clock;
+    private final PushNotificationService pushNotificationService;
+    private final Map<Device, OfflineDevice> offlineDevices = new ConcurrentHashMap<>();
+    private final ReadWriteLock ownershipLock = new ReentrantReadWriteLock();
+
+    private volatile ConsistentHashRing ring;
+    private volatile ThresholdSchedule thresholdSchedule;
+
+    /**
+     * Injects the job's dependencies and loads the offline devices owned by the given node.
+     *
+     * @param node                    The identifier of the node this job instance runs on.
+     * @param ring                    The ring that determines which devices are owned by which node.
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     */
+    OfflineDevicesJobImpl(
+            String node,
+            ConsistentHashRing ring,
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService
+    ) {
+        if (node == null || ring == null || clock == null || deviceService == null || pushNotificationService == null) {
+            throw new IllegalArgumentException("Node, ring, clock, device service nor push notification service can be null.");
+        }
+
+        this.node = node;
+        this.ring = ring;
+        this.clock = clock;
+        this.pushNotificationService = pushNotificationService;
+
+        deviceService.loadOfflineDevices(
+                clock,
+                OfflineDevicePage.DEFAULT_PAGE_SIZE,
+                page -> page.getDevices().forEach((device, offline) -> {
+                    if (ring.isOwner(node, device)) {
+                        offlineDevices.put(device, new OfflineDevice(offline, null, false));
+                    }
+                }),
+                (device, offline) -> {
+                    if (!ring.isOwner(node, device)) {
+                        return;
+                    }
+
+                    if (offline.isPresent()) {
+                        offlineDevices.put(device, new OfflineDevice(offline.get(), null, false));
+                    } else {
+                        offlineDevices.remove(device);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Checks whether a notification should be sent, like the documented job does.
+     *
+     * @param now               The current instant.
+     * @param deviceOffline     The instant the device went offline.
+     * @param lastNotification  The instant the last notification was sent, or null if none was sent.
+     * @param thresholdSchedule The compiled notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(Instant now, Instant deviceOffline, Instant lastNotification, ThresholdSchedule thresholdSchedule) {
+        int lastPassedThresholdIndex = thresholdSchedule.lastPassedIndex(deviceOffline, now);
+
+        return lastPassedThresholdIndex != ThresholdSchedule.NO_THRESHOLD
+                && (lastNotification == null || lastNotification.isBefore(deviceOffline) || lastPassedThresholdIndex != thresholdSchedule.lastPassedIndex(deviceOffline, lastNotification));
+    }
+
+    /**
+     * Decides which state to keep when a handed off device is already known: the one of the most recent disconnect,
+     * preferring the handed off state if both are of the same disconnect and only the handed off state knows the last
+     * notification.
+     *
+     * @param current   The state known by the new owner.
+     * @param handedOff The state handed off by the previous owner.
+     * @return The state to keep.
+     */
+    private static OfflineDevice merge(OfflineDevice current, OfflineDevice handedOff) {
+        if (handedOff.offline.isAfter(current.offline)) {
+            return handedOff;
+        }
+
+        return handedOff.offline.equals(current.offline) && !current.lastNotificationLoaded ? handedOff : current;
+    }
+
+    /**
+     * Sends push notifications for the owned offline devices, once per passed threshold. The last notifications that
+     * aren't known yet are looked up with a single push notification service call.
+     */
+    @Override
+    public void run() {
+        ThresholdSchedule thresholdSchedule = this.thresholdSchedule;
+
+        if (thresholdSchedule == null) {
+            throw new IllegalStateException("Thresholds cannot be null or empty.");
+        }
+
+        ownershipLock.readLock().lock();
+
+        try {
+            Instant now = clock.instant();
+            Map<Device, OfflineDevice> snapshot = new HashMap<>(offlineDevices);
+            List<Device> devicesToLookUp = snapshot.entrySet().stream()
+                    .filter(offlineDevice -> !offlineDevice.getValue().lastNotificationLoaded)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+
+            if (!devicesToLookUp.isEmpty()) {
+                Map<Device, Instant> lastNotifications = pushNotificationService.getLastOfflineNotificationInstants(devicesToLookUp);
+
+                devicesToLookUp.forEach(device -> {
+                    OfflineDevice offlineDevice = snapshot.get(device);
+                    OfflineDevice loadedOfflineDevice = new OfflineDevice(offlineDevice.offline, lastNotifications.get(device), true);
+
+                    offlineDevices.replace(device, offlineDevice, loadedOfflineDevice);
+                    snapshot.put(device, loadedOfflineDevice);
+                });
+            }
+
+            List<Device> devicesToNotify = snapshot.entrySet().stream()
+                    .filter(offlineDevice -> shouldSendNotification(now, offlineDevice.getValue().offline, offlineDevice.getValue().lastNotification, thresholdSchedule))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+
+            if (!devicesToNotify.isEmpty()) {
+                pushNotificationService.sendOfflineNotifications(devicesToNotify);
+
+                devicesToNotify.forEach(device -> {
+                    OfflineDevice offlineDevice = snapshot.get(device);
+
+                    offlineDevices.replace(device, offlineDevice, new OfflineDevice(offlineDevice.offline, now, true));
+                });
+            }
+        } finally {
+            ownershipLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onDeviceConnect(Device device) {
+        ownershipLock.readLock().lock();
+
+        try {
+            if (ring.isOwner(node, device)) {
+                offlineDevices.remove(device);
+            }
+        } finally {
+            ownershipLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps track of the disconnecting device if it's owned by this job instance. Any notification sent before was
+     * sent before the device went offline again, so its last notification doesn't have to be looked up.
+     *
+     * @param device The disconnecting device.
+     */
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        ownershipLock.readLock().lock();
+
+        try {
+            if (ring.isOwner(node, device)) {
+                offlineDevices.put(device, new OfflineDevice(clock.instant(), null, true));
+            }
+        } finally {
+            ownershipLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        this.thresholdSchedule = ThresholdSchedule.compile(thresholds);
+    }
+
+    /**
+     * Switches to a new ring and removes the devices this job instance no longer owns. Waits for a running job to
+     * finish, so no notification is sent for a device after it has been handed off.
+     *
+     * @param ring The new ring.
+     * @return The state of the devices that are no longer owned, to be accepted by all other job instances.
+     */
+    public DeviceHandOff rebalance(ConsistentHashRing ring) {
+        if (ring == null) {
+            throw new IllegalArgumentException("Ring cannot be null.");
+        }
+
+        ownershipLock.writeLock().lock();
+
+        try {
+            Map<Device, Instant> handedOffDevices = new HashMap<>();
+            Map<Device, Optional<Instant>> lastNotifications = new HashMap<>();
+            Iterator<Map.Entry<Device, OfflineDevice>> iterator = offlineDevices.entrySet().iterator();
+
+            this.ring = ring;
+
+            while (iterator.hasNext()) {
+                Map.Entry<Device, OfflineDevice> offlineDevice = iterator.next();
+
+                if (!ring.isOwner(node, offlineDevice.getKey())) {
+                    handedOffDevices.put(offlineDevice.getKey(), offlineDevice.getValue().offline);
+
+                    if (offlineDevice.getValue().lastNotificationLoaded) {
+                        lastNotifications.put(offlineDevice.getKey(), Optional.ofNullable(offlineDevice.getValue().lastNotification));
+                    }
+
+                    iterator.remove();
+                }
+            }
+
+            return new DeviceHandOff(handedOffDevices, lastNotifications);
+        } finally {
+            ownershipLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes over the handed off devices that are owned by this job instance, ignoring the others.
+     *
+     * @param handOff The hand-off of another job instance.
+     */
+    public void acceptHandOff(DeviceHandOff handOff) {
+        if (handOff == null) {
+            throw new IllegalArgumentException("Hand-off cannot be null.");
+        }
+
+        ownershipLock.writeLock().lock();
+
+        try {
+            handOff.getOfflineDevices().forEach((device, offline) -> {
+                if (ring.isOwner(node, device)) {
+                    Optional<Instant> lastNotification = handOff.getLastNotifications().get(device);
+                    OfflineDevice handedOff = lastNotification == null
+                            ? new OfflineDevice(offline, null, false)
+                            : new OfflineDevice(offline, lastNotification.orElse(null), true);
+
+                    offlineDevices.merge(device, handedOff, OfflineDevicesJobImpl::merge);
+                }
+            });
+        } finally {
+            ownershipLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of offline devices owned by this job instance.
+     */
+    int getOfflineDeviceCount() {
+        return offlineDevices.size();
+    }
+
+    /**
+     * The immutable state of an offline device. It's replaced as a whole, so a run can't overwrite the state of a
+     * device that disconnected again in the meantime.
+     */
+    private static class OfflineDevice {
+
+        private final Instant offline;
+        private final Instant lastNotification;
+        private final boolean lastNotificationLoaded;
+
+        private OfflineDevice(Instant offline, Instant lastNotification, boolean lastNotificationLoaded) {
+            this.offline = offline;
+            this.lastNotification = lastNotification;
+            this.lastNotificationLoaded = lastNotificationLoaded;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.pietvandongen.purebliss.offlinedetector.job.timingwheel;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends out device offline push notifications like the other jobs do, but keeps every offline device scheduled on a
+ * timing wheel at the instant it will pass its next threshold. A run only visits the devices that became due since the
+ * previous run, instead of evaluating every offline device over and over again.
+ * <p>
+ * A device whose notification lookup or notification fails is scheduled to be retried on the next run, while the other
+ * due devices are notified and rescheduled as usual. The failure is thrown once every due device has been handled.
+ */
+public class OfflineDevicesJobImpl implements OfflineDevicesJob {
+
+    private final Clock clock;
+    private final DeviceService deviceService;
+    private final PushNotificationService pushNotificationService;
+    private final Map<Device, Instant> offlineDevices;
+    private final TimingWheel<Device> timingWheel;
+
+    private volatile List<Duration> thresholds = Collections.emptyList();
+
+    /**
+     * Injects the job's dependencies and uses them to configure its initial state. Devices are only scheduled once the
+     * thresholds have been configured.
+     *
+     * @param clock                   The clock to determine the current instant with.
+     * @param deviceService           The device service.
+     * @param pushNotificationService The push notification service.
+     * @param tick                    The resolution of the timing wheel, which is the maximum delay of a notification.
+     */
+    OfflineDevicesJobImpl(
+            Clock clock,
+            DeviceService deviceService,
+            PushNotificationService pushNotificationService,
+            Duration tick
+    ) {
+        if (clock == null || deviceService == null || pushNotificationService == null || tick == null) {
+            throw new IllegalArgumentException("Clock, device service, push notification service nor tick can be null.");
+        }
+
+        this.clock = clock;
+        this.deviceService = deviceService;
+        this.pushNotificationService = pushNotificationService;
+        this.offlineDevices = new ConcurrentHashMap<>();
+        this.timingWheel = new TimingWheel<>(tick.toMillis(), clock.millis());
+
+        deviceService.loadOfflineDevices(clock, OfflineDevicePage.DEFAULT_PAGE_SIZE, page -> offlineDevices.putAll(page.getDevices()), (device, offline) -> {
+            if (offline.isPresent()) {
+                offlineDevices.put(device, offline.get());
+            } else {
+                offlineDevices.remove(device);
+            }
+        });
+    }
+
+    /**
+     * Calculates the last passed threshold given a start point and a current point in time plus a list of thresholds.
+     *
+     * @param start      The start instant to compare the current instant with.
+     * @param current    The current instant to compare with the starting point.
+     * @param thresholds The list of fixed push notification thresholds.
+     * @return The last passed threshold, or empty if no threshold has been passed yet.
+     */
+    static Optional<Duration> calculateLastPassedThreshold(Instant start, Instant current, List<Duration> thresholds) {
+        if (current.isBefore(start) || start.equals(current) || thresholds == null || thresholds.isEmpty()) {
+            throw new IllegalArgumentException("Start must be before current and there should be at least 1 threshold");
+        }
+
+        Duration timePassed = Duration.between(start, current);
+
+        if (timePassed.compareTo(thresholds.get(0)) <= 0) {
+            return Optional.empty();
+        }
+
+        for (int i = 1; i < thresholds.size(); i++) {
+            if (timePassed.compareTo(thresholds.get(i)) <= 0) {
+                return Optional.of(thresholds.get(i - 1));
+            }
+        }
+
+        return Optional.of(thresholds.get(thresholds.size() - 1));
+    }
+
+    /**
+     * Calculates the instant at which the next threshold will be passed, given the instant a device went offline and
+     * the current instant. A threshold counts as passed as soon as more time than the threshold itself has passed.
+     *
+     * @param deviceOffline The instant the device went offline.
+     * @param current       The instant to look for the next threshold crossing from.
+     * @param thresholds    The list of notification thresholds.
+     * @return The instant the next threshold will be passed, or empty if all thresholds have been passed already.
+     */
+    static Optional<Instant> calculateNextThresholdCrossing(Instant deviceOffline, Instant current, List<Duration> thresholds) {
+        if (thresholds == null || thresholds.isEmpty()) {
+            throw new IllegalArgumentException("There should be at least 1 threshold.");
+        }
+
+        return thresholds.stream()
+                .map(threshold -> deviceOffline.plus(threshold).plusNanos(1))
+                .filter(crossing -> crossing.isAfter(current))
+                .findFirst();
+    }
+
+    /**
+     * Checks whether a notification should be sent by determining which threshold has been passed last for the
+     * calculated amount of time passed between the device going offline and the job running, taking the last sent
+     * notification into account.
+     *
+     * @param jobStart         The instant the job calling this function was started.
+     * @param deviceOffline    The instant the device went offline.
+     * @param lastNotification The instant the last notification was sent.
+     * @param thresholds       The list of notification thresholds.
+     * @return True if the notification should be sent, false if not.
+     */
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, Instant lastNotification, List<Duration> thresholds) {
+        if (!lastNotification.isAfter(deviceOffline)) {
+            return shouldSendNotification(jobStart, deviceOffline, thresholds);
+        }
+
+        Optional<Duration> lastPassedThreshold = calculateLastPassedThreshold(deviceOffline, jobStart, thresholds);
+
+        return lastPassedThreshold.isPresent() && !lastPassedThreshold.equals(calculateLastPassedThreshold(deviceOffline, lastNotification, thresholds));
+    }
+
+    /**
+     * Same as {@link OfflineDevicesJobImpl#shouldSendNotification(Instant, Instant, Instant, List)}, but doesn't take
+     * any previously sent push notification into account.
+     *
+     * @see OfflineDevicesJobImpl#shouldSendNotification(Instant, Instant, Instant, List)
+     */
+    static boolean shouldSendNotification(Instant jobStart, Instant deviceOffline, List<Duration> thresholds) {
+        return jobStart.isAfter(deviceOffline) && calculateLastPassedThreshold(deviceOffline, jobStart, thresholds).isPresent();
+    }
+
+    /**
+     * Sends push notifications for the offline devices that passed a threshold since the previous run and schedules
+     * them for their next threshold. Devices that couldn't be notified are scheduled for a retry on the next run
+     * instead.
+     *
+     * @throws RuntimeException The first failure to notify a device, with the failures of other devices suppressed.
+     */
+    @Override
+    public void run() {
+        List<Duration> thresholds = this.thresholds;
+
+        if (thresholds == null || thresholds.isEmpty()) {
+            throw new IllegalStateException("Thresholds cannot be null or empty.");
+        }
+
+        Instant jobStart = Instant.now(clock);
+        List<Device> dueDevices;
+        RuntimeException failure = null;
+
+        synchronized (timingWheel) {
+            dueDevices = timingWheel.advance(jobStart.toEpochMilli());
+        }
+
+        for (Device device : dueDevices) {
+            Instant deviceOffline = offlineDevices.get(device);
+
+            if (deviceOffline == null) {
+                continue;
+            }
+
+            boolean notified = false;
+
+            try {
+                notify(device, deviceOffline, jobStart, thresholds);
+                notified = true;
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, e);
+            } finally {
+                synchronized (timingWheel) {
+                    if (deviceOffline.equals(offlineDevices.get(device))) {
+                        if (notified) {
+                            scheduleNextThreshold(device, deviceOffline, jobStart);
+                        } else {
+                            timingWheel.schedule(device, jobStart.toEpochMilli());
+                        }
+                    }
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void onDeviceConnect(Device device) {
+        synchronized (timingWheel) {
+            this.offlineDevices.remove(device);
+            this.timingWheel.cancel(device);
+        }
+    }
+
+    @Override
+    public void onDeviceDisconnect(Device device) {
+        Instant deviceOffline = Instant.now(clock);
+
+        synchronized (timingWheel) {
+            this.offlineDevices.put(device, deviceOffline);
+
+            if (!thresholds.isEmpty()) {
+                scheduleNextThreshold(device, deviceOffline, deviceOffline);
+            }
+        }
+    }
+
+    /**
+     * Configures the thresholds for the job and reschedules every offline device for its first threshold, so the next
+     * run re-evaluates the devices that already passed one or more of the new thresholds.
+     *
+     * @param thresholds The thresholds to be used by the job.
+     */
+    @Override
+    public void onConfigurationUpdate(List<Duration> thresholds) {
+        if (thresholds == null || thresholds.isEmpty()) {
+            throw new IllegalArgumentException("There should be at least 1 threshold.");
+        }
+
+        List<Duration> thresholdsSnapshot = Collections.unmodifiableList(new ArrayList<>(thresholds));
+
+        synchronized (timingWheel) {
+            this.thresholds = thresholdsSnapshot;
+
+            offlineDevices.forEach((device, deviceOffline) -> scheduleNextThreshold(device, deviceOffline, deviceOffline));
+        }
+    }
+
+    /**
+     * @return The number of devices that are scheduled for a notification.
+     */
+    int getScheduledDeviceCount() {
+        synchronized (timingWheel) {
+            return timingWheel.size();
+        }
+    }
+
+    private void notify(Device device, Instant deviceOffline, Instant jobStart, List<Duration> thresholds) {
+        boolean shouldSendNotification = pushNotificationService.getLastOfflineNotificationInstant(device)
+                .map(notification -> shouldSendNotification(jobStart, deviceOffline, notification, thresholds))
+                .orElseGet(() -> shouldSendNotification(jobStart, deviceOffline, thresholds));
+
+        if (shouldSendNotification) {
+            pushNotificationService.sendOfflineNotification(device);
+        }
+    }
+
+    private static RuntimeException addFailure(RuntimeException failure, RuntimeException e) {
+        if (failure == null) {
+            return e;
+        }
+
+        failure.addSuppressed(e);
+
+        return failure;
+    }
+
+    private void scheduleNextThreshold(Device device, Instant deviceOffline, Instant current) {
+        Optional<Instant> nextThresholdCrossing = calculateNextThresholdCrossing(deviceOffline, current, thresholds);
+
+        if (nextThresholdCrossing.isPresent()) {
+            timingWheel.schedule(device, toEpochMillisRoundedUp(nextThresholdCrossing.get()));
+        } else {
+            timingWheel.cancel(device);
+        }
+    }
+
+    private static long toEpochMillisRoundedUp(Instant instant) {
+        return instant.getNano() % 1_000_000 == 0 ? instant.toEpochMilli() : instant.toEpochMilli() + 1;
+    }
+}
@@ -0,0 +1,220 @@
+package com.pietvandongen.purebliss.offlinedetector.job.timingwheel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A hierarchical timing wheel that keeps track of a single deadline per item. Scheduling and cancelling an item take
+ * constant time and advancing the wheel only visits buckets that actually expired, so the cost of an advance is
+ * proportional to the number of due items instead of the number of scheduled items.
+ * <p>
+ * Items never expire before their deadline, but may expire up to one tick after it. Items scheduled with a deadline
+ * that has already passed expire on the next advance. This class is not thread-safe.
+ *
+ * @param <T> The type of the scheduled items.
+ */
+class TimingWheel<T> {
+
+    static final int WHEEL_SIZE = 64;
+
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+    private final PriorityQueue<Bucket<T>> expiringBuckets = new PriorityQueue<>();
+    private final List<Entry<T>> overdueEntries = new ArrayList<>();
+    private final long tickMillis;
+    private final Level<T> lowestLevel;
+
+    /**
+     * Creates a timing wheel.
+     *
+     * @param tickMillis  The resolution of the lowest level of the wheel, in milliseconds.
+     * @param startMillis The epoch millis the wheel starts at.
+     */
+    TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("The tick should be at least 1 millisecond.");
+        }
+
+        this.tickMillis = tickMillis;
+        this.lowestLevel = new Level<>(tickMillis, startMillis, expiringBuckets);
+    }
+
+    /**
+     * Schedules an item to expire at the given deadline, replacing any deadline it was scheduled at before.
+     *
+     * @param item           The item to schedule.
+     * @param deadlineMillis The epoch millis the item should expire at.
+     */
+    void schedule(T item, long deadlineMillis) {
+        cancel(item);
+
+        Entry<T> entry = new Entry<>(item, ceilToTick(deadlineMillis));
+
+        if (!lowestLevel.add(entry)) {
+            overdueEntries.add(entry);
+        }
+
+        entries.put(item, entry);
+    }
+
+    /**
+     * Removes an item from the wheel, if it was scheduled.
+     *
+     * @param item The item to cancel.
+     */
+    void cancel(T item) {
+        Entry<T> entry = entries.remove(item);
+
+        if (entry != null && entry.bucket != null) {
+            entry.bucket.entries.remove(entry);
+        }
+    }
+
+    /**
+     * Advances the wheel to the given instant, cascading entries of higher levels down as their buckets expire.
+     *
+     * @param nowMillis The epoch millis to advance the wheel to.
+     * @return The items whose deadline has passed, which are no longer scheduled.
+     */
+    List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        Bucket<T> bucket;
+
+        for (Entry<T> entry : overdueEntries) {
+            if (entries.remove(entry.item, entry)) {
+                expired.add(entry.item);
+            }
+        }
+
+        overdueEntries.clear();
+
+        while ((bucket = expiringBuckets.peek()) != null && bucket.expiration <= nowMillis) {
+            expiringBuckets.poll();
+            lowestLevel.advanceClock(bucket.expiration);
+
+            for (Entry<T> entry : bucket.flush()) {
+                if (!lowestLevel.add(entry)) {
+                    entries.remove(entry.item);
+                    expired.add(entry.item);
+                }
+            }
+        }
+
+        lowestLevel.advanceClock(nowMillis);
+
+        return expired;
+    }
+
+    /**
+     * @return The number of scheduled items.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private long ceilToTick(long millis) {
+        return Math.floorDiv(millis + tickMillis - 1, tickMillis) * tickMillis;
+    }
+
+    private static class Entry<T> {
+
+        private final T item;
+        private final long expiration;
+
+        private Bucket<T> bucket;
+
+        private Entry(T item, long expiration) {
+            this.item = item;
+            this.expiration = expiration;
+        }
+    }
+
+    private static class Bucket<T> implements Comparable<Bucket<T>> {
+
+        private final Set<Entry<T>> entries = new HashSet<>();
+
+        private long expiration = -1;
+
+        private void add(Entry<T> entry) {
+            entry.bucket = this;
+            entries.add(entry);
+        }
+
+        private List<Entry<T>> flush() {
+            List<Entry<T>> flushed = new ArrayList<>(entries);
+
+            entries.clear();
+            expiration = -1;
+            flushed.forEach(entry -> entry.bucket = null);
+
+            return flushed;
+        }
+
+        @Override
+        public int compareTo(Bucket<T> other) {
+            return Long.compare(expiration, other.expiration);
+        }
+    }
+
+    private static class Level<T> {
+
+        private final long tickMillis;
+        private final long intervalMillis;
+        private final PriorityQueue<Bucket<T>> expiringBuckets;
+        private final List<Bucket<T>> buckets = new ArrayList<>(WHEEL_SIZE);
+
+        private long currentMillis;
+        private Level<T> overflowLevel;
+
+        private Level(long tickMillis, long startMillis, PriorityQueue<Bucket<T>> expiringBuckets) {
+            this.tickMillis = tickMillis;
+            this.intervalMillis = tickMillis * WHEEL_SIZE;
+            this.expiringBuckets = expiringBuckets;
+            this.currentMillis = startMillis - Math.floorMod(startMillis, tickMillis);
+
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets.add(new Bucket<>());
+            }
+        }
+
+        private boolean add(Entry<T> entry) {
+            if (entry.expiration < currentMillis + tickMillis) {
+                return false;
+            }
+
+            if (entry.expiration < currentMillis + intervalMillis) {
+                long virtualId = Math.floorDiv(entry.expiration, tickMillis);
+                Bucket<T> bucket = buckets.get((int) Math.floorMod(virtualId, (long) WHEEL_SIZE));
+
+                bucket.add(entry);
+
+                if (bucket.expiration != virtualId * tickMillis) {
+                    bucket.expiration = virtualId * tickMillis;
+                    expiringBuckets.add(bucket);
+                }
+
+                return true;
+            }
+
+            if (overflowLevel == null) {
+                overflowLevel = new Level<>(intervalMillis, currentMillis, expiringBuckets);
+            }
+
+            return overflowLevel.add(entry);
+        }
+
+        private void advanceClock(long millis) {
+            if (millis >= currentMillis + tickMillis) {
+                currentMillis = millis - Math.floorMod(millis, tickMillis);
+
+                if (overflowLevel != null) {
+                    overflowLevel.advanceClock(currentMillis);
+                }
+            }
+        }
+    }
+}
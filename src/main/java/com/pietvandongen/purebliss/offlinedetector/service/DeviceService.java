@@ -2,8 +2,17 @@ package com.pietvandongen.purebliss.offlinedetector.service;
 
 import com.pietvandongen.purebliss.offlinedetector.domain.Device;
 
+import java.time.Clock;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface DeviceService {
 
@@ -13,4 +22,102 @@ public interface DeviceService {
      * @return The map of offline devices.
      */
     Map<Device, Instant> getOfflineDevices();
+
+    /**
+     * Gets a page of offline devices, so neither the service nor its caller has to hold all offline devices at once.
+     * Falls back to returning all offline devices in a single page, so implementations that support paging should
+     * override this method. That page has no instant from which changes may be missing, so the caller takes it itself.
+     *
+     * @param cursor   The cursor of the page to get, as returned with the previous page, or null for the first page.
+     * @param pageSize The maximum number of devices in the page.
+     * @return The page of offline devices.
+     */
+    default OfflineDevicePage getOfflineDevicePage(String cursor, int pageSize) {
+        return new OfflineDevicePage(getOfflineDevices(), null);
+    }
+
+    /**
+     * Streams the pages of offline devices. A page is only requested once the previous one has been consumed, so
+     * callers can process the first pages before the last one has been requested.
+     *
+     * @param pageSize The maximum number of devices per page.
+     * @return The stream of pages.
+     */
+    default Stream<OfflineDevicePage> getOfflineDevicePages(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size should be at least 1.");
+        }
+
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<OfflineDevicePage>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private OfflineDevicePage page;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super OfflineDevicePage> action) {
+                if (page != null && !page.getNextCursor().isPresent()) {
+                    return false;
+                }
+
+                page = getOfflineDevicePage(page == null ? null : page.getNextCursor().get(), pageSize);
+                action.accept(page);
+
+                return true;
+            }
+        }, false);
+    }
+
+    /**
+     * Loads the offline devices page by page and then catches up with the devices that connected or disconnected while
+     * the pages were read, from the instant of the first page on. If the first page has no such instant, the instant
+     * the loading started at is taken from the given clock. If the service doesn't keep track of changes, those changes
+     * are missed until the devices connect or disconnect again.
+     * <p>
+     * All pages are read before this method returns. Jobs that should be able to run before the last page has been
+     * read call it on a background task and evaluate the pages that have been consumed so far.
+     *
+     * @param clock    The clock to take the instant the loading started at with.
+     * @param pageSize The maximum number of devices per page.
+     * @param pages    The consumer of the pages.
+     * @param changes  The consumer of the changes, with the instant a changed device went offline, or empty if it's
+     *                 online again.
+     */
+    default void loadOfflineDevices(Clock clock, int pageSize, Consumer<OfflineDevicePage> pages, BiConsumer<Device, Optional<Instant>> changes) {
+        Instant loadStart = clock.instant();
+        Instant changesSince = null;
+
+        for (Iterator<OfflineDevicePage> iterator = getOfflineDevicePages(pageSize).iterator(); iterator.hasNext(); ) {
+            OfflineDevicePage page = iterator.next();
+
+            if (changesSince == null) {
+                changesSince = page.getChangesSince().orElse(loadStart);
+            }
+
+            pages.accept(page);
+        }
+
+        if (supportsOfflineDeviceChanges()) {
+            getOfflineDeviceChangesSince(changesSince).forEach(changes);
+        }
+    }
+
+    /**
+     * @return True if the service keeps track of the devices that connected or disconnected, so they can be looked up
+     * with {@link DeviceService#getOfflineDeviceChangesSince(Instant)}, false if it doesn't.
+     */
+    default boolean supportsOfflineDeviceChanges() {
+        return false;
+    }
+
+    /**
+     * Gets the devices that connected or disconnected since the given instant. This is an optional operation, meant
+     * for jobs that keep their own state and only need to catch up with the changes they missed. It's only supported
+     * if {@link DeviceService#supportsOfflineDeviceChanges()} returns true.
+     *
+     * @param since The instant to get the changes since.
+     * @return A map with the changed devices as keys and the instant they went offline as values, or empty values for
+     * devices that are online again.
+     * @throws UnsupportedOperationException If the service doesn't keep track of changes.
+     */
+    default Map<Device, Optional<Instant>> getOfflineDeviceChangesSince(Instant since) {
+        throw new UnsupportedOperationException("Getting offline device changes is not supported.");
+    }
 }
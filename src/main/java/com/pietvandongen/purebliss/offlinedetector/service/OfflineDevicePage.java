@@ -0,0 +1,82 @@
+package com.pietvandongen.purebliss.offlinedetector.service;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A page of offline devices, as returned by {@link DeviceService#getOfflineDevicePage(String, int)}.
+ */
+public final class OfflineDevicePage {
+
+    /**
+     * The number of devices per page jobs ask for when loading the offline devices.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 10_000;
+
+    private final Map<Device, Instant> devices;
+    private final String nextCursor;
+    private final Instant changesSince;
+
+    /**
+     * Creates a page without an instant from which changes may be missing, for services that don't keep track of
+     * changes. The devices aren't copied, so the page takes over the map and the caller shouldn't change it afterwards.
+     *
+     * @param devices    The offline devices in the page, with the instant they went offline.
+     * @param nextCursor The cursor of the next page, or null if this is the last page.
+     */
+    public OfflineDevicePage(Map<Device, Instant> devices, String nextCursor) {
+        if (devices == null) {
+            throw new IllegalArgumentException("Devices cannot be null.");
+        }
+
+        this.devices = Collections.unmodifiableMap(devices);
+        this.nextCursor = nextCursor;
+        this.changesSince = null;
+    }
+
+    /**
+     * Creates a page. The devices aren't copied, so the page takes over the map and the caller shouldn't change it
+     * afterwards.
+     *
+     * @param devices      The offline devices in the page, with the instant they went offline.
+     * @param nextCursor   The cursor of the next page, or null if this is the last page.
+     * @param changesSince The instant from which changes may be missing from the pages, which should be taken before
+     *                     the first page is read.
+     */
+    public OfflineDevicePage(Map<Device, Instant> devices, String nextCursor, Instant changesSince) {
+        if (devices == null || changesSince == null) {
+            throw new IllegalArgumentException("Devices nor changes since can be null.");
+        }
+
+        this.devices = Collections.unmodifiableMap(devices);
+        this.nextCursor = nextCursor;
+        this.changesSince = changesSince;
+    }
+
+    /**
+     * @return The offline devices in the page, with the instant they went offline.
+     */
+    public Map<Device, Instant> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return The cursor of the next page, or empty if this is the last page.
+     */
+    public Optional<String> getNextCursor() {
+        return Optional.ofNullable(nextCursor);
+    }
+
+    /**
+     * @return The instant from which changes may be missing from the pages, or empty if the service that returned the
+     * page doesn't know it. The changes can be looked up with
+     * {@link DeviceService#getOfflineDeviceChangesSince(Instant)}.
+     */
+    public Optional<Instant> getChangesSince() {
+        return Optional.ofNullable(changesSince);
+    }
+}
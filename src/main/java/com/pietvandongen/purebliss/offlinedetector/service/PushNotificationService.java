@@ -3,7 +3,11 @@ package com.pietvandongen.purebliss.offlinedetector.service;
 import com.pietvandongen.purebliss.offlinedetector.domain.Device;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface PushNotificationService {
 
@@ -21,4 +25,66 @@ public interface PushNotificationService {
      * @return The last offline notification, or empty if is not present.
      */
     Optional<Instant> getLastOfflineNotificationInstant(Device device);
+
+    /**
+     * Sends offline notifications for a batch of devices. Falls back to sending them one by one, so implementations
+     * that support bulk requests should override this method.
+     *
+     * @param devices The devices to send the notifications for.
+     */
+    default void sendOfflineNotifications(Collection<Device> devices) {
+        devices.forEach(this::sendOfflineNotification);
+    }
+
+    /**
+     * Sends offline notifications for a batch of devices without waiting for the push gateway to respond. Falls back to
+     * sending them on the calling thread, so implementations that can send asynchronously should override this method.
+     *
+     * @param devices The devices to send the notifications for.
+     * @return A future that completes when the notifications have been sent, or completes exceptionally if sending
+     * them failed.
+     */
+    default CompletableFuture<Void> sendOfflineNotificationsAsync(Collection<Device> devices) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        try {
+            sendOfflineNotifications(devices);
+            future.complete(null);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a single notification for a group of devices that went offline in the same outage, instead of one per
+     * device. Implementations should remember it as the last offline notification of every device in it. Falls back to
+     * sending a notification per device, so implementations that support aggregated notifications should override this
+     * method.
+     *
+     * @param group       The group of devices that is suffering the outage.
+     * @param outageStart The instant the outage was detected.
+     * @param devices     The devices of the outage to send the notification for.
+     */
+    default void sendOutageNotification(String group, Instant outageStart, Collection<Device> devices) {
+        sendOfflineNotifications(devices);
+    }
+
+    /**
+     * Gets the last offline notifications for a batch of devices. Falls back to getting them one by one, so
+     * implementations that support bulk requests should override this method.
+     *
+     * @param devices The devices to get the last offline notifications for.
+     * @return A map with the devices as keys and their last offline notification as values. Devices for which no
+     * notification was ever sent are left out.
+     */
+    default Map<Device, Instant> getLastOfflineNotificationInstants(Collection<Device> devices) {
+        Map<Device, Instant> lastOfflineNotificationInstants = new HashMap<>();
+
+        devices.forEach(device -> getLastOfflineNotificationInstant(device)
+                .ifPresent(instant -> lastOfflineNotificationInstants.put(device, instant)));
+
+        return lastOfflineNotificationInstants;
+    }
 }
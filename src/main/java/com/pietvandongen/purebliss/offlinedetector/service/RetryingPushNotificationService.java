@@ -0,0 +1,267 @@
+package com.pietvandongen.purebliss.offlinedetector.service;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stands between a job and the push notification service and sends the batches of offline notifications through the
+ * service's asynchronous call, with at most a fixed number of batches in flight. Callers that would exceed the
+ * in-flight window wait until a batch has completed, so a slow push gateway slows the job down instead of piling up
+ * requests. Failed batches are retried with an exponential, jittered backoff.
+ * <p>
+ * The asynchronous call returns as soon as the batch is in flight. The other calls wait for the batch to be sent, so a
+ * job that notifies its batches concurrently, such as an asynchronous run on an executor with several threads,
+ * evaluates the next batches while the previous ones are being sent, and only takes the notifications that the push
+ * gateway accepted as sent.
+ * <p>
+ * A push gateway can fail a batch after it accepted part of it. Before a retry, the last notifications of the batch
+ * are looked up, and devices that were notified since the batch was first sent are left out, so they aren't notified
+ * twice. If that lookup fails too, the whole batch is retried, which can still notify some devices twice.
+ */
+public class RetryingPushNotificationService implements PushNotificationService {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final Duration DEFAULT_BASE_BACKOFF = Duration.ofMillis(100);
+    public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(10);
+
+    private final PushNotificationService pushNotificationService;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+    private final Semaphore inFlightWindow;
+    private final int maxAttempts;
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+
+    /**
+     * Creates a service with the default in-flight window, attempts and backoff.
+     *
+     * @param pushNotificationService The push notification service to send the notifications to.
+     * @param scheduler               The scheduler to schedule the retries on.
+     */
+    public RetryingPushNotificationService(PushNotificationService pushNotificationService, ScheduledExecutorService scheduler) {
+        this(pushNotificationService, scheduler, Clock.systemUTC(), DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Creates a service.
+     *
+     * @param pushNotificationService The push notification service to send the notifications to.
+     * @param scheduler               The scheduler to schedule the retries on.
+     * @param clock                   The clock to determine the instant a batch is first sent with.
+     * @param maxInFlight             The maximum number of batches that are sent at the same time.
+     * @param maxAttempts             The maximum number of times a batch is sent before giving up.
+     * @param baseBackoff             The backoff before the first retry, which doubles with every next retry.
+     * @param maxBackoff              The maximum backoff before a retry.
+     */
+    public RetryingPushNotificationService(
+            PushNotificationService pushNotificationService,
+            ScheduledExecutorService scheduler,
+            Clock clock,
+            int maxInFlight,
+            int maxAttempts,
+            Duration baseBackoff,
+            Duration maxBackoff
+    ) {
+        if (pushNotificationService == null || scheduler == null || clock == null || baseBackoff == null || maxBackoff == null) {
+            throw new IllegalArgumentException("Push notification service, scheduler, clock, base backoff nor max backoff can be null.");
+        }
+
+        if (maxInFlight < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("The maximum number of batches in flight and attempts should be at least 1.");
+        }
+
+        if (baseBackoff.isNegative() || maxBackoff.compareTo(baseBackoff) < 0) {
+            throw new IllegalArgumentException("The base backoff cannot be negative or exceed the max backoff.");
+        }
+
+        this.pushNotificationService = pushNotificationService;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.inFlightWindow = new Semaphore(maxInFlight);
+        this.maxAttempts = maxAttempts;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Calculates the backoff before a retry: the base backoff doubled for every earlier retry and capped at the max
+     * backoff, of which a random part of up to half is left out. The jitter keeps batches that failed at the same time
+     * from being retried at the same time.
+     *
+     * @param attempt     The attempt that failed, starting at 1.
+     * @param baseBackoff The backoff before the first retry.
+     * @param maxBackoff  The maximum backoff before a retry.
+     * @param random      A random number from 0 (inclusive) to 1 (exclusive).
+     * @return The backoff before the next attempt.
+     */
+    static Duration calculateBackoff(int attempt, Duration baseBackoff, Duration maxBackoff, double random) {
+        if (attempt < 1 || random < 0 || random >= 1) {
+            throw new IllegalArgumentException("The attempt should be at least 1 and the random number from 0 to 1.");
+        }
+
+        long baseNanos = baseBackoff.toNanos();
+        long maxNanos = maxBackoff.toNanos();
+        int doublings = Math.min(attempt - 1, 62);
+        long backoffNanos = baseNanos > maxNanos >> doublings ? maxNanos : baseNanos << doublings;
+
+        return Duration.ofNanos(backoffNanos - (long) (backoffNanos / 2 * random));
+    }
+
+    /**
+     * Sends the notification of a single device as a batch, waiting until it has been sent.
+     */
+    @Override
+    public void sendOfflineNotification(Device device) {
+        sendOfflineNotifications(Collections.singletonList(device));
+    }
+
+    /**
+     * Sends a batch of notifications, waiting until it has been sent. A failure is thrown as it was thrown by the push
+     * notification service on the last attempt.
+     */
+    @Override
+    public void sendOfflineNotifications(Collection<Device> devices) {
+        try {
+            sendOfflineNotificationsAsync(devices).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a batch of notifications, waiting for room in the in-flight window first.
+     *
+     * @return A future that completes when the notifications have been sent, or completes exceptionally with the last
+     * failure once all attempts have failed.
+     * @throws IllegalStateException If the thread was interrupted while waiting for room in the in-flight window.
+     */
+    @Override
+    public CompletableFuture<Void> sendOfflineNotificationsAsync(Collection<Device> devices) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        try {
+            inFlightWindow.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted while waiting to send notifications.", e);
+        }
+
+        result.whenComplete((ignored, failure) -> inFlightWindow.release());
+        attempt(new ArrayList<>(devices), clock.instant(), 1, result);
+
+        return result;
+    }
+
+    @Override
+    public void sendOutageNotification(String group, Instant outageStart, Collection<Device> devices) {
+        pushNotificationService.sendOutageNotification(group, outageStart, devices);
+    }
+
+    @Override
+    public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+        return pushNotificationService.getLastOfflineNotificationInstant(device);
+    }
+
+    @Override
+    public Map<Device, Instant> getLastOfflineNotificationInstants(Collection<Device> devices) {
+        return pushNotificationService.getLastOfflineNotificationInstants(devices);
+    }
+
+    /**
+     * Leaves out the devices of a batch that were notified since the given instant, according to the push
+     * notification service.
+     *
+     * @param devices The devices of the batch.
+     * @param since   The instant from which a notification counts as sent by the batch.
+     * @return The devices that still have to be notified, or all devices if the lookup failed.
+     */
+    private List<Device> selectUnsentDevices(List<Device> devices, Instant since) {
+        Map<Device, Instant> lastNotifications;
+
+        try {
+            lastNotifications = pushNotificationService.getLastOfflineNotificationInstants(devices);
+        } catch (RuntimeException e) {
+            return devices;
+        }
+
+        return devices.stream()
+                .filter(device -> {
+                    Instant lastNotification = lastNotifications.get(device);
+
+                    return lastNotification == null || lastNotification.isBefore(since);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return The number of batches that can be sent before the in-flight window is full.
+     */
+    int getAvailableInFlight() {
+        return inFlightWindow.availablePermits();
+    }
+
+    private void attempt(List<Device> devices, Instant since, int attempt, CompletableFuture<Void> result) {
+        List<Device> unsentDevices = attempt == 1 ? devices : selectUnsentDevices(devices, since);
+
+        if (unsentDevices.isEmpty()) {
+            result.complete(null);
+
+            return;
+        }
+
+        sendAsync(unsentDevices).whenComplete((ignored, failure) -> {
+            if (failure == null) {
+                result.complete(null);
+            } else if (attempt >= maxAttempts) {
+                result.completeExceptionally(failure);
+            } else {
+                Duration backoff = calculateBackoff(attempt, baseBackoff, maxBackoff, ThreadLocalRandom.current().nextDouble());
+
+                try {
+                    scheduler.schedule(() -> attempt(unsentDevices, since, attempt + 1, result), backoff.toNanos(), TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(failure);
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<Void> sendAsync(List<Device> devices) {
+        try {
+            return pushNotificationService.sendOfflineNotificationsAsync(devices);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+
+            future.completeExceptionally(e);
+
+            return future;
+        }
+    }
+}
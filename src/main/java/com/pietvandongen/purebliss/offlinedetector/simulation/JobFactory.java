@@ -0,0 +1,22 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+
+/**
+ * Creates a job to simulate, wired to the simulation's clock and services.
+ */
+@FunctionalInterface
+public interface JobFactory {
+
+    /**
+     * @param clock                   The virtual clock the job should determine the current instant with.
+     * @param deviceService           The device service, which has no offline devices when the simulation starts.
+     * @param pushNotificationService The push notification service, which records the notifications per run.
+     * @return The job.
+     */
+    OfflineDevicesJob create(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService);
+}
@@ -0,0 +1,62 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A push notification service that remembers the last notification of every device at the instant of the simulation's
+ * clock, and collects the devices notified since the last run was finished.
+ */
+class RecordingPushNotificationService implements PushNotificationService {
+
+    private final Clock clock;
+    private final Map<Device, Instant> lastNotifications = new ConcurrentHashMap<>();
+    private final Set<Device> notifiedDevices = ConcurrentHashMap.newKeySet();
+    private final LongAdder notificationCount = new LongAdder();
+
+    /**
+     * @param clock The clock to timestamp the notifications with.
+     */
+    RecordingPushNotificationService(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void sendOfflineNotification(Device device) {
+        lastNotifications.put(device, clock.instant());
+        notifiedDevices.add(device);
+        notificationCount.increment();
+    }
+
+    @Override
+    public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+        return Optional.ofNullable(lastNotifications.get(device));
+    }
+
+    /**
+     * @return The devices notified since this method was last called.
+     */
+    Set<Device> finishRun() {
+        Set<Device> devices = new HashSet<>(notifiedDevices);
+
+        notifiedDevices.removeAll(devices);
+
+        return devices;
+    }
+
+    /**
+     * @return The total number of sent notifications.
+     */
+    long getNotificationCount() {
+        return notificationCount.sum();
+    }
+}
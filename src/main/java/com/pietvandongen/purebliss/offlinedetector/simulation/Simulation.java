@@ -0,0 +1,224 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace of connect and disconnect events through one or more jobs at virtual time. Every job gets its own
+ * virtual clock and services, receives every event at the event's instant and is run at a fixed virtual interval, so a
+ * day of events is replayed as fast as the jobs can handle them.
+ * <p>
+ * The jobs are replayed in lock-step. After every run, the devices each job notified are compared with those the first
+ * job notified, so the decisions of an implementation can be checked against a reference implementation.
+ */
+public final class Simulation {
+
+    static final int DEFAULT_MAX_DECISION_DIFFS = 100;
+
+    private final List<Duration> thresholds;
+    private final Duration runInterval;
+    private final int maxDecisionDiffs;
+    private final Map<String, JobFactory> jobFactories = new LinkedHashMap<>();
+
+    /**
+     * Creates a simulation that keeps the default number of decision diffs.
+     *
+     * @param thresholds  The thresholds to configure every job with.
+     * @param runInterval The virtual time between runs.
+     */
+    public Simulation(List<Duration> thresholds, Duration runInterval) {
+        this(thresholds, runInterval, DEFAULT_MAX_DECISION_DIFFS);
+    }
+
+    /**
+     * Creates a simulation.
+     *
+     * @param thresholds       The thresholds to configure every job with.
+     * @param runInterval      The virtual time between runs.
+     * @param maxDecisionDiffs The maximum number of decision diffs to keep in the report; all are counted.
+     */
+    public Simulation(List<Duration> thresholds, Duration runInterval, int maxDecisionDiffs) {
+        if (thresholds == null || runInterval == null) {
+            throw new IllegalArgumentException("Thresholds nor run interval can be null.");
+        }
+
+        if (runInterval.isNegative() || runInterval.isZero() || maxDecisionDiffs < 0) {
+            throw new IllegalArgumentException("The run interval should be positive and the maximum number of decision diffs cannot be negative.");
+        }
+
+        this.thresholds = new ArrayList<>(thresholds);
+        this.runInterval = runInterval;
+        this.maxDecisionDiffs = maxDecisionDiffs;
+    }
+
+    /**
+     * Adds a job to the simulation. The first job added is the reference the others are compared with.
+     *
+     * @param name       The unique name of the job in the report.
+     * @param jobFactory The factory that creates the job.
+     * @return This simulation.
+     */
+    public Simulation addJob(String name, JobFactory jobFactory) {
+        if (name == null || jobFactory == null) {
+            throw new IllegalArgumentException("Name nor job factory can be null.");
+        }
+
+        if (jobFactories.putIfAbsent(name, jobFactory) != null) {
+            throw new IllegalArgumentException("There already is a job named " + name + ".");
+        }
+
+        return this;
+    }
+
+    /**
+     * Replays a trace. The jobs are created at the start instant and run at every run interval after it, up to and
+     * including the end instant. Events after the end instant are not replayed.
+     *
+     * @param start The virtual instant the simulation starts at.
+     * @param end   The virtual instant the simulation ends at.
+     * @param trace The events to replay, ordered by instant and not before the start instant.
+     * @return The report of the simulation.
+     */
+    public SimulationReport run(Instant start, Instant end, Iterator<TraceEvent> trace) {
+        if (jobFactories.isEmpty()) {
+            throw new IllegalStateException("There should be at least 1 job.");
+        }
+
+        List<SimulatedJob> jobs = new ArrayList<>();
+
+        jobFactories.forEach((name, jobFactory) -> jobs.add(new SimulatedJob(name, jobFactory, start, thresholds)));
+
+        List<SimulationReport.DecisionDiff> decisionDiffs = new ArrayList<>();
+        Instant nextRun = start.plus(runInterval);
+        Instant previousEvent = start;
+        long eventCount = 0;
+        long runCount = 0;
+
+        while (trace.hasNext()) {
+            TraceEvent event = trace.next();
+
+            if (event.getInstant().isBefore(previousEvent)) {
+                throw new IllegalArgumentException("Events should be ordered by instant and cannot be before the start instant.");
+            }
+
+            if (event.getInstant().isAfter(end)) {
+                break;
+            }
+
+            for (; !nextRun.isAfter(event.getInstant()); nextRun = nextRun.plus(runInterval)) {
+                run(jobs, nextRun, decisionDiffs);
+                runCount++;
+            }
+
+            for (SimulatedJob job : jobs) {
+                job.replay(event);
+            }
+
+            previousEvent = event.getInstant();
+            eventCount++;
+        }
+
+        for (; !nextRun.isAfter(end); nextRun = nextRun.plus(runInterval)) {
+            run(jobs, nextRun, decisionDiffs);
+            runCount++;
+        }
+
+        Map<String, SimulationReport.JobReport> jobReports = new LinkedHashMap<>();
+
+        for (SimulatedJob job : jobs) {
+            jobReports.put(job.name, new SimulationReport.JobReport(job.name, eventCount, job.pushNotificationService.getNotificationCount(), job.decisionDiffCount, job.elapsedNanos));
+        }
+
+        return new SimulationReport(eventCount, runCount, jobReports, decisionDiffs);
+    }
+
+    /**
+     * Runs every job at the given instant and compares the devices they notified with those of the first job.
+     *
+     * @param jobs          The jobs.
+     * @param instant       The virtual instant of the run.
+     * @param decisionDiffs The decision diffs found so far.
+     */
+    private void run(List<SimulatedJob> jobs, Instant instant, List<SimulationReport.DecisionDiff> decisionDiffs) {
+        Set<Device> reference = jobs.get(0).run(instant);
+
+        for (SimulatedJob job : jobs.subList(1, jobs.size())) {
+            Set<Device> notified = job.run(instant);
+
+            collectDecisionDiffs(job, instant, notified, reference, true, decisionDiffs);
+            collectDecisionDiffs(job, instant, reference, notified, false, decisionDiffs);
+        }
+    }
+
+    private void collectDecisionDiffs(SimulatedJob job, Instant instant, Set<Device> devices, Set<Device> otherDevices, boolean notified, List<SimulationReport.DecisionDiff> decisionDiffs) {
+        for (Device device : devices) {
+            if (!otherDevices.contains(device)) {
+                job.decisionDiffCount++;
+
+                if (decisionDiffs.size() < maxDecisionDiffs) {
+                    decisionDiffs.add(new SimulationReport.DecisionDiff(job.name, instant, device, notified));
+                }
+            }
+        }
+    }
+
+    /**
+     * A job with its own virtual clock and services, and the time spent in it.
+     */
+    private static class SimulatedJob {
+
+        private final String name;
+        private final VirtualClock clock;
+        private final RecordingPushNotificationService pushNotificationService;
+        private final OfflineDevicesJob job;
+
+        private long elapsedNanos;
+        private long decisionDiffCount;
+
+        private SimulatedJob(String name, JobFactory jobFactory, Instant start, List<Duration> thresholds) {
+            DeviceService deviceService = Collections::emptyMap;
+
+            this.name = name;
+            this.clock = new VirtualClock(start);
+            this.pushNotificationService = new RecordingPushNotificationService(clock);
+            this.job = jobFactory.create(clock, deviceService, pushNotificationService);
+            this.job.onConfigurationUpdate(thresholds);
+        }
+
+        private void replay(TraceEvent event) {
+            clock.advanceTo(event.getInstant());
+
+            long start = System.nanoTime();
+
+            if (event.getType() == TraceEvent.Type.CONNECT) {
+                job.onDeviceConnect(event.getDevice());
+            } else {
+                job.onDeviceDisconnect(event.getDevice());
+            }
+
+            elapsedNanos += System.nanoTime() - start;
+        }
+
+        private Set<Device> run(Instant instant) {
+            clock.advanceTo(instant);
+
+            long start = System.nanoTime();
+
+            job.run();
+            elapsedNanos += System.nanoTime() - start;
+
+            return pushNotificationService.finishRun();
+        }
+    }
+}
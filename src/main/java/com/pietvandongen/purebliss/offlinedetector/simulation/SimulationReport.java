@@ -0,0 +1,179 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a simulation: how fast every job processed the trace, how many notifications it sent and where its
+ * decisions differed from those of the first job.
+ */
+public final class SimulationReport {
+
+    private final long eventCount;
+    private final long runCount;
+    private final Map<String, JobReport> jobReports;
+    private final List<DecisionDiff> decisionDiffs;
+
+    SimulationReport(long eventCount, long runCount, Map<String, JobReport> jobReports, List<DecisionDiff> decisionDiffs) {
+        this.eventCount = eventCount;
+        this.runCount = runCount;
+        this.jobReports = Collections.unmodifiableMap(jobReports);
+        this.decisionDiffs = Collections.unmodifiableList(decisionDiffs);
+    }
+
+    /**
+     * @return The number of events replayed.
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return The number of runs every job did.
+     */
+    public long getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return The reports of the jobs by name, in the order they were added to the simulation.
+     */
+    public Map<String, JobReport> getJobReports() {
+        return jobReports;
+    }
+
+    /**
+     * @param name The name of the job.
+     * @return The report of the job.
+     */
+    public JobReport getJobReport(String name) {
+        return jobReports.get(name);
+    }
+
+    /**
+     * @return The first decision diffs found, up to the maximum the simulation keeps.
+     * @see JobReport#getDecisionDiffCount()
+     */
+    public List<DecisionDiff> getDecisionDiffs() {
+        return decisionDiffs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder()
+                .append(eventCount).append(" events, ").append(runCount).append(" runs\n");
+
+        jobReports.values().forEach(jobReport -> report
+                .append(String.format("%-30s %,15.0f events/s %,12d notifications %,10d diffs%n",
+                        jobReport.getName(),
+                        jobReport.getEventsPerSecond(),
+                        jobReport.getNotificationCount(),
+                        jobReport.getDecisionDiffCount())));
+
+        return report.toString();
+    }
+
+    /**
+     * The outcome of a simulation for a single job.
+     */
+    public static final class JobReport {
+
+        private final String name;
+        private final long eventCount;
+        private final long notificationCount;
+        private final long decisionDiffCount;
+        private final long elapsedNanos;
+
+        JobReport(String name, long eventCount, long notificationCount, long decisionDiffCount, long elapsedNanos) {
+            this.name = name;
+            this.eventCount = eventCount;
+            this.notificationCount = notificationCount;
+            this.decisionDiffCount = decisionDiffCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The total number of notifications the job sent.
+         */
+        public long getNotificationCount() {
+            return notificationCount;
+        }
+
+        /**
+         * @return The number of devices the job notified in a run while the first job didn't, or the other way around.
+         */
+        public long getDecisionDiffCount() {
+            return decisionDiffCount;
+        }
+
+        /**
+         * @return The wall-clock time the job spent handling events and running, in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return The number of events replayed per second of wall-clock time spent in the job, including its runs.
+         */
+        public double getEventsPerSecond() {
+            return elapsedNanos == 0 ? 0 : eventCount * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * A run in which a job notified a device while the first job didn't, or the other way around.
+     */
+    public static final class DecisionDiff {
+
+        private final String name;
+        private final Instant run;
+        private final Device device;
+        private final boolean notified;
+
+        DecisionDiff(String name, Instant run, Device device, boolean notified) {
+            this.name = name;
+            this.run = run;
+            this.device = device;
+            this.notified = notified;
+        }
+
+        /**
+         * @return The name of the job that decided differently from the first job.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The virtual instant of the run.
+         */
+        public Instant getRun() {
+            return run;
+        }
+
+        public Device getDevice() {
+            return device;
+        }
+
+        /**
+         * @return True if the job notified the device and the first job didn't, false if it was the other way around.
+         */
+        public boolean isNotified() {
+            return notified;
+        }
+
+        @Override
+        public String toString() {
+            return name + (notified ? " notified " : " didn't notify ") + device.getUuid() + " at " + run;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Instant;
+
+/**
+ * A device connecting or disconnecting at an instant in a trace.
+ */
+public final class TraceEvent {
+
+    /**
+     * The kinds of events.
+     */
+    public enum Type {
+        CONNECT,
+        DISCONNECT
+    }
+
+    private final Instant instant;
+    private final Device device;
+    private final Type type;
+
+    /**
+     * @param instant The instant of the event.
+     * @param device  The device.
+     * @param type    Whether the device connected or disconnected.
+     */
+    public TraceEvent(Instant instant, Device device, Type type) {
+        if (instant == null || device == null || type == null) {
+            throw new IllegalArgumentException("Instant, device nor type can be null.");
+        }
+
+        this.instant = instant;
+        this.device = device;
+        this.type = type;
+    }
+
+    public Instant getInstant() {
+        return instant;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public Type getType() {
+        return type;
+    }
+}
@@ -0,0 +1,242 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Creates, reads and writes traces of connect and disconnect events, ordered by instant.
+ * <p>
+ * A recorded trace has one event per line: the instant in ISO-8601 format, the device's UUID and either CONNECT or
+ * DISCONNECT, separated by commas.
+ */
+public final class Traces {
+
+    private Traces() {
+    }
+
+    /**
+     * Generates a trace in which every device starts online and alternates between being online and offline for
+     * exponentially distributed periods. The trace is generated lazily, keeping only the next event of every device in
+     * memory, so it can hold millions of devices. The same seed always generates the same trace.
+     *
+     * @param seed        The seed of the random generator, which also determines the devices' UUIDs.
+     * @param deviceCount The number of devices.
+     * @param start       The instant the trace starts at.
+     * @param duration    The duration of the trace.
+     * @param meanOnline  The mean time a device stays online.
+     * @param meanOffline The mean time a device stays offline.
+     * @return The events of the trace, ordered by instant.
+     */
+    public static Iterator<TraceEvent> synthetic(long seed, int deviceCount, Instant start, Duration duration, Duration meanOnline, Duration meanOffline) {
+        if (start == null || duration == null || meanOnline == null || meanOffline == null) {
+            throw new IllegalArgumentException("Start, duration, mean online duration nor mean offline duration can be null.");
+        }
+
+        if (deviceCount < 0 || duration.isNegative() || meanOnline.isNegative() || meanOnline.isZero() || meanOffline.isNegative() || meanOffline.isZero()) {
+            throw new IllegalArgumentException("The device count and duration cannot be negative and the mean durations should be positive.");
+        }
+
+        return new SyntheticTrace(seed, deviceCount, start, duration.toNanos(), meanOnline.toNanos(), meanOffline.toNanos());
+    }
+
+    /**
+     * Reads a recorded trace lazily. The reader is closed once all events have been read.
+     *
+     * @param reader The reader of the recorded trace.
+     * @return The events of the trace, in the order they were recorded.
+     */
+    public static Iterator<TraceEvent> read(BufferedReader reader) {
+        return new Iterator<TraceEvent>() {
+            private String line = readLine();
+
+            @Override
+            public boolean hasNext() {
+                return line != null;
+            }
+
+            @Override
+            public TraceEvent next() {
+                if (line == null) {
+                    throw new NoSuchElementException();
+                }
+
+                TraceEvent event = parse(line);
+
+                line = readLine();
+
+                return event;
+            }
+
+            private String readLine() {
+                try {
+                    String nextLine;
+
+                    do {
+                        nextLine = reader.readLine();
+                    } while (nextLine != null && nextLine.isBlank());
+
+                    if (nextLine == null) {
+                        reader.close();
+                    }
+
+                    return nextLine;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records a trace.
+     *
+     * @param events The events of the trace.
+     * @param writer The writer to record the trace with, which is flushed but not closed.
+     * @return The number of recorded events.
+     * @throws IOException If the trace couldn't be written.
+     */
+    public static long write(Iterator<TraceEvent> events, Writer writer) throws IOException {
+        long count = 0;
+
+        while (events.hasNext()) {
+            TraceEvent event = events.next();
+
+            writer.write(event.getInstant() + "," + event.getDevice().getUuid() + "," + event.getType() + "\n");
+            count++;
+        }
+
+        writer.flush();
+
+        return count;
+    }
+
+    /**
+     * Parses a line of a recorded trace.
+     *
+     * @param line The line.
+     * @return The event.
+     */
+    static TraceEvent parse(String line) {
+        String[] fields = line.split(",");
+
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("A trace line should have an instant, a device and a type: " + line);
+        }
+
+        return new TraceEvent(
+                Instant.parse(fields[0].trim()),
+                new Device(UUID.fromString(fields[1].trim())),
+                TraceEvent.Type.valueOf(fields[2].trim())
+        );
+    }
+
+    /**
+     * Draws a duration from an exponential distribution.
+     *
+     * @param random    The random generator.
+     * @param meanNanos The mean duration in nanoseconds.
+     * @return The duration in nanoseconds, which is at least 1.
+     */
+    static long exponentialNanos(Random random, long meanNanos) {
+        return Math.max(1, (long) (-meanNanos * Math.log(1 - random.nextDouble())));
+    }
+
+    /**
+     * Generates the events of all devices in order, using a binary heap of device indices ordered by the instant of
+     * their next event.
+     */
+    private static class SyntheticTrace implements Iterator<TraceEvent> {
+
+        private final long seed;
+        private final Instant start;
+        private final long durationNanos;
+        private final long meanOnlineNanos;
+        private final long meanOfflineNanos;
+        private final Random random;
+        private final long[] nextEventNanos;
+        private final int[] heap;
+        private final BitSet offline;
+
+        private SyntheticTrace(long seed, int deviceCount, Instant start, long durationNanos, long meanOnlineNanos, long meanOfflineNanos) {
+            this.seed = seed;
+            this.start = start;
+            this.durationNanos = durationNanos;
+            this.meanOnlineNanos = meanOnlineNanos;
+            this.meanOfflineNanos = meanOfflineNanos;
+            this.random = new Random(seed);
+            this.nextEventNanos = new long[deviceCount];
+            this.heap = new int[deviceCount];
+            this.offline = new BitSet(deviceCount);
+
+            for (int i = 0; i < deviceCount; i++) {
+                nextEventNanos[i] = exponentialNanos(random, meanOnlineNanos);
+                heap[i] = i;
+            }
+
+            for (int i = deviceCount / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return heap.length > 0 && nextEventNanos[heap[0]] < durationNanos;
+        }
+
+        @Override
+        public TraceEvent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int device = heap[0];
+            long eventNanos = nextEventNanos[device];
+            boolean disconnects = !offline.get(device);
+
+            offline.set(device, disconnects);
+            nextEventNanos[device] = eventNanos + exponentialNanos(random, disconnects ? meanOfflineNanos : meanOnlineNanos);
+            siftDown(0);
+
+            return new TraceEvent(
+                    start.plusNanos(eventNanos),
+                    new Device(new UUID(seed, device)),
+                    disconnects ? TraceEvent.Type.DISCONNECT : TraceEvent.Type.CONNECT
+            );
+        }
+
+        private void siftDown(int index) {
+            int device = heap[index];
+            long deviceNanos = nextEventNanos[device];
+            int half = heap.length >>> 1;
+
+            while (index < half) {
+                int child = 2 * index + 1;
+                int right = child + 1;
+
+                if (right < heap.length && nextEventNanos[heap[right]] < nextEventNanos[heap[child]]) {
+                    child = right;
+                }
+
+                if (deviceNanos <= nextEventNanos[heap[child]]) {
+                    break;
+                }
+
+                heap[index] = heap[child];
+                index = child;
+            }
+
+            heap[index] = device;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock that only moves when it's told to, so jobs can be run at virtual time. It never moves backwards.
+ */
+public final class VirtualClock extends Clock {
+
+    private volatile Instant instant;
+
+    /**
+     * @param start The instant the clock starts at.
+     */
+    public VirtualClock(Instant start) {
+        if (start == null) {
+            throw new IllegalArgumentException("Start cannot be null.");
+        }
+
+        this.instant = start;
+    }
+
+    /**
+     * Moves the clock to the given instant.
+     *
+     * @param instant The instant, which cannot be before the current instant.
+     */
+    public void advanceTo(Instant instant) {
+        if (instant.isBefore(this.instant)) {
+            throw new IllegalArgumentException("The clock cannot move backwards.");
+        }
+
+        this.instant = instant;
+    }
+
+    /**
+     * Moves the clock forward.
+     *
+     * @param duration The time to move forward, which cannot be negative.
+     */
+    public void advance(Duration duration) {
+        advanceTo(instant.plus(duration));
+    }
+
+    @Override
+    public Instant instant() {
+        return instant;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return this;
+    }
+}
@@ -0,0 +1,103 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Hammers a job from several threads at once: devices connect and disconnect, the thresholds are reconfigured and the
+ * job runs, all at high rates. The lists passed to the job are cleared right after each configuration update, so a job
+ * that holds on to them instead of taking a snapshot fails as well.
+ */
+public final class ConcurrentJobStress {
+
+    private static final int DEVICE_COUNT = 1000;
+    private static final int DEVICE_THREAD_COUNT = 4;
+    private static final int RUN_THREAD_COUNT = 2;
+    private static final List<List<Duration>> CONFIGURATIONS = Arrays.asList(
+            Arrays.asList(Duration.ofMillis(1)),
+            Arrays.asList(Duration.ofMillis(1), Duration.ofMillis(2), Duration.ofMillis(5)),
+            Arrays.asList(Duration.ZERO, Duration.ofMillis(3), Duration.ofMillis(10), Duration.ofMillis(20), Duration.ofDays(1))
+    );
+
+    private ConcurrentJobStress() {
+    }
+
+    /**
+     * Stresses the given job for the given duration.
+     *
+     * @param job      The job to stress.
+     * @param duration How long to keep stressing the job.
+     * @throws Exception The first exception thrown by the job on any of the threads.
+     */
+    public static void stress(OfflineDevicesJob job, Duration duration) throws Exception {
+        List<Device> devices = IntStream.range(0, DEVICE_COUNT)
+                .mapToObj(i -> new Device(UUID.randomUUID()))
+                .collect(Collectors.toList());
+        long deadline = System.nanoTime() + duration.toNanos();
+        ExecutorService executor = Executors.newFixedThreadPool(DEVICE_THREAD_COUNT + RUN_THREAD_COUNT + 1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        reconfigure(job, 0);
+
+        try {
+            for (int i = 0; i < DEVICE_THREAD_COUNT; i++) {
+                futures.add(executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        Device device = devices.get(ThreadLocalRandom.current().nextInt(DEVICE_COUNT));
+
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            job.onDeviceDisconnect(device);
+                        } else {
+                            job.onDeviceConnect(device);
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < RUN_THREAD_COUNT; i++) {
+                futures.add(executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        job.run();
+                    }
+                }));
+            }
+
+            futures.add(executor.submit(() -> {
+                for (int i = 0; System.nanoTime() < deadline; i++) {
+                    reconfigure(job, i);
+                }
+            }));
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void reconfigure(OfflineDevicesJob job, int iteration) {
+        List<Duration> thresholds = new ArrayList<>(CONFIGURATIONS.get(iteration % CONFIGURATIONS.size()));
+
+        job.onConfigurationUpdate(thresholds);
+        thresholds.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import org.junit.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void thatEmptyHistogramReturnsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMax(), is(0L));
+        assertThat(histogram.getValueAtPercentile(99), is(0L));
+    }
+
+    @Test
+    public void thatSmallValuesAreRecordedExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long value = 1; value <= 10; value++) {
+            histogram.record(value);
+        }
+
+        assertThat(histogram.getCount(), is(10L));
+        assertThat(histogram.getValueAtPercentile(50), is(5L));
+        assertThat(histogram.getValueAtPercentile(100), is(10L));
+    }
+
+    @Test
+    public void thatEveryValueIsWithinItsBucket() {
+        for (int i = 0; i < 100_000; i++) {
+            long value = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+            int bucketIndex = LatencyHistogram.bucketIndex(value);
+
+            assertThat(value <= LatencyHistogram.highestValue(bucketIndex), is(true));
+            assertThat(bucketIndex == 0 || value > LatencyHistogram.highestValue(bucketIndex - 1), is(true));
+        }
+    }
+
+    @Test
+    public void thatPercentilesHaveBoundedRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long value = 1; value <= 1_000_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        long median = histogram.getValueAtPercentile(50);
+
+        assertThat(Math.abs(median - 500_000_000L) <= 500_000_000L / LatencyHistogram.SUB_BUCKET_COUNT, is(true));
+        assertThat(histogram.getValueAtPercentile(100), is(1_000_000_000L));
+        assertThat(histogram.getMax(), is(1_000_000_000L));
+    }
+
+    @Test
+    public void thatNegativeValuesAreRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(-5);
+
+        assertThat(histogram.getValueAtPercentile(100), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatPercentileShouldNotExceedHundred() {
+        new LatencyHistogram().getValueAtPercentile(101);
+    }
+}
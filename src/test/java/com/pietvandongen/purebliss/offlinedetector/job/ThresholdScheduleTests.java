@@ -0,0 +1,144 @@
+package com.pietvandongen.purebliss.offlinedetector.job;
+
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(Enclosed.class)
+public class ThresholdScheduleTests {
+
+    public static class ThresholdScheduleCompileTests {
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCompileThrowsExceptionWhenThresholdsAreEmpty() {
+            ThresholdSchedule.compile(Collections.emptyList());
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCompileThrowsExceptionWhenThresholdIsNegative() {
+            ThresholdSchedule.compile(Collections.singletonList(Duration.ofSeconds(-1)));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCompileThrowsExceptionWhenThresholdsAreNotSorted() {
+            ThresholdSchedule.compile(Arrays.asList(Duration.ofSeconds(2), Duration.ofSeconds(1)));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCompileThrowsExceptionWhenThresholdsContainDuplicates() {
+            ThresholdSchedule.compile(Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(1)));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCompileThrowsExceptionWhenThresholdDoesNotFitInNanos() {
+            ThresholdSchedule.compile(Collections.singletonList(Duration.ofDays(365 * 300)));
+        }
+
+        @Test
+        public void thatCompiledScheduleReturnsOriginalThresholds() {
+            List<Duration> thresholds = Arrays.asList(Duration.ofSeconds(1), Duration.ofMinutes(1), Duration.ofDays(1));
+
+            assertThat(ThresholdSchedule.compile(thresholds).getThresholds(), is(thresholds));
+        }
+
+        @Test
+        public void thatNanosBetweenIsCappedWhenItDoesNotFitInALong() {
+            assertThat(ThresholdSchedule.nanosBetween(Instant.MIN, Instant.MAX), is(Long.MAX_VALUE));
+            assertThat(ThresholdSchedule.nanosBetween(Instant.MAX, Instant.MIN), is(Long.MIN_VALUE));
+        }
+    }
+
+    public static class ThresholdScheduleCountPopulationsTests {
+
+        @Test
+        public void thatStartsAreCountedPerLastPassedThreshold() {
+            Instant current = Instant.parse("2010-10-10T10:10:00.00Z");
+            ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(5)));
+            List<Instant> starts = Arrays.asList(
+                    current.minusSeconds(30),
+                    current.minus(Duration.ofMinutes(2)),
+                    current.minus(Duration.ofMinutes(3)),
+                    current.minus(Duration.ofDays(1))
+            );
+
+            assertThat(thresholdSchedule.countPopulations(starts, current), is(new long[]{1, 2, 1}));
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class ThresholdScheduleLastPassedIndexTests {
+        @Parameters(name = "Description = {0}, start = {1}, current = {2}, thresholds = {3}, expected result = {4}")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][]{
+                    {
+                            "Should return no threshold when current is before start",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:09:00.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            ThresholdSchedule.NO_THRESHOLD
+                    },
+                    {
+                            "Should return no threshold when no threshold has been passed yet",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:01.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            ThresholdSchedule.NO_THRESHOLD
+                    },
+                    {
+                            "Should return first index when first threshold has just been passed",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:01.000000001Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            0
+                    },
+                    {
+                            "Should return middle index when middle threshold has been passed",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:02.001Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            1
+                    },
+                    {
+                            "Should return last index when last threshold has been passed",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-11T10:10:00.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            2
+                    }
+            });
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant start;
+
+        @Parameter(2)
+        public Instant current;
+
+        @Parameter(3)
+        public List<Duration> thresholds;
+
+        @Parameter(4)
+        public int expectedResult;
+
+        @Test
+        public void test() {
+            assertThat(ThresholdSchedule.compile(thresholds).lastPassedIndex(start, current), is(expectedResult));
+        }
+    }
+}
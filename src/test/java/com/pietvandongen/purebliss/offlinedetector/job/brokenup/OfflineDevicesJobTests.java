@@ -1,22 +1,49 @@
 package com.pietvandongen.purebliss.offlinedetector.job.brokenup;
 
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 @RunWith(Enclosed.class)
 public class OfflineDevicesJobTests {
@@ -201,4 +228,231 @@ public class OfflineDevicesJobTests {
             assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholds), is(expectedResult));
         }
     }
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDevicesJobShouldSendNotificationWithThresholdScheduleTests {
+        @Parameters(name = "Description = {0}, job start = {1}, device offline = {2}, last notification = {3}, thresholds = {4}, expected result = {5}")
+        public static Collection<Object[]> data() {
+            return OfflineDevicesJobShouldSendNotificationTests.data();
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant jobStart;
+
+        @Parameter(2)
+        public Instant deviceOffline;
+
+        @Parameter(3)
+        public Instant lastNotification;
+
+        @Parameter(4)
+        public List<Duration> thresholds;
+
+        @Parameter(5)
+        public boolean expectedResult;
+
+        @Test
+        public void test() {
+            ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(thresholds);
+
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholdSchedule), is(expectedResult));
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, thresholdSchedule), is(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, thresholds)));
+        }
+    }
+
+    public static class OfflineDevicesJobPartitionTests {
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatPartitionThrowsExceptionWhenBatchSizeIsZero() {
+            OfflineDevicesJobImpl.partition(Arrays.asList(1, 2, 3), 0);
+        }
+
+        @Test
+        public void thatPartitionReturnsNoBatchesWhenThereAreNoItems() {
+            assertThat(OfflineDevicesJobImpl.partition(Collections.emptyList(), 2).count(), is(0L));
+        }
+
+        @Test
+        public void thatPartitionOnlyLeavesLastBatchSmaller() {
+            List<List<Integer>> expectedResult = Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Collections.singletonList(5));
+            List<List<Integer>> actualResult = OfflineDevicesJobImpl.partition(Arrays.asList(1, 2, 3, 4, 5), 2).collect(Collectors.toList());
+
+            assertThat(actualResult, is(expectedResult));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobBatchTests {
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatJobCannotBeCreatedWithBatchSizeOfZero() {
+            new OfflineDevicesJobImpl(deviceService, pushNotificationService, 0);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void thatDevicesAreLookedUpAndNotifiedInBatches() {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < 5; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2)));
+            }
+
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, 2);
+            ArgumentCaptor<Collection<Device>> notifiedDevices = ArgumentCaptor.forClass(Collection.class);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(3)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, times(3)).sendOfflineNotifications(notifiedDevices.capture());
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstant(any(Device.class));
+
+            assertThat(notifiedDevices.getAllValues().stream().mapToInt(Collection::size).sum(), is(5));
+        }
+
+        @Test
+        public void thatNoNotificationsAreSentForBatchWithoutPassedThresholds() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, Instant.now().minus(Duration.ofHours(1))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, 2);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        @Test
+        public void thatJobUsesInjectedClock() {
+            Device device = new Device(UUID.randomUUID());
+            VirtualClock clock = new VirtualClock(Instant.parse("2020-01-01T00:00:00Z"));
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, 2);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+            clock.advance(Duration.ofDays(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+
+            clock.advance(Duration.ofSeconds(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(device));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobBackgroundLoadingTests {
+
+        private static final Instant NOW = Instant.parse("2020-01-01T00:00:00Z");
+
+        private final VirtualClock clock = new VirtualClock(NOW);
+        private final Device loadedDevice = new Device(UUID.randomUUID());
+        private final Device pendingDevice = new Device(UUID.randomUUID());
+        private final List<Runnable> loadTasks = new ArrayList<>();
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void thatRunEvaluatesDevicesLoadedSoFar() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(job -> {
+                job.run();
+
+                verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(loadedDevice));
+            });
+
+            ArgumentCaptor<Collection<Device>> notifiedDevices = ArgumentCaptor.forClass(Collection.class);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            loadTasks.forEach(Runnable::run);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotifications(notifiedDevices.capture());
+
+            assertThat(offlineDevicesJob.getLoading().isDone(), is(true));
+            assertThat(new HashSet<>(notifiedDevices.getValue()), is(new HashSet<>(Arrays.asList(loadedDevice, pendingDevice))));
+        }
+
+        @Test
+        public void thatDevicesThatConnectWhileLoadingAreNotOverwrittenByPages() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(job -> job.onDeviceConnect(pendingDevice));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            loadTasks.forEach(Runnable::run);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(loadedDevice));
+        }
+
+        @Test(expected = CompletionException.class)
+        public void thatFailedLoadingIsThrownByRun() {
+            DeviceService deviceService = () -> {
+                throw new IllegalStateException("Device service unavailable.");
+            };
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, 10, loadTasks::add);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            loadTasks.forEach(Runnable::run);
+            offlineDevicesJob.run();
+        }
+
+        /**
+         * Creates a job that loads two pages in the background, calling back in between them.
+         */
+        private OfflineDevicesJobImpl createJob(Consumer<OfflineDevicesJobImpl> betweenPages) {
+            OfflineDevicesJobImpl[] offlineDevicesJob = new OfflineDevicesJobImpl[1];
+            Instant deviceOffline = NOW.minus(Duration.ofDays(2));
+            DeviceService deviceService = new DeviceService() {
+                @Override
+                public Map<Device, Instant> getOfflineDevices() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public OfflineDevicePage getOfflineDevicePage(String cursor, int pageSize) {
+                    if (cursor == null) {
+                        return new OfflineDevicePage(Collections.singletonMap(loadedDevice, deviceOffline), "next", NOW);
+                    }
+
+                    betweenPages.accept(offlineDevicesJob[0]);
+
+                    return new OfflineDevicePage(Collections.singletonMap(pendingDevice, deviceOffline), null, NOW);
+                }
+            };
+
+            offlineDevicesJob[0] = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, 10, loadTasks::add);
+
+            assertThat(offlineDevicesJob[0].getLoading().isDone(), is(false));
+
+            return offlineDevicesJob[0];
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(deviceService, pushNotificationService), Duration.ofMillis(500));
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class FlapDampingTests {
+
+    private static final Instant NOW = Instant.parse("2020-01-01T00:00:00Z");
+    private static final FlapDampingPolicy POLICY = new FlapDampingPolicy(Duration.ofMinutes(1), Duration.ofMinutes(10), Duration.ofHours(1));
+
+    private final Device device = new Device(UUID.randomUUID());
+    private final FlapDamping flapDamping = new FlapDamping(POLICY);
+
+    @Test
+    public void thatPenaltyHalvesEveryHalfLife() {
+        assertThat(FlapDampingPolicy.decayPenalty(4, 0, 10), is(4.0));
+        assertThat(FlapDampingPolicy.decayPenalty(4, 10, 10), is(2.0));
+        assertThat(FlapDampingPolicy.decayPenalty(4, 20, 10), is(1.0));
+    }
+
+    @Test
+    public void thatRequiredOnlineDurationDoublesWithPenaltyUpToMaximum() {
+        assertThat(POLICY.calculateRequiredOnlineNanos(0), is(Duration.ofMinutes(1).toNanos()));
+        assertThat(POLICY.calculateRequiredOnlineNanos(1), is(Duration.ofMinutes(1).toNanos()));
+        assertThat(POLICY.calculateRequiredOnlineNanos(3), is(Duration.ofMinutes(4).toNanos()));
+        assertThat(POLICY.calculateRequiredOnlineNanos(10), is(Duration.ofMinutes(10).toNanos()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatMaximumOnlineDurationCannotBeBelowMinimum() {
+        new FlapDampingPolicy(Duration.ofMinutes(2), Duration.ofMinutes(1), Duration.ofHours(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatMinimumOnlineDurationCannotBeZeroIfMaximumIsNot() {
+        new FlapDampingPolicy(Duration.ZERO, Duration.ofMinutes(1), Duration.ofHours(1));
+    }
+
+    @Test
+    public void thatPolicyWithZeroOnlineDurationsIsDisabled() {
+        assertThat(new FlapDampingPolicy(Duration.ZERO, Duration.ZERO, Duration.ofHours(1)).isEnabled(), is(false));
+    }
+
+    @Test
+    public void thatDeviceRecoversAfterMinimumOnlineDuration() {
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+
+        assertThat(flapDamping.recover(NOW.plusSeconds(69)), is(Collections.emptyMap()));
+        assertThat(flapDamping.isRecovering(device), is(true));
+        assertThat(flapDamping.recover(NOW.plusSeconds(70)), is(Collections.singletonMap(device, NOW)));
+        assertThat(flapDamping.isRecovering(device), is(false));
+    }
+
+    @Test
+    public void thatFlapKeepsOriginalOfflineInstantAndExtendsRequiredOnlineDuration() {
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+
+        assertThat(flapDamping.disconnect(device, NOW, NOW.plusSeconds(20)), is(NOW));
+
+        flapDamping.connect(device, NOW, NOW.plusSeconds(30));
+
+        assertThat(flapDamping.recover(NOW.plusSeconds(90)), is(Collections.emptyMap()));
+        assertThat(flapDamping.recover(NOW.plusSeconds(150)), is(Collections.singletonMap(device, NOW)));
+    }
+
+    @Test
+    public void thatDeviceThatRecoveredGoesOfflineAtNewInstant() {
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+        flapDamping.recover(NOW.plusSeconds(70));
+
+        assertThat(flapDamping.disconnect(device, null, NOW.plusSeconds(80)), is(NOW.plusSeconds(80)));
+    }
+
+    @Test
+    public void thatRecoveredDeviceIsForgottenOncePenaltyHasDecayed() {
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+        flapDamping.recover(NOW.plusSeconds(70));
+
+        assertThat(flapDamping.size(), is(1));
+
+        flapDamping.recover(NOW.plus(Duration.ofHours(4)));
+
+        assertThat(flapDamping.size(), is(0));
+    }
+
+    @Test
+    public void thatDeviceThatSimplyWentOfflineHasNoState() {
+        flapDamping.disconnect(device, null, NOW);
+
+        assertThat(flapDamping.size(), is(0));
+        assertThat(flapDamping.isRecovering(device), is(false));
+    }
+
+    @Test
+    public void thatRepeatedDisconnectKeepsOfflineInstant() {
+        flapDamping.disconnect(device, null, NOW);
+
+        assertThat(flapDamping.disconnect(device, NOW, NOW.plusSeconds(10)), is(NOW));
+        assertThat(flapDamping.size(), is(0));
+    }
+
+    @Test
+    public void thatRecoveryOnlyVisitsDevicesThatAreDue() {
+        Device otherDevice = new Device(UUID.randomUUID());
+
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+        flapDamping.disconnect(otherDevice, null, NOW);
+        flapDamping.connect(otherDevice, NOW, NOW.plusSeconds(20));
+
+        assertThat(flapDamping.recover(NOW.plusSeconds(75)), is(Collections.singletonMap(device, NOW)));
+        assertThat(flapDamping.isRecovering(otherDevice), is(true));
+        assertThat(flapDamping.recover(NOW.plusSeconds(80)), is(Collections.singletonMap(otherDevice, NOW)));
+    }
+
+    @Test
+    public void thatDeviceThatFlapsSoonAfterRecoveringHasToStayOnlineLonger() {
+        flapDamping.disconnect(device, null, NOW);
+        flapDamping.connect(device, NOW, NOW.plusSeconds(10));
+        flapDamping.recover(NOW.plusSeconds(70));
+
+        flapDamping.disconnect(device, null, NOW.plusSeconds(80));
+        flapDamping.connect(device, NOW.plusSeconds(80), NOW.plusSeconds(90));
+
+        assertThat(flapDamping.recover(NOW.plusSeconds(150)), is(Collections.emptyMap()));
+        assertThat(flapDamping.recover(NOW.plusSeconds(210)), is(Collections.singletonMap(device, NOW.plusSeconds(80))));
+    }
+}
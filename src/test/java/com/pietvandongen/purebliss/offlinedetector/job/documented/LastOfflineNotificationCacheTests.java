@@ -0,0 +1,91 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LastOfflineNotificationCacheTests {
+
+    @Test
+    public void thatUncachedDevicesAreLoadedOnce() {
+        LastOfflineNotificationCache cache = new LastOfflineNotificationCache(10);
+        Device notifiedDevice = new Device(UUID.randomUUID());
+        Device unnotifiedDevice = new Device(UUID.randomUUID());
+        Instant notification = Instant.parse("2010-10-10T10:10:00.000Z");
+        List<Device> devices = Arrays.asList(notifiedDevice, unnotifiedDevice);
+        List<List<Device>> loadedDevices = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            Map<Device, Instant> lastNotifications = cache.getAll(devices, uncachedDevices -> {
+                loadedDevices.add(uncachedDevices);
+                return Collections.singletonMap(notifiedDevice, notification);
+            });
+
+            assertThat(lastNotifications, is(Collections.singletonMap(notifiedDevice, notification)));
+        }
+
+        assertThat(loadedDevices, is(Collections.singletonList(devices)));
+    }
+
+    @Test
+    public void thatRecordedNotificationIsReturnedWithoutLoading() {
+        LastOfflineNotificationCache cache = new LastOfflineNotificationCache(10);
+        Device device = new Device(UUID.randomUUID());
+        Instant notification = Instant.parse("2010-10-10T10:10:00.000Z");
+
+        cache.put(Collections.singletonList(device), notification);
+
+        Map<Device, Instant> lastNotifications = cache.getAll(Collections.singletonList(device), uncachedDevices -> {
+            throw new AssertionError("Should not load cached devices.");
+        });
+
+        assertThat(lastNotifications, is(Collections.singletonMap(device, notification)));
+    }
+
+    @Test
+    public void thatInvalidatedDeviceIsLoadedAgain() {
+        LastOfflineNotificationCache cache = new LastOfflineNotificationCache(10);
+        Device device = new Device(UUID.randomUUID());
+        List<List<Device>> loadedDevices = new ArrayList<>();
+
+        cache.put(Collections.singletonList(device), Instant.parse("2010-10-10T10:10:00.000Z"));
+        cache.invalidate(device);
+        cache.getAll(Collections.singletonList(device), uncachedDevices -> {
+            loadedDevices.add(uncachedDevices);
+            return Collections.emptyMap();
+        });
+
+        assertThat(loadedDevices, is(Collections.singletonList(Collections.singletonList(device))));
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedDeviceIsEvictedWhenCacheIsFull() {
+        LastOfflineNotificationCache cache = new LastOfflineNotificationCache(2);
+        Device firstDevice = new Device(UUID.randomUUID());
+        Device secondDevice = new Device(UUID.randomUUID());
+        Device thirdDevice = new Device(UUID.randomUUID());
+        Instant notification = Instant.parse("2010-10-10T10:10:00.000Z");
+        List<List<Device>> loadedDevices = new ArrayList<>();
+
+        cache.put(Arrays.asList(firstDevice, secondDevice), notification);
+        cache.getAll(Collections.singletonList(firstDevice), uncachedDevices -> Collections.emptyMap());
+        cache.put(Collections.singletonList(thirdDevice), notification);
+        cache.getAll(Arrays.asList(firstDevice, secondDevice, thirdDevice), uncachedDevices -> {
+            loadedDevices.add(uncachedDevices);
+            return Collections.emptyMap();
+        });
+
+        assertThat(loadedDevices, is(Collections.singletonList(Collections.singletonList(secondDevice))));
+        assertThat(cache.size(), is(2));
+    }
+}
@@ -0,0 +1,116 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class NotifiedThresholdIndexTests {
+
+    private static final int SAMPLES = 10_000;
+
+    @Test
+    public void thatComparingIndicesDecidesTheSameAsComparingInstants() {
+        Random random = new Random(17);
+        Instant jobStart = Instant.parse("2020-01-01T00:00:00Z");
+
+        for (int i = 0; i < SAMPLES; i++) {
+            ThresholdSchedule thresholdSchedule = randomThresholdSchedule(random);
+            Instant deviceOffline = jobStart.minusSeconds(random.nextInt(100_000));
+            Instant lastNotification = randomLastNotification(random, deviceOffline, jobStart);
+
+            boolean expected = lastNotification == null
+                    ? OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, thresholdSchedule)
+                    : OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholdSchedule);
+            boolean actual = NotifiedThresholdIndex.shouldSendNotification(
+                    thresholdSchedule.lastPassedIndex(deviceOffline, jobStart),
+                    NotifiedThresholdIndex.calculateNotifiedIndex(deviceOffline, lastNotification, thresholdSchedule)
+            );
+
+            assertThat("Offline " + deviceOffline + ", last notification " + lastNotification, actual, is(expected));
+        }
+    }
+
+    @Test
+    public void thatLastNotificationAfterJobStartDoesNotCauseDuplicateNotification() {
+        ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(Arrays.asList(Duration.ofHours(1), Duration.ofDays(1)));
+        Instant jobStart = Instant.now();
+        Instant deviceOffline = jobStart.minus(Duration.ofHours(2));
+        Instant skewedLastNotification = jobStart.plus(Duration.ofMinutes(1));
+
+        boolean shouldSendNotification = NotifiedThresholdIndex.shouldSendNotification(
+                thresholdSchedule.lastPassedIndex(deviceOffline, jobStart),
+                NotifiedThresholdIndex.calculateNotifiedIndex(deviceOffline, skewedLastNotification, thresholdSchedule)
+        );
+
+        assertThat(shouldSendNotification, is(false));
+    }
+
+    @Test
+    public void thatUnknownDeviceHasUnknownIndex() {
+        ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(Collections.singletonList(Duration.ofHours(1)));
+
+        assertThat(new NotifiedThresholdIndex().get(new Device(UUID.randomUUID()), Instant.now(), thresholdSchedule), is(NotifiedThresholdIndex.UNKNOWN));
+    }
+
+    @Test
+    public void thatDeviceThatWentOfflineAgainHasUnknownIndex() {
+        ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(Collections.singletonList(Duration.ofHours(1)));
+        NotifiedThresholdIndex notifiedThresholdIndex = new NotifiedThresholdIndex();
+        Device device = new Device(UUID.randomUUID());
+        Instant deviceOffline = Instant.now().minus(Duration.ofHours(2));
+
+        notifiedThresholdIndex.put(device, deviceOffline, Instant.now(), thresholdSchedule);
+
+        assertThat(notifiedThresholdIndex.get(device, Instant.now(), thresholdSchedule), is(NotifiedThresholdIndex.UNKNOWN));
+    }
+
+    @Test
+    public void thatIndexIsMigratedWhenThresholdsAreReconfigured() {
+        Instant deviceOffline = Instant.now().minus(Duration.ofHours(3));
+        Instant lastNotification = deviceOffline.plus(Duration.ofHours(2));
+        NotifiedThresholdIndex notifiedThresholdIndex = new NotifiedThresholdIndex();
+        Device device = new Device(UUID.randomUUID());
+
+        notifiedThresholdIndex.put(device, deviceOffline, lastNotification, ThresholdSchedule.compile(Collections.singletonList(Duration.ofHours(1))));
+
+        ThresholdSchedule reconfiguredSchedule = ThresholdSchedule.compile(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(30), Duration.ofHours(1)));
+
+        assertThat(notifiedThresholdIndex.get(device, deviceOffline, reconfiguredSchedule), is(2));
+    }
+
+    private static ThresholdSchedule randomThresholdSchedule(Random random) {
+        List<Duration> thresholds = new ArrayList<>();
+        long threshold = 0;
+
+        for (int i = 0, size = 1 + random.nextInt(5); i < size; i++) {
+            threshold += random.nextInt(i == 0 ? 30_000 : 50_000);
+            thresholds.add(Duration.ofSeconds(threshold));
+            threshold++;
+        }
+
+        return ThresholdSchedule.compile(thresholds);
+    }
+
+    private static Instant randomLastNotification(Random random, Instant deviceOffline, Instant jobStart) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return null;
+            case 1:
+                return deviceOffline.minusSeconds(1 + random.nextInt(100_000));
+            default:
+                return deviceOffline.plusSeconds(random.nextInt((int) Duration.between(deviceOffline, jobStart).getSeconds() + 1));
+        }
+    }
+}
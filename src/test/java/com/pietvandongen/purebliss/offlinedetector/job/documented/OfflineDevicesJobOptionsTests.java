@@ -0,0 +1,48 @@
+package com.pietvandongen.purebliss.offlinedetector.job.documented;
+
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class OfflineDevicesJobOptionsTests {
+
+    @Test
+    public void thatDefaultOptionsUseSystemClockAndDisableOptionalFeatures() {
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions();
+
+        assertThat(options.getClock(), is(Clock.systemUTC()));
+        assertThat(options.getBatchSize(), is(OfflineDevicesJobImpl.DEFAULT_BATCH_SIZE));
+        assertThat(options.getNotificationLookup(), is(NotificationLookup.REMOTE));
+        assertThat(options.getNotificationExecution(), is(NotificationExecution.SEQUENTIAL));
+        assertThat(options.getNotificationDecision(), is(NotificationDecision.LAST_NOTIFICATION));
+        assertThat(options.getFlapDampingPolicy().isEnabled(), is(false));
+        assertThat(options.getMetrics(), is(JobMetrics.noOp()));
+    }
+
+    @Test
+    public void thatChangingOptionReturnsCopyAndKeepsOriginal() {
+        Clock clock = Clock.fixed(Instant.parse("2020-01-01T00:00:00Z"), ZoneOffset.UTC);
+        OfflineDevicesJobOptions options = new OfflineDevicesJobOptions().withBatchSize(10);
+        OfflineDevicesJobOptions changedOptions = options.withClock(clock);
+
+        assertThat(options.getClock(), is(Clock.systemUTC()));
+        assertThat(changedOptions.getClock(), is(clock));
+        assertThat(changedOptions.getBatchSize(), is(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatOptionCannotBeNull() {
+        new OfflineDevicesJobOptions().withNotificationDecision(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatBatchSizeShouldBePositive() {
+        new OfflineDevicesJobOptions().withBatchSize(0);
+    }
+}
@@ -1,22 +1,68 @@
 package com.pietvandongen.purebliss.offlinedetector.job.documented;
 
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.job.InMemoryJobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.job.ratelimited.RateLimitedOfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.OfflineDevicePage;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.service.RetryingPushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.service.StubPushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.Simulation;
+import com.pietvandongen.purebliss.offlinedetector.simulation.SimulationReport;
+import com.pietvandongen.purebliss.offlinedetector.simulation.Traces;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 @RunWith(Enclosed.class)
 public class OfflineDevicesJobTests {
@@ -201,4 +247,745 @@ public class OfflineDevicesJobTests {
             assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholds), is(expectedResult));
         }
     }
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDevicesJobShouldSendNotificationWithThresholdScheduleTests {
+        @Parameters(name = "Description = {0}, job start = {1}, device offline = {2}, last notification = {3}, thresholds = {4}, expected result = {5}")
+        public static Collection<Object[]> data() {
+            return OfflineDevicesJobShouldSendNotificationTests.data();
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant jobStart;
+
+        @Parameter(2)
+        public Instant deviceOffline;
+
+        @Parameter(3)
+        public Instant lastNotification;
+
+        @Parameter(4)
+        public List<Duration> thresholds;
+
+        @Parameter(5)
+        public boolean expectedResult;
+
+        @Test
+        public void test() {
+            ThresholdSchedule thresholdSchedule = ThresholdSchedule.compile(thresholds);
+
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, lastNotification, thresholdSchedule), is(expectedResult));
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, thresholdSchedule), is(OfflineDevicesJobImpl.shouldSendNotification(jobStart, deviceOffline, thresholds)));
+        }
+    }
+
+    public static class OfflineDevicesJobPartitionTests {
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatPartitionThrowsExceptionWhenBatchSizeIsZero() {
+            OfflineDevicesJobImpl.partition(Arrays.asList(1, 2, 3), 0);
+        }
+
+        @Test
+        public void thatPartitionReturnsNoBatchesWhenThereAreNoItems() {
+            assertThat(OfflineDevicesJobImpl.partition(Collections.emptyList(), 2).count(), is(0L));
+        }
+
+        @Test
+        public void thatPartitionOnlyLeavesLastBatchSmaller() {
+            List<List<Integer>> expectedResult = Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Collections.singletonList(5));
+            List<List<Integer>> actualResult = OfflineDevicesJobImpl.partition(Arrays.asList(1, 2, 3, 4, 5), 2).collect(Collectors.toList());
+
+            assertThat(actualResult, is(expectedResult));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobBatchTests {
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatJobCannotBeCreatedWithBatchSizeOfZero() {
+            new OfflineDevicesJobImpl(deviceService, pushNotificationService, 0);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void thatDevicesAreLookedUpAndNotifiedInBatches() {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < 5; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2)));
+            }
+
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, 2);
+            ArgumentCaptor<Collection<Device>> notifiedDevices = ArgumentCaptor.forClass(Collection.class);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(3)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, times(3)).sendOfflineNotifications(notifiedDevices.capture());
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstant(any(Device.class));
+
+            assertThat(notifiedDevices.getAllValues().stream().mapToInt(Collection::size).sum(), is(5));
+        }
+
+        @Test
+        public void thatNoNotificationsAreSentForBatchWithoutPassedThresholds() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, Instant.now().minus(Duration.ofHours(1))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, 2);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobNotificationLookupTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatRemoteLookupAsksServiceOnEveryRun() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(NotificationLookup.REMOTE);
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatCacheLookupOnlyAsksServiceForUncachedDevices() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(NotificationLookup.CACHE);
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, times(1)).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatWarmedCacheLookupAsksServiceOnlyOnCreation() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(NotificationLookup.WARMED_CACHE);
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(Collections.singletonList(device));
+
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatWarmedCacheIsFilledPageByPage() {
+            Device otherDevice = new Device(UUID.randomUUID());
+            Instant deviceOffline = Instant.now().minus(Duration.ofDays(2));
+            InOrder inOrder = inOrder(deviceService, pushNotificationService);
+
+            doReturn(new OfflineDevicePage(Collections.singletonMap(device, deviceOffline), "next", deviceOffline))
+                    .when(deviceService).getOfflineDevicePage(null, OfflineDevicePage.DEFAULT_PAGE_SIZE);
+            doReturn(new OfflineDevicePage(Collections.singletonMap(otherDevice, deviceOffline), null, deviceOffline))
+                    .when(deviceService).getOfflineDevicePage("next", OfflineDevicePage.DEFAULT_PAGE_SIZE);
+
+            new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationLookup(NotificationLookup.WARMED_CACHE, 10));
+
+            inOrder.verify(deviceService).getOfflineDevicePage(null, OfflineDevicePage.DEFAULT_PAGE_SIZE);
+            inOrder.verify(pushNotificationService).getLastOfflineNotificationInstants(Collections.singletonList(device));
+            inOrder.verify(deviceService).getOfflineDevicePage("next", OfflineDevicePage.DEFAULT_PAGE_SIZE);
+            inOrder.verify(pushNotificationService).getLastOfflineNotificationInstants(Collections.singletonList(otherDevice));
+        }
+
+        @Test
+        public void thatChangesMissedWhileReadingPagesAreCaughtUpWith() {
+            Device otherDevice = new Device(UUID.randomUUID());
+            Instant deviceOffline = Instant.now().minus(Duration.ofDays(2));
+            Map<Device, Optional<Instant>> changes = new HashMap<>();
+
+            changes.put(device, Optional.empty());
+            changes.put(otherDevice, Optional.of(deviceOffline));
+            doReturn(new OfflineDevicePage(Collections.singletonMap(device, deviceOffline), null, deviceOffline))
+                    .when(deviceService).getOfflineDevicePage(null, OfflineDevicePage.DEFAULT_PAGE_SIZE);
+            doReturn(true).when(deviceService).supportsOfflineDeviceChanges();
+            doReturn(changes).when(deviceService).getOfflineDeviceChangesSince(deviceOffline);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions().withBatchSize(10));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(otherDevice));
+        }
+
+        private OfflineDevicesJobImpl createJob(NotificationLookup notificationLookup) {
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, Instant.now().minus(Duration.ofDays(2))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationLookup(notificationLookup, 10));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            return offlineDevicesJob;
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobRunAsyncTests {
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test(expected = IllegalStateException.class)
+        public void thatRunAsyncThrowsExceptionWhenNoThresholdsAreConfigured() {
+            new OfflineDevicesJobImpl(deviceService, pushNotificationService).runAsync(Runnable::run);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void thatAllBatchesAreNotifiedConcurrently() throws Exception {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < 10; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2)));
+            }
+
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, 3);
+            ArgumentCaptor<Collection<Device>> notifiedDevices = ArgumentCaptor.forClass(Collection.class);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+
+            try {
+                offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+                offlineDevicesJob.runAsync(executor).get(10, TimeUnit.SECONDS);
+            } finally {
+                executor.shutdown();
+            }
+
+            verify(pushNotificationService, times(4)).sendOfflineNotifications(notifiedDevices.capture());
+
+            assertThat(notifiedDevices.getAllValues().stream().flatMap(Collection::stream).distinct().count(), is(10L));
+        }
+    }
+
+    public static class OfflineDevicesJobRetryingNotificationTests {
+
+        private ScheduledExecutorService scheduler;
+        private ExecutorService executor;
+
+        @Before
+        public void setUp() {
+            scheduler = Executors.newScheduledThreadPool(2);
+            executor = Executors.newFixedThreadPool(3);
+        }
+
+        @After
+        public void tearDown() {
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+        }
+
+        @Test
+        public void thatOnlySuccessfullySentNotificationsAreCached() {
+            Device failingDevice = new Device(UUID.randomUUID());
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < 9; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2)));
+            }
+
+            offlineDevices.put(failingDevice, Instant.now().minus(Duration.ofDays(2)));
+
+            StubPushNotificationService pushNotificationService = new StubPushNotificationService(scheduler, 5, (attempt, batch) -> batch.contains(failingDevice));
+            RetryingPushNotificationService retryingPushNotificationService = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 3, 2, Duration.ofMillis(1), Duration.ofMillis(5));
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(() -> offlineDevices, retryingPushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(1)
+                    .withNotificationLookup(NotificationLookup.CACHE, 100));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            for (int run = 0; run < 2; run++) {
+                try {
+                    offlineDevicesJob.runAsync(executor).join();
+                    fail("The failure of the push notification service should be thrown.");
+                } catch (CompletionException e) {
+                    assertThat(e.getCause().getMessage(), is("Push gateway unavailable."));
+                }
+            }
+
+            offlineDevices.keySet().stream()
+                    .filter(device -> !device.equals(failingDevice))
+                    .forEach(device -> assertThat(pushNotificationService.getSentCount(device), is(1)));
+            assertThat(pushNotificationService.getSentCount(failingDevice), is(0));
+            assertThat(pushNotificationService.getAttempts(), is(9 + 2 * 2));
+        }
+    }
+
+    public static class OfflineDevicesJobVirtualThreadTests {
+
+        @Test
+        public void thatDevicesAreNotifiedConcurrentlyOnVirtualThreads() {
+            Map<Device, Instant> offlineDevices = createOfflineDevices(500);
+            SlowPushNotificationService pushNotificationService = new SlowPushNotificationService(Duration.ofMillis(20), false);
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(() -> offlineDevices, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationLookup(NotificationLookup.CACHE, 1000)
+                    .withNotificationExecution(NotificationExecution.VIRTUAL_THREAD_PER_DEVICE, 100));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+            offlineDevicesJob.run();
+
+            assertThat(pushNotificationService.sent.keySet(), is(offlineDevices.keySet()));
+            pushNotificationService.sent.values().forEach(sentCount -> assertThat(sentCount, is(1)));
+            assertThat(pushNotificationService.maxConcurrentCalls.get() > 1, is(true));
+            assertThat(pushNotificationService.maxConcurrentCalls.get() <= 100, is(true));
+            assertThat(pushNotificationService.platformThreadCalls.get(), is(0));
+        }
+
+        @Test
+        public void thatRunFailsWithEveryFailureWhenDevicesFail() {
+            Map<Device, Instant> offlineDevices = createOfflineDevices(10);
+            SlowPushNotificationService pushNotificationService = new SlowPushNotificationService(Duration.ofMillis(1), true);
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(() -> offlineDevices, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationExecution(NotificationExecution.VIRTUAL_THREAD_PER_DEVICE, 2));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            try {
+                offlineDevicesJob.run();
+                fail("The failure of the push notification service should be thrown.");
+            } catch (IllegalStateException e) {
+                assertThat(e.getSuppressed().length, is(9));
+            }
+
+            assertThat(pushNotificationService.attempts.get(), is(10));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatConcurrentCallsShouldBePositive() {
+            new OfflineDevicesJobImpl(Collections::emptyMap, new SlowPushNotificationService(Duration.ZERO, false), new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationExecution(NotificationExecution.VIRTUAL_THREAD_PER_DEVICE, 0));
+        }
+
+        private static Map<Device, Instant> createOfflineDevices(int count) {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2)));
+            }
+
+            return offlineDevices;
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobMetricsTests {
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatRunsAndEventsAreReported() {
+            Device notifiedDevice = new Device(UUID.randomUUID());
+            Device recentlyOfflineDevice = new Device(UUID.randomUUID());
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+            InMemoryJobMetrics metrics = new InMemoryJobMetrics();
+
+            offlineDevices.put(notifiedDevice, Instant.now().minus(Duration.ofDays(2)));
+            offlineDevices.put(recentlyOfflineDevice, Instant.now().minus(Duration.ofHours(1)));
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(1)
+                    .withMetrics(metrics));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+            offlineDevicesJob.onDeviceConnect(notifiedDevice);
+            offlineDevicesJob.onDeviceDisconnect(notifiedDevice);
+
+            assertThat(metrics.getRunDurations().getCount(), is(1L));
+            assertThat(metrics.getPhaseDurations(JobMetrics.Phase.LOOKUP).getCount(), is(2L));
+            assertThat(metrics.getPhaseDurations(JobMetrics.Phase.DECIDE).getCount(), is(2L));
+            assertThat(metrics.getPhaseDurations(JobMetrics.Phase.SEND).getCount(), is(1L));
+            assertThat(metrics.getDevicesScanned(), is(2L));
+            assertThat(metrics.getNotificationsSent(), is(1L));
+            assertThat(metrics.getOfflineDevices(), is(2));
+            assertThat(metrics.getThresholdPopulations(), is(new long[]{1, 1}));
+            assertThat(metrics.getDeviceConnects(), is(1L));
+            assertThat(metrics.getDeviceDisconnects(), is(1L));
+        }
+
+        @Test
+        public void thatDisabledMetricsAreNotTimed() {
+            JobMetrics metrics = mock(JobMetrics.class);
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(new Device(UUID.randomUUID()), Instant.now().minus(Duration.ofDays(2))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(1)
+                    .withMetrics(metrics));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(metrics, never()).recordRun(anyLong());
+            verify(metrics, never()).recordPhase(any(JobMetrics.Phase.class), anyLong());
+            verify(metrics, never()).recordThresholdPopulations(any(long[].class));
+            verify(metrics).recordNotificationsSent(1);
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobNotifiedThresholdIndexTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatLastNotificationIsOnlyLookedUpOnce() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(Instant.now().minus(Duration.ofDays(2)));
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, times(1)).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatReconfiguredThresholdsDoNotCauseDuplicateNotification() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(Instant.now().minus(Duration.ofHours(2)));
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(30), Duration.ofHours(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatDeviceThatDisconnectsIsNotLookedUp() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(Instant.now().minus(Duration.ofDays(2)));
+
+            offlineDevicesJob.onDeviceConnect(device);
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatSkewedLastNotificationDoesNotCauseDuplicateNotification() {
+            Instant deviceOffline = Instant.now().minus(Duration.ofHours(2));
+
+            when(pushNotificationService.getLastOfflineNotificationInstants(anyCollection()))
+                    .thenReturn(Collections.singletonMap(device, Instant.now().plus(Duration.ofMinutes(1))));
+
+            createJob(deviceOffline).run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        private OfflineDevicesJobImpl createJob(Instant deviceOffline) {
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, deviceOffline));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationDecision(NotificationDecision.NOTIFIED_THRESHOLD_INDEX));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofHours(1)));
+
+            return offlineDevicesJob;
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobFlapDampingTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatFlappingDeviceKeepsItsOfflineTimer() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(new FlapDampingPolicy(Duration.ofHours(1), Duration.ofDays(1), Duration.ofHours(1)));
+
+            offlineDevicesJob.onDeviceConnect(device);
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatReconnectingDeviceRestartsItsOfflineTimerWithoutDamping() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(FlapDampingPolicy.disabled());
+
+            offlineDevicesJob.onDeviceConnect(device);
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        @Test
+        public void thatRecoveringDeviceIsNotNotified() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(new FlapDampingPolicy(Duration.ofHours(1), Duration.ofDays(1), Duration.ofHours(1)));
+
+            offlineDevicesJob.onDeviceConnect(device);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        private OfflineDevicesJobImpl createJob(FlapDampingPolicy flapDampingPolicy) {
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, Instant.now().minus(Duration.ofDays(2))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withFlapDampingPolicy(flapDampingPolicy));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            return offlineDevicesJob;
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobClockTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatJobUsesInjectedClock() {
+            VirtualClock clock = new VirtualClock(Instant.parse("2020-01-01T00:00:00Z"));
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(clock, FlapDampingPolicy.disabled());
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            clock.advance(Duration.ofDays(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+
+            clock.advance(Duration.ofSeconds(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatFlapDampingUsesInjectedClock() {
+            VirtualClock clock = new VirtualClock(Instant.parse("2020-01-01T00:00:00Z"));
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(clock, new FlapDampingPolicy(Duration.ofMinutes(1), Duration.ofMinutes(10), Duration.ofHours(1)));
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            clock.advance(Duration.ofDays(2));
+            offlineDevicesJob.onDeviceConnect(device);
+            clock.advance(Duration.ofMinutes(1));
+            offlineDevicesJob.run();
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        private OfflineDevicesJobImpl createJob(Clock clock, FlapDampingPolicy flapDampingPolicy) {
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withClock(clock)
+                    .withBatchSize(10)
+                    .withFlapDampingPolicy(flapDampingPolicy));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            return offlineDevicesJob;
+        }
+    }
+
+    public static class OfflineDevicesJobSimulationTests {
+
+        @Test
+        public void thatNotificationDecisionsMakeTheSameDecisions() {
+            Instant start = Instant.parse("2020-01-01T00:00:00Z");
+            Instant end = start.plus(Duration.ofDays(2));
+
+            SimulationReport report = new Simulation(Arrays.asList(Duration.ofMinutes(30), Duration.ofHours(2), Duration.ofHours(8)), Duration.ofMinutes(5))
+                    .addJob("last notification", (clock, deviceService, pushNotificationService) -> createJob(clock, deviceService, pushNotificationService, NotificationDecision.LAST_NOTIFICATION, FlapDampingPolicy.disabled()))
+                    .addJob("notified threshold index", (clock, deviceService, pushNotificationService) -> createJob(clock, deviceService, pushNotificationService, NotificationDecision.NOTIFIED_THRESHOLD_INDEX, FlapDampingPolicy.disabled()))
+                    .run(start, end, Traces.synthetic(20, 2000, start, Duration.ofDays(2), Duration.ofHours(6), Duration.ofHours(3)));
+
+            assertThat(report.getJobReport("last notification").getNotificationCount() > 0, is(true));
+            assertThat(report.getDecisionDiffs().toString(), report.getJobReport("notified threshold index").getDecisionDiffCount(), is(0L));
+        }
+
+        @Test
+        public void thatUnlimitedRateMakesTheSameDecisions() {
+            Instant start = Instant.parse("2020-01-01T00:00:00Z");
+            Instant end = start.plus(Duration.ofDays(2));
+
+            SimulationReport report = new Simulation(Arrays.asList(Duration.ofMinutes(30), Duration.ofHours(2), Duration.ofHours(8)), Duration.ofMinutes(5))
+                    .addJob("sent when decided", (clock, deviceService, pushNotificationService) -> createJob(clock, deviceService, pushNotificationService, NotificationDecision.LAST_NOTIFICATION, FlapDampingPolicy.disabled()))
+                    .addJob("dispatched", (clock, deviceService, pushNotificationService) -> new RateLimitedOfflineDevicesJob(
+                            service -> createJob(clock, deviceService, service, NotificationDecision.NOTIFIED_THRESHOLD_INDEX, FlapDampingPolicy.disabled()),
+                            pushNotificationService, clock, 1_000_000, 1_000_000, 100, JobMetrics.noOp()))
+                    .run(start, end, Traces.synthetic(24, 2000, start, Duration.ofDays(2), Duration.ofHours(6), Duration.ofHours(3)));
+
+            assertThat(report.getJobReport("sent when decided").getNotificationCount() > 0, is(true));
+            assertThat(report.getDecisionDiffs().toString(), report.getJobReport("dispatched").getDecisionDiffCount(), is(0L));
+        }
+
+        @Test
+        public void thatLimitedRateSpreadsNotificationsOverRuns() {
+            Instant start = Instant.parse("2020-01-01T00:00:00Z");
+            Instant end = start.plus(Duration.ofDays(2));
+
+            SimulationReport report = new Simulation(Arrays.asList(Duration.ofMinutes(30), Duration.ofHours(2), Duration.ofHours(8)), Duration.ofMinutes(5))
+                    .addJob("sent when decided", (clock, deviceService, pushNotificationService) -> createJob(clock, deviceService, pushNotificationService, NotificationDecision.LAST_NOTIFICATION, FlapDampingPolicy.disabled()))
+                    .addJob("dispatched", (clock, deviceService, pushNotificationService) -> new RateLimitedOfflineDevicesJob(
+                            service -> createJob(clock, deviceService, service, NotificationDecision.LAST_NOTIFICATION, FlapDampingPolicy.disabled()),
+                            pushNotificationService, clock, 0.05, 10, 100, JobMetrics.noOp()))
+                    .run(start, end, Traces.synthetic(25, 2000, start, Duration.ofDays(2), Duration.ofHours(6), Duration.ofHours(3)));
+
+            long sentWhenDecided = report.getJobReport("sent when decided").getNotificationCount();
+            long dispatched = report.getJobReport("dispatched").getNotificationCount();
+
+            assertThat(report.getJobReport("dispatched").getDecisionDiffCount() > 0, is(true));
+            assertThat(dispatched < sentWhenDecided, is(true));
+            assertThat(dispatched <= 10 + (long) (0.05 * Duration.ofDays(2).getSeconds()), is(true));
+        }
+
+        private static OfflineDevicesJobImpl createJob(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService, NotificationDecision notificationDecision, FlapDampingPolicy flapDampingPolicy) {
+            return new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withClock(clock)
+                    .withNotificationDecision(notificationDecision)
+                    .withFlapDampingPolicy(flapDampingPolicy));
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(deviceService, pushNotificationService), Duration.ofMillis(500));
+        }
+
+        @Test
+        public void thatFlapDampingJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+            FlapDampingPolicy flapDampingPolicy = new FlapDampingPolicy(Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofMillis(5));
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(deviceService, pushNotificationService, new OfflineDevicesJobOptions()
+                    .withBatchSize(10)
+                    .withNotificationLookup(NotificationLookup.CACHE, 100)
+                    .withNotificationDecision(NotificationDecision.NOTIFIED_THRESHOLD_INDEX)
+                    .withFlapDampingPolicy(flapDampingPolicy)), Duration.ofMillis(500));
+        }
+    }
+
+    /**
+     * A push notification service that only handles one device per call and blocks for a fixed latency on every call.
+     */
+    private static class SlowPushNotificationService implements PushNotificationService {
+
+        private final Duration latency;
+        private final boolean failing;
+        private final Map<Device, Integer> sent = new ConcurrentHashMap<>();
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger concurrentCalls = new AtomicInteger();
+        private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        private final AtomicInteger platformThreadCalls = new AtomicInteger();
+
+        private SlowPushNotificationService(Duration latency, boolean failing) {
+            this.latency = latency;
+            this.failing = failing;
+        }
+
+        @Override
+        public void sendOfflineNotification(Device device) {
+            attempts.incrementAndGet();
+            call();
+
+            if (failing) {
+                throw new IllegalStateException("Push gateway unavailable.");
+            }
+
+            sent.merge(device, 1, Integer::sum);
+        }
+
+        @Override
+        public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+            call();
+
+            return Optional.empty();
+        }
+
+        private void call() {
+            if (!Thread.currentThread().isVirtual()) {
+                platformThreadCalls.incrementAndGet();
+            }
+
+            maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentCalls.decrementAndGet();
+            }
+        }
+    }
 }
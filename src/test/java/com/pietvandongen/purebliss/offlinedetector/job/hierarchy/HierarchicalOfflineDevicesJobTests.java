@@ -0,0 +1,224 @@
+package com.pietvandongen.purebliss.offlinedetector.job.hierarchy;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(Enclosed.class)
+public class HierarchicalOfflineDevicesJobTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Duration GRACE_PERIOD = Duration.ofSeconds(30);
+
+    public static class DeviceTests {
+
+        @Test
+        public void thatDevicesWithSameUuidAreEqualRegardlessOfParent() {
+            UUID uuid = UUID.randomUUID();
+            Device parent = new Device(UUID.randomUUID());
+
+            assertThat(new Device(uuid, parent), is(new Device(uuid)));
+            assertThat(new Device(uuid, parent).getParent(), is(Optional.of(parent)));
+            assertThat(new Device(uuid).getParent(), is(Optional.empty()));
+        }
+    }
+
+    public static class HierarchySuppressionTests {
+
+        private final VirtualClock clock = new VirtualClock(START);
+        private final RecordingJob recordingJob = new RecordingJob();
+        private final HierarchicalOfflineDevicesJob job = new HierarchicalOfflineDevicesJob(recordingJob, clock, GRACE_PERIOD);
+        private final Device gateway = new Device(new UUID(0, 1));
+        private final Device hub = new Device(new UUID(0, 2), gateway);
+        private final Device sensor = new Device(new UUID(0, 3), hub);
+        private final Device otherSensor = new Device(new UUID(0, 4), hub);
+
+        @Before
+        public void setUp() {
+            job.onDeviceConnect(sensor);
+            job.onDeviceConnect(otherSensor);
+            recordingJob.calls.clear();
+        }
+
+        @Test
+        public void thatChildrenOfOfflineParentAreNotPassedOn() {
+            job.onDeviceDisconnect(gateway);
+            job.onDeviceDisconnect(hub);
+            job.onDeviceDisconnect(sensor);
+
+            assertThat(recordingJob.calls, is(Collections.singletonList("disconnect 1")));
+            assertThat(job.getSuppressedCount(), is(2));
+        }
+
+        @Test
+        public void thatDescendantsThatDisconnectedWithinGracePeriodAreTakenOutOfJob() {
+            job.onDeviceDisconnect(otherSensor);
+            clock.advance(GRACE_PERIOD);
+            job.onDeviceDisconnect(sensor);
+            clock.advance(Duration.ofSeconds(1));
+            job.onDeviceDisconnect(hub);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 4", "disconnect 3", "disconnect 2", "connect 3")));
+            assertThat(job.getSuppressedCount(), is(1));
+        }
+
+        @Test
+        public void thatChildrenAreReleasedWhenParentReconnects() {
+            job.onDeviceDisconnect(gateway);
+            job.onDeviceDisconnect(hub);
+            job.onDeviceDisconnect(sensor);
+            job.onDeviceConnect(gateway);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 1", "connect 1", "disconnect 2")));
+            assertThat(job.getSuppressedCount(), is(1));
+
+            job.onDeviceConnect(hub);
+
+            assertThat(recordingJob.calls.subList(3, 5), is(Arrays.asList("connect 2", "disconnect 3")));
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+
+        @Test
+        public void thatReconnectingSuppressedDeviceIsNotPassedOn() {
+            job.onDeviceDisconnect(gateway);
+            job.onDeviceDisconnect(hub);
+            job.onDeviceConnect(hub);
+            job.onDeviceConnect(gateway);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 1", "connect 1")));
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+
+        @Test
+        public void thatConnectEventWithoutParentRemovesChildFromHierarchy() {
+            job.onDeviceDisconnect(sensor);
+            job.onDeviceConnect(new Device(sensor.getUuid()));
+            job.onDeviceDisconnect(hub);
+            job.onDeviceConnect(hub);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 3", "connect 3", "disconnect 2", "connect 2")));
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+
+        @Test
+        public void thatChildReconnectingWithoutParentIsNotReleasedByParent() {
+            job.onDeviceDisconnect(hub);
+            job.onDeviceDisconnect(sensor);
+            job.onDeviceConnect(new Device(sensor.getUuid()));
+            job.onDeviceConnect(hub);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 2", "connect 2")));
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+
+        @Test
+        public void thatRepeatedDisconnectOfDeviceThatIsPassedOnIsNotSuppressedLater() {
+            job.onDeviceDisconnect(sensor);
+            clock.advance(GRACE_PERIOD.plusSeconds(1));
+            job.onDeviceDisconnect(hub);
+            job.onDeviceDisconnect(sensor);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 3", "disconnect 2", "disconnect 3")));
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+
+        @Test
+        public void thatDevicesWithoutParentArePassedOn() {
+            Device device = new Device(new UUID(0, 5));
+
+            job.onDeviceDisconnect(device);
+            job.onDeviceConnect(device);
+            job.run();
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 5", "connect 5", "run")));
+        }
+
+        @Test
+        public void thatChildrenOfDeviceNotKnownAsTopOfHierarchyAreNotSuppressed() {
+            Device otherGateway = new Device(new UUID(0, 5));
+            Device otherHub = new Device(new UUID(0, 6), otherGateway);
+
+            job.onDeviceDisconnect(otherGateway);
+            job.onDeviceDisconnect(otherHub);
+            job.onDeviceConnect(otherGateway);
+            job.onDeviceDisconnect(otherGateway);
+
+            assertThat(recordingJob.calls, is(Arrays.asList("disconnect 5", "disconnect 6", "connect 5", "disconnect 5", "connect 6")));
+            assertThat(job.getSuppressedCount(), is(1));
+        }
+    }
+
+    public static class ConcurrencyTests {
+
+        private static final int SENSORS = 1000;
+
+        @Test
+        public void thatChildrenDisconnectingWhileParentReconnectsAreAllPassedOnOnce() throws InterruptedException {
+            RecordingJob recordingJob = new RecordingJob();
+            HierarchicalOfflineDevicesJob job = new HierarchicalOfflineDevicesJob(recordingJob, new VirtualClock(START), GRACE_PERIOD);
+            Device gateway = new Device(new UUID(0, SENSORS));
+            List<Device> sensors = new ArrayList<>();
+
+            for (int i = 0; i < SENSORS; i++) {
+                sensors.add(new Device(new UUID(1, i), gateway));
+            }
+
+            job.onDeviceConnect(sensors.get(0));
+            job.onDeviceDisconnect(gateway);
+
+            Thread sensorThread = new Thread(() -> sensors.forEach(job::onDeviceDisconnect));
+            sensorThread.start();
+            job.onDeviceConnect(gateway);
+            sensorThread.join();
+
+            for (Device sensor : sensors) {
+                assertThat(Collections.frequency(recordingJob.calls, "disconnect " + sensor.getUuid().getLeastSignificantBits()), is(1));
+            }
+
+            assertThat(job.getSuppressedCount(), is(0));
+        }
+    }
+
+    /**
+     * A job that records the calls it receives, with the least significant bits of the device UUIDs.
+     */
+    private static class RecordingJob implements OfflineDevicesJob {
+
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void run() {
+            calls.add("run");
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            calls.add("connect " + device.getUuid().getLeastSignificantBits());
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            calls.add("disconnect " + device.getUuid().getLeastSignificantBits());
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+        }
+    }
+}
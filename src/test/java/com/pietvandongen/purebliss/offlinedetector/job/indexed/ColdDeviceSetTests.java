@@ -0,0 +1,107 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ColdDeviceSetTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void thatHeapSetBehavesLikeMap() {
+        try (ColdDeviceSet coldDeviceSet = ColdDeviceSet.onHeap()) {
+            assertBehavesLikeMap(coldDeviceSet);
+        }
+    }
+
+    @Test
+    public void thatSpilledSetBehavesLikeMap() throws Exception {
+        try (ColdDeviceSet coldDeviceSet = ColdDeviceSet.spilledTo(temporaryFolder.newFolder().toPath())) {
+            assertBehavesLikeMap(coldDeviceSet);
+        }
+    }
+
+    @Test
+    public void thatSpilledSetDeletesItsFileWhenClosed() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+
+        ColdDeviceSet coldDeviceSet = ColdDeviceSet.spilledTo(directory);
+
+        coldDeviceSet.put(new Device(UUID.randomUUID()), Instant.now());
+        coldDeviceSet.close();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count(), is(0L));
+        }
+    }
+
+    private static void assertBehavesLikeMap(ColdDeviceSet coldDeviceSet) {
+        Random random = new Random(21);
+        Map<Device, Instant> expected = new HashMap<>();
+        List<Device> devices = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            devices.add(new Device(new UUID(random.nextLong(), random.nextLong())));
+        }
+
+        for (int i = 0; i < 50_000; i++) {
+            Device device = devices.get(random.nextInt(devices.size()));
+
+            if (random.nextInt(3) == 0) {
+                assertThat(coldDeviceSet.remove(device), is(expected.remove(device)));
+            } else {
+                Instant deviceOffline = Instant.ofEpochSecond(random.nextInt(Integer.MAX_VALUE), random.nextInt(1_000_000_000));
+
+                coldDeviceSet.put(device, deviceOffline);
+                expected.put(device, deviceOffline);
+            }
+        }
+
+        assertThat(coldDeviceSet.size(), is((long) expected.size()));
+        assertThat(coldDeviceSet.getAll(), is(expected));
+    }
+
+    @Test
+    public void thatFullSegmentRejectsNewDevicesButKeepsExistingOnes() {
+        Random random = new Random(21);
+        Map<Device, Instant> expected = new HashMap<>();
+        Instant deviceOffline = Instant.now();
+        int rejected = 0;
+
+        try (ColdDeviceSet coldDeviceSet = ColdDeviceSet.onHeap(256)) {
+            for (int i = 0; i < 20_000; i++) {
+                Device device = new Device(new UUID(random.nextLong(), random.nextLong()));
+
+                if (coldDeviceSet.put(device, deviceOffline)) {
+                    expected.put(device, deviceOffline);
+                } else {
+                    rejected++;
+                }
+            }
+
+            Device existingDevice = expected.keySet().iterator().next();
+
+            assertThat(coldDeviceSet.put(existingDevice, deviceOffline.plusSeconds(1)), is(true));
+            assertThat(coldDeviceSet.remove(existingDevice), is(deviceOffline.plusSeconds(1)));
+            assertThat(rejected > 0, is(true));
+            assertThat(coldDeviceSet.size(), is((long) ColdDeviceSet.SEGMENT_COUNT * 192 - 1));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DisconnectIndexTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+    @Test
+    public void thatRangeIncludesFirstInstantAndExcludesLastInstant() {
+        DisconnectIndex disconnectIndex = new DisconnectIndex();
+        Device first = new Device(UUID.randomUUID());
+        Device second = new Device(UUID.randomUUID());
+        Device third = new Device(UUID.randomUUID());
+
+        disconnectIndex.add(first, START);
+        disconnectIndex.add(second, START.plusSeconds(1));
+        disconnectIndex.add(third, START.plusSeconds(2));
+
+        assertThat(devices(disconnectIndex.range(START, START.plusSeconds(2))), is(Arrays.asList(first, second)));
+        assertThat(devices(disconnectIndex.range(START.plusSeconds(2), START)), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void thatDevicesThatWentOfflineAtTheSameInstantAreAllFound() {
+        DisconnectIndex disconnectIndex = new DisconnectIndex();
+        Device first = new Device(new UUID(0, 1));
+        Device second = new Device(new UUID(0, 2));
+
+        disconnectIndex.add(second, START);
+        disconnectIndex.add(first, START);
+
+        assertThat(devices(disconnectIndex.range(START, START.plusNanos(1))), is(Arrays.asList(first, second)));
+        assertThat(disconnectIndex.size(), is(2));
+    }
+
+    @Test
+    public void thatRemovedDeviceIsNotFound() {
+        DisconnectIndex disconnectIndex = new DisconnectIndex();
+        Device device = new Device(UUID.randomUUID());
+
+        disconnectIndex.add(device, START);
+        disconnectIndex.remove(device, START.plusSeconds(1));
+
+        assertThat(disconnectIndex.size(), is(1));
+
+        disconnectIndex.remove(device, START);
+
+        assertThat(devices(disconnectIndex.range(START, START.plusSeconds(1))), is(Collections.emptyList()));
+    }
+
+    private static List<Device> devices(Collection<Map.Entry<Device, Instant>> offlineDevices) {
+        return offlineDevices.stream()
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,399 @@
+package com.pietvandongen.purebliss.offlinedetector.job.indexed;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.job.InMemoryJobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.JobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.Simulation;
+import com.pietvandongen.purebliss.offlinedetector.simulation.SimulationReport;
+import com.pietvandongen.purebliss.offlinedetector.simulation.Traces;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(Enclosed.class)
+public class OfflineDevicesJobTests {
+
+    public static class OfflineDevicesJobShouldSendNotificationTests {
+
+        private static final Instant DEVICE_OFFLINE = Instant.parse("2020-01-01T00:00:00Z");
+        private static final ThresholdSchedule THRESHOLDS = ThresholdSchedule.compile(Arrays.asList(Duration.ofHours(1), Duration.ofHours(2)));
+
+        @Test
+        public void thatDeviceWithoutLastNotificationIsNotifiedOncePastFirstThreshold() {
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(DEVICE_OFFLINE.plus(Duration.ofMinutes(59)), DEVICE_OFFLINE, null, THRESHOLDS), is(false));
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(DEVICE_OFFLINE.plus(Duration.ofMinutes(61)), DEVICE_OFFLINE, null, THRESHOLDS), is(true));
+        }
+
+        @Test
+        public void thatDeviceIsOnlyNotifiedAgainPastNextThreshold() {
+            Instant lastNotification = DEVICE_OFFLINE.plus(Duration.ofMinutes(61));
+
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(DEVICE_OFFLINE.plus(Duration.ofMinutes(119)), DEVICE_OFFLINE, lastNotification, THRESHOLDS), is(false));
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(DEVICE_OFFLINE.plus(Duration.ofMinutes(121)), DEVICE_OFFLINE, lastNotification, THRESHOLDS), is(true));
+        }
+
+        @Test
+        public void thatNotificationBeforeDeviceWentOfflineIsIgnored() {
+            Instant lastNotification = DEVICE_OFFLINE.minus(Duration.ofMinutes(1));
+
+            assertThat(OfflineDevicesJobImpl.shouldSendNotification(DEVICE_OFFLINE.plus(Duration.ofMinutes(61)), DEVICE_OFFLINE, lastNotification, THRESHOLDS), is(true));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobThresholdCrossingsTests {
+
+        private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+        private final Device device = new Device(UUID.randomUUID());
+        private final VirtualClock clock = new VirtualClock(START);
+        private final InMemoryJobMetrics metrics = new InMemoryJobMetrics();
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test(expected = IllegalStateException.class)
+        public void thatRunThrowsExceptionWhenNoThresholdsAreConfigured() {
+            new OfflineDevicesJobImpl(deviceService, pushNotificationService).run();
+        }
+
+        @Test
+        public void thatOnlyDevicesThatPassedThresholdSinceLastRunAreScanned() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+            Device otherDevice = new Device(UUID.randomUUID());
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            clock.advance(Duration.ofMinutes(30));
+            offlineDevicesJob.onDeviceDisconnect(otherDevice);
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getDevicesScanned(), is(2L));
+
+            clock.advance(Duration.ofMinutes(31));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getDevicesScanned(), is(3L));
+            assertThat(metrics.getOfflineDevices(), is(2));
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(device));
+
+            clock.advance(Duration.ofMinutes(1));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getDevicesScanned(), is(3L));
+        }
+
+        @Test
+        public void thatEveryThresholdIsQueried() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+            clock.advance(Duration.ofMinutes(61));
+            offlineDevicesJob.run();
+            clock.advance(Duration.ofHours(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatConnectedDeviceIsNoLongerScanned() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+            offlineDevicesJob.onDeviceConnect(device);
+            clock.advance(Duration.ofMinutes(61));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getDevicesScanned(), is(1L));
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        @Test
+        public void thatReconfiguredJobScansEveryOfflineDevice() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            clock.advance(Duration.ofMinutes(90));
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(30)));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getDevicesScanned(), is(2L));
+        }
+
+        @Test
+        public void thatPopulationsAreCountedOncePerInterval() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+            clock.advance(Duration.ofMinutes(61));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getThresholdPopulations(), is(new long[]{0, 1, 0}));
+
+            offlineDevicesJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+            clock.advance(OfflineDevicesJobImpl.THRESHOLD_POPULATIONS_INTERVAL.dividedBy(2));
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getThresholdPopulations(), is(new long[]{0, 1, 0}));
+
+            clock.advance(OfflineDevicesJobImpl.THRESHOLD_POPULATIONS_INTERVAL);
+            offlineDevicesJob.run();
+
+            assertThat(metrics.getThresholdPopulations(), is(new long[]{1, 1, 0}));
+        }
+
+        @Test
+        public void thatDevicesOfFailedRunAreScannedAgain() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.run();
+            clock.advance(Duration.ofMinutes(61));
+            doThrow(new IllegalStateException("Gateway down.")).doNothing().when(pushNotificationService).sendOfflineNotifications(anyCollection());
+
+            try {
+                offlineDevicesJob.run();
+            } catch (IllegalStateException e) {
+                // The next run should scan the device again.
+            }
+
+            clock.advance(Duration.ofMinutes(1));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        private OfflineDevicesJobImpl createJob() {
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, ColdDeviceSet.onHeap(), 10, metrics);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofHours(1), Duration.ofHours(2)));
+
+            return offlineDevicesJob;
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobColdDeviceSetTests {
+
+        private static final List<Duration> THRESHOLDS = Collections.singletonList(Duration.ofDays(1));
+
+        private final Device device = new Device(UUID.randomUUID());
+        private final ColdDeviceSet coldDeviceSet = ColdDeviceSet.onHeap();
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatDeviceNotifiedForLastThresholdIsNoLongerEvaluated() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(THRESHOLDS);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+            assertThat(coldDeviceSet.size(), is(1L));
+        }
+
+        @Test
+        public void thatConnectingDeviceIsRemovedFromColdSet() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onDeviceConnect(device);
+            offlineDevicesJob.onConfigurationUpdate(THRESHOLDS);
+            offlineDevicesJob.run();
+
+            assertThat(coldDeviceSet.size(), is(0L));
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatDisconnectingDeviceIsPromoted() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.onConfigurationUpdate(THRESHOLDS);
+            offlineDevicesJob.run();
+
+            assertThat(coldDeviceSet.size(), is(0L));
+            verify(pushNotificationService, times(2)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatLaterThresholdPromotesColdDevices() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofHours(36)));
+            offlineDevicesJob.run();
+
+            assertThat(coldDeviceSet.size(), is(0L));
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(device));
+        }
+
+        @Test
+        public void thatEarlierThresholdKeepsColdDevices() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob();
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofHours(1), Duration.ofHours(12)));
+            offlineDevicesJob.run();
+
+            assertThat(coldDeviceSet.size(), is(1L));
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatDeviceStaysHotWhenColdSetIsFull() {
+            ColdDeviceSet fullColdDeviceSet = ColdDeviceSet.onHeap(256);
+            Random random = new Random(21);
+
+            for (int i = 0; i < 100_000; i++) {
+                fullColdDeviceSet.put(new Device(new UUID(random.nextLong(), random.nextLong())), Instant.now());
+            }
+
+            OfflineDevicesJobImpl offlineDevicesJob = createJob(fullColdDeviceSet);
+
+            offlineDevicesJob.run();
+            offlineDevicesJob.onConfigurationUpdate(THRESHOLDS);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+            assertThat(fullColdDeviceSet.size(), is((long) ColdDeviceSet.SEGMENT_COUNT * 192));
+        }
+
+        private OfflineDevicesJobImpl createJob() {
+            return createJob(coldDeviceSet);
+        }
+
+        /**
+         * Creates a job with a single device that has been notified for its last threshold already. The tests
+         * reconfigure the job between runs, so the second run evaluates every device that isn't in the cold set.
+         */
+        private OfflineDevicesJobImpl createJob(ColdDeviceSet coldDeviceSet) {
+            Instant deviceOffline = Instant.now().minus(Duration.ofDays(2));
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, deviceOffline));
+            when(pushNotificationService.getLastOfflineNotificationInstants(anyCollection()))
+                    .thenReturn(Collections.singletonMap(device, deviceOffline.plus(Duration.ofHours(25))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService, coldDeviceSet, 10, JobMetrics.noOp());
+
+            offlineDevicesJob.onConfigurationUpdate(THRESHOLDS);
+
+            return offlineDevicesJob;
+        }
+    }
+
+    public static class OfflineDevicesJobSimulationTests {
+
+        @Test
+        public void thatThresholdCrossingsMakeTheSameDecisionsAsFullScans() {
+            Instant start = Instant.parse("2020-01-01T00:00:00Z");
+            Instant end = start.plus(Duration.ofDays(2));
+
+            SimulationReport report = new Simulation(Arrays.asList(Duration.ZERO, Duration.ofMinutes(30), Duration.ofHours(2), Duration.ofHours(8)), Duration.ofMinutes(5))
+                    .addJob("full scans", (clock, deviceService, pushNotificationService) -> new FullScanJob(createJob(clock, deviceService, pushNotificationService)))
+                    .addJob("threshold crossings", OfflineDevicesJobSimulationTests::createJob)
+                    .run(start, end, Traces.synthetic(22, 2000, start, Duration.ofDays(2), Duration.ofHours(6), Duration.ofHours(3)));
+
+            assertThat(report.getJobReport("full scans").getNotificationCount() > 0, is(true));
+            assertThat(report.getDecisionDiffs().toString(), report.getJobReport("threshold crossings").getDecisionDiffCount(), is(0L));
+        }
+
+        private static OfflineDevicesJobImpl createJob(Clock clock, DeviceService deviceService, PushNotificationService pushNotificationService) {
+            return new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, ColdDeviceSet.onHeap(), OfflineDevicesJobImpl.DEFAULT_BATCH_SIZE, JobMetrics.noOp());
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService, ColdDeviceSet.onHeap(), 10, JobMetrics.noOp()), Duration.ofMillis(500));
+        }
+    }
+
+    /**
+     * A job that reconfigures the job it wraps with the same thresholds before every run, so every run evaluates every
+     * offline device that isn't in the cold set.
+     */
+    private static class FullScanJob implements OfflineDevicesJob {
+
+        private final OfflineDevicesJob job;
+
+        private List<Duration> thresholds;
+
+        private FullScanJob(OfflineDevicesJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            job.onConfigurationUpdate(thresholds);
+            job.run();
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            job.onDeviceConnect(device);
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            job.onDeviceDisconnect(device);
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+            this.thresholds = thresholds;
+            job.onConfigurationUpdate(thresholds);
+        }
+    }
+}
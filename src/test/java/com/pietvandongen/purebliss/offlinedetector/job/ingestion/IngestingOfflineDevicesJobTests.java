@@ -0,0 +1,338 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ingestion;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.InMemoryJobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(Enclosed.class)
+public class IngestingOfflineDevicesJobTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Duration DEBOUNCE_WINDOW = Duration.ofSeconds(5);
+
+    public static class EventRingBufferTests {
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatCapacityShouldBePowerOfTwo() {
+            new EventRingBuffer<String>(3);
+        }
+
+        @Test
+        public void thatElementsAreDrainedInOrder() {
+            EventRingBuffer<String> buffer = new EventRingBuffer<>(4);
+            List<String> drained = new ArrayList<>();
+
+            buffer.offer("a");
+            buffer.offer("b");
+            buffer.offer("c");
+
+            assertThat(buffer.drainTo(drained::add, 2), is(2));
+            assertThat(buffer.drainTo(drained::add, 2), is(1));
+            assertThat(drained, is(List.of("a", "b", "c")));
+            assertThat(buffer.size(), is(0));
+        }
+
+        @Test
+        public void thatFullBufferRejectsElementsUntilDrained() {
+            EventRingBuffer<String> buffer = new EventRingBuffer<>(2);
+
+            assertThat(buffer.offer("a"), is(true));
+            assertThat(buffer.offer("b"), is(true));
+            assertThat(buffer.offer("c"), is(false));
+            assertThat(buffer.size(), is(2));
+
+            buffer.drainTo(element -> {
+            }, 1);
+
+            assertThat(buffer.offer("c"), is(true));
+        }
+
+        @Test
+        public void thatConcurrentProducersLoseNoElementsAndKeepTheirOrder() throws Exception {
+            int producerCount = 4;
+            int elementsPerProducer = 100_000;
+            EventRingBuffer<long[]> buffer = new EventRingBuffer<>(1024);
+            ExecutorService executor = Executors.newFixedThreadPool(producerCount);
+            long[] lastSequences = new long[producerCount];
+            List<Future<?>> producers = new ArrayList<>();
+            int drained = 0;
+
+            Arrays.fill(lastSequences, -1);
+
+            try {
+                for (int i = 0; i < producerCount; i++) {
+                    int producer = i;
+
+                    producers.add(executor.submit(() -> {
+                        for (long sequence = 0; sequence < elementsPerProducer; sequence++) {
+                            while (!buffer.offer(new long[]{producer, sequence})) {
+                                Thread.onSpinWait();
+                            }
+                        }
+                    }));
+                }
+
+                while (drained < producerCount * elementsPerProducer) {
+                    drained += buffer.drainTo(element -> {
+                        int producer = (int) element[0];
+
+                        assertThat(element[1], is(lastSequences[producer] + 1));
+                        lastSequences[producer] = element[1];
+                    }, 256);
+                }
+
+                for (Future<?> producer : producers) {
+                    producer.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertThat(drained, is(producerCount * elementsPerProducer));
+            assertThat(buffer.size(), is(0));
+        }
+    }
+
+    public static class IngestionTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        private OfflineDevicesJob job;
+        private MutableClock clock;
+        private InMemoryJobMetrics metrics;
+        private IngestingOfflineDevicesJob ingestingJob;
+
+        @Before
+        public void setUp() {
+            job = mock(OfflineDevicesJob.class);
+            clock = new MutableClock(START);
+            metrics = new InMemoryJobMetrics();
+            ingestingJob = new IngestingOfflineDevicesJob(job, clock, 4, DEBOUNCE_WINDOW, metrics);
+        }
+
+        @Test
+        public void thatEventIsPassedOnOnceDeviceIsQuietForDebounceWindow() {
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.drain();
+
+            verify(job, never()).onDeviceDisconnect(any());
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            verify(job).onDeviceDisconnect(device);
+            assertThat(ingestingJob.getPendingDeviceCount(), is(0));
+        }
+
+        @Test
+        public void thatFlappingDeviceThatEndsInSameStateIsNotPassedOn() {
+            ingestingJob.onDeviceConnect(device);
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW.multipliedBy(2));
+            ingestingJob.drain();
+
+            verify(job).onDeviceConnect(device);
+            verify(job, never()).onDeviceDisconnect(any());
+            assertThat(metrics.getEventsCoalesced(), is(4L));
+        }
+
+        @Test
+        public void thatFlappingDeviceWithoutPassedOnStateOnlyPassesOnLastEvent() {
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            verify(job).onDeviceConnect(device);
+            verify(job, never()).onDeviceDisconnect(any());
+            assertThat(metrics.getEventsCoalesced(), is(3L));
+        }
+
+        @Test
+        public void thatFlappingDeviceThatChangedStateOnlyPassesOnLastEvent() {
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+            ingestingJob.onDeviceDisconnect(device);
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            verify(job).onDeviceDisconnect(device);
+            verify(job, never()).onDeviceConnect(any());
+            assertThat(metrics.getEventsCoalesced(), is(2L));
+        }
+
+        @Test
+        public void thatDeviceThatChangedStateAfterDuplicateEventPassesOnLastEvent() {
+            ingestingJob.onDeviceConnect(device);
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            ingestingJob.onDeviceConnect(device);
+            ingestingJob.onDeviceDisconnect(device);
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW.multipliedBy(2));
+            ingestingJob.drain();
+
+            InOrder inOrder = inOrder(job);
+
+            inOrder.verify(job).onDeviceConnect(device);
+            inOrder.verify(job).onDeviceDisconnect(device);
+            assertThat(metrics.getEventsCoalesced(), is(1L));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatMaximumHoldCannotBeShorterThanDebounceWindow() {
+            new IngestingOfflineDevicesJob(job, clock, 4, DEBOUNCE_WINDOW, DEBOUNCE_WINDOW.minusSeconds(1), metrics);
+        }
+
+        @Test
+        public void thatNewEventRestartsDebounceWindow() {
+            ingestingJob.onDeviceDisconnect(device);
+            clock.instant = START.plus(DEBOUNCE_WINDOW.minusSeconds(1));
+            ingestingJob.onDeviceConnect(device);
+            ingestingJob.onDeviceDisconnect(device);
+            clock.instant = START.plus(DEBOUNCE_WINDOW);
+            ingestingJob.drain();
+
+            verify(job, never()).onDeviceDisconnect(any());
+
+            clock.instant = START.plus(DEBOUNCE_WINDOW.multipliedBy(2));
+            ingestingJob.drain();
+
+            verify(job).onDeviceDisconnect(device);
+        }
+
+        @Test
+        public void thatContinuouslyFlappingDeviceIsPassedOnAfterMaximumHold() {
+            ingestingJob.onDeviceDisconnect(device);
+
+            for (int second = 1; second <= IngestingOfflineDevicesJob.DEFAULT_MAX_HOLD.getSeconds(); second++) {
+                if (second % 4 == 0) {
+                    clock.instant = START.plusSeconds(second).minusMillis(400);
+                    ingestingJob.onDeviceConnect(device);
+                    clock.instant = START.plusSeconds(second);
+                    ingestingJob.onDeviceDisconnect(device);
+                }
+
+                clock.instant = START.plusSeconds(second);
+
+                if (second < IngestingOfflineDevicesJob.DEFAULT_MAX_HOLD.getSeconds()) {
+                    ingestingJob.drain();
+                    verify(job, never()).onDeviceDisconnect(any());
+                }
+            }
+
+            ingestingJob.drain();
+
+            verify(job).onDeviceDisconnect(device);
+            verify(job, never()).onDeviceConnect(any());
+            assertThat(ingestingJob.getPendingDeviceCount(), is(0));
+        }
+
+        @Test
+        public void thatRunDrainsBeforeRunningJob() {
+            ingestingJob = new IngestingOfflineDevicesJob(job, clock, 4, Duration.ZERO, metrics);
+
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.run();
+
+            InOrder inOrder = inOrder(job);
+
+            inOrder.verify(job).onDeviceDisconnect(device);
+            inOrder.verify(job).run();
+        }
+
+        @Test
+        public void thatFullBufferIsDrainedByProducer() {
+            for (int i = 0; i < 10; i++) {
+                ingestingJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+            }
+
+            assertThat(ingestingJob.getQueueDepth(), is(2));
+            assertThat(metrics.getMaxEventQueueDepth(), is(4));
+        }
+
+        @Test
+        public void thatQueueDepthIsReported() {
+            ingestingJob.onDeviceDisconnect(device);
+            ingestingJob.onDeviceConnect(device);
+
+            assertThat(ingestingJob.getQueueDepth(), is(2));
+
+            ingestingJob.drain();
+
+            assertThat(ingestingJob.getQueueDepth(), is(0));
+            assertThat(metrics.getEventQueueDepth(), is(2));
+        }
+
+        @Test
+        public void thatConfigurationUpdateIsPassedOnRightAway() {
+            ingestingJob.onConfigurationUpdate(Collections.singletonList(Duration.ofHours(1)));
+
+            verify(job).onConfigurationUpdate(Collections.singletonList(Duration.ofHours(1)));
+        }
+    }
+
+    private static class MutableClock extends Clock {
+
+        private volatile Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
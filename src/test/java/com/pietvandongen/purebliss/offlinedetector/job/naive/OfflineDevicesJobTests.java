@@ -1,6 +1,7 @@
 package com.pietvandongen.purebliss.offlinedetector.job.naive;
 
 import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
 import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
 import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
 import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
@@ -14,16 +15,20 @@ import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 @RunWith(MockitoJUnitRunner.class)
 public class OfflineDevicesJobTests {
@@ -238,4 +243,25 @@ public class OfflineDevicesJobTests {
 
         verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
     }
+
+    @Test
+    public void thatThresholdsAreCopiedWhenConfigurationIsUpdated() {
+        List<Duration> thresholds = new ArrayList<>(Collections.singletonList(Duration.ofDays(1)));
+
+        when(clock.instant()).thenReturn(Instant.now());
+
+        offlineDevicesJob.onConfigurationUpdate(thresholds);
+        thresholds.clear();
+        offlineDevicesJob.run();
+
+        verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+    }
+
+    @Test
+    public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+        DeviceService deviceService = mock(DeviceService.class, withSettings().stubOnly());
+        PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+        ConcurrentJobStress.stress(new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService), Duration.ofMillis(500));
+    }
 }
@@ -0,0 +1,304 @@
+package com.pietvandongen.purebliss.offlinedetector.job.outage;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(Enclosed.class)
+public class OutageAwareOfflineDevicesJobTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Duration WINDOW = Duration.ofMinutes(1);
+
+    private static List<Device> createDevices(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Device(UUID.randomUUID()))
+                .collect(Collectors.toList());
+    }
+
+    private static Collection<Device> sameDevices(List<Device> devices) {
+        return argThat(actual -> actual != null && new HashSet<>(actual).equals(new HashSet<>(devices)) && actual.size() == devices.size());
+    }
+
+    public static class OutageDetectorTests {
+
+        private final List<Device> devices = createDevices(4);
+
+        @Test
+        public void thatOutageStartsWhenThresholdIsReachedWithinWindow() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 3);
+
+            assertThat(outageDetector.disconnect(devices.get(0), START), is((Outage) null));
+            assertThat(outageDetector.disconnect(devices.get(1), START.plusSeconds(10)), is((Outage) null));
+
+            Outage outage = outageDetector.disconnect(devices.get(2), START.plusSeconds(20));
+
+            assertThat(outage.getGroup(), is("group"));
+            assertThat(outage.getStart(), is(START.plusSeconds(20)));
+            assertThat(outageDetector.getOutage(devices.get(0)), is(outage));
+            assertThat(outageDetector.disconnect(devices.get(3), START.plusSeconds(30)), is(outage));
+            assertThat(outageDetector.getActiveOutage("group"), is(outage));
+        }
+
+        @Test
+        public void thatDisconnectsOutsideWindowAreNotCounted() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 3);
+
+            outageDetector.disconnect(devices.get(0), START);
+            outageDetector.disconnect(devices.get(1), START.plusSeconds(30));
+
+            assertThat(outageDetector.disconnect(devices.get(2), START.plusSeconds(65)), is((Outage) null));
+            assertThat(outageDetector.getOutage(devices.get(0)), is((Outage) null));
+        }
+
+        @Test
+        public void thatReconnectedDevicesAreNotCounted() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 3);
+
+            outageDetector.disconnect(devices.get(0), START);
+            outageDetector.disconnect(devices.get(1), START);
+            outageDetector.connect(devices.get(0));
+
+            assertThat(outageDetector.disconnect(devices.get(2), START), is((Outage) null));
+        }
+
+        @Test
+        public void thatGroupsAreCountedSeparately() {
+            OutageDetector outageDetector = new OutageDetector(device -> device.equals(devices.get(0)) ? "first" : "second", WINDOW, 2);
+
+            outageDetector.disconnect(devices.get(0), START);
+
+            assertThat(outageDetector.disconnect(devices.get(1), START), is((Outage) null));
+            assertThat(outageDetector.disconnect(devices.get(2), START).getGroup(), is("second"));
+            assertThat(outageDetector.getOutage(devices.get(0)), is((Outage) null));
+        }
+
+        @Test
+        public void thatOutageClearsWhenCountDropsButMembersStayUntilTheyReconnect() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 2);
+
+            outageDetector.disconnect(devices.get(0), START);
+
+            Outage outage = outageDetector.disconnect(devices.get(1), START);
+
+            outageDetector.refresh(START.plus(WINDOW));
+
+            assertThat(outageDetector.getActiveOutage("group"), is((Outage) null));
+            assertThat(outageDetector.disconnect(devices.get(2), START.plus(WINDOW)), is((Outage) null));
+            assertThat(outageDetector.getOutage(devices.get(2)), is((Outage) null));
+            assertThat(outageDetector.getOutage(devices.get(0)), is(outage));
+
+            outageDetector.connect(devices.get(0));
+
+            assertThat(outageDetector.getOutage(devices.get(0)), is((Outage) null));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatThresholdShouldBeAtLeastOne() {
+            new OutageDetector(device -> "group", WINDOW, 0);
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OutageAwareOfflineDevicesJobRunTests {
+
+        private final VirtualClock clock = new VirtualClock(START);
+        private final List<Device> devices = createDevices(5);
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatNotificationsOfOutageAreSentAsSingleOutageNotification() {
+            OutageAwareOfflineDevicesJob job = createJob(3);
+
+            devices.forEach(job::onDeviceDisconnect);
+            job.run();
+
+            assertThat(job.isInOutage(OutageAwareOfflineDevicesJob.ALL_DEVICES), is(true));
+            verify(pushNotificationService).sendOutageNotification(eq(OutageAwareOfflineDevicesJob.ALL_DEVICES), eq(START), sameDevices(devices));
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+            verify(pushNotificationService, never()).sendOfflineNotification(any());
+        }
+
+        @Test
+        public void thatDevicesAreNotifiedOnTheirOwnBelowThreshold() {
+            OutageAwareOfflineDevicesJob job = createJob(10);
+
+            devices.forEach(job::onDeviceDisconnect);
+            job.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(devices);
+            verify(pushNotificationService, never()).sendOutageNotification(anyString(), any(), anyCollection());
+        }
+
+        @Test
+        public void thatDevicesAreNotifiedOnTheirOwnAfterOutageCleared() {
+            OutageAwareOfflineDevicesJob job = createJob(3);
+            Device lateDevice = new Device(UUID.randomUUID());
+
+            devices.forEach(job::onDeviceDisconnect);
+            clock.advance(WINDOW);
+            job.run();
+            job.onDeviceDisconnect(lateDevice);
+            job.run();
+
+            assertThat(job.isInOutage(OutageAwareOfflineDevicesJob.ALL_DEVICES), is(false));
+            verify(pushNotificationService).sendOutageNotification(eq(OutageAwareOfflineDevicesJob.ALL_DEVICES), eq(START), sameDevices(devices));
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(lateDevice));
+        }
+
+        @Test
+        public void thatOutageNotificationIsSentWhenRunFails() {
+            OutageAwareOfflineDevicesJob job = new OutageAwareOfflineDevicesJob(pushNotificationService -> new NotifyingJob(pushNotificationService, true), pushNotificationService, clock, WINDOW, 3, device -> OutageAwareOfflineDevicesJob.ALL_DEVICES);
+
+            devices.forEach(job::onDeviceDisconnect);
+
+            try {
+                job.run();
+            } catch (IllegalStateException e) {
+                // The held back notifications should be sent anyway.
+            }
+
+            verify(pushNotificationService).sendOutageNotification(eq(OutageAwareOfflineDevicesJob.ALL_DEVICES), eq(START), sameDevices(devices));
+        }
+
+        @Test
+        public void thatRunAsyncSendsOutageNotificationOnceRunCompleted() {
+            OutageAwareOfflineDevicesJob job = createJob(3);
+
+            devices.forEach(job::onDeviceDisconnect);
+            job.runAsync(Runnable::run).join();
+
+            verify(pushNotificationService).sendOutageNotification(eq(OutageAwareOfflineDevicesJob.ALL_DEVICES), eq(START), sameDevices(devices));
+        }
+
+        private OutageAwareOfflineDevicesJob createJob(int threshold) {
+            return new OutageAwareOfflineDevicesJob(pushNotificationService -> new NotifyingJob(pushNotificationService, false), pushNotificationService, clock, WINDOW, threshold, device -> OutageAwareOfflineDevicesJob.ALL_DEVICES);
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class AggregatingPushNotificationServiceTests {
+
+        private final VirtualClock clock = new VirtualClock(START);
+        private final List<Device> devices = createDevices(3);
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatHeldBackNotificationsCountAsLastNotifications() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 2);
+            AggregatingPushNotificationService aggregatingPushNotificationService = new AggregatingPushNotificationService(pushNotificationService, outageDetector, clock);
+
+            outageDetector.disconnect(devices.get(0), START);
+            outageDetector.disconnect(devices.get(1), START);
+            aggregatingPushNotificationService.sendOfflineNotifications(devices);
+
+            assertThat(aggregatingPushNotificationService.getLastOfflineNotificationInstant(devices.get(0)), is(Optional.of(START)));
+            assertThat(aggregatingPushNotificationService.getLastOfflineNotificationInstants(devices).keySet(), is(new LinkedHashSet<>(devices.subList(0, 2))));
+            verify(pushNotificationService).sendOfflineNotifications(devices.subList(2, 3));
+            assertThat(aggregatingPushNotificationService.flush(), is(1));
+            verify(pushNotificationService).sendOutageNotification(eq("group"), eq(START), sameDevices(devices.subList(0, 2)));
+        }
+
+        @Test
+        public void thatNotificationsAreHeldBackAgainWhenOutageNotificationFails() {
+            OutageDetector outageDetector = new OutageDetector(device -> "group", WINDOW, 2);
+            AggregatingPushNotificationService aggregatingPushNotificationService = new AggregatingPushNotificationService(pushNotificationService, outageDetector, clock);
+
+            outageDetector.disconnect(devices.get(0), START);
+            outageDetector.disconnect(devices.get(1), START);
+            aggregatingPushNotificationService.sendOfflineNotification(devices.get(0));
+            doThrow(new IllegalStateException("Gateway down.")).when(pushNotificationService).sendOutageNotification(anyString(), any(), anyCollection());
+
+            try {
+                aggregatingPushNotificationService.flush();
+            } catch (IllegalStateException e) {
+                // The notification should be held back again.
+            }
+
+            doNothing().when(pushNotificationService).sendOutageNotification(anyString(), any(), anyCollection());
+
+            assertThat(aggregatingPushNotificationService.flush(), is(1));
+            verify(pushNotificationService, times(2)).sendOutageNotification(eq("group"), eq(START), sameDevices(devices.subList(0, 1)));
+            assertThat(aggregatingPushNotificationService.flush(), is(0));
+        }
+    }
+
+    /**
+     * A job that notifies every offline device on its first run after it disconnected, in a single batch, and fails
+     * afterwards if it's told to.
+     */
+    private static class NotifyingJob implements OfflineDevicesJob {
+
+        private final PushNotificationService pushNotificationService;
+        private final boolean failing;
+        private final Set<Device> offlineDevices = new LinkedHashSet<>();
+
+        private NotifyingJob(PushNotificationService pushNotificationService, boolean failing) {
+            this.pushNotificationService = pushNotificationService;
+            this.failing = failing;
+        }
+
+        @Override
+        public void run() {
+            if (!offlineDevices.isEmpty()) {
+                pushNotificationService.sendOfflineNotifications(new ArrayList<>(offlineDevices));
+                offlineDevices.clear();
+            }
+
+            if (failing) {
+                throw new IllegalStateException("Run failed.");
+            }
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            offlineDevices.remove(device);
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            offlineDevices.add(device);
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package com.pietvandongen.purebliss.offlinedetector.job.primitive;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(Enclosed.class)
+public class OfflineDevicesJobTests {
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDeviceTableTests {
+        @Parameters(name = "Storage = {0}")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][]{
+                    {OfflineDeviceTable.Storage.HEAP},
+                    {OfflineDeviceTable.Storage.DIRECT}
+            });
+        }
+
+        @Parameter
+        public OfflineDeviceTable.Storage storage;
+
+        @Test
+        public void thatTableContainsSameEntriesAsMapAfterRandomOperations() {
+            OfflineDeviceTable table = new OfflineDeviceTable(storage, 0);
+            Map<UUID, Long> expectedEntries = new HashMap<>();
+            List<UUID> uuids = new ArrayList<>();
+            Random random = new Random(42);
+
+            for (int i = 0; i < 5000; i++) {
+                uuids.add(new UUID(random.nextLong(), random.nextLong()));
+            }
+
+            for (int i = 0; i < 50_000; i++) {
+                UUID uuid = uuids.get(random.nextInt(uuids.size()));
+
+                if (random.nextInt(3) == 0) {
+                    assertThat(table.remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()), is(expectedEntries.remove(uuid) != null));
+                } else {
+                    table.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), i, OfflineDevicesJobImpl.NO_NOTIFICATION);
+                    expectedEntries.put(uuid, (long) i);
+                }
+            }
+
+            assertThat(table.size(), is(expectedEntries.size()));
+
+            for (UUID uuid : uuids) {
+                long expectedOfflineMillis = expectedEntries.getOrDefault(uuid, OfflineDeviceTable.NOT_FOUND);
+
+                assertThat(table.getOfflineMillis(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()), is(expectedOfflineMillis));
+            }
+        }
+
+        @Test
+        public void thatLastNotificationIsOnlyUpdatedWhenDeviceIsStillOfflineSinceSameInstant() {
+            OfflineDeviceTable table = new OfflineDeviceTable(storage, 0);
+
+            table.put(1, 2, 100, OfflineDevicesJobImpl.NO_NOTIFICATION);
+
+            assertThat(table.updateLastNotification(1, 2, 99, 200), is(false));
+            assertThat(table.updateLastNotification(1, 2, 100, 200), is(true));
+            assertThat(table.getLastNotificationMillis(1, 2), is(200L));
+            assertThat(table.updateLastNotification(3, 4, 100, 200), is(false));
+        }
+
+        @Test
+        public void thatSelectionContainsMatchingEntriesOfAllSegments() {
+            OfflineDeviceTable table = new OfflineDeviceTable(storage, 1000);
+            OfflineDeviceTable.Selection selection = new OfflineDeviceTable.Selection();
+            int selectedEntries = 0;
+
+            for (int i = 0; i < 1000; i++) {
+                table.put(i, -i, i, OfflineDevicesJobImpl.NO_NOTIFICATION);
+            }
+
+            for (int segment = 0; segment < OfflineDeviceTable.SEGMENT_COUNT; segment++) {
+                selection.clear();
+                table.select(segment, (mostSignificantBits, leastSignificantBits, offlineMillis, lastNotificationMillis) -> offlineMillis % 2 == 0, selection);
+                selectedEntries += selection.size();
+
+                for (int i = 0; i < selection.size(); i++) {
+                    assertThat(selection.getLeastSignificantBits(i), is(-selection.getMostSignificantBits(i)));
+                }
+            }
+
+            assertThat(selectedEntries, is(500));
+        }
+
+        @Test
+        public void thatConcurrentUpdatesOfDifferentDevicesAreNotLost() throws Exception {
+            OfflineDeviceTable table = new OfflineDeviceTable(storage, 0);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = new ArrayList<>();
+
+            try {
+                for (int thread = 0; thread < 4; thread++) {
+                    long mostSignificantBits = thread;
+
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 10_000; i++) {
+                            table.put(mostSignificantBits, i, i, OfflineDevicesJobImpl.NO_NOTIFICATION);
+
+                            if (i % 2 == 1) {
+                                table.remove(mostSignificantBits, i - 1);
+                            }
+                        }
+                    }));
+                }
+
+                for (Future<?> future : futures) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertThat(table.size(), is(4 * 5000));
+        }
+    }
+
+    public static class OfflineDeviceTableSizingTests {
+
+        @Test
+        public void thatSmallTablesGetMinimumSegmentCapacity() {
+            assertThat(OfflineDeviceTable.segmentCapacity(0), is(16));
+        }
+
+        @Test
+        public void thatSegmentsStayBelowMaximumLoad() {
+            assertThat(OfflineDeviceTable.segmentCapacity(1000), is(32));
+            assertThat(OfflineDeviceTable.segmentCapacity(96 * OfflineDeviceTable.SEGMENT_COUNT), is(128));
+            assertThat(OfflineDeviceTable.segmentCapacity(97 * OfflineDeviceTable.SEGMENT_COUNT), is(256));
+        }
+
+        @Test
+        public void thatLargeTablesAreSizedForLoadAroundSixTenths() {
+            int capacity = OfflineDeviceTable.segmentCapacity(20_000_000);
+
+            assertThat(capacity, is(1 << 19));
+            assertThat(20_000_000.0 / (capacity * (double) OfflineDeviceTable.SEGMENT_COUNT) > 0.59, is(true));
+        }
+    }
+
+    public static class OfflineDeviceStoreTests {
+
+        @Rule
+        public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+        @Test
+        public void thatNothingIsRecoveredWithoutSnapshot() throws Exception {
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                assertThat(store.recover(OfflineDeviceTable.Storage.HEAP), is(Optional.empty()));
+            }
+        }
+
+        @Test
+        public void thatTableIsRecoveredFromSnapshotAndLog() throws Exception {
+            OfflineDeviceTable table = new OfflineDeviceTable(OfflineDeviceTable.Storage.HEAP, 0);
+
+            table.put(1, 1, 100, OfflineDevicesJobImpl.NO_NOTIFICATION);
+            table.put(2, 2, 200, 250);
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                store.snapshot(table, 300);
+                store.put(table, 3, 3, 400, OfflineDevicesJobImpl.NO_NOTIFICATION);
+                store.remove(table, 2, 2, 500);
+                store.updateLastNotification(table, 1, 1, 100, 600);
+            }
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                OfflineDeviceTable recoveredTable = store.recover(OfflineDeviceTable.Storage.DIRECT).get();
+
+                assertThat(recoveredTable.size(), is(2));
+                assertThat(recoveredTable.getLastNotificationMillis(1, 1), is(600L));
+                assertThat(recoveredTable.getOfflineMillis(2, 2), is(OfflineDeviceTable.NOT_FOUND));
+                assertThat(recoveredTable.getOfflineMillis(3, 3), is(400L));
+                assertThat(store.getLastEventMillis(), is(600L));
+            }
+        }
+
+        @Test
+        public void thatChangesAfterLaterSnapshotAreRecovered() throws Exception {
+            OfflineDeviceTable table = new OfflineDeviceTable(OfflineDeviceTable.Storage.HEAP, 0);
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                store.snapshot(table, 100);
+                store.put(table, 1, 1, 200, OfflineDevicesJobImpl.NO_NOTIFICATION);
+                store.snapshot(table, 300);
+                store.put(table, 2, 2, 400, OfflineDevicesJobImpl.NO_NOTIFICATION);
+            }
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                assertThat(store.recover(OfflineDeviceTable.Storage.HEAP).get().size(), is(2));
+
+                store.snapshot(table, 500);
+            }
+
+            try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+                assertThat(files.count(), is(2L));
+            }
+        }
+
+        @Test
+        public void thatPartiallyWrittenLogEntryIsIgnored() throws Exception {
+            OfflineDeviceTable table = new OfflineDeviceTable(OfflineDeviceTable.Storage.HEAP, 0);
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                store.snapshot(table, 100);
+                store.put(table, 1, 1, 200, OfflineDevicesJobImpl.NO_NOTIFICATION);
+            }
+
+            try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+                Path log = files.filter(file -> file.toString().endsWith(".log")).findFirst().get();
+
+                Files.write(log, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+            }
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                assertThat(store.recover(OfflineDeviceTable.Storage.HEAP).get().getOfflineMillis(1, 1), is(200L));
+            }
+        }
+
+        @Test
+        public void thatCompactionIsDueAfterThresholdNumberOfChanges() throws Exception {
+            OfflineDeviceTable table = new OfflineDeviceTable(OfflineDeviceTable.Storage.HEAP, 0);
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 2)) {
+                store.snapshot(table, 100);
+                store.put(table, 1, 1, 200, OfflineDevicesJobImpl.NO_NOTIFICATION);
+                store.remove(table, 2, 2, 300);
+
+                assertThat(store.shouldCompact(), is(false));
+
+                store.remove(table, 1, 1, 400);
+
+                assertThat(store.shouldCompact(), is(true));
+
+                store.snapshot(table, 500);
+
+                assertThat(store.shouldCompact(), is(false));
+            }
+        }
+
+        @Test(expected = IllegalStateException.class)
+        public void thatChangesCannotBeStoredBeforeFirstSnapshot() throws Exception {
+            try (OfflineDeviceStore store = new OfflineDeviceStore(temporaryFolder.getRoot().toPath(), 100)) {
+                store.put(new OfflineDeviceTable(OfflineDeviceTable.Storage.HEAP, 0), 1, 1, 200, OfflineDevicesJobImpl.NO_NOTIFICATION);
+            }
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDevicesJobShouldSendNotificationTests {
+        @Parameters(name = "Description = {0}, job start = {1}, device offline = {2}, last notification = {3}, thresholds = {4}, expected result = {5}")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][]{
+                    {
+                            "Should return false when no threshold has been passed yet",
+                            Instant.parse("2010-10-10T10:10:00.001Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:09:00.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            false
+                    },
+                    {
+                            "Should return true when a threshold has been passed and no notification was ever sent",
+                            Instant.parse("2010-10-10T10:10:01.001Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            null,
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            true
+                    },
+                    {
+                            "Should return true when a threshold has been passed and notification was from before job start",
+                            Instant.parse("2010-10-10T10:10:01.001Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:09:00.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            true
+                    },
+                    {
+                            "Should return false when a threshold has been passed but notification for threshold was already sent",
+                            Instant.parse("2010-10-10T10:10:01.002Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:01.001Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            false
+                    },
+                    {
+                            "Should return true when a threshold has been passed and last sent notification was for previous threshold",
+                            Instant.parse("2010-10-10T10:10:02.001Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:01.001Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3)),
+                            true
+                    }
+            });
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant jobStart;
+
+        @Parameter(2)
+        public Instant deviceOffline;
+
+        @Parameter(3)
+        public Instant lastNotification;
+
+        @Parameter(4)
+        public List<Duration> thresholds;
+
+        @Parameter(5)
+        public boolean expectedResult;
+
+        @Test
+        public void test() {
+            long lastNotificationMillis = lastNotification == null ? OfflineDevicesJobImpl.NO_NOTIFICATION : lastNotification.toEpochMilli();
+            boolean actualResult = OfflineDevicesJobImpl.shouldSendNotification(jobStart.toEpochMilli(), deviceOffline.toEpochMilli(), lastNotificationMillis, ThresholdSchedule.compile(thresholds));
+
+            assertThat(actualResult, is(expectedResult));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobImplTests {
+
+        private static final Instant JOB_START = Instant.parse("2010-10-10T10:10:00.00Z");
+
+        @Rule
+        public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Test
+        public void thatLastNotificationsAreLoadedInBatchesOnCreation() {
+            when(deviceService.getOfflineDevices()).thenReturn(createOfflineDevices(OfflineDevicesJobImpl.LOOKUP_BATCH_SIZE + 1, Duration.ofDays(2)));
+
+            new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService);
+
+            verify(pushNotificationService, times(2)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatPushNotificationIsSentOncePerPassedThreshold() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, JOB_START.minus(Duration.ofDays(2))));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofDays(3)));
+            offlineDevicesJob.run();
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstant(any(Device.class));
+        }
+
+        @Test
+        public void thatOfflineDevicesCanBeStoredOutsideOfTheHeap() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(deviceService.getOfflineDevices()).thenReturn(createOfflineDevices(10, Duration.ofDays(2)));
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService, OfflineDeviceTable.Storage.DIRECT);
+
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(10)).sendOfflineNotification(any(Device.class));
+            assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(11));
+
+            offlineDevicesJob.onDeviceConnect(device);
+
+            assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(10));
+        }
+
+        @Test
+        public void thatRestartedJobRecoversFromStoreAndOnlyLooksUpChanges() throws Exception {
+            Device notifiedDevice = new Device(UUID.randomUUID());
+            Device reconnectedDevice = new Device(UUID.randomUUID());
+            Device disconnectedDevice = new Device(UUID.randomUUID());
+            Path directory = temporaryFolder.getRoot().toPath();
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+            Map<Device, Optional<Instant>> changedDevices = new HashMap<>();
+
+            offlineDevices.put(notifiedDevice, JOB_START.minus(Duration.ofDays(2)));
+            offlineDevices.put(reconnectedDevice, JOB_START.minus(Duration.ofHours(1)));
+            changedDevices.put(reconnectedDevice, Optional.empty());
+            changedDevices.put(disconnectedDevice, Optional.of(JOB_START.plusSeconds(10)));
+
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+            doReturn(true).when(deviceService).supportsOfflineDeviceChanges();
+            doReturn(changedDevices).when(deviceService).getOfflineDeviceChangesSince(JOB_START);
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(directory, 100)) {
+                OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService, OfflineDeviceTable.Storage.HEAP, store);
+
+                offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+                offlineDevicesJob.run();
+            }
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(directory, 100)) {
+                OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START.plusSeconds(20), ZoneOffset.UTC), deviceService, pushNotificationService, OfflineDeviceTable.Storage.HEAP, store);
+
+                offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+                offlineDevicesJob.run();
+
+                assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(2));
+            }
+
+            verify(deviceService, times(1)).getOfflineDevices();
+            verify(pushNotificationService, times(1)).sendOfflineNotification(notifiedDevice);
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(Collections.singletonList(disconnectedDevice));
+        }
+
+        @Test
+        public void thatRestartedJobComparesAllOfflineDevicesWhenChangesAreNotSupported() throws Exception {
+            Device offlineDevice = new Device(UUID.randomUUID());
+            Device reconnectedDevice = new Device(UUID.randomUUID());
+            Path directory = temporaryFolder.getRoot().toPath();
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            offlineDevices.put(offlineDevice, JOB_START.minus(Duration.ofDays(2)));
+            offlineDevices.put(reconnectedDevice, JOB_START.minus(Duration.ofHours(1)));
+
+            when(deviceService.getOfflineDevices())
+                    .thenReturn(offlineDevices)
+                    .thenReturn(Collections.singletonMap(offlineDevice, JOB_START.minus(Duration.ofDays(2))));
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(directory, 100)) {
+                new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService, OfflineDeviceTable.Storage.HEAP, store);
+            }
+
+            try (OfflineDeviceStore store = new OfflineDeviceStore(directory, 100)) {
+                OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService, OfflineDeviceTable.Storage.HEAP, store);
+
+                assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(1));
+            }
+
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatRunDoesNotAllocatePerOfflineDevice() {
+            long fewDevicesAllocation = measureRunAllocation(100);
+            long manyDevicesAllocation = measureRunAllocation(100_000);
+
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+
+            assertThat(manyDevicesAllocation - fewDevicesAllocation < 1024, is(true));
+        }
+
+        private long measureRunAllocation(int deviceCount) {
+            Map<Device, Instant> offlineDevices = createOfflineDevices(deviceCount, Duration.ofDays(2));
+            Map<Device, Instant> lastNotifications = new HashMap<>();
+
+            offlineDevices.forEach((device, offline) -> lastNotifications.put(device, offline.plus(Duration.ofDays(1)).plusSeconds(1)));
+
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+            when(pushNotificationService.getLastOfflineNotificationInstants(anyCollection())).thenReturn(lastNotifications);
+
+            OfflineDevicesJobImpl offlineDevicesJob = new OfflineDevicesJobImpl(Clock.fixed(JOB_START, ZoneOffset.UTC), deviceService, pushNotificationService);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofDays(3)));
+
+            for (int i = 0; i < 5; i++) {
+                offlineDevicesJob.run();
+            }
+
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().threadId();
+            long allocatedBytesBeforeRun = threadMXBean.getThreadAllocatedBytes(threadId);
+
+            offlineDevicesJob.run();
+
+            return threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytesBeforeRun;
+        }
+
+        private static Map<Device, Instant> createOfflineDevices(int count, Duration offlineFor) {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                offlineDevices.put(new Device(UUID.randomUUID()), JOB_START.minus(offlineFor));
+            }
+
+            return offlineDevices;
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService), Duration.ofMillis(500));
+        }
+    }
+}
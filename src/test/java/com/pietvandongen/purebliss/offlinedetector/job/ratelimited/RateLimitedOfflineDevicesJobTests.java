@@ -0,0 +1,243 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.InMemoryJobMetrics;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RateLimitedOfflineDevicesJobTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+    private final VirtualClock clock = new VirtualClock(START);
+    private final InMemoryJobMetrics metrics = new InMemoryJobMetrics();
+    private final List<Device> devices = Arrays.asList(new Device(new UUID(0, 1)), new Device(new UUID(0, 2)), new Device(new UUID(0, 3)));
+
+    @Mock
+    private PushNotificationService pushNotificationService;
+
+    @Test
+    public void thatNotificationsAreSentAtLimitedRateAcrossRuns() {
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        devices.forEach(job::onDeviceDisconnect);
+        clock.advance(Duration.ofMinutes(1));
+        job.run();
+
+        verify(pushNotificationService).sendOfflineNotifications(devices.subList(0, 2));
+        assertThat(metrics.getNotificationQueueDepth(), is(1));
+
+        clock.advance(Duration.ofMinutes(1));
+        job.run();
+
+        verify(pushNotificationService).sendOfflineNotifications(devices.subList(2, 3));
+        assertThat(metrics.getNotificationQueueDepth(), is(0));
+        assertThat(metrics.getNotificationWaits().getMax() >= Duration.ofMinutes(1).toNanos(), is(true));
+    }
+
+    @Test
+    public void thatLongestOfflineDevicesAreSentFirst() {
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        job.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(10)));
+        job.onDeviceDisconnect(devices.get(2));
+        clock.advance(Duration.ofMinutes(11));
+        job.onDeviceDisconnect(devices.get(1));
+        job.onDeviceDisconnect(devices.get(0));
+        clock.advance(Duration.ofMinutes(2));
+        job.run();
+
+        verify(pushNotificationService).sendOfflineNotifications(Arrays.asList(devices.get(2), devices.get(0)));
+    }
+
+    @Test
+    public void thatNotificationsOfConnectedDevicesAreNotSent() {
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        devices.forEach(job::onDeviceDisconnect);
+        job.run();
+        devices.forEach(job::onDeviceConnect);
+        clock.advance(Duration.ofMinutes(1));
+        job.run();
+
+        verify(pushNotificationService, times(1)).sendOfflineNotifications(anyCollection());
+        assertThat(metrics.getNotificationQueueDepth(), is(0));
+    }
+
+    @Test
+    public void thatBurstCapsNotificationsPerRunInterval() {
+        List<Device> devices = Stream.generate(() -> new Device(UUID.randomUUID())).limit(5).collect(Collectors.toList());
+        RateLimitedOfflineDevicesJob job = new RateLimitedOfflineDevicesJob(service -> new NotifyingJob(service, false), pushNotificationService, clock, 1, 2, 10, metrics);
+
+        devices.forEach(job::onDeviceDisconnect);
+        job.run();
+        clock.advance(Duration.ofMinutes(1));
+        job.run();
+
+        verify(pushNotificationService, times(2)).sendOfflineNotifications(anyCollection());
+        assertThat(metrics.getNotificationQueueDepth(), is(1));
+    }
+
+    @Test
+    public void thatQueuedNotificationsAreDispatchedWhenRunFails() {
+        RateLimitedOfflineDevicesJob job = createJob(true);
+
+        devices.forEach(job::onDeviceDisconnect);
+
+        try {
+            job.run();
+        } catch (IllegalStateException e) {
+            // The queued notifications should be dispatched anyway.
+        }
+
+        verify(pushNotificationService).sendOfflineNotifications(devices.subList(0, 2));
+    }
+
+    @Test
+    public void thatRunAsyncDispatchesOnceRunCompleted() {
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        devices.forEach(job::onDeviceDisconnect);
+        job.runAsync(Runnable::run).join();
+
+        verify(pushNotificationService).sendOfflineNotifications(devices.subList(0, 2));
+        assertThat(metrics.getNotificationQueueDepth(), is(1));
+    }
+
+    @Test
+    public void thatScheduledDispatchPacesNotificationsBetweenRuns() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        job.scheduleDispatch(scheduler, Duration.ofMinutes(1));
+        verify(scheduler).scheduleAtFixedRate(dispatch.capture(), eq(Duration.ofMinutes(1).toNanos()), eq(Duration.ofMinutes(1).toNanos()), eq(TimeUnit.NANOSECONDS));
+
+        devices.forEach(job::onDeviceDisconnect);
+        job.run();
+        dispatch.getValue().run();
+
+        verify(pushNotificationService, never()).sendOfflineNotifications(devices.subList(2, 3));
+
+        clock.advance(Duration.ofMinutes(1));
+        dispatch.getValue().run();
+
+        verify(pushNotificationService).sendOfflineNotifications(devices.subList(2, 3));
+        assertThat(metrics.getNotificationQueueDepth(), is(0));
+    }
+
+    @Test
+    public void thatFailedScheduledDispatchIsReportedAndRetried() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        RateLimitedOfflineDevicesJob job = createJob(false);
+
+        job.scheduleDispatch(scheduler, Duration.ofMinutes(1));
+        verify(scheduler).scheduleAtFixedRate(dispatch.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+
+        devices.forEach(job::onDeviceDisconnect);
+        job.run();
+        clock.advance(Duration.ofMinutes(1));
+        doThrow(new IllegalStateException("Gateway down.")).doNothing().when(pushNotificationService).sendOfflineNotifications(anyCollection());
+
+        Thread thread = new Thread(dispatch.getValue());
+
+        thread.setUncaughtExceptionHandler((ignored, e) -> failures.add(e));
+        thread.start();
+        thread.join();
+
+        assertThat(failures.size(), is(1));
+        assertThat(metrics.getNotificationQueueDepth(), is(1));
+
+        clock.advance(Duration.ofMinutes(1));
+        dispatch.getValue().run();
+
+        verify(pushNotificationService, times(2)).sendOfflineNotifications(devices.subList(2, 3));
+        assertThat(metrics.getNotificationQueueDepth(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatJobFactoryCannotCreateNullJob() {
+        new RateLimitedOfflineDevicesJob(service -> null, pushNotificationService, 1, 1);
+    }
+
+    private RateLimitedOfflineDevicesJob createJob(boolean failing) {
+        return new RateLimitedOfflineDevicesJob(service -> new NotifyingJob(service, failing), pushNotificationService, clock, 1 / 60.0, 2, 10, metrics);
+    }
+
+    /**
+     * A job that notifies every offline device on its first run after it disconnected, in a single batch, and fails
+     * afterwards if it's told to.
+     */
+    private static class NotifyingJob implements OfflineDevicesJob {
+
+        private final PushNotificationService pushNotificationService;
+        private final boolean failing;
+        private final Set<Device> offlineDevices = new LinkedHashSet<>();
+
+        private NotifyingJob(PushNotificationService pushNotificationService, boolean failing) {
+            this.pushNotificationService = pushNotificationService;
+            this.failing = failing;
+        }
+
+        @Override
+        public void run() {
+            if (!offlineDevices.isEmpty()) {
+                pushNotificationService.sendOfflineNotifications(new ArrayList<>(offlineDevices));
+                offlineDevices.clear();
+            }
+
+            if (failing) {
+                throw new IllegalStateException("Run failed.");
+            }
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            offlineDevices.remove(device);
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            offlineDevices.add(device);
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+        }
+    }
+}
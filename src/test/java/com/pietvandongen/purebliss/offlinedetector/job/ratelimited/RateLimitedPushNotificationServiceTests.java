@@ -0,0 +1,175 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RateLimitedPushNotificationServiceTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final ThresholdSchedule THRESHOLDS = ThresholdSchedule.compile(Arrays.asList(Duration.ofSeconds(5), Duration.ofSeconds(15)));
+
+    private final Device first = new Device(new UUID(0, 1));
+    private final Device second = new Device(new UUID(0, 2));
+    private final Device third = new Device(new UUID(0, 3));
+    private final VirtualClock clock = new VirtualClock(START);
+    private final Map<Device, Instant> offlineDevices = new HashMap<>();
+    private final List<List<Device>> sentBatches = new ArrayList<>();
+
+    @Mock
+    private PushNotificationService pushNotificationService;
+
+    @Test
+    public void thatHigherThresholdsAndLongerOfflineDevicesAreSentFirst() {
+        RateLimitedPushNotificationService service = createService(1, 10, 10);
+
+        offlineDevices.put(first, START.minusSeconds(10));
+        offlineDevices.put(second, START.minusSeconds(12));
+        offlineDevices.put(third, START.minusSeconds(20));
+        service.sendOfflineNotifications(Arrays.asList(first, second, third));
+        service.dispatch(START, this::recordBatch);
+
+        assertThat(sentBatches, is(Collections.singletonList(Arrays.asList(third, second, first))));
+        verify(pushNotificationService).sendOfflineNotifications(Arrays.asList(third, second, first));
+    }
+
+    @Test
+    public void thatDevicesWithUnknownOfflineInstantAreSentFirst() {
+        RateLimitedPushNotificationService service = createService(1, 10, 10);
+
+        offlineDevices.put(first, START.minusSeconds(20));
+        service.sendOfflineNotifications(Arrays.asList(first, second));
+        service.dispatch(START, this::recordBatch);
+
+        assertThat(sentBatches, is(Collections.singletonList(Arrays.asList(second, first))));
+    }
+
+    @Test
+    public void thatNotificationsBeyondRateAreCarriedOver() {
+        RateLimitedPushNotificationService service = createService(1, 2, 1);
+
+        service.sendOfflineNotifications(Arrays.asList(first, second, third));
+        service.dispatch(START, this::recordBatch);
+
+        assertThat(sentBatches, is(Arrays.asList(Collections.singletonList(first), Collections.singletonList(second))));
+        assertThat(service.size(), is(1));
+
+        service.dispatch(START.plusSeconds(1), this::recordBatch);
+
+        assertThat(sentBatches.get(2), is(Collections.singletonList(third)));
+        assertThat(service.size(), is(0));
+    }
+
+    @Test
+    public void thatDispatchSendsAtMostBurstHoweverLongAgoPreviousDispatchWas() {
+        RateLimitedPushNotificationService service = createService(1, 2, 10);
+
+        service.sendOfflineNotifications(Arrays.asList(first, second, third));
+        service.dispatch(START, this::recordBatch);
+        offlineDevices.put(first, START);
+        service.sendOfflineNotification(first);
+        service.dispatch(START.plus(Duration.ofHours(1)), this::recordBatch);
+
+        assertThat(sentBatches, is(Arrays.asList(Arrays.asList(first, second), Arrays.asList(third, first))));
+        assertThat(service.size(), is(0));
+    }
+
+    @Test
+    public void thatDeviceIsQueuedOnceAndMovesUpWhenItPassesHigherThreshold() {
+        RateLimitedPushNotificationService service = createService(1, 2, 10);
+
+        offlineDevices.put(first, START.minusSeconds(16));
+        offlineDevices.put(second, START.minusSeconds(10));
+        offlineDevices.put(third, START.minusSeconds(14));
+        service.sendOfflineNotifications(Arrays.asList(first, second, third));
+        clock.advance(Duration.ofSeconds(6));
+        service.sendOfflineNotification(second);
+        clock.advance(Duration.ofSeconds(1));
+        service.sendOfflineNotification(second);
+
+        assertThat(service.size(), is(3));
+
+        service.dispatch(clock.instant(), this::recordBatch);
+
+        assertThat(sentBatches, is(Collections.singletonList(Arrays.asList(first, second))));
+        assertThat(service.size(), is(1));
+    }
+
+    @Test
+    public void thatQueuedNotificationsCountAsLastNotifications() {
+        RateLimitedPushNotificationService service = createService(1, 1, 10);
+
+        service.sendOfflineNotification(first);
+        clock.advance(Duration.ofSeconds(1));
+        service.sendOfflineNotification(first);
+
+        assertThat(service.getLastOfflineNotificationInstant(first), is(Optional.of(START.plusSeconds(1))));
+        assertThat(service.getLastOfflineNotificationInstants(Arrays.asList(first, second)), is(Collections.singletonMap(first, START.plusSeconds(1))));
+        verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+    }
+
+    @Test
+    public void thatCancelledNotificationsAreNotSent() {
+        RateLimitedPushNotificationService service = createService(1, 10, 10);
+
+        service.sendOfflineNotifications(Arrays.asList(first, second));
+        service.cancel(first);
+        service.cancel(third);
+        service.dispatch(START, this::recordBatch);
+
+        assertThat(sentBatches, is(Collections.singletonList(Collections.singletonList(second))));
+        assertThat(service.size(), is(0));
+    }
+
+    @Test
+    public void thatBatchThatCannotBeSentIsQueuedAgain() {
+        RateLimitedPushNotificationService service = createService(1, 10, 10);
+
+        doThrow(new IllegalStateException("Throttled.")).when(pushNotificationService).sendOfflineNotifications(anyCollection());
+        service.sendOfflineNotifications(Arrays.asList(first, second));
+
+        try {
+            service.dispatch(START, this::recordBatch);
+        } catch (IllegalStateException e) {
+            // The batch should be queued again.
+        }
+
+        assertThat(sentBatches.isEmpty(), is(true));
+        assertThat(service.size(), is(2));
+    }
+
+    private RateLimitedPushNotificationService createService(double notificationsPerSecond, int burst, int batchSize) {
+        return new RateLimitedPushNotificationService(pushNotificationService, clock, notificationsPerSecond, burst, batchSize, offlineDevices::get, () -> THRESHOLDS);
+    }
+
+    private void recordBatch(List<RateLimitedPushNotificationService.PendingNotification> batch) {
+        sentBatches.add(batch.stream()
+                .map(RateLimitedPushNotificationService.PendingNotification::getDevice)
+                .collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,40 @@
+package com.pietvandongen.purebliss.offlinedetector.job.ratelimited;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TokenBucketTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+    @Test
+    public void thatTokensAreAddedAtRateUpToBurst() {
+        assertThat(TokenBucket.refill(1, 500_000_000, 2 / 1e9, 5), is(2.0));
+        assertThat(TokenBucket.refill(4, 5_000_000_000L, 2 / 1e9, 5), is(5.0));
+    }
+
+    @Test
+    public void thatTimePassingBackwardsAddsNoTokens() {
+        assertThat(TokenBucket.refill(1, -1_000_000_000, 2 / 1e9, 5), is(1.0));
+    }
+
+    @Test
+    public void thatFullBucketAllowsBurstAndThenRate() {
+        TokenBucket tokenBucket = new TokenBucket(2, 5);
+
+        assertThat(tokenBucket.tryAcquire(10, START), is(5));
+        assertThat(tokenBucket.tryAcquire(10, START), is(0));
+        assertThat(tokenBucket.tryAcquire(10, START.plusMillis(1500)), is(3));
+        assertThat(tokenBucket.tryAcquire(1, START.plusSeconds(10)), is(1));
+        assertThat(tokenBucket.tryAcquire(10, START.plusSeconds(10)), is(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatRateShouldBePositive() {
+        new TokenBucket(0, 5);
+    }
+}
@@ -0,0 +1,363 @@
+package com.pietvandongen.purebliss.offlinedetector.job.scheduled;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.job.ThresholdSchedule;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(Enclosed.class)
+public class OfflineDevicesJobTests {
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDevicesJobCalculateDeadlineTests {
+        @Parameters(name = "Description = {0}, threshold crossing = {1}, coalescing window = {2}, expected result = {3}")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][]{
+                    {
+                            "Should keep crossing that is exactly on the window",
+                            Instant.ofEpochMilli(2000),
+                            1000L,
+                            2000L
+                    },
+                    {
+                            "Should round crossing up to the next window",
+                            Instant.ofEpochMilli(1001),
+                            1000L,
+                            2000L
+                    },
+                    {
+                            "Should round sub-millisecond crossing up to the next window",
+                            Instant.ofEpochMilli(2000).plusNanos(1),
+                            1000L,
+                            3000L
+                    },
+                    {
+                            "Should round sub-millisecond crossing up to the next millisecond without coalescing",
+                            Instant.ofEpochMilli(2000).plusNanos(1),
+                            1L,
+                            2001L
+                    }
+            });
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant thresholdCrossing;
+
+        @Parameter(2)
+        public long coalescingWindowMillis;
+
+        @Parameter(3)
+        public long expectedResult;
+
+        @Test
+        public void test() {
+            assertThat(OfflineDevicesJobImpl.calculateDeadline(thresholdCrossing, coalescingWindowMillis), is(expectedResult));
+        }
+    }
+
+    public static class OfflineDevicesJobCalculateNextThresholdCrossingTests {
+
+        private static final Instant DEVICE_OFFLINE = Instant.parse("2010-10-10T10:10:00.000Z");
+        private static final ThresholdSchedule THRESHOLD_SCHEDULE = ThresholdSchedule.compile(Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)));
+
+        @Test
+        public void thatFirstCrossingIsReturnedWhenNoThresholdWasPassed() {
+            assertThat(OfflineDevicesJobImpl.calculateNextThresholdCrossing(DEVICE_OFFLINE, DEVICE_OFFLINE, THRESHOLD_SCHEDULE),
+                    is(Optional.of(Instant.parse("2010-10-10T10:10:01.000000001Z"))));
+        }
+
+        @Test
+        public void thatNextCrossingIsReturnedWhenFirstThresholdWasPassed() {
+            assertThat(OfflineDevicesJobImpl.calculateNextThresholdCrossing(DEVICE_OFFLINE, DEVICE_OFFLINE.plusMillis(1500), THRESHOLD_SCHEDULE),
+                    is(Optional.of(Instant.parse("2010-10-10T10:10:02.000000001Z"))));
+        }
+
+        @Test
+        public void thatNothingIsReturnedWhenLastThresholdWasPassed() {
+            assertThat(OfflineDevicesJobImpl.calculateNextThresholdCrossing(DEVICE_OFFLINE, DEVICE_OFFLINE.plusMillis(2001), THRESHOLD_SCHEDULE),
+                    is(Optional.empty()));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobImplTests {
+
+        private static final Instant DISCONNECT_INSTANT = Instant.parse("2010-10-10T10:10:00.00Z");
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        @Mock
+        private ScheduledExecutorService scheduler;
+
+        @Mock
+        private ScheduledFuture<?> future;
+
+        private MutableClock clock;
+
+        private OfflineDevicesJobImpl offlineDevicesJob;
+
+        @Before
+        public void setUp() {
+            clock = new MutableClock(DISCONNECT_INSTANT);
+            offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, scheduler, Duration.ofSeconds(1));
+        }
+
+        @Test(expected = IllegalStateException.class)
+        public void thatRunThrowsExceptionWhenNoThresholdsAreConfigured() {
+            offlineDevicesJob.run();
+        }
+
+        @Test
+        public void thatNotificationIsScheduledForTheNextThresholdCrossing() {
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+
+            verify(scheduler).schedule(any(Runnable.class), eq(Duration.ofMinutes(1).plusSeconds(1).toMillis()), eq(TimeUnit.MILLISECONDS));
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(1));
+        }
+
+        @Test
+        public void thatDeadlinesWithinTheSameWindowAreCoalesced() {
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+            clock.instant = DISCONNECT_INSTANT.plusMillis(500);
+            offlineDevicesJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+
+            verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(1));
+        }
+
+        @Test
+        public void thatDeadlineIsCancelledWhenLastDeviceReconnects() {
+            Device device = new Device(UUID.randomUUID());
+
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.onDeviceConnect(device);
+
+            verify(future).cancel(false);
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(0));
+        }
+
+        @Test
+        public void thatPushNotificationIsSentOncePerPassedThresholdWhenDeadlinesFire() {
+            Device device = new Device(UUID.randomUUID());
+            ArgumentCaptor<Runnable> deadlines = ArgumentCaptor.forClass(Runnable.class);
+
+            doReturn(future).when(scheduler).schedule(deadlines.capture(), anyLong(), any(TimeUnit.class));
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.empty());
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(2)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).plusSeconds(1);
+            deadlines.getValue().run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2)).plusSeconds(1);
+            deadlines.getValue().run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotification(device);
+            verify(pushNotificationService, times(1)).getLastOfflineNotificationInstant(device);
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(0));
+        }
+
+        @Test
+        public void thatRunFiresPassedDeadlines() {
+            Device device = new Device(UUID.randomUUID());
+
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.empty());
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).minusSeconds(1);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+        }
+
+        @Test
+        public void thatFailingDeviceIsRetriedWithoutAffectingCoalescedDevice() {
+            Device failingDevice = new Device(UUID.randomUUID());
+            Device device = new Device(UUID.randomUUID());
+            RuntimeException failure = new RuntimeException("Push service unavailable");
+
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+            when(pushNotificationService.getLastOfflineNotificationInstant(any(Device.class))).thenReturn(Optional.empty());
+            doThrow(failure).doNothing().when(pushNotificationService).sendOfflineNotification(failingDevice);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(2)));
+            offlineDevicesJob.onDeviceDisconnect(failingDevice);
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).plusSeconds(1);
+
+            try {
+                offlineDevicesJob.run();
+                fail("The failure should be thrown.");
+            } catch (RuntimeException e) {
+                assertThat(e, is(failure));
+            }
+
+            verify(pushNotificationService).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(2));
+
+            clock.instant = clock.instant.plusSeconds(1);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotification(failingDevice);
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(1));
+        }
+
+        @Test
+        public void thatFailureOfScheduledDeadlineIsReportedToUncaughtExceptionHandler() {
+            Device device = new Device(UUID.randomUUID());
+            ArgumentCaptor<Runnable> deadlines = ArgumentCaptor.forClass(Runnable.class);
+            RuntimeException failure = new RuntimeException("Push service unavailable");
+            List<Throwable> reported = new ArrayList<>();
+            Thread thread = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+
+            doReturn(future).when(scheduler).schedule(deadlines.capture(), anyLong(), any(TimeUnit.class));
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenThrow(failure);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).plusSeconds(1);
+            thread.setUncaughtExceptionHandler((failedThread, e) -> reported.add(e));
+
+            try {
+                deadlines.getValue().run();
+            } finally {
+                thread.setUncaughtExceptionHandler(handler);
+            }
+
+            assertThat(reported, is(Collections.singletonList(failure)));
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(1));
+        }
+
+        @Test
+        public void thatPushNotificationIsNotSentWhenNotificationWasAlreadySent() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(device, DISCONNECT_INSTANT));
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.of(DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).plusSeconds(1)));
+            doReturn(future).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(1)).plusSeconds(2);
+            offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, scheduler, Duration.ofSeconds(1));
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(2)));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+            assertThat(offlineDevicesJob.getDeadlineCount(), is(1));
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+            ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+            try {
+                ConcurrentJobStress.stress(new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService, scheduler, Duration.ofMillis(1)), Duration.ofMillis(500));
+            } finally {
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    private static class MutableClock extends Clock {
+
+        private Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
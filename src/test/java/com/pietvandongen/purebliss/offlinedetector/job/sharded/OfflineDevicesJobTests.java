@@ -0,0 +1,391 @@
+package com.pietvandongen.purebliss.offlinedetector.job.sharded;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(Enclosed.class)
+public class OfflineDevicesJobTests {
+
+    public static class ConsistentHashRingTests {
+
+        private static final List<Device> DEVICES = createDevices(10_000);
+
+        @Test
+        public void thatOwnerDoesNotDependOnNodeOrder() {
+            ConsistentHashRing ring = ConsistentHashRing.of(Arrays.asList("a", "b", "c"));
+            ConsistentHashRing reorderedRing = ConsistentHashRing.of(Arrays.asList("c", "a", "b"));
+
+            DEVICES.forEach(device -> assertThat(reorderedRing.getOwner(device), is(ring.getOwner(device))));
+        }
+
+        @Test
+        public void thatDevicesAreSpreadEvenlyOverNodes() {
+            ConsistentHashRing ring = ConsistentHashRing.of(Arrays.asList("a", "b", "c", "d"));
+            Map<String, Long> deviceCounts = DEVICES.stream()
+                    .collect(Collectors.groupingBy(ring::getOwner, Collectors.counting()));
+
+            assertThat(deviceCounts.keySet(), is(ring.getNodes()));
+            deviceCounts.values().forEach(deviceCount -> assertThat(deviceCount > 1500 && deviceCount < 3500, is(true)));
+        }
+
+        @Test
+        public void thatAddingNodeOnlyMovesDevicesToThatNode() {
+            ConsistentHashRing ring = ConsistentHashRing.of(Arrays.asList("a", "b", "c"));
+            ConsistentHashRing grownRing = ConsistentHashRing.of(Arrays.asList("a", "b", "c", "d"));
+
+            DEVICES.stream()
+                    .filter(device -> !grownRing.getOwner(device).equals(ring.getOwner(device)))
+                    .forEach(device -> assertThat(grownRing.getOwner(device), is("d")));
+        }
+
+        @Test
+        public void thatSingleNodeOwnsAllDevices() {
+            ConsistentHashRing ring = ConsistentHashRing.of(Collections.singletonList("a"), 1);
+
+            DEVICES.forEach(device -> assertThat(ring.isOwner("a", device), is(true)));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatRingShouldHaveNodes() {
+            ConsistentHashRing.of(Collections.emptyList());
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatNodesShouldHaveVirtualNodes() {
+            ConsistentHashRing.of(Collections.singletonList("a"), 0);
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobImplTests {
+
+        private static final Instant DISCONNECT_INSTANT = Instant.parse("2010-10-10T10:10:00.00Z");
+        private static final ConsistentHashRing RING = ConsistentHashRing.of(Arrays.asList("a", "b"));
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        private MutableClock clock;
+        private Device ownedDevice;
+        private Device otherDevice;
+
+        @Before
+        public void setUp() {
+            List<Device> devices = createDevices(100);
+
+            clock = new MutableClock(DISCONNECT_INSTANT);
+            ownedDevice = devices.stream().filter(device -> RING.isOwner("a", device)).findFirst().orElseThrow(IllegalStateException::new);
+            otherDevice = devices.stream().filter(device -> RING.isOwner("b", device)).findFirst().orElseThrow(IllegalStateException::new);
+        }
+
+        @Test
+        public void thatOnlyOwnedDevicesAreLoaded() {
+            Map<Device, Instant> offlineDevices = new HashMap<>();
+
+            offlineDevices.put(ownedDevice, DISCONNECT_INSTANT);
+            offlineDevices.put(otherDevice, DISCONNECT_INSTANT);
+            when(deviceService.getOfflineDevices()).thenReturn(offlineDevices);
+
+            assertThat(createJob("a", RING).getOfflineDeviceCount(), is(1));
+        }
+
+        @Test
+        public void thatEventsOfOtherDevicesAreIgnored() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob("a", RING);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(ownedDevice);
+            offlineDevicesJob.onDeviceDisconnect(otherDevice);
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(ownedDevice));
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstants(anyCollection());
+        }
+
+        @Test
+        public void thatRebalanceHandsOffDevicesThatMovedWithTheirLastNotification() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob("a", RING);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.onDeviceDisconnect(ownedDevice);
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+            offlineDevicesJob.run();
+
+            DeviceHandOff handOff = offlineDevicesJob.rebalance(ConsistentHashRing.of(Collections.singletonList("b")));
+
+            assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(0));
+            assertThat(handOff.getOfflineDevices(), is(Collections.singletonMap(ownedDevice, DISCONNECT_INSTANT)));
+            assertThat(handOff.getLastNotifications(), is(Collections.singletonMap(ownedDevice, Optional.of(clock.instant))));
+        }
+
+        @Test
+        public void thatAcceptedHandOffIsNotNotifiedOrLookedUpAgain() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob("a", RING);
+            Instant lastNotification = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+            Map<Device, Instant> handedOffDevices = new HashMap<>();
+
+            handedOffDevices.put(ownedDevice, DISCONNECT_INSTANT);
+            handedOffDevices.put(otherDevice, DISCONNECT_INSTANT);
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            offlineDevicesJob.acceptHandOff(new DeviceHandOff(handedOffDevices, Collections.singletonMap(ownedDevice, Optional.of(lastNotification))));
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(3));
+            offlineDevicesJob.run();
+
+            assertThat(offlineDevicesJob.getOfflineDeviceCount(), is(1));
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstants(anyCollection());
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        @Test
+        public void thatHandOffDoesNotOverwriteMoreRecentDisconnect() {
+            OfflineDevicesJobImpl offlineDevicesJob = createJob("a", RING);
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofMinutes(1)));
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(5));
+            offlineDevicesJob.onDeviceDisconnect(ownedDevice);
+            offlineDevicesJob.acceptHandOff(new DeviceHandOff(Collections.singletonMap(ownedDevice, DISCONNECT_INSTANT), Collections.emptyMap()));
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(5).plusSeconds(30));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotifications(anyCollection());
+        }
+
+        @Test
+        public void thatUnknownLastNotificationsAreLookedUpOnce() {
+            Instant lastNotification = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+
+            when(deviceService.getOfflineDevices()).thenReturn(Collections.singletonMap(ownedDevice, DISCONNECT_INSTANT));
+            doReturn(Collections.singletonMap(ownedDevice, lastNotification))
+                    .when(pushNotificationService).getLastOfflineNotificationInstants(Collections.singletonList(ownedDevice));
+
+            OfflineDevicesJobImpl offlineDevicesJob = createJob("a", RING);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(5)));
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(3));
+            offlineDevicesJob.run();
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(6));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService).getLastOfflineNotificationInstants(Collections.singletonList(ownedDevice));
+            verify(pushNotificationService).sendOfflineNotifications(Collections.singletonList(ownedDevice));
+        }
+
+        @Test(expected = IllegalStateException.class)
+        public void thatJobCannotRunWithoutThresholds() {
+            createJob("a", RING).run();
+        }
+
+        private OfflineDevicesJobImpl createJob(String node, ConsistentHashRing ring) {
+            return new OfflineDevicesJobImpl(node, ring, clock, deviceService, pushNotificationService);
+        }
+    }
+
+    /**
+     * Runs several job instances in one JVM, with a router that delivers every event to all of them, and checks that
+     * every device is notified exactly once per passed threshold, before and after the nodes are rebalanced.
+     */
+    public static class MultiInstanceTests {
+
+        private static final Instant DISCONNECT_INSTANT = Instant.parse("2010-10-10T10:10:00.00Z");
+        private static final List<Duration> THRESHOLDS = Arrays.asList(Duration.ofMinutes(1), Duration.ofMinutes(5));
+
+        @Test
+        public void thatNoNotificationIsMissedOrDuplicatedAcrossRebalance() {
+            List<Device> devices = createDevices(1000);
+            List<Device> reconnectingDevices = devices.subList(0, 100);
+            ConsistentHashRing ring = ConsistentHashRing.of(Arrays.asList("a", "b", "c"));
+            ConsistentHashRing rebalancedRing = ConsistentHashRing.of(Arrays.asList("b", "c", "d"));
+            MutableClock clock = new MutableClock(DISCONNECT_INSTANT);
+            InMemoryPushNotificationService pushNotificationService = new InMemoryPushNotificationService(clock);
+            EventRouter router = new EventRouter(clock, pushNotificationService, THRESHOLDS);
+
+            ring.getNodes().forEach(node -> router.addNode(node, ring));
+            devices.forEach(router::disconnect);
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(2));
+            router.run();
+
+            assertThat(devices.stream().anyMatch(device -> !ring.getOwner(device).equals(rebalancedRing.getOwner(device))), is(true));
+            devices.forEach(device -> assertThat(pushNotificationService.getNotificationCount(device), is(1)));
+
+            router.rebalance(rebalancedRing);
+            pushNotificationService.lookupCount = 0;
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(3));
+            router.run();
+            reconnectingDevices.forEach(router::connect);
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofMinutes(6));
+            router.run();
+            router.run();
+
+            devices.forEach(device -> assertThat(pushNotificationService.getNotificationCount(device), is(reconnectingDevices.contains(device) ? 1 : 2)));
+            assertThat(pushNotificationService.lookupCount, is(0));
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+            ConsistentHashRing ring = ConsistentHashRing.of(Arrays.asList("a", "b"));
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl("a", ring, Clock.systemUTC(), deviceService, pushNotificationService), Duration.ofMillis(500));
+        }
+    }
+
+    private static List<Device> createDevices(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Device(UUID.randomUUID()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Delivers every event to all job instances, like a message broker would. Nodes are added and removed while no
+     * events are delivered, and all hand-offs are accepted before the next event is.
+     */
+    private static class EventRouter {
+
+        private final Clock clock;
+        private final PushNotificationService pushNotificationService;
+        private final List<Duration> thresholds;
+        private final Map<Device, Instant> offlineDevices = new LinkedHashMap<>();
+        private final Map<String, OfflineDevicesJobImpl> jobs = new LinkedHashMap<>();
+
+        private EventRouter(Clock clock, PushNotificationService pushNotificationService, List<Duration> thresholds) {
+            this.clock = clock;
+            this.pushNotificationService = pushNotificationService;
+            this.thresholds = thresholds;
+        }
+
+        private synchronized void addNode(String node, ConsistentHashRing ring) {
+            DeviceService deviceService = () -> new HashMap<>(offlineDevices);
+            OfflineDevicesJobImpl job = new OfflineDevicesJobImpl(node, ring, clock, deviceService, pushNotificationService);
+
+            job.onConfigurationUpdate(thresholds);
+            jobs.put(node, job);
+        }
+
+        private synchronized void rebalance(ConsistentHashRing ring) {
+            ring.getNodes().stream()
+                    .filter(node -> !jobs.containsKey(node))
+                    .forEach(node -> addNode(node, ring));
+
+            List<DeviceHandOff> handOffs = jobs.values().stream()
+                    .map(job -> job.rebalance(ring))
+                    .collect(Collectors.toList());
+
+            jobs.keySet().retainAll(ring.getNodes());
+            jobs.values().forEach(job -> handOffs.forEach(job::acceptHandOff));
+        }
+
+        private synchronized void connect(Device device) {
+            offlineDevices.remove(device);
+            jobs.values().forEach(job -> job.onDeviceConnect(device));
+        }
+
+        private synchronized void disconnect(Device device) {
+            offlineDevices.put(device, clock.instant());
+            jobs.values().forEach(job -> job.onDeviceDisconnect(device));
+        }
+
+        private synchronized void run() {
+            jobs.values().forEach(OfflineDevicesJobImpl::run);
+        }
+    }
+
+    /**
+     * Remembers every notification that was sent, so lookups return what was actually sent.
+     */
+    private static class InMemoryPushNotificationService implements PushNotificationService {
+
+        private final Clock clock;
+        private final Map<Device, List<Instant>> notifications = new HashMap<>();
+
+        private int lookupCount;
+
+        private InMemoryPushNotificationService(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public synchronized void sendOfflineNotification(Device device) {
+            notifications.computeIfAbsent(device, notifiedDevice -> new ArrayList<>()).add(clock.instant());
+        }
+
+        @Override
+        public synchronized Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+            lookupCount++;
+
+            return Optional.ofNullable(notifications.get(device)).map(instants -> instants.get(instants.size() - 1));
+        }
+
+        private synchronized int getNotificationCount(Device device) {
+            return notifications.getOrDefault(device, Collections.emptyList()).size();
+        }
+    }
+
+    private static class MutableClock extends Clock {
+
+        private volatile Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.pietvandongen.purebliss.offlinedetector.job.timingwheel;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.ConcurrentJobStress;
+import com.pietvandongen.purebliss.offlinedetector.service.DeviceService;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(Enclosed.class)
+public class OfflineDevicesJobTests {
+
+    public static class TimingWheelTests {
+
+        @Test
+        public void thatItemIsNotExpiredBeforeItsDeadline() {
+            TimingWheel<String> timingWheel = new TimingWheel<>(10, 0);
+
+            timingWheel.schedule("item", 25);
+
+            assertThat(timingWheel.advance(24), is(Collections.emptyList()));
+            assertThat(timingWheel.advance(30), is(Collections.singletonList("item")));
+            assertThat(timingWheel.size(), is(0));
+        }
+
+        @Test
+        public void thatItemBeyondTheLowestLevelIsCascadedAndExpiresOnTime() {
+            TimingWheel<String> timingWheel = new TimingWheel<>(1, 0);
+            long deadline = TimingWheel.WHEEL_SIZE * TimingWheel.WHEEL_SIZE * 3 + 7;
+
+            timingWheel.schedule("item", deadline);
+
+            assertThat(timingWheel.advance(deadline - 1), is(Collections.emptyList()));
+            assertThat(timingWheel.advance(deadline), is(Collections.singletonList("item")));
+        }
+
+        @Test
+        public void thatOverdueItemExpiresOnNextAdvance() {
+            TimingWheel<String> timingWheel = new TimingWheel<>(1, 100);
+
+            timingWheel.schedule("item", 50);
+
+            assertThat(timingWheel.advance(100), is(Collections.singletonList("item")));
+        }
+
+        @Test
+        public void thatCancelledItemDoesNotExpire() {
+            TimingWheel<String> timingWheel = new TimingWheel<>(1, 0);
+
+            timingWheel.schedule("item", 10);
+            timingWheel.cancel("item");
+
+            assertThat(timingWheel.advance(20), is(Collections.emptyList()));
+            assertThat(timingWheel.size(), is(0));
+        }
+
+        @Test
+        public void thatReschedulingReplacesThePreviousDeadline() {
+            TimingWheel<String> timingWheel = new TimingWheel<>(1, 0);
+
+            timingWheel.schedule("item", 10);
+            timingWheel.schedule("item", 5000);
+
+            assertThat(timingWheel.advance(4999), is(Collections.emptyList()));
+            assertThat(timingWheel.advance(5000), is(Collections.singletonList("item")));
+        }
+
+        @Test
+        public void thatOnlyDueItemsExpire() {
+            TimingWheel<Integer> timingWheel = new TimingWheel<>(1, 0);
+
+            for (int i = 1; i <= 1000; i++) {
+                timingWheel.schedule(i, i * 100L);
+            }
+
+            assertThat(timingWheel.advance(500).size(), is(5));
+            assertThat(timingWheel.size(), is(995));
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class OfflineDevicesJobCalculateNextThresholdCrossingTests {
+        @Parameters(name = "Description = {0}, device offline = {1}, current = {2}, thresholds = {3}, expected result = {4}")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][]{
+                    {
+                            "Should return first crossing when no threshold has been passed yet",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            Optional.of(Instant.parse("2010-10-10T10:10:01.000000001Z"))
+                    },
+                    {
+                            "Should return next crossing when first threshold has been passed",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:01.500Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            Optional.of(Instant.parse("2010-10-10T10:10:02.000000001Z"))
+                    },
+                    {
+                            "Should return empty when last threshold has been passed",
+                            Instant.parse("2010-10-10T10:10:00.000Z"),
+                            Instant.parse("2010-10-10T10:10:02.001Z"),
+                            Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(2)),
+                            Optional.empty()
+                    }
+            });
+        }
+
+        @Parameter
+        public String description;
+
+        @Parameter(1)
+        public Instant deviceOffline;
+
+        @Parameter(2)
+        public Instant current;
+
+        @Parameter(3)
+        public List<Duration> thresholds;
+
+        @Parameter(4)
+        public Optional<Instant> expectedResult;
+
+        @Test
+        public void test() {
+            assertThat(OfflineDevicesJobImpl.calculateNextThresholdCrossing(deviceOffline, current, thresholds), is(expectedResult));
+        }
+    }
+
+    @RunWith(MockitoJUnitRunner.class)
+    public static class OfflineDevicesJobImplTests {
+
+        private static final Instant DISCONNECT_INSTANT = Instant.parse("2010-10-10T10:10:00.00Z");
+
+        @Mock(answer = Answers.CALLS_REAL_METHODS)
+        private DeviceService deviceService;
+
+        @Mock
+        private PushNotificationService pushNotificationService;
+
+        private MutableClock clock;
+
+        private OfflineDevicesJobImpl offlineDevicesJob;
+
+        @Before
+        public void setUp() {
+            clock = new MutableClock(DISCONNECT_INSTANT);
+            offlineDevicesJob = new OfflineDevicesJobImpl(clock, deviceService, pushNotificationService, Duration.ofSeconds(1));
+        }
+
+        @Test(expected = IllegalStateException.class)
+        public void thatRunThrowsExceptionWhenNoThresholdsAreConfigured() {
+            offlineDevicesJob.run();
+        }
+
+        @Test
+        public void thatNoPushNotificationIsSentWhenNoThresholdWasPassed() {
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.onDeviceDisconnect(new Device(UUID.randomUUID()));
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofHours(23));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+            assertThat(offlineDevicesJob.getScheduledDeviceCount(), is(1));
+        }
+
+        @Test
+        public void thatPushNotificationIsSentOncePerPassedThreshold() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.empty());
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofDays(2)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(1)).plusSeconds(2);
+            offlineDevicesJob.run();
+            clock.instant = clock.instant.plusSeconds(1);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getScheduledDeviceCount(), is(1));
+
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.of(clock.instant));
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(2)).plusSeconds(2);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getScheduledDeviceCount(), is(0));
+        }
+
+        @Test
+        public void thatPushNotificationIsNotSentWhenNotificationWasAlreadySent() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(pushNotificationService.getLastOfflineNotificationInstant(device))
+                    .thenReturn(Optional.of(DISCONNECT_INSTANT.plus(Duration.ofDays(1)).plusSeconds(1)));
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofDays(2)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(1)).plusSeconds(2);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+        }
+
+        @Test
+        public void thatPushNotificationIsNotSentWhenDeviceReconnected() {
+            Device device = new Device(UUID.randomUUID());
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.onDeviceConnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(2));
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, never()).getLastOfflineNotificationInstant(any(Device.class));
+            verify(pushNotificationService, never()).sendOfflineNotification(any(Device.class));
+        }
+
+        @Test
+        public void thatDevicesAreRescheduledWhenConfigurationIsUpdated() {
+            Device device = new Device(UUID.randomUUID());
+
+            when(pushNotificationService.getLastOfflineNotificationInstant(device)).thenReturn(Optional.empty());
+
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(7)));
+            offlineDevicesJob.onDeviceDisconnect(device);
+            offlineDevicesJob.onConfigurationUpdate(Collections.singletonList(Duration.ofDays(1)));
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(1)).plusSeconds(2);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+        }
+
+        @Test
+        public void thatFailingDeviceIsRetriedOnNextRunWithoutAffectingOtherDueDevices() {
+            Device failingDevice = new Device(UUID.randomUUID());
+            Device device = new Device(UUID.randomUUID());
+            RuntimeException failure = new RuntimeException("Push service unavailable");
+
+            when(pushNotificationService.getLastOfflineNotificationInstant(any(Device.class))).thenReturn(Optional.empty());
+            doThrow(failure).doNothing().when(pushNotificationService).sendOfflineNotification(failingDevice);
+
+            offlineDevicesJob.onConfigurationUpdate(Arrays.asList(Duration.ofDays(1), Duration.ofDays(2)));
+            offlineDevicesJob.onDeviceDisconnect(failingDevice);
+            offlineDevicesJob.onDeviceDisconnect(device);
+
+            clock.instant = DISCONNECT_INSTANT.plus(Duration.ofDays(1)).plusSeconds(2);
+
+            try {
+                offlineDevicesJob.run();
+                fail("The failure should be thrown.");
+            } catch (RuntimeException e) {
+                assertThat(e, is(failure));
+            }
+
+            verify(pushNotificationService).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getScheduledDeviceCount(), is(2));
+
+            clock.instant = clock.instant.plusSeconds(1);
+            offlineDevicesJob.run();
+
+            verify(pushNotificationService, times(2)).sendOfflineNotification(failingDevice);
+            verify(pushNotificationService, times(1)).sendOfflineNotification(device);
+            assertThat(offlineDevicesJob.getScheduledDeviceCount(), is(2));
+        }
+    }
+
+    public static class OfflineDevicesJobConcurrencyTests {
+
+        @Test
+        public void thatJobWithstandsConcurrentUpdatesAndRuns() throws Exception {
+            DeviceService deviceService = Collections::emptyMap;
+            PushNotificationService pushNotificationService = mock(PushNotificationService.class, withSettings().stubOnly());
+
+            ConcurrentJobStress.stress(new OfflineDevicesJobImpl(Clock.systemUTC(), deviceService, pushNotificationService, Duration.ofMillis(1)), Duration.ofMillis(500));
+        }
+    }
+
+    private static class MutableClock extends Clock {
+
+        private Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.pietvandongen.purebliss.offlinedetector.service;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.simulation.VirtualClock;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DeviceServiceTests {
+
+    private static final Instant NOW = Instant.parse("2010-10-10T10:10:00.00Z");
+    private static final Clock CLOCK = Clock.fixed(NOW.plusSeconds(10), ZoneOffset.UTC);
+
+    @Test
+    public void thatAllOfflineDevicesAreReturnedInSinglePageByDefault() {
+        Map<Device, Instant> offlineDevices = createOfflineDevices(3);
+        DeviceService deviceService = () -> offlineDevices;
+
+        List<OfflineDevicePage> pages = deviceService.getOfflineDevicePages(1).collect(Collectors.toList());
+
+        assertThat(pages.size(), is(1));
+        assertThat(pages.get(0).getDevices(), is(offlineDevices));
+        assertThat(pages.get(0).getNextCursor().isPresent(), is(false));
+    }
+
+    @Test
+    public void thatPagesAreRequestedOneByOneUntilTheLastPage() {
+        PagedDeviceService deviceService = new PagedDeviceService(createOfflineDevices(5));
+        Iterator<OfflineDevicePage> pages = deviceService.getOfflineDevicePages(2).iterator();
+
+        assertThat(deviceService.requestedCursors, is(Collections.emptyList()));
+        assertThat(pages.next().getDevices().size(), is(2));
+        assertThat(deviceService.requestedCursors.size(), is(1));
+        assertThat(pages.next().getDevices().size(), is(2));
+        assertThat(pages.next().getDevices().size(), is(1));
+        assertThat(pages.hasNext(), is(false));
+        assertThat(deviceService.requestedCursors, is(Arrays.asList(null, "2", "4")));
+    }
+
+    @Test
+    public void thatPagesContainAllOfflineDevices() {
+        Map<Device, Instant> offlineDevices = createOfflineDevices(10);
+        Map<Device, Instant> pagedDevices = new LinkedHashMap<>();
+
+        new PagedDeviceService(offlineDevices).getOfflineDevicePages(3).forEach(page -> pagedDevices.putAll(page.getDevices()));
+
+        assertThat(pagedDevices, is(offlineDevices));
+    }
+
+    @Test
+    public void thatDefaultPageHasNoChangesSince() {
+        DeviceService deviceService = Collections::emptyMap;
+
+        assertThat(deviceService.getOfflineDevicePage(null, 1).getChangesSince(), is(Optional.empty()));
+    }
+
+    @Test
+    public void thatChangesSinceAreTakenFromClockBeforeReadingDevicesIfPageHasNone() {
+        VirtualClock clock = new VirtualClock(NOW);
+        List<Instant> requestedChangesSince = new ArrayList<>();
+        DeviceService deviceService = new DeviceService() {
+            @Override
+            public Map<Device, Instant> getOfflineDevices() {
+                clock.advance(Duration.ofSeconds(1));
+
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public boolean supportsOfflineDeviceChanges() {
+                return true;
+            }
+
+            @Override
+            public Map<Device, Optional<Instant>> getOfflineDeviceChangesSince(Instant since) {
+                requestedChangesSince.add(since);
+
+                return Collections.emptyMap();
+            }
+        };
+
+        deviceService.loadOfflineDevices(clock, 1, page -> {
+        }, (device, offline) -> {
+        });
+
+        assertThat(requestedChangesSince, is(Collections.singletonList(NOW)));
+    }
+
+    @Test
+    public void thatPageDoesNotCopyItsDevices() {
+        Map<Device, Instant> devices = createOfflineDevices(1);
+        OfflineDevicePage page = new OfflineDevicePage(devices, null, NOW);
+        Device device = new Device(UUID.randomUUID());
+
+        devices.put(device, NOW);
+
+        assertThat(page.getDevices().get(device), is(NOW));
+    }
+
+    @Test
+    public void thatChangesSinceFirstPageAreLoadedAfterPages() {
+        Map<Device, Instant> offlineDevices = createOfflineDevices(5);
+        Device connectedDevice = offlineDevices.keySet().iterator().next();
+        Device disconnectedDevice = new Device(UUID.randomUUID());
+        Map<Device, Optional<Instant>> changes = new LinkedHashMap<>();
+        List<Instant> requestedChangesSince = new ArrayList<>();
+        Map<Device, Instant> loadedDevices = new LinkedHashMap<>();
+        PagedDeviceService deviceService = new PagedDeviceService(offlineDevices) {
+            @Override
+            public boolean supportsOfflineDeviceChanges() {
+                return true;
+            }
+
+            @Override
+            public Map<Device, Optional<Instant>> getOfflineDeviceChangesSince(Instant since) {
+                requestedChangesSince.add(since);
+
+                return changes;
+            }
+        };
+
+        changes.put(connectedDevice, Optional.empty());
+        changes.put(disconnectedDevice, Optional.of(NOW.plusSeconds(1)));
+
+        deviceService.loadOfflineDevices(CLOCK, 2, page -> loadedDevices.putAll(page.getDevices()), (device, offline) -> {
+            if (offline.isPresent()) {
+                loadedDevices.put(device, offline.get());
+            } else {
+                loadedDevices.remove(device);
+            }
+        });
+
+        Map<Device, Instant> expectedDevices = new LinkedHashMap<>(offlineDevices);
+
+        expectedDevices.remove(connectedDevice);
+        expectedDevices.put(disconnectedDevice, NOW.plusSeconds(1));
+
+        assertThat(loadedDevices, is(expectedDevices));
+        assertThat(requestedChangesSince, is(Collections.singletonList(NOW)));
+    }
+
+    @Test
+    public void thatPagesAreLoadedWithoutChangesWhenServiceDoesNotTrackThem() {
+        Map<Device, Instant> offlineDevices = createOfflineDevices(3);
+        Map<Device, Instant> loadedDevices = new LinkedHashMap<>();
+
+        new PagedDeviceService(offlineDevices).loadOfflineDevices(CLOCK, 2, page -> loadedDevices.putAll(page.getDevices()), (device, offline) -> {
+            throw new AssertionError("No changes should be loaded.");
+        });
+
+        assertThat(loadedDevices, is(offlineDevices));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatPageSizeShouldBePositive() {
+        new PagedDeviceService(Collections.emptyMap()).getOfflineDevicePages(0);
+    }
+
+    private static Map<Device, Instant> createOfflineDevices(int count) {
+        Map<Device, Instant> offlineDevices = new LinkedHashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            offlineDevices.put(new Device(UUID.randomUUID()), NOW.minusSeconds(i));
+        }
+
+        return offlineDevices;
+    }
+
+    private static class PagedDeviceService implements DeviceService {
+
+        private final List<Map.Entry<Device, Instant>> offlineDevices;
+        private final List<String> requestedCursors = new ArrayList<>();
+
+        private PagedDeviceService(Map<Device, Instant> offlineDevices) {
+            this.offlineDevices = new ArrayList<>(offlineDevices.entrySet());
+        }
+
+        @Override
+        public Map<Device, Instant> getOfflineDevices() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OfflineDevicePage getOfflineDevicePage(String cursor, int pageSize) {
+            int from = cursor == null ? 0 : Integer.parseInt(cursor);
+            int to = Math.min(offlineDevices.size(), from + pageSize);
+            Map<Device, Instant> devices = new LinkedHashMap<>();
+
+            requestedCursors.add(cursor);
+            offlineDevices.subList(from, to).forEach(offlineDevice -> devices.put(offlineDevice.getKey(), offlineDevice.getValue()));
+
+            return new OfflineDevicePage(devices, to == offlineDevices.size() ? null : String.valueOf(to), NOW);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.pietvandongen.purebliss.offlinedetector.service;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class RetryingPushNotificationServiceTests {
+
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(100);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(10);
+
+    private final List<Device> devices = Collections.singletonList(new Device(UUID.randomUUID()));
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void thatFailedBatchIsRetriedUntilItSucceeds() throws Exception {
+        StubPushNotificationService pushNotificationService = new StubPushNotificationService(scheduler, 1, (attempt, batch) -> attempt < 3);
+        RetryingPushNotificationService service = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 1, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+
+        service.sendOfflineNotificationsAsync(devices).get(10, TimeUnit.SECONDS);
+
+        assertThat(pushNotificationService.attempts.get(), is(3));
+        assertThat(pushNotificationService.getSentCount(devices.get(0)), is(1));
+        assertThat(service.getAvailableInFlight(), is(1));
+    }
+
+    @Test
+    public void thatBatchFailsOnceAllAttemptsFailed() throws Exception {
+        StubPushNotificationService pushNotificationService = new StubPushNotificationService(scheduler, 1, (attempt, batch) -> true);
+        RetryingPushNotificationService service = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 1, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+        CompletableFuture<Void> future = service.sendOfflineNotificationsAsync(devices);
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IllegalStateException, is(true));
+        }
+
+        assertThat(future.isCompletedExceptionally(), is(true));
+        assertThat(pushNotificationService.attempts.get(), is(3));
+        assertThat(service.getAvailableInFlight(), is(1));
+    }
+
+    @Test
+    public void thatSynchronousCallThrowsFailureOfLastAttempt() {
+        StubPushNotificationService pushNotificationService = new StubPushNotificationService(scheduler, 1, (attempt, batch) -> true);
+        RetryingPushNotificationService service = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 1, 2, Duration.ofMillis(1), Duration.ofMillis(5));
+
+        try {
+            service.sendOfflineNotification(devices.get(0));
+            fail("The failure of the push notification service should be thrown.");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Push gateway unavailable."));
+        }
+
+        assertThat(pushNotificationService.getAttempts(), is(2));
+    }
+
+    @Test
+    public void thatDevicesAcceptedBeforeFailureAreNotSentAgain() throws Exception {
+        Device acceptedDevice = new Device(UUID.randomUUID());
+        Device rejectedDevice = new Device(UUID.randomUUID());
+        Map<Device, Instant> lastNotifications = new ConcurrentHashMap<>();
+        List<Collection<Device>> batches = new CopyOnWriteArrayList<>();
+        PushNotificationService pushNotificationService = new PushNotificationService() {
+            @Override
+            public void sendOfflineNotification(Device device) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+                return Optional.ofNullable(lastNotifications.get(device));
+            }
+
+            @Override
+            public void sendOfflineNotifications(Collection<Device> devices) {
+                batches.add(new ArrayList<>(devices));
+                lastNotifications.put(acceptedDevice, Instant.now());
+
+                if (batches.size() == 1) {
+                    throw new IllegalStateException("Push gateway failed halfway.");
+                }
+            }
+        };
+        RetryingPushNotificationService service = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 1, 3, Duration.ofMillis(1), Duration.ofMillis(5));
+
+        service.sendOfflineNotificationsAsync(Arrays.asList(acceptedDevice, rejectedDevice)).get(10, TimeUnit.SECONDS);
+
+        assertThat(batches, is(Arrays.asList(Arrays.asList(acceptedDevice, rejectedDevice), Collections.singletonList(rejectedDevice))));
+    }
+
+    @Test
+    public void thatInFlightWindowIsNeverExceeded() throws Exception {
+        StubPushNotificationService pushNotificationService = new StubPushNotificationService(scheduler, 10, (attempt, batch) -> attempt % 3 == 0);
+        RetryingPushNotificationService service = new RetryingPushNotificationService(pushNotificationService, scheduler, Clock.systemUTC(), 2, 5, Duration.ofMillis(1), Duration.ofMillis(5));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            futures.add(service.sendOfflineNotificationsAsync(Collections.singletonList(new Device(UUID.randomUUID()))));
+        }
+
+        CompletableFuture.allOf(futures.stream().toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.SECONDS);
+
+        assertThat(pushNotificationService.maxInFlight.get() <= 2, is(true));
+        assertThat(pushNotificationService.sent.size(), is(10));
+    }
+
+    @Test
+    public void thatFirstRetryWaitsBetweenHalfAndFullBaseBackoff() {
+        assertThat(RetryingPushNotificationService.calculateBackoff(1, BASE_BACKOFF, MAX_BACKOFF, 0), is(BASE_BACKOFF));
+        assertThat(RetryingPushNotificationService.calculateBackoff(1, BASE_BACKOFF, MAX_BACKOFF, 0.5), is(Duration.ofMillis(75)));
+    }
+
+    @Test
+    public void thatBackoffDoublesWithEveryRetry() {
+        assertThat(RetryingPushNotificationService.calculateBackoff(2, BASE_BACKOFF, MAX_BACKOFF, 0), is(Duration.ofMillis(200)));
+        assertThat(RetryingPushNotificationService.calculateBackoff(4, BASE_BACKOFF, MAX_BACKOFF, 0), is(Duration.ofMillis(800)));
+    }
+
+    @Test
+    public void thatBackoffIsCappedAtMaxBackoff() {
+        assertThat(RetryingPushNotificationService.calculateBackoff(8, BASE_BACKOFF, MAX_BACKOFF, 0), is(MAX_BACKOFF));
+        assertThat(RetryingPushNotificationService.calculateBackoff(Integer.MAX_VALUE, BASE_BACKOFF, MAX_BACKOFF, 0), is(MAX_BACKOFF));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatAttemptShouldBePositive() {
+        RetryingPushNotificationService.calculateBackoff(0, BASE_BACKOFF, MAX_BACKOFF, 0);
+    }
+}
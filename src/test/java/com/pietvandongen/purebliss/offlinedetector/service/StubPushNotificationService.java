@@ -0,0 +1,73 @@
+package com.pietvandongen.purebliss.offlinedetector.service;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+/**
+ * A push notification service that responds after a fixed latency and fails the attempts it is told to fail.
+ */
+public class StubPushNotificationService implements PushNotificationService {
+
+    private final ScheduledExecutorService scheduler;
+    private final long latencyMillis;
+    private final BiPredicate<Integer, Collection<Device>> shouldFail;
+    final Map<Device, Integer> sent = new ConcurrentHashMap<>();
+    final AtomicInteger attempts = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public StubPushNotificationService(ScheduledExecutorService scheduler, long latencyMillis, BiPredicate<Integer, Collection<Device>> shouldFail) {
+        this.scheduler = scheduler;
+        this.latencyMillis = latencyMillis;
+        this.shouldFail = shouldFail;
+    }
+
+    @Override
+    public void sendOfflineNotification(Device device) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Optional<Instant> getLastOfflineNotificationInstant(Device device) {
+        return Optional.empty();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendOfflineNotificationsAsync(Collection<Device> devices) {
+        int attempt = attempts.incrementAndGet();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        scheduler.schedule(() -> {
+            inFlight.decrementAndGet();
+
+            if (shouldFail.test(attempt, devices)) {
+                future.completeExceptionally(new IllegalStateException("Push gateway unavailable."));
+            } else {
+                devices.forEach(device -> sent.merge(device, 1, Integer::sum));
+                future.complete(null);
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+
+        return future;
+    }
+
+    public int getSentCount(Device device) {
+        return sent.getOrDefault(device, 0);
+    }
+
+    public int getAttempts() {
+        return attempts.get();
+    }
+}
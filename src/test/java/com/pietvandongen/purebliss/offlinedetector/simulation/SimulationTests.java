@@ -0,0 +1,235 @@
+package com.pietvandongen.purebliss.offlinedetector.simulation;
+
+import com.pietvandongen.purebliss.offlinedetector.domain.Device;
+import com.pietvandongen.purebliss.offlinedetector.job.OfflineDevicesJob;
+import com.pietvandongen.purebliss.offlinedetector.service.PushNotificationService;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(Enclosed.class)
+public class SimulationTests {
+
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+    public static class VirtualClockTests {
+
+        @Test
+        public void thatClockOnlyMovesWhenAdvanced() {
+            VirtualClock clock = new VirtualClock(START);
+
+            assertThat(clock.instant(), is(START));
+
+            clock.advance(Duration.ofHours(1));
+
+            assertThat(clock.instant(), is(START.plus(Duration.ofHours(1))));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatClockCannotMoveBackwards() {
+            new VirtualClock(START).advanceTo(START.minusNanos(1));
+        }
+    }
+
+    public static class TracesTests {
+
+        @Test
+        public void thatSyntheticTraceIsOrderedAndAlternatesPerDevice() {
+            Iterator<TraceEvent> trace = Traces.synthetic(1, 100, START, Duration.ofDays(1), Duration.ofHours(1), Duration.ofMinutes(30));
+            Map<Device, TraceEvent.Type> lastTypes = new HashMap<>();
+            Instant previous = START;
+            int count = 0;
+
+            while (trace.hasNext()) {
+                TraceEvent event = trace.next();
+                TraceEvent.Type expectedType = lastTypes.get(event.getDevice()) == TraceEvent.Type.DISCONNECT ? TraceEvent.Type.CONNECT : TraceEvent.Type.DISCONNECT;
+
+                assertThat(event.getInstant().isBefore(previous), is(false));
+                assertThat(event.getInstant().isBefore(START.plus(Duration.ofDays(1))), is(true));
+                assertThat(event.getType(), is(expectedType));
+
+                lastTypes.put(event.getDevice(), event.getType());
+                previous = event.getInstant();
+                count++;
+            }
+
+            assertThat(lastTypes.size(), is(100));
+            assertThat(count > 100 * 24, is(true));
+        }
+
+        @Test
+        public void thatSameSeedGeneratesSameTrace() throws Exception {
+            StringWriter first = new StringWriter();
+            StringWriter second = new StringWriter();
+
+            Traces.write(Traces.synthetic(7, 10, START, Duration.ofHours(6), Duration.ofMinutes(20), Duration.ofMinutes(20)), first);
+            Traces.write(Traces.synthetic(7, 10, START, Duration.ofHours(6), Duration.ofMinutes(20), Duration.ofMinutes(20)), second);
+
+            assertThat(first.toString(), is(second.toString()));
+        }
+
+        @Test
+        public void thatWrittenTraceIsReadBack() throws Exception {
+            StringWriter recorded = new StringWriter();
+            long count = Traces.write(Traces.synthetic(3, 10, START, Duration.ofHours(6), Duration.ofMinutes(20), Duration.ofMinutes(20)), recorded);
+            Iterator<TraceEvent> expected = Traces.synthetic(3, 10, START, Duration.ofHours(6), Duration.ofMinutes(20), Duration.ofMinutes(20));
+            Iterator<TraceEvent> actual = Traces.read(new BufferedReader(new StringReader(recorded.toString())));
+
+            for (long i = 0; i < count; i++) {
+                TraceEvent expectedEvent = expected.next();
+                TraceEvent actualEvent = actual.next();
+
+                assertThat(actualEvent.getInstant(), is(expectedEvent.getInstant()));
+                assertThat(actualEvent.getDevice(), is(expectedEvent.getDevice()));
+                assertThat(actualEvent.getType(), is(expectedEvent.getType()));
+            }
+
+            assertThat(actual.hasNext(), is(false));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatMalformedLineCannotBeParsed() {
+            Traces.parse("2020-01-01T00:00:00Z,DISCONNECT");
+        }
+    }
+
+    public static class SimulationRunTests {
+
+        private final Device device = new Device(UUID.randomUUID());
+
+        @Test
+        public void thatJobsRunAtVirtualIntervalsAndReceiveEventsAtTheirInstant() {
+            List<String> calls = new ArrayList<>();
+            Iterator<TraceEvent> trace = Arrays.asList(
+                    new TraceEvent(START.plus(Duration.ofMinutes(5)), device, TraceEvent.Type.DISCONNECT),
+                    new TraceEvent(START.plus(Duration.ofMinutes(25)), device, TraceEvent.Type.CONNECT)
+            ).iterator();
+
+            SimulationReport report = new Simulation(Collections.singletonList(Duration.ofMinutes(1)), Duration.ofMinutes(10))
+                    .addJob("recording", (clock, deviceService, pushNotificationService) -> new RecordingJob(clock, calls))
+                    .run(START, START.plus(Duration.ofMinutes(30)), trace);
+
+            assertThat(report.getEventCount(), is(2L));
+            assertThat(report.getRunCount(), is(3L));
+            assertThat(calls, is(Arrays.asList(
+                    "disconnect at 2020-01-01T00:05:00Z",
+                    "run at 2020-01-01T00:10:00Z",
+                    "run at 2020-01-01T00:20:00Z",
+                    "connect at 2020-01-01T00:25:00Z",
+                    "run at 2020-01-01T00:30:00Z"
+            )));
+        }
+
+        @Test
+        public void thatDecisionsThatDifferFromFirstJobAreReported() {
+            Iterator<TraceEvent> trace = Collections.singletonList(new TraceEvent(START, device, TraceEvent.Type.DISCONNECT)).iterator();
+
+            SimulationReport report = new Simulation(Collections.singletonList(Duration.ofMinutes(1)), Duration.ofMinutes(10))
+                    .addJob("every run", (clock, deviceService, pushNotificationService) -> new NotifyingJob(pushNotificationService, false))
+                    .addJob("first run", (clock, deviceService, pushNotificationService) -> new NotifyingJob(pushNotificationService, true))
+                    .run(START, START.plus(Duration.ofMinutes(30)), trace);
+
+            assertThat(report.getJobReport("every run").getNotificationCount(), is(3L));
+            assertThat(report.getJobReport("first run").getNotificationCount(), is(1L));
+            assertThat(report.getJobReport("first run").getDecisionDiffCount(), is(2L));
+            assertThat(report.getDecisionDiffs().get(0).getRun(), is(START.plus(Duration.ofMinutes(20))));
+            assertThat(report.getDecisionDiffs().get(0).isNotified(), is(false));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void thatJobNamesShouldBeUnique() {
+            new Simulation(Collections.singletonList(Duration.ofMinutes(1)), Duration.ofMinutes(10))
+                    .addJob("job", (clock, deviceService, pushNotificationService) -> new RecordingJob(clock, new ArrayList<>()))
+                    .addJob("job", (clock, deviceService, pushNotificationService) -> new RecordingJob(clock, new ArrayList<>()));
+        }
+    }
+
+    /**
+     * A job that records when it was called.
+     */
+    private static class RecordingJob implements OfflineDevicesJob {
+
+        private final Clock clock;
+        private final List<String> calls;
+
+        private RecordingJob(Clock clock, List<String> calls) {
+            this.clock = clock;
+            this.calls = calls;
+        }
+
+        @Override
+        public void run() {
+            calls.add("run at " + clock.instant());
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            calls.add("connect at " + clock.instant());
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            calls.add("disconnect at " + clock.instant());
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+        }
+    }
+
+    /**
+     * A job that notifies every offline device on every run, or only on its first run.
+     */
+    private static class NotifyingJob implements OfflineDevicesJob {
+
+        private final PushNotificationService pushNotificationService;
+        private final boolean onlyOnce;
+        private final List<Device> offlineDevices = new ArrayList<>();
+
+        private NotifyingJob(PushNotificationService pushNotificationService, boolean onlyOnce) {
+            this.pushNotificationService = pushNotificationService;
+            this.onlyOnce = onlyOnce;
+        }
+
+        @Override
+        public void run() {
+            offlineDevices.forEach(pushNotificationService::sendOfflineNotification);
+
+            if (onlyOnce) {
+                offlineDevices.clear();
+            }
+        }
+
+        @Override
+        public void onDeviceConnect(Device device) {
+            offlineDevices.remove(device);
+        }
+
+        @Override
+        public void onDeviceDisconnect(Device device) {
+            offlineDevices.add(device);
+        }
+
+        @Override
+        public void onConfigurationUpdate(List<Duration> thresholds) {
+        }
+    }
+}